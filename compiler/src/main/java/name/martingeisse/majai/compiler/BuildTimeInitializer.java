@@ -0,0 +1,175 @@
+package name.martingeisse.majai.compiler;
+
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.FieldNode;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.*;
+
+/**
+ * Runs the static initializers of selected classes at build time on the host, so their static fields go into the
+ * image with their initial values, and the objects they refer to are serialized into the image as well. The image
+ * itself never runs static initializers.
+ * <p>
+ * The classes are loaded by a class loader that defines them from the same class files that the image gets compiled
+ * from, so their fields are the same on the host and at run-time. Only classes of the Java platform are taken from
+ * the host, which means that the initializers must not create platform objects other than strings and arrays, and
+ * must not call native methods of the image. Loading a class on the host also initializes its superclasses and the
+ * classes that its initializer uses, but only the static fields of the selected classes are taken over into the
+ * image.
+ */
+final class BuildTimeInitializer {
+
+	private final ImageClassLoader classLoader;
+	private final Map<String, Map<String, Object>> staticFieldValues = new HashMap<>();
+
+	BuildTimeInitializer(ClassFileLoader classFileLoader) {
+		this.classLoader = new ImageClassLoader(classFileLoader);
+	}
+
+	/**
+	 * Returns true if the specified host class has been loaded from the class files of the image. Objects of such a
+	 * class can be serialized into the image field by field.
+	 */
+	static boolean isImageClass(Class<?> c) {
+		return c.getClassLoader() instanceof ImageClassLoader;
+	}
+
+	/**
+	 * Runs the static initializer of the specified class on the host and records the values of its static fields.
+	 */
+	void initialize(ClassInfo classInfo) {
+		Class<?> hostClass;
+		try {
+			hostClass = Class.forName(NameUtil.denormalizeClassName(classInfo.name), true, classLoader);
+		} catch (ClassNotFoundException | LinkageError e) {
+			throw new RuntimeException("could not initialize class " + classInfo.name + " at build time", e);
+		}
+		Map<String, Object> values = new HashMap<>();
+		for (FieldNode field : classInfo.fields) {
+			if ((field.access & Opcodes.ACC_STATIC) != 0) {
+				try {
+					Field hostField = hostClass.getDeclaredField(field.name);
+					hostField.setAccessible(true);
+					values.put(field.name, hostField.get(null));
+				} catch (ReflectiveOperationException e) {
+					throw new RuntimeException("could not read static field " + classInfo.name + "." + field.name + " at build time", e);
+				}
+			}
+		}
+		staticFieldValues.put(classInfo.name, values);
+	}
+
+	/**
+	 * Returns the values of the static fields of the specified class by field name, or null if the class has not
+	 * been initialized at build time.
+	 */
+	Map<String, Object> getStaticFieldValues(String className) {
+		return staticFieldValues.get(className);
+	}
+
+	/**
+	 * Returns the names of the classes and array types of the objects that can be reached through the static
+	 * reference fields of the initialized classes. Strings and primitive arrays are not included, since their
+	 * types are always available.
+	 */
+	Set<String> getObjectTypes() {
+		Set<String> types = new TreeSet<>();
+		Set<Object> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+		Deque<Object> worklist = new ArrayDeque<>();
+		for (Map<String, Object> values : staticFieldValues.values()) {
+			for (Object value : values.values()) {
+				if (value != null && !isPrimitiveWrapper(value.getClass())) {
+					worklist.add(value);
+				}
+			}
+		}
+		while (!worklist.isEmpty()) {
+			Object o = worklist.removeFirst();
+			if (!visited.add(o) || o instanceof String) {
+				continue;
+			}
+			Class<?> c = o.getClass();
+			if (c.isArray()) {
+				if (!c.getComponentType().isPrimitive()) {
+					types.add(NameUtil.normalizeClassName(c.getName()));
+					for (Object element : (Object[]) o) {
+						if (element != null) {
+							worklist.add(element);
+						}
+					}
+				}
+			} else if (isImageClass(c)) {
+				types.add(NameUtil.normalizeClassName(c.getName()));
+				for (Class<?> current = c; current != null; current = current.getSuperclass()) {
+					for (Field field : current.getDeclaredFields()) {
+						if (!Modifier.isStatic(field.getModifiers()) && !field.getType().isPrimitive()) {
+							try {
+								field.setAccessible(true);
+								Object value = field.get(o);
+								if (value != null) {
+									worklist.add(value);
+								}
+							} catch (IllegalAccessException e) {
+								throw new RuntimeException(e);
+							}
+						}
+					}
+				}
+			} else {
+				throw new RuntimeException("an object of class " + c.getName() + " was created at build time, but cannot be serialized into the image");
+			}
+		}
+		return types;
+	}
+
+	private static boolean isPrimitiveWrapper(Class<?> c) {
+		return c == Boolean.class || c == Byte.class || c == Short.class || c == Character.class || c == Integer.class ||
+			c == Long.class || c == Float.class || c == Double.class;
+	}
+
+	/**
+	 * Defines all classes except those of the Java platform from the class files of the image, even if the host
+	 * could load them from its own classpath, so they match the compiled code.
+	 */
+	private static final class ImageClassLoader extends ClassLoader {
+
+		private final ClassFileLoader classFileLoader;
+
+		ImageClassLoader(ClassFileLoader classFileLoader) {
+			super(ImageClassLoader.class.getClassLoader());
+			this.classFileLoader = classFileLoader;
+		}
+
+		@Override
+		protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+			if (name.startsWith("java.") || name.startsWith("javax.") || name.startsWith("jdk.") || name.startsWith("sun.")) {
+				return super.loadClass(name, resolve);
+			}
+			synchronized (getClassLoadingLock(name)) {
+				Class<?> c = findLoadedClass(name);
+				if (c == null) {
+					byte[] classFile;
+					try {
+						classFile = classFileLoader.getClassFile(name);
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+					if (classFile == null) {
+						throw new ClassNotFoundException(name);
+					}
+					c = defineClass(name, classFile, 0, classFile.length);
+				}
+				if (resolve) {
+					resolveClass(c);
+				}
+				return c;
+			}
+		}
+
+	}
+
+}
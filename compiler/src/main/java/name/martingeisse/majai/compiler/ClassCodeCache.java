@@ -0,0 +1,209 @@
+package name.martingeisse.majai.compiler;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stores the generated code for each class on disk, so it can be reused by later compiler runs.
+ * <p>
+ * The code generated for a class depends on its own class file, but also on the layout (field offsets, vtable
+ * indices, object size) of the classes it refers to, and the layout of a class depends on its class file and those
+ * of its superclasses. An entry therefore records the class file hashes of all classes that were consulted while
+ * translating, including their superclass chains. It is only valid if all of them are unchanged, and if it was
+ * generated by the same compiler with the same configuration. Only the reachable methods of a class get compiled
+ * (see {@link ReachabilityAnalysis}), so an entry also records which methods it contains.
+ * <p>
+ * Translating a class also has side effects: it resolves other classes, which then get compiled too, and it creates
+ * labels for runtime objects, which then get emitted, and it calls virtual methods through labels that get defined
+ * at the end (see {@link VirtualCall}). An entry records these so they can be replayed when it is reused.
+ */
+final class ClassCodeCache {
+
+	private static final int FORMAT_VERSION = 3;
+
+	private final File folder;
+	private final String configurationKey;
+
+	/**
+	 * The configuration key must identify everything besides the class files that influences the generated code,
+	 * such as compiler options and the compiler itself.
+	 */
+	ClassCodeCache(File folder, String configurationKey) {
+		this.folder = folder;
+		this.configurationKey = configurationKey;
+	}
+
+	private File getFile(String className) {
+		return new File(folder, NameUtil.mangleClassName(className) + ".cache");
+	}
+
+	/**
+	 * Returns the entry for the specified class, or null if there is none or it was created with a different
+	 * configuration. The caller must check the dependencies.
+	 */
+	Entry load(String className) {
+		File file = getFile(className);
+		if (!file.isFile()) {
+			return null;
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != FORMAT_VERSION || !readString(in).equals(configurationKey)) {
+				return null;
+			}
+			Entry entry = new Entry();
+			int dependencyCount = in.readInt();
+			for (int i = 0; i < dependencyCount; i++) {
+				entry.dependencies.put(readString(in), readString(in));
+			}
+			int metadataCount = in.readInt();
+			for (int i = 0; i < metadataCount; i++) {
+				entry.metadataNames.add(readString(in));
+			}
+			int runtimeObjectCount = in.readInt();
+			for (int i = 0; i < runtimeObjectCount; i++) {
+				RuntimeObjectKind kind = RuntimeObjectKind.values()[in.readByte()];
+				entry.runtimeObjects.add(new RuntimeObjectReference(kind, readString(in), readString(in)));
+			}
+			int virtualCallCount = in.readInt();
+			for (int i = 0; i < virtualCallCount; i++) {
+				entry.virtualCalls.add(new VirtualCall(readString(in), readString(in), readString(in)));
+			}
+			int methodCount = in.readInt();
+			for (int i = 0; i < methodCount; i++) {
+				entry.methods.add(readString(in));
+			}
+			entry.code = readString(in);
+			return entry;
+		} catch (IOException | RuntimeException e) {
+			// a damaged entry is treated like a missing one
+			return null;
+		}
+	}
+
+	/**
+	 * Stores an entry. The file is written under a temporary name first, so a concurrent or interrupted compiler
+	 * run never sees a partially written entry.
+	 */
+	void store(String className, Entry entry) {
+		folder.mkdirs();
+		File file = getFile(className);
+		File temporaryFile = new File(folder, file.getName() + ".tmp" + Thread.currentThread().getId());
+		try {
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile)))) {
+				out.writeInt(FORMAT_VERSION);
+				writeString(out, configurationKey);
+				out.writeInt(entry.dependencies.size());
+				for (Map.Entry<String, String> dependency : entry.dependencies.entrySet()) {
+					writeString(out, dependency.getKey());
+					writeString(out, dependency.getValue());
+				}
+				out.writeInt(entry.metadataNames.size());
+				for (String metadataName : entry.metadataNames) {
+					writeString(out, metadataName);
+				}
+				out.writeInt(entry.runtimeObjects.size());
+				for (RuntimeObjectReference reference : entry.runtimeObjects) {
+					out.writeByte(reference.kind.ordinal());
+					writeString(out, reference.value);
+					writeString(out, reference.label);
+				}
+				out.writeInt(entry.virtualCalls.size());
+				for (VirtualCall virtualCall : entry.virtualCalls) {
+					writeString(out, virtualCall.owner);
+					writeString(out, virtualCall.name);
+					writeString(out, virtualCall.descriptor);
+				}
+				out.writeInt(entry.methods.size());
+				for (String method : entry.methods) {
+					writeString(out, method);
+				}
+				writeString(out, entry.code);
+			}
+			Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			throw new UncheckedIOException("could not write cache entry for " + className, e);
+		}
+	}
+
+	// strings are stored as chars, not as UTF-8, since string constants may contain unpaired surrogates
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		char[] chars = new char[length];
+		for (int i = 0; i < length; i++) {
+			chars[i] = in.readChar();
+		}
+		return new String(chars);
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		out.writeInt(s.length());
+		out.writeChars(s);
+	}
+
+	static final class Entry {
+
+		/**
+		 * Maps class names to class file hashes.
+		 */
+		final Map<String, String> dependencies = new LinkedHashMap<>();
+
+		/**
+		 * The names of the object metadata resolved while translating.
+		 */
+		final List<String> metadataNames = new ArrayList<>();
+
+		final List<RuntimeObjectReference> runtimeObjects = new ArrayList<>();
+
+		final List<VirtualCall> virtualCalls = new ArrayList<>();
+
+		/**
+		 * The name and descriptor of each compiled method, in the order of the code.
+		 */
+		final List<String> methods = new ArrayList<>();
+
+		String code;
+
+	}
+
+	enum RuntimeObjectKind {
+
+		/**
+		 * A string constant; the value is the string itself.
+		 */
+		STRING,
+
+		/**
+		 * Object metadata or an interface description; the value is the type name.
+		 */
+		METADATA,
+
+		/**
+		 * The vtable of object metadata; the value is the type name.
+		 */
+		VTABLE
+
+	}
+
+	/**
+	 * Describes a runtime object that the generated code refers to, and the label that was used for it.
+	 */
+	static final class RuntimeObjectReference {
+
+		final RuntimeObjectKind kind;
+		final String value;
+		final String label;
+
+		RuntimeObjectReference(RuntimeObjectKind kind, String value, String label) {
+			this.kind = kind;
+			this.value = value;
+			this.label = label;
+		}
+
+	}
+
+}
@@ -1,33 +1,220 @@
 package name.martingeisse.majai.compiler;
 
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.InputStream;
+import org.apache.commons.io.IOUtils;
+
+import java.io.*;
+import java.nio.file.FileVisitOption;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 /**
- *
+ * Loads class files from a classpath of directories and jar files.
+ * <p>
+ * The classpath is scanned once when the loader is created, building an index from class names to their location,
+ * so looking up a class never touches the file system for roots that do not contain it. Like with the JVM, a class
+ * found in an earlier root hides the same class in later roots. Class file contents are cached after they have
+ * been read once, since most classes are read twice: once for hashing and once for parsing.
+ * <p>
+ * Jar files stay open until the loader is closed. Instances are thread-safe.
  */
-public class ClassFileLoader {
-
-	private static final String[] pathPrefixes = {
-		"jboot/build/classes/java/main/",
-		"jboot/out/production/classes/",
-		"compiler/build/classes/java/main/",
-		"compiler/out/production/classes/",
-		"vm/build/classes/java/main/",
-		"vm/out/production/classes/",
+public class ClassFileLoader implements Closeable {
+
+	private static final String[] defaultClasspath = {
+		"jboot/build/classes/java/main",
+		"jboot/out/production/classes",
+		"compiler/build/classes/java/main",
+		"compiler/out/production/classes",
+		"vm/build/classes/java/main",
+		"vm/out/production/classes",
 	};
 
+	private final List<ZipFile> jarFiles = new ArrayList<>();
+	private final Map<String, Location> index = new HashMap<>();
+	private final Map<String, byte[]> contents = new ConcurrentHashMap<>();
+
+	/**
+	 * Uses the build output folders of the jboot, compiler and vm projects, relative to the working directory.
+	 */
+	public ClassFileLoader() throws IOException {
+		this(getDefaultClasspath());
+	}
+
+	/**
+	 * Each classpath element may be a directory or a jar file. Elements that do not exist are ignored.
+	 */
+	public ClassFileLoader(List<File> classpath) throws IOException {
+		try {
+			for (File root : classpath) {
+				if (root.isDirectory()) {
+					indexDirectory(root.toPath());
+				} else if (root.isFile()) {
+					indexJarFile(root);
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			close();
+			throw e;
+		}
+	}
+
+	private static List<File> getDefaultClasspath() {
+		List<File> classpath = new ArrayList<>();
+		for (String element : defaultClasspath) {
+			classpath.add(new File(element));
+		}
+		return classpath;
+	}
+
+	/**
+	 * Parses a classpath in the platform's syntax, i.e. separated by {@link File#pathSeparator}.
+	 */
+	public static List<File> parseClasspath(String classpath) {
+		List<File> result = new ArrayList<>();
+		for (String element : classpath.split(File.pathSeparator)) {
+			if (!element.isEmpty()) {
+				result.add(new File(element));
+			}
+		}
+		return result;
+	}
+
+	private void indexDirectory(Path root) throws IOException {
+		try (Stream<Path> paths = Files.walk(root, FileVisitOption.FOLLOW_LINKS)) {
+			paths.forEach(path -> {
+				String relativePath = root.relativize(path).toString().replace(File.separatorChar, '/');
+				String className = getClassName(relativePath);
+				if (className != null && Files.isRegularFile(path)) {
+					index.putIfAbsent(className, new FileLocation(path));
+				}
+			});
+		}
+	}
+
+	private void indexJarFile(File file) throws IOException {
+		ZipFile jarFile = new ZipFile(file);
+		jarFiles.add(jarFile);
+		Enumeration<? extends ZipEntry> entries = jarFile.entries();
+		while (entries.hasMoreElements()) {
+			ZipEntry entry = entries.nextElement();
+			String className = entry.isDirectory() ? null : getClassName(entry.getName());
+			if (className != null) {
+				index.putIfAbsent(className, new JarEntryLocation(jarFile, entry));
+			}
+		}
+	}
+
+	// returns null for resources that are not class files, including the versioned entries of multi-release jars
+	private static String getClassName(String path) {
+		if (!path.endsWith(".class") || path.startsWith("META-INF/") || path.endsWith("module-info.class")) {
+			return null;
+		}
+		return path.substring(0, path.length() - ".class".length());
+	}
+
+	/**
+	 * Returns true if the classpath contains the specified class.
+	 */
+	public boolean contains(String className) {
+		return index.containsKey(NameUtil.normalizeClassName(className));
+	}
+
+	/**
+	 * Returns the contents of the class file for the specified class, or null if the classpath does not contain it.
+	 * The returned array must not be modified.
+	 */
+	public byte[] getClassFile(String className) throws IOException {
+		String normalizedClassName = NameUtil.normalizeClassName(className);
+		byte[] classFile = contents.get(normalizedClassName);
+		if (classFile == null) {
+			Location location = index.get(normalizedClassName);
+			if (location == null) {
+				return null;
+			}
+			classFile = location.read();
+			byte[] previous = contents.putIfAbsent(normalizedClassName, classFile);
+			if (previous != null) {
+				classFile = previous;
+			}
+		}
+		return classFile;
+	}
+
+	/**
+	 * Like {@link #getClassFile(String)}, but throws an exception if the classpath does not contain the class.
+	 */
+	public byte[] loadClassFile(String className) throws IOException {
+		byte[] classFile = getClassFile(className);
+		if (classFile == null) {
+			throw new FileNotFoundException("could not find class file for class " + className);
+		}
+		return classFile;
+	}
+
 	public InputStream open(String className) throws IOException {
-		for (String prefix : pathPrefixes) {
+		return new ByteArrayInputStream(loadClassFile(className));
+	}
+
+	@Override
+	public void close() throws IOException {
+		IOException exception = null;
+		for (ZipFile jarFile : jarFiles) {
 			try {
-				return new FileInputStream(prefix + NameUtil.normalizeClassName(className) + ".class");
-			} catch (FileNotFoundException e) {
-				// continue with next prefix
+				jarFile.close();
+			} catch (IOException e) {
+				if (exception == null) {
+					exception = e;
+				} else {
+					exception.addSuppressed(e);
+				}
 			}
 		}
-		throw new RuntimeException("could not find class file for class " + className);
+		jarFiles.clear();
+		if (exception != null) {
+			throw exception;
+		}
+	}
+
+	private interface Location {
+		byte[] read() throws IOException;
+	}
+
+	private static final class FileLocation implements Location {
+
+		private final Path path;
+
+		FileLocation(Path path) {
+			this.path = path;
+		}
+
+		@Override
+		public byte[] read() throws IOException {
+			return Files.readAllBytes(path);
+		}
+
+	}
+
+	private static final class JarEntryLocation implements Location {
+
+		private final ZipFile jarFile;
+		private final ZipEntry entry;
+
+		JarEntryLocation(ZipFile jarFile, ZipEntry entry) {
+			this.jarFile = jarFile;
+			this.entry = entry;
+		}
+
+		@Override
+		public byte[] read() throws IOException {
+			try (InputStream inputStream = jarFile.getInputStream(entry)) {
+				return IOUtils.toByteArray(inputStream);
+			}
+		}
+
 	}
 
 }
@@ -12,8 +12,11 @@ import org.objectweb.asm.tree.ClassNode;
 public class ClassInfo extends ClassNode {
 
 	public FieldAllocator fieldAllocator;
+	public FieldAllocator staticFieldAllocator;
 	public VtableAllocator vtableAllocator;
+	public InterfaceMethodTable interfaceMethodTable;
 	public VmObjectMetadataContributor runtimeMetadataContributor;
+	public String classFileHash;
 
 	public ClassInfo() {
 		super(Opcodes.ASM7);
@@ -0,0 +1,20 @@
+package name.martingeisse.majai.compiler;
+
+/**
+ * Selects how the {@link CodeTranslator} maps the JVM operand stack and local variables to machine resources.
+ */
+public enum CodeGenerationMode {
+
+	/**
+	 * Keeps the operand stack in memory, using the sp register as the stack pointer, and keeps all local variables
+	 * in the stack frame. Every push and pop is an actual memory access.
+	 */
+	NAIVE,
+
+	/**
+	 * Maps operand stack slots and local variables to registers based on the statically known stack depth. Only
+	 * those slots and variables that do not fit into registers are spilled to the stack frame.
+	 */
+	REGISTER_ALLOCATING
+
+}
@@ -1,80 +1,283 @@
 package name.martingeisse.majai.compiler;
 
+import name.martingeisse.majai.compiler.assembly.AssemblyBuffer;
+import name.martingeisse.majai.compiler.assembly.BranchRelaxer;
+import name.martingeisse.majai.compiler.assembly.PeepholeOptimizer;
+import name.martingeisse.majai.compiler.descriptor.ParsedFieldDescriptor;
 import name.martingeisse.majai.compiler.descriptor.ParsedMethodDescriptor;
-import name.martingeisse.majai.compiler.util.DoubleNotYetImplementedException;
-import name.martingeisse.majai.compiler.util.FloatNotYetImplementedException;
-import name.martingeisse.majai.compiler.util.LongNotYetImplementedException;
+import name.martingeisse.majai.compiler.ir.ArrayBoundsAnalysis;
+import name.martingeisse.majai.compiler.ir.BasicBlock;
+import name.martingeisse.majai.compiler.ir.IrBuilder;
+import name.martingeisse.majai.compiler.ir.IrInstruction;
+import name.martingeisse.majai.compiler.ir.IrMethod;
 import name.martingeisse.majai.compiler.util.NotYetImplementedException;
+import name.martingeisse.majai.vm.VmClass;
 import name.martingeisse.majai.vm.VmObjectArrayMetadata;
 import name.martingeisse.majai.vm.VmObjectMetadata;
 import org.objectweb.asm.Label;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.*;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.tree.analysis.BasicValue;
+import org.objectweb.asm.tree.analysis.Frame;
 
 import java.io.PrintWriter;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.*;
+import java.util.stream.Collectors;
 
 /**
  *
  */
 class CodeTranslator {
 
+	private static final String OBJECT_METADATA_CLASS = "name/martingeisse/majai/vm/VmObjectMetadata";
+	private static final String SOFT_FLOAT_CLASS = "name/martingeisse/majai/vm/SoftFloat";
+	private static final String IMPLICIT_EXCEPTIONS_CLASS = "name/martingeisse/majai/vm/ImplicitExceptions";
+	private static final int MAXIMUM_LINEAR_SWITCH_CASES = 3;
+	private static final int MAXIMUM_JUMP_TABLE_SPARSENESS = 4;
+
 	private final Context context;
-	private final PrintWriter out;
+	private final PrintWriter printWriter;
+	private final AssemblyBuffer out;
 	private final MethodInfo methodInfo;
 	private final String mangledMethodName;
 	private final String returnLabel;
-	private final List<Label> internalLabels = new ArrayList<>();
+	private final Map<Label, Integer> internalLabels = new HashMap<>();
+	private int syntheticLabelCount = 0;
+	private final FrameModel frame;
+	private IrInstruction currentInstruction;
+	private ArrayBoundsAnalysis arrayBoundsAnalysis;
+	private final Map<List<Object>, String> stackMapLabels = new LinkedHashMap<>();
+	private final List<String> stackMapTableEntries = new ArrayList<>();
+	private final Map<List<TryCatchBlockNode>, String> landingPadLabels = new LinkedHashMap<>();
+	private final Map<List<Object>, String> throwStubLabels = new LinkedHashMap<>();
+	private final Map<String, String[]> jumpTables = new LinkedHashMap<>();
 
 	CodeTranslator(Context context, PrintWriter out, MethodInfo methodInfo) {
 		this.context = context;
-		this.out = out;
+		this.printWriter = out;
+		this.out = new AssemblyBuffer();
 		this.methodInfo = methodInfo;
 		this.mangledMethodName = NameUtil.mangleMethodName(methodInfo);
 		this.returnLabel = mangledMethodName + "__return";
+		switch (context.getCodeGenerationMode()) {
+
+			case NAIVE:
+				this.frame = new NaiveFrameModel(this.out, methodInfo, isLeafMethod(methodInfo, context.getFloatingPointMode()));
+				break;
+
+			case REGISTER_ALLOCATING:
+				this.frame = new RegisterFrameModel(this.out, methodInfo, isLeafMethod(methodInfo, context.getFloatingPointMode()));
+				break;
+
+			default:
+				throw new IllegalArgumentException("unknown code generation mode: " + context.getCodeGenerationMode());
+
+		}
+	}
+
+	/**
+	 * Returns true if the code for the specified method contains no calls (see {@link FrameModel}). Besides method
+	 * calls, this excludes everything that is translated to a call into the run-time, as well as type checks and
+	 * switches that become a search tree, since those use argument registers as scratch registers. Methods with
+	 * exception handlers are not leaf methods either, since the unwinder finds their handlers through the stack maps
+	 * of their calls.
+	 */
+	private static boolean isLeafMethod(MethodInfo methodInfo, FloatingPointMode floatingPointMode) {
+		if (!methodInfo.tryCatchBlocks.isEmpty()) {
+			return false;
+		}
+		for (AbstractInsnNode instruction = methodInfo.instructions.getFirst(); instruction != null; instruction = instruction.getNext()) {
+			if (instruction instanceof MethodInsnNode || instruction instanceof InvokeDynamicInsnNode) {
+				return false;
+			}
+			switch (instruction.getOpcode()) {
+
+				case Opcodes.NEW:
+				case Opcodes.NEWARRAY:
+				case Opcodes.ANEWARRAY:
+				case Opcodes.MULTIANEWARRAY:
+				case Opcodes.CHECKCAST:
+				case Opcodes.INSTANCEOF:
+				case Opcodes.ATHROW:
+				case Opcodes.MONITORENTER:
+				case Opcodes.MONITOREXIT:
+				case Opcodes.LDIV:
+				case Opcodes.LREM:
+				case Opcodes.FREM:
+				case Opcodes.DREM:
+				case Opcodes.L2F:
+				case Opcodes.L2D:
+				case Opcodes.F2L:
+				case Opcodes.D2L:
+					return false;
+
+				case Opcodes.FADD:
+				case Opcodes.DADD:
+				case Opcodes.FSUB:
+				case Opcodes.DSUB:
+				case Opcodes.FMUL:
+				case Opcodes.DMUL:
+				case Opcodes.FDIV:
+				case Opcodes.DDIV:
+				case Opcodes.I2F:
+				case Opcodes.I2D:
+				case Opcodes.F2I:
+				case Opcodes.F2D:
+				case Opcodes.D2I:
+				case Opcodes.D2F:
+				case Opcodes.FCMPL:
+				case Opcodes.FCMPG:
+				case Opcodes.DCMPL:
+				case Opcodes.DCMPG:
+					if (floatingPointMode == FloatingPointMode.SOFTWARE) {
+						return false;
+					}
+					break;
+
+				case Opcodes.TABLESWITCH:
+				case Opcodes.LOOKUPSWITCH:
+					if (needsSearchTree(instruction)) {
+						return false;
+					}
+					break;
+
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the methods that the translation of the specified instruction may call besides the one that it
+	 * invokes explicitly: methods of SoftFloat, the throwers of ImplicitExceptions for failed run-time checks
+	 * (including the one that the array allocation in start.S jumps to) and the type check for types other than
+	 * classes. {@link ReachabilityAnalysis} uses this to find these methods, so it must cover everything the
+	 * translation calls. Listing a method that does not actually get called only makes the output larger.
+	 */
+	static List<MethodInsnNode> getRuntimeCalls(AbstractInsnNode instruction, Context context) {
+		int opcode = instruction.getOpcode();
+		switch (opcode) {
+
+			case Opcodes.IDIV:
+			case Opcodes.IREM:
+			case Opcodes.LDIV:
+			case Opcodes.LREM:
+				return Collections.singletonList(newThrowerCall("throwArithmeticException"));
+
+			case Opcodes.IALOAD:
+			case Opcodes.LALOAD:
+			case Opcodes.FALOAD:
+			case Opcodes.DALOAD:
+			case Opcodes.AALOAD:
+			case Opcodes.BALOAD:
+			case Opcodes.CALOAD:
+			case Opcodes.SALOAD:
+			case Opcodes.IASTORE:
+			case Opcodes.LASTORE:
+			case Opcodes.FASTORE:
+			case Opcodes.DASTORE:
+			case Opcodes.AASTORE:
+			case Opcodes.BASTORE:
+			case Opcodes.CASTORE:
+			case Opcodes.SASTORE:
+				return Collections.singletonList(newThrowerCall("throwArrayIndexOutOfBoundsException"));
+
+			case Opcodes.NEWARRAY:
+			case Opcodes.ANEWARRAY:
+			case Opcodes.MULTIANEWARRAY:
+				return Collections.singletonList(newThrowerCall("throwNegativeArraySizeException"));
+
+			case Opcodes.CHECKCAST:
+			case Opcodes.INSTANCEOF: {
+				List<MethodInsnNode> calls = new ArrayList<>();
+				if (opcode == Opcodes.CHECKCAST) {
+					calls.add(newThrowerCall("throwClassCastException"));
+				}
+				if (!(context.resolveObjectMetadata(((TypeInsnNode) instruction).desc) instanceof VmClass)) {
+					calls.add(new MethodInsnNode(Opcodes.INVOKESTATIC, OBJECT_METADATA_CLASS, "objectIsInstanceOf",
+						"(Ljava/lang/Object;L" + OBJECT_METADATA_CLASS + ";)Z", false));
+				}
+				return calls;
+			}
+
+			default:
+				MethodInsnNode softFloatCall = getSoftFloatCall(opcode, context.getFloatingPointMode());
+				return (softFloatCall == null ? Collections.emptyList() : Collections.singletonList(softFloatCall));
+
+		}
+	}
+
+	private static MethodInsnNode newThrowerCall(String thrower) {
+		return new MethodInsnNode(Opcodes.INVOKESTATIC, IMPLICIT_EXCEPTIONS_CLASS, thrower, "()V", false);
 	}
 
 	void translate() {
-		if ((methodInfo.access & Opcodes.ACC_NATIVE) != 0) {
+		if ((methodInfo.access & (Opcodes.ACC_NATIVE | Opcodes.ACC_ABSTRACT)) != 0) {
 			return;
 		}
 
 		// intro
-		out.println(mangledMethodName + ':');
-		out.println("\taddi sp, sp, -" + (methodInfo.maxLocals + 2) * 4);
-		out.println("\tsw ra, " + ((methodInfo.maxLocals) * 4) + "(sp)");
-		out.println("\tsw s0, " + ((methodInfo.maxLocals + 1) * 4) + "(sp)");
-		out.println("\tmv s0, sp");
-		{
-			int words = (methodInfo.access & Opcodes.ACC_STATIC) == 0 ? 1 : 0;
-			words += methodInfo.parsedDescriptor.getParameterWords();
-			for (int i = 0; i < words; i++) {
-				out.println("\tsw a" + i + ", " + (i * 4) + "(s0)");
-			}
-		}
+		out.label(mangledMethodName);
+		frame.emitPrologue();
 
 		// code
 		{
+			IrMethod irMethod = buildIr();
+			arrayBoundsAnalysis = new ArrayBoundsAnalysis(irMethod);
 			for (AbstractInsnNode instruction = methodInfo.instructions.getFirst(); instruction != null; instruction = instruction.getNext()) {
 				if (instruction instanceof LabelNode) {
-					internalLabels.add(((LabelNode) instruction).getLabel());
+					internalLabels.putIfAbsent(((LabelNode) instruction).getLabel(), internalLabels.size());
 				}
 			}
-			for (AbstractInsnNode instruction = methodInfo.instructions.getFirst(); instruction != null; instruction = instruction.getNext()) {
-				translate(instruction);
+			for (BasicBlock block : irMethod.getBlocks()) {
+				if (block.isReachable()) {
+					translate(block);
+				} else {
+					// unreachable code -- labels are still needed since branches in other unreachable code refer to them
+					for (IrInstruction instruction : block.getInstructions()) {
+						if (instruction.getNode() instanceof LabelNode) {
+							translate(instruction.getNode());
+						}
+					}
+				}
 			}
 		}
 
 		// outro
-		out.println(returnLabel + ':');
-		out.println("\tlw s0, " + ((methodInfo.maxLocals + 1) * 4) + "(sp)");
-		out.println("\tlw ra, " + ((methodInfo.maxLocals) * 4) + "(sp)");
-		out.println("\tadd sp, sp, " + (methodInfo.maxLocals + 2) * 4);
-		out.println("\tret");
-		out.println("");
+		frame.setDepth(0);
+		out.label(returnLabel);
+		frame.emitEpilogue();
+		emitThrowStubs();
+		emitLandingPads();
+
+		// optimize and print
+		if (context.isPeepholeOptimizationEnabled()) {
+			new PeepholeOptimizer(out.getLines()).optimize();
+		}
+		new BranchRelaxer(out.getLines(), mangledMethodName).relax();
+		out.print(printWriter);
+		printWriter.println("");
+		emitStackMaps();
+		emitJumpTables();
+
+	}
 
+	private IrMethod buildIr() {
+		try {
+			return new IrBuilder(methodInfo.containingClass.name, methodInfo).build();
+		} catch (AnalyzerException e) {
+			throw new RuntimeException("could not analyze method " + mangledMethodName, e);
+		}
+	}
+
+	private void translate(BasicBlock block) {
+		List<IrInstruction> instructions = block.getInstructions();
+		frame.setDepth(instructions.get(0).getStackWordsBefore());
+		for (IrInstruction instruction : instructions) {
+			currentInstruction = instruction;
+			translate(instruction.getNode());
+		}
 	}
 
 	private void translate(AbstractInsnNode instruction) {
@@ -83,7 +286,7 @@ class CodeTranslator {
 
 			case -1:
 				if (instruction instanceof LabelNode) {
-					out.println(getLabelName((LabelNode) instruction) + ':');
+					out.label(getLabelName((LabelNode) instruction));
 				} else if (instruction instanceof FrameNode) {
 					// not needed yet
 				} else {
@@ -95,7 +298,7 @@ class CodeTranslator {
 				break;
 
 			case Opcodes.ACONST_NULL:
-				push("x0");
+				frame.pushFrom("x0");
 				break;
 
 			case Opcodes.ICONST_M1:
@@ -116,11 +319,13 @@ class CodeTranslator {
 			case Opcodes.FCONST_0:
 			case Opcodes.FCONST_1:
 			case Opcodes.FCONST_2:
-				throw new FloatNotYetImplementedException();
+				pushInt(Float.floatToRawIntBits(opcode - Opcodes.FCONST_0));
+				break;
 
 			case Opcodes.DCONST_0:
 			case Opcodes.DCONST_1:
-				throw new DoubleNotYetImplementedException();
+				pushLong(Double.doubleToRawLongBits(opcode - Opcodes.DCONST_0));
+				break;
 
 			case Opcodes.BIPUSH:
 			case Opcodes.SIPUSH:
@@ -133,15 +338,16 @@ class CodeTranslator {
 				if (ldc.cst instanceof Integer) {
 					pushInt((Integer) ldc.cst);
 				} else if (ldc.cst instanceof Float) {
-					throw new FloatNotYetImplementedException();
+					pushInt(Float.floatToRawIntBits((Float) ldc.cst));
 				} else if (ldc.cst instanceof Long) {
-					throw new LongNotYetImplementedException();
+					pushLong((Long) ldc.cst);
 				} else if (ldc.cst instanceof Double) {
-					throw new DoubleNotYetImplementedException();
+					pushLong(Double.doubleToRawLongBits((Double) ldc.cst));
 				} else if (ldc.cst instanceof String) {
 					String label = context.getRuntimeObjectLabel(ldc.cst);
-					out.println("\tla t0, " + label);
-					push("t0");
+					String target = frame.pushTarget("t0");
+					out.instruction("la", target, label);
+					frame.push(target);
 				} else if (ldc.cst instanceof Type) {
 					throw new NotYetImplementedException("ldc(type) not yet implemented");
 				} else {
@@ -196,7 +402,7 @@ class CodeTranslator {
 			case Opcodes.LSTORE:
 			case Opcodes.DSTORE:
 				//noinspection ConstantConditions
-				store32(((VarInsnNode) instruction).var);
+				store64(((VarInsnNode) instruction).var);
 				break;
 
 			case Opcodes.IASTORE:
@@ -220,70 +426,39 @@ class CodeTranslator {
 				break;
 
 			case Opcodes.POP:
-				out.println("\tadd sp, sp, 4");
+				frame.drop(1);
 				break;
 
 			case Opcodes.POP2:
-				out.println("\tadd sp, sp, 8");
+				frame.drop(2);
 				break;
 
 			case Opcodes.DUP:
-				out.println("\tlw t0, 0(sp)");
-				out.println("\taddi sp, sp, -4");
-				out.println("\tsw t0, 0(sp)");
+				frame.pushFrom(frame.peek(0, "t0"));
 				break;
 
 			case Opcodes.DUP_X1:
-				out.println("\tlw t0, 0(sp)");
-				out.println("\tlw t1, 4(sp)");
-				out.println("\taddi sp, sp, -4");
-				out.println("\tsw t0, 0(sp)");
-				out.println("\tsw t1, 4(sp)");
-				out.println("\tsw t0, 8(sp)");
+				shuffle(2, 0, 1, 0);
 				break;
 
 			case Opcodes.DUP_X2:
-				out.println("\tlw t0, 0(sp)");
-				out.println("\tlw t1, 4(sp)");
-				out.println("\tlw t2, 8(sp)");
-				out.println("\taddi sp, sp, -4");
-				out.println("\tsw t0, 0(sp)");
-				out.println("\tsw t1, 4(sp)");
-				out.println("\tsw t2, 8(sp)");
-				out.println("\tsw t0, 0(sp)");
+				shuffle(3, 0, 2, 1, 0);
+				break;
+
+			case Opcodes.DUP2:
+				shuffle(2, 1, 0, 1, 0);
 				break;
 
 			case Opcodes.DUP2_X1:
-				out.println("\tlw t0, 0(sp)");
-				out.println("\tlw t1, 4(sp)");
-				out.println("\tlw t2, 8(sp)");
-				out.println("\taddi sp, sp, -4");
-				out.println("\tsw t0, 0(sp)");
-				out.println("\tsw t1, 4(sp)");
-				out.println("\tsw t2, 8(sp)");
-				out.println("\tsw t0, 12(sp)");
-				out.println("\tsw t1, 16(sp)");
+				shuffle(3, 1, 0, 2, 1, 0);
 				break;
 
 			case Opcodes.DUP2_X2:
-				out.println("\tlw t0, 0(sp)");
-				out.println("\tlw t1, 4(sp)");
-				out.println("\tlw t2, 8(sp)");
-				out.println("\tlw t3, 8(sp)");
-				out.println("\taddi sp, sp, -8");
-				out.println("\tsw t0, 0(sp)");
-				out.println("\tsw t1, 4(sp)");
-				out.println("\tsw t2, 8(sp)");
-				out.println("\tsw t3, 12(sp)");
-				out.println("\tsw t0, 16(sp)");
-				out.println("\tsw t1, 20(sp)");
+				shuffle(4, 1, 0, 3, 2, 1, 0);
 				break;
 
 			case Opcodes.SWAP:
-				out.println("\tlw t0, 0(sp)");
-				out.println("\tlw t1, 4(sp)");
-				out.println("\tsw t1, 0(sp)");
-				out.println("\tsw t0, 4(sp)");
+				shuffle(2, 0, 1);
 				break;
 
 			case Opcodes.IADD:
@@ -291,190 +466,232 @@ class CodeTranslator {
 				break;
 
 			case Opcodes.LADD:
-				throw new LongNotYetImplementedException();
+				longAdd();
+				break;
 
 			case Opcodes.FADD:
-				throw new FloatNotYetImplementedException();
+				floatOp("fadd.s", opcode);
+				break;
 
 			case Opcodes.DADD:
-				throw new DoubleNotYetImplementedException();
+				doubleOp("fadd.d", opcode);
+				break;
 
 			case Opcodes.ISUB:
 				wordOp("sub");
 				break;
 
 			case Opcodes.LSUB:
-				throw new LongNotYetImplementedException();
+				longSubtract();
+				break;
 
 			case Opcodes.FSUB:
-				throw new FloatNotYetImplementedException();
+				floatOp("fsub.s", opcode);
+				break;
 
 			case Opcodes.DSUB:
-				throw new DoubleNotYetImplementedException();
+				doubleOp("fsub.d", opcode);
+				break;
 
 			case Opcodes.IMUL:
 				wordOp("mul");
 				break;
 
 			case Opcodes.LMUL:
-				throw new LongNotYetImplementedException();
+				longMultiply();
+				break;
 
 			case Opcodes.FMUL:
-				throw new FloatNotYetImplementedException();
+				floatOp("fmul.s", opcode);
+				break;
 
 			case Opcodes.DMUL:
-				throw new DoubleNotYetImplementedException();
+				doubleOp("fmul.d", opcode);
+				break;
 
 			case Opcodes.IDIV:
-				wordOp("div");
+				wordDivision("div");
 				break;
 
 			case Opcodes.LDIV:
-				throw new LongNotYetImplementedException();
+				longDivision("longDivide");
+				break;
 
 			case Opcodes.FDIV:
-				throw new FloatNotYetImplementedException();
+				floatOp("fdiv.s", opcode);
+				break;
 
 			case Opcodes.DDIV:
-				throw new DoubleNotYetImplementedException();
+				doubleOp("fdiv.d", opcode);
+				break;
 
 			case Opcodes.IREM:
-				wordOp("rem");
+				wordDivision("rem");
 				break;
 
 			case Opcodes.LREM:
-				throw new LongNotYetImplementedException();
+				longDivision("longRemainder");
+				break;
 
 			case Opcodes.FREM:
-				throw new FloatNotYetImplementedException();
+				callSoftFloat(Opcodes.FREM);
+				break;
 
 			case Opcodes.DREM:
-				throw new DoubleNotYetImplementedException();
+				callSoftFloat(Opcodes.DREM);
+				break;
 
 			case Opcodes.INEG:
-				wordOp("neg");
+				unaryWordOp("neg");
 				break;
 
 			case Opcodes.LNEG:
-				throw new LongNotYetImplementedException();
+				longNegate();
+				break;
 
 			case Opcodes.FNEG:
-				throw new FloatNotYetImplementedException();
+				floatNegate();
+				break;
 
 			case Opcodes.DNEG:
-				throw new DoubleNotYetImplementedException();
+				doubleNegate();
+				break;
 
 			case Opcodes.ISHL:
 				wordOp("sll");
 				break;
 
 			case Opcodes.LSHL:
-				throw new LongNotYetImplementedException();
+				longShift(instruction);
+				break;
 
 			case Opcodes.ISHR:
 				wordOp("sra");
 				break;
 
 			case Opcodes.LSHR:
-				throw new LongNotYetImplementedException();
+				longShift(instruction);
+				break;
 
 			case Opcodes.IUSHR:
 				wordOp("srl");
 				break;
 
 			case Opcodes.LUSHR:
-				throw new LongNotYetImplementedException();
+				longShift(instruction);
+				break;
 
 			case Opcodes.IAND:
 				wordOp("and");
 				break;
 
 			case Opcodes.LAND:
-				throw new LongNotYetImplementedException();
+				longBitwiseOp("and");
+				break;
 
 			case Opcodes.IOR:
 				wordOp("or");
 				break;
 
 			case Opcodes.LOR:
-				throw new LongNotYetImplementedException();
+				longBitwiseOp("or");
+				break;
 
 			case Opcodes.IXOR:
 				wordOp("xor");
 				break;
 
 			case Opcodes.LXOR:
-				throw new LongNotYetImplementedException();
+				longBitwiseOp("xor");
+				break;
 
 			case Opcodes.IINC: {
 				IincInsnNode inc = (IincInsnNode) instruction;
-				out.println("\tlw t0, " + (inc.var * 4) + "(s0)");
-				out.println("\taddi t0, t0, " + inc.incr);
-				out.println("\tsw t0, " + (inc.var * 4) + "(s0)");
+				String value = frame.loadLocal(inc.var, "t0");
+				String target = frame.getLocalTarget(inc.var, "t0");
+				if (inc.incr >= -2048 && inc.incr < 2048) {
+					out.instruction("addi", target, value, inc.incr);
+				} else {
+					out.instruction("li", "t1", inc.incr);
+					out.instruction("add", target, value, "t1");
+				}
+				frame.storeLocal(inc.var, target);
 				break;
 			}
 
 			case Opcodes.I2L:
-				throw new LongNotYetImplementedException();
+				intToLong();
+				break;
 
 			case Opcodes.I2F:
-				throw new FloatNotYetImplementedException();
+				intToFloat();
+				break;
 
 			case Opcodes.I2D:
-				throw new DoubleNotYetImplementedException();
+				intToDouble();
+				break;
 
 			case Opcodes.L2I:
-				throw new LongNotYetImplementedException();
+				longToInt();
+				break;
 
 			case Opcodes.L2F:
-				throw new LongNotYetImplementedException();
+				callSoftFloat(Opcodes.L2F);
+				break;
 
 			case Opcodes.L2D:
-				throw new LongNotYetImplementedException();
+				callSoftFloat(Opcodes.L2D);
+				break;
 
 			case Opcodes.F2I:
-				throw new FloatNotYetImplementedException();
+				floatToInt();
+				break;
 
 			case Opcodes.F2L:
-				throw new FloatNotYetImplementedException();
+				callSoftFloat(Opcodes.F2L);
+				break;
 
 			case Opcodes.F2D:
-				throw new FloatNotYetImplementedException();
+				floatToDouble();
+				break;
 
 			case Opcodes.D2I:
-				throw new DoubleNotYetImplementedException();
+				doubleToInt();
+				break;
 
 			case Opcodes.D2L:
-				throw new DoubleNotYetImplementedException();
+				callSoftFloat(Opcodes.D2L);
+				break;
 
 			case Opcodes.D2F:
-				throw new DoubleNotYetImplementedException();
+				doubleToFloat();
+				break;
 
 			case Opcodes.I2B:
-				out.println("\tlb t0, 0(sp)");
-				out.println("\tsw t0, 0(sp)");
+				truncate(24, "srai");
 				break;
 
 			case Opcodes.I2C:
-				out.println("\tlhu t0, 0(sp)");
-				out.println("\tsw t0, 0(sp)");
+				truncate(16, "srli");
 				break;
 
 			case Opcodes.I2S:
-				out.println("\tlh t0, 0(sp)");
-				out.println("\tsw t0, 0(sp)");
+				truncate(16, "srai");
 				break;
 
 			case Opcodes.LCMP:
-				throw new LongNotYetImplementedException();
+				longCompare();
+				break;
 
 			case Opcodes.FCMPL:
 			case Opcodes.FCMPG:
-				throw new FloatNotYetImplementedException();
+				floatingPointCompare(false, opcode == Opcodes.FCMPG);
+				break;
 
 			case Opcodes.DCMPL:
 			case Opcodes.DCMPG:
-				throw new DoubleNotYetImplementedException();
+				floatingPointCompare(true, opcode == Opcodes.DCMPG);
+				break;
 
 			case Opcodes.IFEQ:
 				branch((JumpInsnNode) instruction, "beq", true);
@@ -533,7 +750,7 @@ class CodeTranslator {
 				break;
 
 			case Opcodes.GOTO:
-				out.println("\tj " + getLabelName((JumpInsnNode) instruction));
+				out.instruction("j", getLabelName((JumpInsnNode) instruction));
 				break;
 
 			case Opcodes.JSR:
@@ -542,24 +759,25 @@ class CodeTranslator {
 
 			case Opcodes.TABLESWITCH:
 			case Opcodes.LOOKUPSWITCH:
-				throw new NotYetImplementedException("jsr/ret/tableswitch/lookupswitch not yet implemented");
+				writeSwitch(instruction);
+				break;
 
 			case Opcodes.IRETURN:
 			case Opcodes.FRETURN:
 			case Opcodes.ARETURN:
-				pop("a0");
-				out.println("\tj " + returnLabel);
+				frame.popInto("a0");
+				out.instruction("j", returnLabel);
 				break;
 
 			case Opcodes.LRETURN:
 			case Opcodes.DRETURN:
-				pop("a0");
-				pop("a1");
-				out.println("\tj " + returnLabel);
+				frame.popInto("a0");
+				frame.popInto("a1");
+				out.instruction("j", returnLabel);
 				break;
 
 			case Opcodes.RETURN:
-				out.println("\tj " + returnLabel);
+				out.instruction("j", returnLabel);
 				break;
 
 			case Opcodes.GETSTATIC: {
@@ -595,7 +813,8 @@ class CodeTranslator {
 				break;
 
 			case Opcodes.INVOKEINTERFACE:
-				throw new NotYetImplementedException("invokeinterface not yet implemented");
+				invokeinterface((MethodInsnNode) instruction);
+				break;
 
 			case Opcodes.INVOKEDYNAMIC:
 				throw new NotYetImplementedException("invokedynamic not yet implemented");
@@ -604,15 +823,11 @@ class CodeTranslator {
 				TypeInsnNode typeInstruction = (TypeInsnNode) instruction;
 				String className = typeInstruction.desc;
 				ClassInfo classInfo = context.resolveClass(className);
-				out.println("\tli a0, " + classInfo.fieldAllocator.getWordCount());
-				out.println("\tla a1, " + NameUtil.mangleClassName(classInfo) + "_vtable");
-				out.println("\tcall allocateMemory");
-				push("a0");
+				writeObjectAllocation(classInfo.fieldAllocator.getWordCount() * 4, NameUtil.mangleClassName(classInfo) + "_vtable");
 				break;
 			}
 
 			case Opcodes.NEWARRAY: {
-				pop("a0");
 				int elementTypeCode = ((IntInsnNode) instruction).operand;
 				VmObjectMetadata metadata;
 				int shiftAmount;
@@ -662,24 +877,16 @@ class CodeTranslator {
 						throw new RuntimeException("invalid newarray element type code: " + elementTypeCode);
 
 				}
-				out.println("\tsll a0, a0, " + shiftAmount);
-				out.println("\tadd a0, a0, " + context.getArrayHeaderSize());
-				out.println("\tla a1, " + context.getRuntimeObjectLabel(metadata.getVtable()));
-				out.println("\tcall allocateMemory");
-				push("a0");
+				writeArrayAllocation(shiftAmount, context.getRuntimeObjectLabel(metadata.getVtable()));
 				break;
 			}
 
 			case Opcodes.ANEWARRAY: {
-				String elementDesc = ((TypeInsnNode) instruction).desc;
-				String arrayDesc = "[" + elementDesc;
+				// the operand is an internal name for classes, but a descriptor for array types
+				String elementType = ((TypeInsnNode) instruction).desc;
+				String arrayDesc = elementType.startsWith("[") ? "[" + elementType : "[L" + elementType + ";";
 				VmObjectArrayMetadata metadata = (VmObjectArrayMetadata) context.resolveObjectMetadata(arrayDesc);
-				pop("a0");
-				out.println("\tsll a0, a0, 2");
-				out.println("\tadd a0, a0, " + context.getArrayHeaderSize());
-				out.println("\tla a1, " + context.getRuntimeObjectLabel(metadata.getVtable()));
-				out.println("\tcall allocateMemory");
-				push("a0");
+				writeArrayAllocation(2, context.getRuntimeObjectLabel(metadata.getVtable()));
 				break;
 			}
 
@@ -688,23 +895,22 @@ class CodeTranslator {
 				break;
 
 			case Opcodes.ATHROW:
-				throw new NotYetImplementedException("athrow not yet implemented");
+				frame.popInto("a0");
+				call("throwException");
+				break;
 
-			case Opcodes.CHECKCAST: {
-				TypeInsnNode typeNode = (TypeInsnNode)instruction;
-				VmObjectMetadata metadata = context.resolveObjectMetadata(typeNode.desc);
-				pop("a0");
-				out.println("\tla a1, " + context.getRuntimeObjectLabel(metadata));
-				out.println("\tcall name_martingeisse_majai_vm_VmObjectMetadata_castReference_Ljava_lang_Object_Lname_martingeisse_majai_vm_VmObjectMetadata__Ljava_lang_Object_");
-				TODO
+			case Opcodes.CHECKCAST:
+				writeTypeCheck(((TypeInsnNode) instruction).desc, true);
 				break;
-			}
 
 			case Opcodes.INSTANCEOF:
+				writeTypeCheck(((TypeInsnNode) instruction).desc, false);
+				break;
+
 			case Opcodes.MONITORENTER:
 			case Opcodes.MONITOREXIT:
 			case Opcodes.MULTIANEWARRAY:
-				throw new NotYetImplementedException("checkcast/instanceof/monitorenter/monitorexit/multianewarray not yet implemented");
+				throw new NotYetImplementedException("monitorenter/monitorexit/multianewarray not yet implemented");
 
 			case Opcodes.IFNULL:
 				branch((JumpInsnNode) instruction, "beq", true);
@@ -723,8 +929,9 @@ class CodeTranslator {
 //region stack manipulation and computation
 
 	private void pushInt(int value) {
-		out.println("\tli t0, " + value);
-		push("t0");
+		String target = frame.pushTarget("t0");
+		out.instruction("li", target, value);
+		frame.push(target);
 	}
 
 	private void pushLong(long value) {
@@ -733,13 +940,16 @@ class CodeTranslator {
 	}
 
 	private void load32(int index) {
-		out.println("\tlw t0, " + (index * 4) + "(s0)");
-		push("t0");
+		frame.pushFrom(frame.loadLocal(index, "t0"));
 	}
 
 	private void store32(int index) {
-		pop("t0");
-		out.println("\tsw t0, " + (index * 4) + "(s0)");
+		String value = frame.pop("t0");
+		String target = frame.getLocalTarget(index, value);
+		if (!target.equals(value)) {
+			out.instruction("mv", target, value);
+		}
+		frame.storeLocal(index, target);
 	}
 
 	private void load64(int index) {
@@ -752,26 +962,597 @@ class CodeTranslator {
 		store32(index + 1);
 	}
 
-	private void push(String register) {
-		out.println("\taddi sp, sp, -4");
-		out.println("\tsw " + register + ", 0(sp)");
+	/**
+	 * Pops the topmost "words" slots, then pushes some of them again in the order specified by the indices (0 being
+	 * the topmost slot before popping). This implements the DUP and SWAP instructions.
+	 */
+	private void shuffle(int words, int... indices) {
+		for (int i = 0; i < words; i++) {
+			frame.popInto("t" + i);
+		}
+		for (int index : indices) {
+			frame.pushFrom("t" + index);
+		}
 	}
 
-	private void pop(String register) {
-		out.println("\tlw " + register + ", 0(sp)");
-		out.println("\tadd sp, sp, 4");
+	private void wordOp(String instruction) {
+		String right = frame.pop("t1");
+		String left = frame.pop("t0");
+		String target = frame.pushTarget("t0");
+		out.instruction(instruction, target, left, right);
+		frame.push(target);
 	}
 
-	private void peek(String register) {
-		out.println("\tlw " + register + ", 0(sp)");
+	/**
+	 * Implements IDIV and IREM. RISC-V does not trap on division by zero but returns a result, so the divisor must be
+	 * checked explicitly. The other special case, dividing the smallest int by -1, already gives the result that
+	 * Java expects.
+	 */
+	private void wordDivision(String instruction) {
+		String right = frame.pop("t1");
+		String left = frame.pop("t0");
+		out.instruction("beq", right, "x0", getThrowStubLabel("throwArithmeticException"));
+		String target = frame.pushTarget("t0");
+		out.instruction(instruction, target, left, right);
+		frame.push(target);
 	}
 
-	private void wordOp(String instruction) {
-		out.println("\tlw t0, 4(sp)");
-		out.println("\tlw t1, 0(sp)");
-		out.println("\t" + instruction + " t0, t0, t1");
-		out.println("\tadd sp, sp, 4");
-		out.println("\tsw t0, 0(sp)");
+	private void unaryWordOp(String instruction) {
+		String operand = frame.pop("t0");
+		String target = frame.pushTarget("t0");
+		out.instruction(instruction, target, operand);
+		frame.push(target);
+	}
+
+	/**
+	 * Implements narrowing int conversions by shifting the unused bits out to the left, then shifting back.
+	 */
+	private void truncate(int unusedBits, String rightShiftInstruction) {
+		String operand = frame.pop("t0");
+		String target = frame.pushTarget("t0");
+		out.instruction("slli", target, operand, unusedBits);
+		out.instruction(rightShiftInstruction, target, target, unusedBits);
+		frame.push(target);
+	}
+
+//endregion
+
+//region long arithmetic
+
+	// A long value occupies two stack slots with the high word below the low word. The operations below pop the
+	// words of their operands using t0 to t3 as scratch registers, then compute the result in t4 to t6 without
+	// branches, since temporary registers do not survive labels.
+
+	private void pushLongFrom(String high, String low) {
+		frame.pushFrom(high);
+		frame.pushFrom(low);
+	}
+
+	private void longAdd() {
+		String rightLow = frame.pop("t2");
+		String rightHigh = frame.pop("t3");
+		String leftLow = frame.pop("t0");
+		String leftHigh = frame.pop("t1");
+		out.instruction("add", "t4", leftLow, rightLow);
+		out.instruction("sltu", "t5", "t4", leftLow); // carry
+		out.instruction("add", "t6", leftHigh, rightHigh);
+		out.instruction("add", "t6", "t6", "t5");
+		pushLongFrom("t6", "t4");
+	}
+
+	private void longSubtract() {
+		String rightLow = frame.pop("t2");
+		String rightHigh = frame.pop("t3");
+		String leftLow = frame.pop("t0");
+		String leftHigh = frame.pop("t1");
+		out.instruction("sltu", "t5", leftLow, rightLow); // borrow
+		out.instruction("sub", "t4", leftLow, rightLow);
+		out.instruction("sub", "t6", leftHigh, rightHigh);
+		out.instruction("sub", "t6", "t6", "t5");
+		pushLongFrom("t6", "t4");
+	}
+
+	/**
+	 * Multiplies using the lower 64 bits of the full product: the low words multiplied as unsigned numbers, plus the
+	 * cross products, which only contribute to the high word.
+	 */
+	private void longMultiply() {
+		String rightLow = frame.pop("t2");
+		String rightHigh = frame.pop("t3");
+		String leftLow = frame.pop("t0");
+		String leftHigh = frame.pop("t1");
+		out.instruction("mul", "t4", leftLow, rightLow);
+		out.instruction("mulhu", "t5", leftLow, rightLow);
+		out.instruction("mul", "t6", leftLow, rightHigh);
+		out.instruction("add", "t5", "t5", "t6");
+		out.instruction("mul", "t6", leftHigh, rightLow);
+		out.instruction("add", "t5", "t5", "t6");
+		pushLongFrom("t5", "t4");
+	}
+
+	/**
+	 * Implements LDIV and LREM by calling a helper from start.S, which takes the operands in a0/a1 and a2/a3 (low word
+	 * first) and returns the result in a0/a1. The helpers neither allocate memory nor throw exceptions, so the call
+	 * needs no stack map; division by zero is checked before.
+	 */
+	private void longDivision(String helper) {
+		frame.popInto("a2");
+		frame.popInto("a3");
+		frame.popInto("a0");
+		frame.popInto("a1");
+		out.instruction("or", "t0", "a2", "a3");
+		out.instruction("beq", "t0", "x0", getThrowStubLabel("throwArithmeticException"));
+		out.instruction("call", helper);
+		pushLongFrom("a1", "a0");
+	}
+
+	private void longNegate() {
+		String low = frame.pop("t0");
+		String high = frame.pop("t1");
+		out.instruction("snez", "t5", low); // borrow
+		out.instruction("neg", "t4", low);
+		out.instruction("neg", "t6", high);
+		out.instruction("sub", "t6", "t6", "t5");
+		pushLongFrom("t6", "t4");
+	}
+
+	private void longBitwiseOp(String instruction) {
+		String rightLow = frame.pop("t2");
+		String rightHigh = frame.pop("t3");
+		String leftLow = frame.pop("t0");
+		String leftHigh = frame.pop("t1");
+		out.instruction(instruction, "t4", leftLow, rightLow);
+		out.instruction(instruction, "t5", leftHigh, rightHigh);
+		pushLongFrom("t5", "t4");
+	}
+
+	/**
+	 * Implements LSHL, LSHR and LUSHR. A constant shift amount, which is by far the most common case, is taken from
+	 * the instruction that pushed it, and results in a sequence specific to that amount. Otherwise, the result is
+	 * computed for both the case of shifting by less than 32 and by 32 or more, and one of them is selected by
+	 * masking with bit 5 of the amount.
+	 */
+	private void longShift(AbstractInsnNode instruction) {
+		Integer constantAmount = getIntConstant(instruction.getPrevious());
+		if (constantAmount != null) {
+			frame.drop(1);
+			constantLongShift(instruction.getOpcode(), constantAmount & 63);
+			return;
+		}
+		String amount = frame.pop("t2");
+		String low = frame.pop("t0");
+		String high = frame.pop("t1");
+		out.instruction("not", "t5", amount); // the lowest five bits are 31 - (amount & 31)
+		if (instruction.getOpcode() == Opcodes.LSHL) {
+
+			// shift by less than 32: high word in t3, low word in t4
+			out.instruction("sll", "t3", high, amount);
+			out.instruction("srli", "t4", low, 1);
+			out.instruction("srl", "t4", "t4", "t5");
+			out.instruction("or", "t3", "t3", "t4");
+			out.instruction("sll", "t4", low, amount);
+
+			// shift by 32 or more: t4 becomes the high word, the low word becomes zero
+			out.instruction("slli", "t5", amount, 26);
+			out.instruction("srai", "t5", "t5", 31);
+			out.instruction("xor", "t6", "t3", "t4");
+			out.instruction("and", "t6", "t6", "t5");
+			out.instruction("xor", "t3", "t3", "t6");
+			out.instruction("not", "t5", "t5");
+			out.instruction("and", "t4", "t4", "t5");
+
+		} else {
+
+			// shift by less than 32: high word in t3, low word in t4
+			out.instruction("srl", "t4", low, amount);
+			out.instruction("slli", "t3", high, 1);
+			out.instruction("sll", "t3", "t3", "t5");
+			out.instruction("or", "t4", "t4", "t3");
+			out.instruction(instruction.getOpcode() == Opcodes.LSHR ? "sra" : "srl", "t3", high, amount);
+
+			// shift by 32 or more: t3 becomes the low word, the high word becomes the sign or zero
+			out.instruction("slli", "t5", amount, 26);
+			out.instruction("srai", "t5", "t5", 31);
+			out.instruction("xor", "t6", "t4", "t3");
+			out.instruction("and", "t6", "t6", "t5");
+			out.instruction("xor", "t4", "t4", "t6");
+			if (instruction.getOpcode() == Opcodes.LSHR) {
+				out.instruction("srai", "t6", high, 31);
+				out.instruction("xor", "t6", "t3", "t6");
+				out.instruction("and", "t6", "t6", "t5");
+				out.instruction("xor", "t3", "t3", "t6");
+			} else {
+				out.instruction("not", "t5", "t5");
+				out.instruction("and", "t3", "t3", "t5");
+			}
+
+		}
+		pushLongFrom("t3", "t4");
+	}
+
+	private void constantLongShift(int opcode, int amount) {
+		if (amount == 0) {
+			return;
+		}
+		if (amount < 32) {
+			String low = frame.pop("t0");
+			String high = frame.pop("t1");
+			if (opcode == Opcodes.LSHL) {
+				out.instruction("slli", "t3", high, amount);
+				out.instruction("srli", "t4", low, 32 - amount);
+				out.instruction("or", "t3", "t3", "t4");
+				out.instruction("slli", "t4", low, amount);
+			} else {
+				out.instruction("srli", "t4", low, amount);
+				out.instruction("slli", "t3", high, 32 - amount);
+				out.instruction("or", "t4", "t4", "t3");
+				out.instruction(opcode == Opcodes.LSHR ? "srai" : "srli", "t3", high, amount);
+			}
+			pushLongFrom("t3", "t4");
+		} else if (opcode == Opcodes.LSHL) {
+			String low = frame.pop("t0");
+			frame.drop(1);
+			out.instruction("slli", "t3", low, amount - 32);
+			pushLongFrom("t3", "x0");
+		} else {
+			frame.drop(1);
+			String high = frame.pop("t1");
+			if (opcode == Opcodes.LSHR) {
+				out.instruction("srai", "t4", high, amount - 32);
+				out.instruction("srai", "t3", high, 31);
+				pushLongFrom("t3", "t4");
+			} else {
+				out.instruction("srli", "t4", high, amount - 32);
+				pushLongFrom("x0", "t4");
+			}
+		}
+	}
+
+	/**
+	 * Returns the value pushed by the specified instruction if it pushes an int constant, otherwise null.
+	 */
+	private static Integer getIntConstant(AbstractInsnNode instruction) {
+		if (instruction == null) {
+			return null;
+		}
+		int opcode = instruction.getOpcode();
+		if (opcode >= Opcodes.ICONST_M1 && opcode <= Opcodes.ICONST_5) {
+			return opcode - Opcodes.ICONST_0;
+		} else if (opcode == Opcodes.BIPUSH || opcode == Opcodes.SIPUSH) {
+			return ((IntInsnNode) instruction).operand;
+		} else if (opcode == Opcodes.LDC && ((LdcInsnNode) instruction).cst instanceof Integer) {
+			return (Integer) ((LdcInsnNode) instruction).cst;
+		} else {
+			return null;
+		}
+	}
+
+	/**
+	 * Compares the high words as signed and the low words as unsigned numbers, each giving -1, 0 or 1. The result is
+	 * the sign of twice the first comparison plus the second one.
+	 */
+	private void longCompare() {
+		String rightLow = frame.pop("t2");
+		String rightHigh = frame.pop("t3");
+		String leftLow = frame.pop("t0");
+		String leftHigh = frame.pop("t1");
+		out.instruction("slt", "t4", leftHigh, rightHigh);
+		out.instruction("slt", "t5", rightHigh, leftHigh);
+		out.instruction("sub", "t4", "t5", "t4");
+		out.instruction("sltu", "t5", leftLow, rightLow);
+		out.instruction("sltu", "t6", rightLow, leftLow);
+		out.instruction("sub", "t5", "t6", "t5");
+		out.instruction("slli", "t4", "t4", 1);
+		out.instruction("add", "t4", "t4", "t5");
+		out.instruction("slt", "t5", "x0", "t4");
+		out.instruction("srli", "t6", "t4", 31);
+		String target = frame.pushTarget("t0");
+		out.instruction("sub", target, "t5", "t6");
+		frame.push(target);
+	}
+
+	private void intToLong() {
+		frame.popInto("t0");
+		out.instruction("srai", "t1", "t0", 31);
+		pushLongFrom("t1", "t0");
+	}
+
+	private void longToInt() {
+		frame.popInto("t0");
+		frame.drop(1);
+		frame.pushFrom("t0");
+	}
+
+//endregion
+
+//region floating-point arithmetic
+
+	// Float and double values are kept on the operand stack and in local variables as their bit patterns, just like
+	// int and long values, since the frame models only deal with integer registers. Each operation moves its
+	// operands into floating-point registers and the result back. A double cannot be moved between a pair of integer
+	// registers and a floating-point register directly on RV32D, so it goes through floatingPointScratch (see
+	// start.S). Explicit rounding modes are used because the frm register is never set.
+
+	private boolean isHardwareFloatingPoint() {
+		return context.getFloatingPointMode() == FloatingPointMode.HARDWARE;
+	}
+
+	/**
+	 * Calls the method of {@link name.martingeisse.majai.vm.SoftFloat} that implements the specified opcode. These
+	 * methods take and return float and double values as int and long bit patterns.
+	 */
+	private void callSoftFloat(int opcode) {
+		invokenonvirtual(getSoftFloatCall(opcode, context.getFloatingPointMode()), true);
+	}
+
+	/**
+	 * Returns a call to the method of SoftFloat that implements the specified opcode, or null if the opcode is
+	 * translated inline. Remainders and conversions between long and floating-point values always use SoftFloat,
+	 * since RV32F/D cannot do them directly. FCMPL and FCMPG share a method that takes the result for NaN as an
+	 * extra argument, and so do DCMPL and DCMPG.
+	 */
+	static MethodInsnNode getSoftFloatCall(int opcode, FloatingPointMode floatingPointMode) {
+		switch (opcode) {
+
+			case Opcodes.FREM:
+				return newSoftFloatCall("remainderFloat", "(II)I");
+
+			case Opcodes.DREM:
+				return newSoftFloatCall("remainderDouble", "(JJ)J");
+
+			case Opcodes.L2F:
+				return newSoftFloatCall("longToFloat", "(J)I");
+
+			case Opcodes.L2D:
+				return newSoftFloatCall("longToDouble", "(J)J");
+
+			case Opcodes.F2L:
+				return newSoftFloatCall("floatToLong", "(I)J");
+
+			case Opcodes.D2L:
+				return newSoftFloatCall("doubleToLong", "(J)J");
+
+		}
+		if (floatingPointMode == FloatingPointMode.HARDWARE) {
+			return null;
+		}
+		switch (opcode) {
+
+			case Opcodes.FADD:
+				return newSoftFloatCall("addFloat", "(II)I");
+
+			case Opcodes.DADD:
+				return newSoftFloatCall("addDouble", "(JJ)J");
+
+			case Opcodes.FSUB:
+				return newSoftFloatCall("subtractFloat", "(II)I");
+
+			case Opcodes.DSUB:
+				return newSoftFloatCall("subtractDouble", "(JJ)J");
+
+			case Opcodes.FMUL:
+				return newSoftFloatCall("multiplyFloat", "(II)I");
+
+			case Opcodes.DMUL:
+				return newSoftFloatCall("multiplyDouble", "(JJ)J");
+
+			case Opcodes.FDIV:
+				return newSoftFloatCall("divideFloat", "(II)I");
+
+			case Opcodes.DDIV:
+				return newSoftFloatCall("divideDouble", "(JJ)J");
+
+			case Opcodes.FCMPL:
+			case Opcodes.FCMPG:
+				return newSoftFloatCall("compareFloat", "(III)I");
+
+			case Opcodes.DCMPL:
+			case Opcodes.DCMPG:
+				return newSoftFloatCall("compareDouble", "(JJI)I");
+
+			case Opcodes.I2F:
+				return newSoftFloatCall("intToFloat", "(I)I");
+
+			case Opcodes.I2D:
+				return newSoftFloatCall("intToDouble", "(I)J");
+
+			case Opcodes.F2I:
+				return newSoftFloatCall("floatToInt", "(I)I");
+
+			case Opcodes.D2I:
+				return newSoftFloatCall("doubleToInt", "(J)I");
+
+			case Opcodes.F2D:
+				return newSoftFloatCall("floatToDouble", "(I)J");
+
+			case Opcodes.D2F:
+				return newSoftFloatCall("doubleToFloat", "(J)I");
+
+			default:
+				return null;
+
+		}
+	}
+
+	private static MethodInsnNode newSoftFloatCall(String name, String descriptor) {
+		return new MethodInsnNode(Opcodes.INVOKESTATIC, SOFT_FLOAT_CLASS, name, descriptor, false);
+	}
+
+	private void popFloatInto(String floatRegister) {
+		String value = frame.pop("t0");
+		out.instruction("fmv.w.x", floatRegister, value);
+	}
+
+	private void pushFloatFrom(String floatRegister) {
+		String target = frame.pushTarget("t0");
+		out.instruction("fmv.x.w", target, floatRegister);
+		frame.push(target);
+	}
+
+	private void popDoubleInto(String floatRegister) {
+		String low = frame.pop("t0");
+		String high = frame.pop("t1");
+		out.instruction("la", "t4", "floatingPointScratch");
+		out.instruction("sw", low, "0(t4)");
+		out.instruction("sw", high, "4(t4)");
+		out.instruction("fld", floatRegister, "0(t4)");
+	}
+
+	private void pushDoubleFrom(String floatRegister) {
+		out.instruction("la", "t4", "floatingPointScratch");
+		out.instruction("fsd", floatRegister, "0(t4)");
+		out.instruction("lw", "t0", "0(t4)");
+		out.instruction("lw", "t1", "4(t4)");
+		pushLongFrom("t1", "t0");
+	}
+
+	private void floatOp(String instruction, int opcode) {
+		if (isHardwareFloatingPoint()) {
+			popFloatInto("ft1");
+			popFloatInto("ft0");
+			out.instruction(instruction, "ft0", "ft0", "ft1", "rne");
+			pushFloatFrom("ft0");
+		} else {
+			callSoftFloat(opcode);
+		}
+	}
+
+	private void doubleOp(String instruction, int opcode) {
+		if (isHardwareFloatingPoint()) {
+			popDoubleInto("ft1");
+			popDoubleInto("ft0");
+			out.instruction(instruction, "ft0", "ft0", "ft1", "rne");
+			pushDoubleFrom("ft0");
+		} else {
+			callSoftFloat(opcode);
+		}
+	}
+
+	/**
+	 * Negation only flips the sign bit, also for NaN, so it needs no floating-point instructions.
+	 */
+	private void floatNegate() {
+		String operand = frame.pop("t0");
+		out.instruction("li", "t1", Integer.MIN_VALUE);
+		String target = frame.pushTarget("t0");
+		out.instruction("xor", target, operand, "t1");
+		frame.push(target);
+	}
+
+	private void doubleNegate() {
+		String low = frame.pop("t0");
+		String high = frame.pop("t1");
+		out.instruction("li", "t2", Integer.MIN_VALUE);
+		out.instruction("xor", "t2", high, "t2");
+		pushLongFrom("t2", low);
+	}
+
+	/**
+	 * Implements FCMPx and DCMPx. Comparing both ways gives -1, 0 or 1 for ordered operands, and 0 if either of them
+	 * is NaN. In the latter case, 1 is added for FCMPG and DCMPG, and subtracted for FCMPL and DCMPL.
+	 */
+	private void floatingPointCompare(boolean doublePrecision, boolean nanIsGreater) {
+		if (!isHardwareFloatingPoint()) {
+			// the result for NaN is passed in the register after the operands, since pushing it could exceed the
+			// maximum stack depth that the frame model has allocated
+			MethodInsnNode call = getSoftFloatCall(doublePrecision ? Opcodes.DCMPG : Opcodes.FCMPG, context.getFloatingPointMode());
+			popArguments(new ParsedMethodDescriptor(doublePrecision ? "(JJ)V" : "(II)V"), false);
+			out.instruction("li", doublePrecision ? "a4" : "a2", nanIsGreater ? 1 : -1);
+			call(NameUtil.mangleMethodName(call));
+			pushReturnValue(new ParsedMethodDescriptor(call.desc));
+			return;
+		}
+		String format;
+		if (doublePrecision) {
+			popDoubleInto("ft1");
+			popDoubleInto("ft0");
+			format = ".d";
+		} else {
+			popFloatInto("ft1");
+			popFloatInto("ft0");
+			format = ".s";
+		}
+		out.instruction("flt" + format, "t4", "ft0", "ft1");
+		out.instruction("flt" + format, "t5", "ft1", "ft0");
+		out.instruction("sub", "t4", "t5", "t4");
+		out.instruction("feq" + format, "t5", "ft0", "ft0");
+		out.instruction("feq" + format, "t6", "ft1", "ft1");
+		out.instruction("and", "t5", "t5", "t6");
+		out.instruction("xori", "t5", "t5", 1); // unordered
+		String target = frame.pushTarget("t0");
+		out.instruction(nanIsGreater ? "add" : "sub", target, "t4", "t5");
+		frame.push(target);
+	}
+
+	private void intToFloat() {
+		if (isHardwareFloatingPoint()) {
+			String value = frame.pop("t0");
+			out.instruction("fcvt.s.w", "ft0", value, "rne");
+			pushFloatFrom("ft0");
+		} else {
+			callSoftFloat(Opcodes.I2F);
+		}
+	}
+
+	private void intToDouble() {
+		if (isHardwareFloatingPoint()) {
+			String value = frame.pop("t0");
+			out.instruction("fcvt.d.w", "ft0", value);
+			pushDoubleFrom("ft0");
+		} else {
+			callSoftFloat(Opcodes.I2D);
+		}
+	}
+
+	private void floatToInt() {
+		if (isHardwareFloatingPoint()) {
+			popFloatInto("ft0");
+			roundedToInt(".s");
+		} else {
+			callSoftFloat(Opcodes.F2I);
+		}
+	}
+
+	private void doubleToInt() {
+		if (isHardwareFloatingPoint()) {
+			popDoubleInto("ft0");
+			roundedToInt(".d");
+		} else {
+			callSoftFloat(Opcodes.D2I);
+		}
+	}
+
+	/**
+	 * Converts ft0 to int by rounding towards zero. Out-of-range values saturate like in Java, but NaN has to be
+	 * masked to zero explicitly.
+	 */
+	private void roundedToInt(String format) {
+		out.instruction("fcvt.w" + format, "t1", "ft0", "rtz");
+		out.instruction("feq" + format, "t2", "ft0", "ft0");
+		out.instruction("neg", "t2", "t2");
+		String target = frame.pushTarget("t0");
+		out.instruction("and", target, "t1", "t2");
+		frame.push(target);
+	}
+
+	private void floatToDouble() {
+		if (isHardwareFloatingPoint()) {
+			popFloatInto("ft0");
+			out.instruction("fcvt.d.s", "ft0", "ft0");
+			pushDoubleFrom("ft0");
+		} else {
+			callSoftFloat(Opcodes.F2D);
+		}
+	}
+
+	private void doubleToFloat() {
+		if (isHardwareFloatingPoint()) {
+			popDoubleInto("ft0");
+			out.instruction("fcvt.s.d", "ft0", "ft0", "rne");
+			pushFloatFrom("ft0");
+		} else {
+			callSoftFloat(Opcodes.D2F);
+		}
 	}
 
 //endregion
@@ -779,16 +1560,157 @@ class CodeTranslator {
 //region control transfer
 
 	private void branch(JumpInsnNode bytecodeInstruction, String machineInstruction, boolean implicitZero) {
-		if (!implicitZero) {
-			pop("t1");
+		String right = implicitZero ? "x0" : frame.pop("t1");
+		String left = frame.pop("t0");
+		out.instruction(machineInstruction, left, right, getLabelName(bytecodeInstruction));
+	}
+
+	/**
+	 * Implements TABLESWITCH and LOOKUPSWITCH, which are treated alike since javac picks one of them based on a
+	 * density estimate that does not fit our costs. Up to {@link #MAXIMUM_LINEAR_SWITCH_CASES} cases are compared
+	 * one after another. Larger switches become a bounds-checked jump table if the keys are dense enough (see
+	 * {@link #isJumpTableSuitable(int[])}), and a balanced binary search tree otherwise.
+	 * <p>
+	 * The search tree needs internal labels, where temporary registers are dead, so it keeps the key in a0. That
+	 * makes a method with such a switch a non-leaf method.
+	 */
+	private void writeSwitch(AbstractInsnNode instruction) {
+		TreeMap<Integer, LabelNode> cases = getSwitchCases(instruction);
+		String defaultLabel = getLabelName(getSwitchDefault(instruction));
+		int[] keys = cases.keySet().stream().mapToInt(Integer::intValue).toArray();
+		String[] labels = cases.values().stream().map(this::getLabelName).toArray(String[]::new);
+		if (keys.length <= MAXIMUM_LINEAR_SWITCH_CASES) {
+			String key = frame.pop("t0");
+			for (int i = 0; i < keys.length; i++) {
+				out.instruction("li", "t1", keys[i]);
+				out.instruction("beq", key, "t1", labels[i]);
+			}
+			out.instruction("j", defaultLabel);
+		} else if (isJumpTableSuitable(keys)) {
+			writeJumpTable(keys, labels, defaultLabel);
+		} else {
+			frame.popInto("a0");
+			writeSearchTree(keys, labels, 0, keys.length, defaultLabel);
+		}
+	}
+
+	private static TreeMap<Integer, LabelNode> getSwitchCases(AbstractInsnNode instruction) {
+		TreeMap<Integer, LabelNode> cases = new TreeMap<>();
+		if (instruction instanceof TableSwitchInsnNode) {
+			TableSwitchInsnNode tableSwitch = (TableSwitchInsnNode) instruction;
+			for (int i = 0; i < tableSwitch.labels.size(); i++) {
+				// cases that jump to the default label are only there to fill gaps in the table
+				if (tableSwitch.labels.get(i) != tableSwitch.dflt) {
+					cases.put(tableSwitch.min + i, tableSwitch.labels.get(i));
+				}
+			}
+		} else {
+			LookupSwitchInsnNode lookupSwitch = (LookupSwitchInsnNode) instruction;
+			for (int i = 0; i < lookupSwitch.keys.size(); i++) {
+				cases.put(lookupSwitch.keys.get(i), lookupSwitch.labels.get(i));
+			}
 		}
-		pop("t0");
-		out.println("\t" + machineInstruction + " t0, " + (implicitZero ? "x0" : "t1") + ", " + getLabelName(bytecodeInstruction));
+		return cases;
+	}
+
+	private static LabelNode getSwitchDefault(AbstractInsnNode instruction) {
+		if (instruction instanceof TableSwitchInsnNode) {
+			return ((TableSwitchInsnNode) instruction).dflt;
+		} else {
+			return ((LookupSwitchInsnNode) instruction).dflt;
+		}
+	}
+
+	/**
+	 * A jump table is used if at least one in {@link #MAXIMUM_JUMP_TABLE_SPARSENESS} of its entries is a case, so
+	 * the table never takes much more space than the search tree would.
+	 */
+	private static boolean isJumpTableSuitable(int[] keys) {
+		long range = (long) keys[keys.length - 1] - keys[0] + 1;
+		return range <= (long) keys.length * MAXIMUM_JUMP_TABLE_SPARSENESS;
+	}
+
+	private static boolean needsSearchTree(AbstractInsnNode instruction) {
+		int[] keys = getSwitchCases(instruction).keySet().stream().mapToInt(Integer::intValue).toArray();
+		return keys.length > MAXIMUM_LINEAR_SWITCH_CASES && !isJumpTableSuitable(keys);
+	}
+
+	private void writeJumpTable(int[] keys, String[] labels, String defaultLabel) {
+		int min = keys[0];
+		int size = keys[keys.length - 1] - min + 1;
+
+		// compute the table index; keys below the minimum wrap around to large unsigned indices
+		String key = frame.pop("t0");
+		String index;
+		if (min == 0) {
+			index = key;
+		} else if (min > -2048 && min <= 2048) {
+			out.instruction("addi", "t1", key, -min);
+			index = "t1";
+		} else {
+			out.instruction("li", "t1", min);
+			out.instruction("sub", "t1", key, "t1");
+			index = "t1";
+		}
+		out.instruction("li", "t2", size);
+		out.instruction("bgeu", index, "t2", defaultLabel);
+
+		// load the target from the table and jump there
+		String tableLabel = newSyntheticLabel("jumpTable");
+		out.instruction("slli", "t1", index, 2);
+		out.instruction("la", "t2", tableLabel);
+		out.instruction("add", "t2", "t2", "t1");
+		out.instruction("lw", "t2", "0(t2)");
+		out.instruction("jr", "t2");
+
+		// the table itself goes to read-only data
+		String[] entries = new String[size];
+		Arrays.fill(entries, defaultLabel);
+		for (int i = 0; i < keys.length; i++) {
+			entries[keys[i] - min] = labels[i];
+		}
+		jumpTables.put(tableLabel, entries);
+	}
+
+	/**
+	 * Emits a search tree for the keys from index "from" (inclusive) to "to" (exclusive), with the key in a0.
+	 */
+	private void writeSearchTree(int[] keys, String[] labels, int from, int to, String defaultLabel) {
+		if (to - from <= MAXIMUM_LINEAR_SWITCH_CASES) {
+			for (int i = from; i < to; i++) {
+				out.instruction("li", "t1", keys[i]);
+				out.instruction("beq", "a0", "t1", labels[i]);
+			}
+			out.instruction("j", defaultLabel);
+			return;
+		}
+		int middle = (from + to) >>> 1;
+		String lessLabel = newSyntheticLabel("switchLess");
+		out.instruction("li", "t1", keys[middle]);
+		out.instruction("blt", "a0", "t1", lessLabel);
+		out.instruction("beq", "a0", "t1", labels[middle]);
+		writeSearchTree(keys, labels, middle + 1, to, defaultLabel);
+		out.label(lessLabel);
+		writeSearchTree(keys, labels, from, middle, defaultLabel);
+	}
+
+	private void emitJumpTables() {
+		if (jumpTables.isEmpty()) {
+			return;
+		}
+		printWriter.println(".section .rodata");
+		printWriter.println(".align 2");
+		for (Map.Entry<String, String[]> entry : jumpTables.entrySet()) {
+			printWriter.println(entry.getKey() + ":");
+			printWriter.println("\t.word " + String.join(", ", entry.getValue()));
+		}
+		printWriter.println(".text");
+		printWriter.println("");
 	}
 
 	private int getLabelIndex(Label label) {
-		int index = internalLabels.indexOf(label);
-		if (index < 0) {
+		Integer index = internalLabels.get(label);
+		if (index == null) {
 			throw new RuntimeException("referring to unknown internal label");
 		}
 		return index;
@@ -833,39 +1755,40 @@ class CodeTranslator {
 		return (descriptor.equals("J") || descriptor.equals("D")) ? 2 : 1;
 	}
 
+	private String getStaticFieldsLabel(FieldInfo field) {
+		return NameUtil.mangleClassName(field.containingClass) + "_staticFields";
+	}
+
 	private void writeGetstatic(FieldInfo field) {
-		writeGetstatic(field.storageOffset, getFieldWords(field.desc), field.parsedDescriptor.getLoadInstruction());
+		writeGetstatic(getStaticFieldsLabel(field), field.storageOffset, getFieldWords(field.desc), field.parsedDescriptor.getLoadInstruction());
 	}
 
-	private void writeGetstatic(int offset, int words, String loadInstruction) {
+	private void writeGetstatic(String label, int offset, int words, String loadInstruction) {
 		if (words == 1) {
-			out.println("\taddi sp, sp, -4");
-			out.println("\t" + loadInstruction + " t0, staticFields + " + offset);
-			out.println("\tsw t0, 0(sp)");
+			String target = frame.pushTarget("t0");
+			out.instruction(loadInstruction, target, label + " + " + offset);
+			frame.push(target);
 		} else {
-			out.println("\taddi sp, sp, -8");
-			out.println("\tlw t0, staticFields + " + offset);
-			out.println("\tsw t0, 0(sp)");
-			out.println("\tlw t0, staticFields + " + (offset + 4));
-			out.println("\tsw t0, 4(sp)");
+			out.instruction("lw", "t0", label + " + " + offset);
+			out.instruction("lw", "t1", label + " + " + (offset + 4));
+			frame.pushFrom("t1");
+			frame.pushFrom("t0");
 		}
 	}
 
 	private void writePutstatic(FieldInfo field) {
-		writePutstatic(field.storageOffset, getFieldWords(field.desc), field.parsedDescriptor.getStoreInstruction());
+		writePutstatic(getStaticFieldsLabel(field), field.storageOffset, getFieldWords(field.desc), field.parsedDescriptor.getStoreInstruction());
 	}
 
-	private void writePutstatic(int offset, int words, String storeInstruction) {
+	private void writePutstatic(String label, int offset, int words, String storeInstruction) {
 		if (words == 1) {
-			out.println("\tlw t0, 0(sp)");
-			out.println("\t" + storeInstruction + " t0, staticFields + " + offset);
-			out.println("\taddi sp, sp, 4");
+			String value = frame.pop("t0");
+			out.instruction(storeInstruction, value, label + " + " + offset, "t2");
 		} else {
-			out.println("\tlw t0, 0(sp)");
-			out.println("\tsw t0, staticFields + " + offset);
-			out.println("\tlw t0, 4(sp)");
-			out.println("\tsw t0, staticFields + " + (offset + 4));
-			out.println("\taddi sp, sp, 8");
+			String low = frame.pop("t0");
+			String high = frame.pop("t1");
+			out.instruction("sw", low, label + " + " + offset, "t2");
+			out.instruction("sw", high, label + " + " + (offset + 4), "t2");
 		}
 	}
 
@@ -874,17 +1797,16 @@ class CodeTranslator {
 	}
 
 	private void writeGetfield(int offset, int words, String loadInstruction) {
+		String object = frame.pop("t1");
 		if (words == 1) {
-			out.println("\tlw t1, 0(sp)");
-			out.println("\t" + loadInstruction + " t0, " + offset + "(t1)");
-			out.println("\tsw t0, 0(sp)");
+			String target = frame.pushTarget("t0");
+			out.instruction(loadInstruction, target, offset + "(" + object + ")");
+			frame.push(target);
 		} else {
-			out.println("\tlw t1, 0(sp)");
-			out.println("\taddi sp, sp, -4");
-			out.println("\tlw t0, " + offset + "(t1)");
-			out.println("\tsw t0, 0(sp)");
-			out.println("\tlw t0, " + (offset + 4) + "(t1)");
-			out.println("\tsw t0, 4(sp)");
+			out.instruction("lw", "t0", offset + "(" + object + ")");
+			out.instruction("lw", "t2", (offset + 4) + "(" + object + ")");
+			frame.pushFrom("t2");
+			frame.pushFrom("t0");
 		}
 	}
 
@@ -894,17 +1816,15 @@ class CodeTranslator {
 
 	private void writePutfield(int offset, int words, String storeInstruction) {
 		if (words == 1) {
-			out.println("\tlw t1, 4(sp)");
-			out.println("\t" + storeInstruction + " t0, 0(sp)");
-			out.println("\tsw t0, " + offset + "(t1)");
-			out.println("\taddi sp, sp, 8");
+			String value = frame.pop("t0");
+			String object = frame.pop("t1");
+			out.instruction(storeInstruction, value, offset + "(" + object + ")");
 		} else {
-			out.println("\tlw t1, 8(sp)");
-			out.println("\tlw t0, 0(sp)");
-			out.println("\tsw t0, " + offset + "(t1)");
-			out.println("\tlw t0, 4(sp)");
-			out.println("\tsw t0, " + (offset + 4) + "(t1)");
-			out.println("\taddi sp, sp, 12");
+			String low = frame.pop("t0");
+			String high = frame.pop("t2");
+			String object = frame.pop("t1");
+			out.instruction("sw", low, offset + "(" + object + ")");
+			out.instruction("sw", high, (offset + 4) + "(" + object + ")");
 		}
 	}
 
@@ -912,44 +1832,139 @@ class CodeTranslator {
 
 //region array element access
 
+	/**
+	 * Throws an ArrayIndexOutOfBoundsException if the index is out of bounds, unless the {@link ArrayBoundsAnalysis}
+	 * has found that it cannot be. Comparing as unsigned numbers also catches negative indices.
+	 */
+	private void writeBoundsCheck(String array, String index) {
+		if (arrayBoundsAnalysis.isCheckNeeded(currentInstruction)) {
+			out.instruction("lw", "t4", (context.getArrayHeaderSize() - 4) + "(" + array + ")");
+			out.instruction("bgeu", index, "t4", getThrowStubLabel("throwArrayIndexOutOfBoundsException"));
+		}
+	}
+
 	private void writeArrayLoad(int indexShiftAmount, boolean doubleword, String loadInstruction) {
-		out.println("\tlw t0, 4(sp)");
-		out.println("\tlw t1, 0(sp)");
-		out.println("\tsll t1, t1, " + indexShiftAmount);
-		out.println("\tadd t0, t0, t1");
+		String index = frame.pop("t1");
+		String array = frame.pop("t0");
+		writeBoundsCheck(array, index);
+		out.instruction("slli", "t1", index, indexShiftAmount);
+		out.instruction("add", "t0", array, "t1");
 		if (doubleword) {
-			out.println("\tlw t2, " + context.getArrayHeaderSize() + "(t0)");
-			out.println("\tlw t3, " + (context.getArrayHeaderSize() + 4) + "(t0)");
-			out.println("\tsw t2, 0(sp)");
-			out.println("\tsw t3, 4(sp)");
+			out.instruction("lw", "t2", context.getArrayHeaderSize() + "(t0)");
+			out.instruction("lw", "t3", (context.getArrayHeaderSize() + 4) + "(t0)");
+			frame.pushFrom("t3");
+			frame.pushFrom("t2");
 		} else {
-			out.println("\t" + loadInstruction + " t2, " + context.getArrayHeaderSize() + "(t0)");
-			out.println("\taddi sp, sp, 4");
-			out.println("\tsw t2, 0(sp)");
+			String target = frame.pushTarget("t2");
+			out.instruction(loadInstruction, target, context.getArrayHeaderSize() + "(t0)");
+			frame.push(target);
 		}
 	}
 
 	private void writeArrayStore(int indexShiftAmount, boolean doubleword, String storeInstruction) {
+		String low = frame.pop("t2");
+		String high = doubleword ? frame.pop("t3") : null;
+		String index = frame.pop("t1");
+		String array = frame.pop("t0");
+		writeBoundsCheck(array, index);
+		out.instruction("slli", "t1", index, indexShiftAmount);
+		out.instruction("add", "t0", array, "t1");
 		if (doubleword) {
-			out.println("\tlw t0, 12(sp)");
-			out.println("\tlw t1, 8(sp)");
-			out.println("\tlw t2, 4(sp)");
-			out.println("\tlw t3, 0(sp)");
-			out.println("\taddi sp, sp, 16");
+			out.instruction("sw", low, context.getArrayHeaderSize() + "(t0)");
+			out.instruction("sw", high, (context.getArrayHeaderSize() + 4) + "(t0)");
 		} else {
-			out.println("\tlw t0, 8(sp)");
-			out.println("\tlw t1, 4(sp)");
-			out.println("\tlw t2, 0(sp)");
-			out.println("\taddi sp, sp, 12");
+			out.instruction(storeInstruction, low, context.getArrayHeaderSize() + "(t0)");
 		}
-		out.println("\tsll t1, t1, " + indexShiftAmount);
-		out.println("\tadd t0, t0, t1");
-		if (doubleword) {
-			out.println("\tsw t2, " + context.getArrayHeaderSize() + "(t0)");
-			out.println("\tsw t3, " + (context.getArrayHeaderSize() + 4) + "(t0)");
+	}
+
+//endregion
+
+//region allocation
+
+	/**
+	 * Allocates an object of the specified size in bytes. Like arrays, objects are bump-allocated inline from the
+	 * allocation buffer, and the runtime is only called when the buffer is exhausted. Since the size is known, the
+	 * limit check can compare the new buffer position against the limit directly.
+	 */
+	private void writeObjectAllocation(int size, String vtableLabel) {
+		out.instruction("la", "a1", vtableLabel);
+		if (size >= 2048) {
+			// too large for an immediate, and for the allocation buffer anyway
+			out.instruction("li", "a0", size);
+			call("allocateMemory");
+			frame.pushFrom("a0");
+			return;
+		}
+		String slowPathLabel = newSyntheticLabel("allocateSlow");
+		String doneLabel = newSyntheticLabel("allocateDone");
+
+		// fast path
+		out.instruction("lw", "a2", "allocationLimit");
+		out.instruction("addi", "a3", "tp", size);
+		out.instruction("bltu", "a2", "a3", slowPathLabel);
+		out.instruction("mv", "a0", "tp");
+		out.instruction("mv", "tp", "a3");
+		out.instruction("sw", "a1", "0(a0)");
+		out.instruction("j", doneLabel);
+
+		// slow path
+		out.label(slowPathLabel);
+		out.instruction("li", "a0", size);
+		call("allocateMemory");
+		out.label(doneLabel);
+		frame.pushFrom("a0");
+	}
+
+	/**
+	 * Allocates an array whose length is on top of the operand stack, with elements of (1 << shiftAmount) bytes.
+	 * The allocation is inlined as a bump of the allocation buffer, so the runtime is only called when the buffer is
+	 * exhausted (see allocateMemory in start.S). Lengths of 2^28 or more, including negative lengths, always take
+	 * the slow path since the size computation might overflow; the runtime rejects them.
+	 */
+	private void writeArrayAllocation(int shiftAmount, String vtableLabel) {
+		String slowPathLabel = newSyntheticLabel("allocateSlow");
+		String doneLabel = newSyntheticLabel("allocateDone");
+		int lengthOffset = context.getArrayHeaderSize() - 4;
+
+		// compute the size, rounded up to whole words
+		frame.popInto("a2");
+		out.instruction("la", "a1", vtableLabel);
+		out.instruction("srli", "a3", "a2", 28);
+		out.instruction("bne", "a3", "x0", slowPathLabel);
+		out.instruction("slli", "a0", "a2", shiftAmount);
+		if (shiftAmount < 2) {
+			out.instruction("addi", "a0", "a0", context.getArrayHeaderSize() + 3);
+			out.instruction("andi", "a0", "a0", -4);
 		} else {
-			out.println("\t" + storeInstruction + " t2, " + context.getArrayHeaderSize() + "(t0)");
+			out.instruction("addi", "a0", "a0", context.getArrayHeaderSize());
 		}
+
+		// fast path
+		out.instruction("lw", "a3", "allocationLimit");
+		out.instruction("sub", "a3", "a3", "tp");
+		out.instruction("bltu", "a3", "a0", slowPathLabel);
+		out.instruction("mv", "a3", "tp");
+		out.instruction("add", "tp", "tp", "a0");
+		out.instruction("mv", "a0", "a3");
+		out.instruction("sw", "a1", "0(a0)");
+		out.instruction("sw", "a2", lengthOffset + "(a0)");
+		out.instruction("j", doneLabel);
+
+		// slow path
+		out.label(slowPathLabel);
+		out.instruction("li", "a3", lengthOffset);
+		call("allocateArray");
+		out.label(doneLabel);
+		frame.pushFrom("a0");
+	}
+
+	/**
+	 * Returns a new label for code that the translator generates within the current method.
+	 */
+	private String newSyntheticLabel(String purpose) {
+		String label = mangledMethodName + "__" + purpose + syntheticLabelCount;
+		syntheticLabelCount++;
+		return label;
 	}
 
 //endregion
@@ -958,51 +1973,420 @@ class CodeTranslator {
 
 	private void invokenonvirtual(MethodInsnNode call, boolean staticMethod) {
 		ParsedMethodDescriptor parsedMethodDescriptor = new ParsedMethodDescriptor(call.desc);
-		int effectiveParameterWords = parsedMethodDescriptor.getParameterWords() + (staticMethod ? 0 : 1);
-		for (int i = 0; i < effectiveParameterWords; i++) {
-			out.println("\tlw a" + i + ", " + (4 * (effectiveParameterWords - 1 - i)) + "(sp)");
-		}
-		out.println("\taddi sp, sp, " + (4 * effectiveParameterWords));
-		out.println("\tcall " + NameUtil.mangleMethodName(call));
-		if (parsedMethodDescriptor.getReturnWords() == 1) {
-			out.println("\taddi sp, sp, -4");
-			out.println("\tsw a0, 0(sp)");
-		} else if (parsedMethodDescriptor.getReturnWords() == 2) {
-			out.println("\taddi sp, sp, -8");
-			out.println("\tsw a0, 0(sp)");
-			out.println("\tsw a1, 4(sp)");
-		}
+		popArguments(parsedMethodDescriptor, !staticMethod);
+		call(NameUtil.mangleMethodName(call));
+		pushReturnValue(parsedMethodDescriptor);
 	}
 
 	private void invokevirtual(MethodInsnNode call) {
 
-		// find vtable index
+		// find the method in the vtable
 		ClassInfo targetClassInfo = context.resolveClass(call.owner);
-		int vtableIndex = targetClassInfo.vtableAllocator.findByName(call.name).vtableIndex;
+		MethodInfo directTarget = getDirectTarget(targetClassInfo, call);
 
 		// move arguments from the stack to a* registers
 		ParsedMethodDescriptor parsedMethodDescriptor = new ParsedMethodDescriptor(call.desc);
+		popArguments(parsedMethodDescriptor, true);
+
+		// invoke the method: directly if it cannot be overridden, otherwise through a label that is resolved by
+		// class hierarchy analysis once the whole program is known
+		if (directTarget != null) {
+			call(NameUtil.mangleMethodName(directTarget));
+		} else {
+			call(context.getVirtualCallLabel(targetClassInfo.name, call.name, call.desc));
+		}
+
+		// move return values from a* registers to the stack
+		pushReturnValue(parsedMethodDescriptor);
+
+	}
+
+	/**
+	 * Returns the method that an INVOKEVIRTUAL instruction calls directly because it cannot be overridden, or null if
+	 * the call goes through a virtual call label.
+	 */
+	static MethodInfo getDirectTarget(ClassInfo targetClassInfo, MethodInsnNode call) {
+		MethodInfo targetMethod = targetClassInfo.vtableAllocator.getMethod(call.name, call.desc);
+		boolean overridable = (targetMethod.access & (Opcodes.ACC_FINAL | Opcodes.ACC_PRIVATE)) == 0 && (targetClassInfo.access & Opcodes.ACC_FINAL) == 0;
+		return (!overridable && (targetMethod.access & Opcodes.ACC_ABSTRACT) == 0 ? targetMethod : null);
+	}
+
+	/**
+	 * Calls an interface method through the interface method table of the receiver (see
+	 * {@link InterfaceMethodTable}). Methods of java.lang.Object have a fixed vtable index, so they are called like
+	 * virtual methods even if an interface re-declares them.
+	 */
+	private void invokeinterface(MethodInsnNode call) {
+		String key = VtableAllocator.getKey(call.name, call.desc);
+		MethodInfo javaLangObjectMethod = context.resolveClass("java/lang/Object").vtableAllocator.findByKey(key);
+		ParsedMethodDescriptor parsedMethodDescriptor = new ParsedMethodDescriptor(call.desc);
 		int effectiveParameterWords = parsedMethodDescriptor.getParameterWords() + 1;
-		for (int i = 0; i < effectiveParameterWords; i++) {
-			out.println("\tlw a" + i + ", " + (4 * (effectiveParameterWords - 1 - i)) + "(sp)");
+		if (javaLangObjectMethod == null && effectiveParameterWords > 7) {
+			throw new NotYetImplementedException("interface methods with more than 7 argument words are not supported");
 		}
-		out.println("\taddi sp, sp, " + (4 * effectiveParameterWords));
+
+		// move arguments from the stack to a* registers
+		popArguments(parsedMethodDescriptor, true);
 
 		// invoke the method
-		out.println("\tlw t0, 0(a0)"); // load pointer to vtable from the object
-		out.println("\tlw t0, " + (context.getArrayHeaderSize() + 4 * vtableIndex) + "(t0)"); // load pointer to code from the vtable
-		out.println("\tjalr t0"); // invoke the method
+		out.instruction("lw", "t0", "0(a0)"); // load pointer to vtable from the object
+		if (javaLangObjectMethod != null) {
+			out.instruction("lw", "t0", (context.getArrayHeaderSize() + 4 * javaLangObjectMethod.vtableIndex) + "(t0)");
+		} else {
+			int selector = InterfaceMethodTable.getSelector(key);
+			int slotIndex = LayoutConstants.VTABLE_INTERFACE_METHOD_TABLE_INDEX + InterfaceMethodTable.getSlot(selector);
+			out.instruction("lw", "t0", (context.getArrayHeaderSize() + 4 * slotIndex) + "(t0)"); // load pointer to code from the IMT
+			out.instruction("li", InterfaceMethodTable.SELECTOR_REGISTER, selector);
+		}
+		out.instruction("jalr", "t0"); // invoke the method
+		writeStackMap();
 
 		// move return values from a* registers to the stack
+		pushReturnValue(parsedMethodDescriptor);
+
+	}
+
+	/**
+	 * Pops the arguments into a* registers, one word per register. The words of a long argument are passed low word
+	 * first like the local variables they end up in, while the operand stack has the low word on top.
+	 */
+	private void popArguments(ParsedMethodDescriptor parsedMethodDescriptor, boolean hasReceiver) {
+		int register = parsedMethodDescriptor.getParameterWords() + (hasReceiver ? 1 : 0);
+		List<ParsedFieldDescriptor> parameterTypes = parsedMethodDescriptor.getParameterTypes();
+		for (int i = parameterTypes.size() - 1; i >= 0; i--) {
+			if (parameterTypes.get(i).getWords() == 2) {
+				register -= 2;
+				frame.popInto("a" + register);
+				frame.popInto("a" + (register + 1));
+			} else {
+				register--;
+				frame.popInto("a" + register);
+			}
+		}
+		if (hasReceiver) {
+			frame.popInto("a0");
+		}
+	}
+
+	private void pushReturnValue(ParsedMethodDescriptor parsedMethodDescriptor) {
 		if (parsedMethodDescriptor.getReturnWords() == 1) {
-			out.println("\taddi sp, sp, -4");
-			out.println("\tsw a0, 0(sp)");
+			frame.pushFrom("a0");
 		} else if (parsedMethodDescriptor.getReturnWords() == 2) {
-			out.println("\taddi sp, sp, -8");
-			out.println("\tsw a0, 0(sp)");
-			out.println("\tsw a1, 4(sp)");
+			frame.pushFrom("a1");
+			frame.pushFrom("a0");
+		}
+	}
+
+//endregion
+
+//region type checks
+
+	/**
+	 * Implements CHECKCAST (cast = true) and INSTANCEOF (cast = false). CHECKCAST leaves the reference on the stack
+	 * and throws a ClassCastException if the check fails.
+	 * <p>
+	 * Checks against a class are inlined: the object's class is a subclass of the target class if its display
+	 * has the target class at the target's depth (see {@link VmObjectMetadata#getDisplay()}), so the check takes a
+	 * bounds check and a single compare. Since arrays are covariant, checks against array types are left to the
+	 * runtime.
+	 */
+	private void writeTypeCheck(String typeName, boolean cast) {
+		VmObjectMetadata metadata = context.resolveObjectMetadata(typeName);
+		if (metadata instanceof VmClass && metadata.getDepth() == 0) {
+			// every object is an instance of java.lang.Object
+			if (!cast) {
+				frame.popInto("a0");
+				out.instruction("snez", "a0", "a0");
+				frame.pushFrom("a0");
+			}
+			return;
+		}
+		String metadataLabel = context.getRuntimeObjectLabel(metadata);
+		String failedLabel = newSyntheticLabel("typeCheckFailed");
+		String doneLabel = newSyntheticLabel("typeCheckDone");
+		if (cast) {
+			String reference = frame.peek(0, "a0");
+			if (!reference.equals("a0")) {
+				out.instruction("mv", "a0", reference);
+			}
+		} else {
+			frame.popInto("a0");
+		}
+		out.instruction("beq", "a0", "x0", cast ? doneLabel : failedLabel);
+
+		if (!(metadata instanceof VmClass)) {
+			out.instruction("la", "a1", metadataLabel);
+			call(NameUtil.mangleMethodName(OBJECT_METADATA_CLASS, "objectIsInstanceOf", "(Ljava/lang/Object;L" + OBJECT_METADATA_CLASS + ";)Z"));
+			if (cast) {
+				out.instruction("bne", "a0", "x0", doneLabel);
+			} else {
+				out.instruction("j", doneLabel);
+			}
+		} else {
+			writeDisplayLookup(metadata, failedLabel);
+			if (cast) {
+				out.instruction("beq", "a1", "a2", doneLabel);
+			} else {
+				out.instruction("sub", "a0", "a1", "a2");
+				out.instruction("seqz", "a0", "a0");
+				out.instruction("j", doneLabel);
+			}
 		}
 
+		out.label(failedLabel);
+		if (cast) {
+			out.instruction("j", getThrowStubLabel("throwClassCastException"));
+		} else {
+			out.instruction("li", "a0", 0);
+		}
+		out.label(doneLabel);
+		if (!cast) {
+			frame.pushFrom("a0");
+		}
+	}
+
+	/**
+	 * Emits the first part of an inlined check whether the non-null object in a0 is an instance of the specified
+	 * class. If the object's class is not deep enough in the hierarchy, this jumps to failedLabel. Otherwise it
+	 * leaves the entry of the object's display at the depth of the class in a1, and the class in a2, so the caller
+	 * only has to compare them. a0 is left unchanged.
+	 */
+	private void writeDisplayLookup(VmObjectMetadata metadata, String failedLabel) {
+		int displayOffset = resolveField(context.resolveClass(OBJECT_METADATA_CLASS), "display", true).storageOffset;
+		int metadataOffset = context.getArrayHeaderSize() + LayoutConstants.VTABLE_METADATA_INDEX * 4;
+		int depth = metadata.getDepth();
+		out.instruction("lw", "a1", "0(a0)");
+		out.instruction("lw", "a1", metadataOffset + "(a1)");
+		out.instruction("lw", "a1", displayOffset + "(a1)");
+		out.instruction("lw", "a2", (context.getArrayHeaderSize() - 4) + "(a1)");
+		out.instruction("li", "a3", depth);
+		out.instruction("bleu", "a2", "a3", failedLabel);
+		out.instruction("lw", "a1", (context.getArrayHeaderSize() + depth * 4) + "(a1)");
+		out.instruction("la", "a2", context.getRuntimeObjectLabel(metadata));
+	}
+
+//endregion
+
+//region exceptions
+
+	/*
+		Exceptions are found through tables, so code that does not throw pays nothing for them. Every place where an
+		exception can come from is a call: either to a method, or to throwException in start.S (for ATHROW), or to a
+		method of ImplicitExceptions (for the run-time checks). Its stack map therefore says how to find the caller's
+		frame, which is all the unwinder needs, and also contains the landing pad for the call, if any.
+
+		A landing pad is out-of-line code that selects the exception handler: it checks the exception type against
+		the handlers that cover the call in the order of the exception table, and calls throwException again if none
+		of them matches. The unwinder enters it with the exception in a0.
+	 */
+
+	/**
+	 * Returns the label of the landing pad for exceptions thrown by the current instruction, or null if no exception
+	 * handler covers it. Instructions covered by the same handlers share a landing pad.
+	 */
+	private String getLandingPadLabel() {
+		InsnList instructions = methodInfo.instructions;
+		int index = instructions.indexOf(currentInstruction.getNode());
+		List<TryCatchBlockNode> handlers = new ArrayList<>();
+		for (TryCatchBlockNode handler : methodInfo.tryCatchBlocks) {
+			if (index > instructions.indexOf(handler.start) && index < instructions.indexOf(handler.end)) {
+				handlers.add(handler);
+			}
+		}
+		if (handlers.isEmpty()) {
+			return null;
+		}
+		String label = landingPadLabels.get(handlers);
+		if (label == null) {
+			label = newSyntheticLabel("landingPad");
+			landingPadLabels.put(handlers, label);
+		}
+		return label;
+	}
+
+	private void emitLandingPads() {
+		for (Map.Entry<List<TryCatchBlockNode>, String> entry : landingPadLabels.entrySet()) {
+			out.label(entry.getValue());
+			boolean caught = false;
+			for (TryCatchBlockNode handler : entry.getKey()) {
+				String nextLabel = null;
+				if (handler.type != null) {
+					nextLabel = newSyntheticLabel("landingPadNext");
+					writeDisplayLookup(context.resolveObjectMetadata(handler.type), nextLabel);
+					out.instruction("bne", "a1", "a2", nextLabel);
+				}
+				frame.setDepth(0);
+				frame.pushFrom("a0");
+				out.instruction("j", getLabelName(handler.handler));
+				if (nextLabel == null) {
+					// catches everything, so later handlers are never used
+					caught = true;
+					break;
+				}
+				out.label(nextLabel);
+			}
+			if (!caught) {
+				out.instruction("call", "throwException");
+				writeStackMapReference(getStackMap(null, 0, null));
+			}
+		}
+	}
+
+	/**
+	 * Returns the label of out-of-line code that throws an exception on behalf of the current instruction by calling
+	 * the specified method of ImplicitExceptions. The code that checks for the failure just branches there.
+	 * <p>
+	 * Other methods call the thrower, with a stack map that contains the references in local variables (the operand
+	 * stack is discarded anyway) and the landing pad of the current instruction. Leaf methods have no stack maps, so
+	 * they remove their frame and jump to the thrower instead, which makes the exception appear to come from the call
+	 * to the leaf method. Since this removes the operand stack, its depth must be up to date at the branch.
+	 */
+	private String getThrowStubLabel(String thrower) {
+		List<Object> key;
+		if (frame.leaf) {
+			key = Arrays.asList(thrower, frame.getDepth());
+		} else {
+			key = Arrays.asList(thrower, getStackMap(currentInstruction.getTypesBefore(), 0, getLandingPadLabel()));
+		}
+		String label = throwStubLabels.get(key);
+		if (label == null) {
+			label = newSyntheticLabel("throw");
+			throwStubLabels.put(key, label);
+		}
+		return label;
+	}
+
+	private void emitThrowStubs() {
+		for (Map.Entry<List<Object>, String> entry : throwStubLabels.entrySet()) {
+			String thrower = NameUtil.mangleMethodName(IMPLICIT_EXCEPTIONS_CLASS, (String) entry.getKey().get(0), "()V");
+			out.label(entry.getValue());
+			if (frame.leaf) {
+				frame.setDepth((Integer) entry.getKey().get(1));
+				frame.emitFrameRemoval();
+				out.instruction("tail", thrower);
+			} else {
+				out.instruction("call", thrower);
+				writeStackMapReference((String) entry.getKey().get(1));
+			}
+		}
+	}
+
+//endregion
+
+//region stack maps
+
+	/**
+	 * Emits a call to the specified subroutine, followed by its stack map.
+	 */
+	private void call(String target) {
+		out.instruction("call", target);
+		writeStackMap();
+	}
+
+	/**
+	 * Records where the references of this method are while the call that was just emitted is executing, and where
+	 * exceptions thrown by it are caught. The references are found from the types of the local variables and stack
+	 * slots before the current bytecode instruction, leaving out the topmost slots that have already been popped to
+	 * pass them to the callee.
+	 */
+	private void writeStackMap() {
+		writeStackMapReference(getStackMap(currentInstruction.getTypesBefore(), frame.getDepth(), getLandingPadLabel()));
+	}
+
+	/**
+	 * Assigns the specified stack map to the call that was just emitted. The garbage collector and the unwinder find
+	 * the stack map through the return address of the call, so a label is placed there.
+	 */
+	private void writeStackMapReference(String stackMapLabel) {
+		String returnAddressLabel = newSyntheticLabel("callReturn");
+		out.label(returnAddressLabel);
+		stackMapTableEntries.add(returnAddressLabel + ", " + stackMapLabel);
+	}
+
+	/**
+	 * Returns the label of a stack map that has the references among the local variables and the lowest stackWords
+	 * slots of the operand stack according to the specified types (or no references if they are null), and the
+	 * specified landing pad (or none if null). Variables without a usable type (such as those assigned different
+	 * types on different paths) are left out, since they may contain stale values.
+	 */
+	private String getStackMap(Frame<BasicValue> types, int stackWords, String landingPadLabel) {
+
+		// find the references
+		int referenceRegisterMask = 0;
+		List<Integer> referenceOffsets = new ArrayList<>();
+		if (types != null) {
+			for (int i = 0; i < types.getLocals(); i++) {
+				if (types.getLocal(i).isReference()) {
+					String register = frame.getLocalRegister(i);
+					if (register == null) {
+						referenceOffsets.add(frame.getLocalOffset(i));
+					} else {
+						referenceRegisterMask |= getRegisterBit(register);
+					}
+				}
+			}
+			int slot = 0;
+			for (int i = 0; i < types.getStackSize() && slot < stackWords; i++) {
+				BasicValue type = types.getStack(i);
+				if (type.isReference()) {
+					String register = frame.getSlotRegister(slot);
+					if (register == null) {
+						referenceOffsets.add(frame.getSlotOffset(slot));
+					} else {
+						referenceRegisterMask |= getRegisterBit(register);
+					}
+				}
+				slot += type.getSize();
+			}
+		}
+
+		// build the stack map in the format expected by the garbage collector and the unwinder (see start.S)
+		int savedRegisterMask = 0;
+		for (String register : frame.getSavedRegisters()) {
+			savedRegisterMask |= getRegisterBit(register);
+		}
+		List<Object> stackMap = new ArrayList<>();
+		stackMap.add(frame.getReturnAddressOffset());
+		stackMap.add(savedRegisterMask);
+		stackMap.add(frame.getSavedRegisterOffset());
+		stackMap.add(referenceRegisterMask);
+		stackMap.add(landingPadLabel == null ? "0" : landingPadLabel);
+		stackMap.add(referenceOffsets.size());
+		stackMap.addAll(referenceOffsets);
+		String stackMapLabel = stackMapLabels.get(stackMap);
+		if (stackMapLabel == null) {
+			stackMapLabel = mangledMethodName + "__stackMap" + stackMapLabels.size();
+			stackMapLabels.put(stackMap, stackMapLabel);
+		}
+		return stackMapLabel;
+	}
+
+	/**
+	 * Returns the bit that stands for a callee-saved register (s1 to s11) in the register masks of a stack map.
+	 */
+	private static int getRegisterBit(String register) {
+		return 1 << Integer.parseInt(register.substring(1));
+	}
+
+	/**
+	 * Emits the stack maps of this method as read-only data, and the entries of the stack map table that point to
+	 * them from the return addresses. Since the methods are emitted in address order, so are the table entries.
+	 */
+	private void emitStackMaps() {
+		if (stackMapTableEntries.isEmpty()) {
+			return;
+		}
+		printWriter.println(".section .rodata");
+		for (Map.Entry<List<Object>, String> entry : stackMapLabels.entrySet()) {
+			printWriter.println(entry.getValue() + ":");
+			printWriter.println("\t.word " + entry.getKey().stream().map(String::valueOf).collect(Collectors.joining(", ")));
+		}
+		printWriter.println(".data");
+		for (String entry : stackMapTableEntries) {
+			printWriter.println("\t.word " + entry);
+		}
+		printWriter.println(".text");
+		printWriter.println("");
 	}
 
 //endregion
@@ -1015,6 +2399,17 @@ class CodeTranslator {
 		int getArrayHeaderSize();
 
 		String getRuntimeObjectLabel(Object o);
+
+		/**
+		 * Returns the label to call for an INVOKEVIRTUAL instruction (see {@link VirtualCall}).
+		 */
+		String getVirtualCallLabel(String owner, String name, String descriptor);
+
+		CodeGenerationMode getCodeGenerationMode();
+
+		FloatingPointMode getFloatingPointMode();
+
+		boolean isPeepholeOptimizationEnabled();
 	}
 
 }
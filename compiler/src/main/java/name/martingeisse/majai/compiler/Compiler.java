@@ -1,5 +1,7 @@
 package name.martingeisse.majai.compiler;
 
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import com.google.common.reflect.ClassPath;
 import name.martingeisse.majai.vm.*;
 import org.apache.commons.io.IOUtils;
@@ -8,15 +10,14 @@ import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.tree.FieldNode;
 import org.objectweb.asm.tree.MethodNode;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.PrintWriter;
-import java.io.Writer;
+import java.io.*;
 import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /**
  *
@@ -29,13 +30,25 @@ public class Compiler implements CodeTranslator.Context {
 
 	private final Map<String, ClassInfo> classInfos;
 	private final Map<String, VmObjectMetadataContributor> metadataContributors;
-	private boolean resolutionClosed;
+	private volatile boolean resolutionClosed;
 
-	private final Set<String> compiledClasses;
-	private final FieldAllocator staticFieldAllocator;
+	private final List<String> uncompiledClasses;
 	private final RuntimeObjects runtimeObjects;
+	private final Map<String, String> unresolvedClassFileHashes;
+	private final Map<String, VirtualCall> virtualCalls;
+	private ReachabilityAnalysis reachabilityAnalysis;
+	private BuildTimeInitializer buildTimeInitializer;
 
 	private int arrayHeaderSize = -1;
+	private CodeGenerationMode codeGenerationMode = CodeGenerationMode.NAIVE;
+	private FloatingPointMode floatingPointMode = FloatingPointMode.HARDWARE;
+	private boolean peepholeOptimizationEnabled = true;
+	private boolean inliningEnabled = true;
+	private boolean constantFoldingEnabled = true;
+	private int parallelism = 1;
+	private final List<String> buildTimeInitializedClasses = new ArrayList<>();
+	private File cacheFolder;
+	private ClassCodeCache classCodeCache;
 
 	public Compiler(ClassFileLoader classFileLoader, String mainClassName, Writer out) {
 		this(classFileLoader, mainClassName, new PrintWriter(out));
@@ -45,11 +58,12 @@ public class Compiler implements CodeTranslator.Context {
 		this.classFileLoader = classFileLoader;
 		this.mainClassName = mainClassName;
 		this.out = out;
-		this.classInfos = new HashMap<>();
+		this.classInfos = new ConcurrentHashMap<>();
 		this.resolutionClosed = false;
-		this.metadataContributors = new HashMap<>();
-		this.compiledClasses = new HashSet<>();
-		this.staticFieldAllocator = new FieldAllocator();
+		this.metadataContributors = new ConcurrentHashMap<>();
+		this.uncompiledClasses = new ArrayList<>();
+		this.unresolvedClassFileHashes = new ConcurrentHashMap<>();
+		this.virtualCalls = new ConcurrentHashMap<>();
 		this.runtimeObjects = new RuntimeObjects(new RuntimeObjects.Context() {
 
 			@Override
@@ -65,6 +79,56 @@ public class Compiler implements CodeTranslator.Context {
 		});
 	}
 
+	public void setCodeGenerationMode(CodeGenerationMode codeGenerationMode) {
+		this.codeGenerationMode = codeGenerationMode;
+	}
+
+	public void setFloatingPointMode(FloatingPointMode floatingPointMode) {
+		this.floatingPointMode = floatingPointMode;
+	}
+
+	public void setPeepholeOptimizationEnabled(boolean peepholeOptimizationEnabled) {
+		this.peepholeOptimizationEnabled = peepholeOptimizationEnabled;
+	}
+
+	public void setInliningEnabled(boolean inliningEnabled) {
+		this.inliningEnabled = inliningEnabled;
+	}
+
+	public void setConstantFoldingEnabled(boolean constantFoldingEnabled) {
+		this.constantFoldingEnabled = constantFoldingEnabled;
+	}
+
+	/**
+	 * Selects the classes whose static initializers get run at build time (see {@link BuildTimeInitializer}). The
+	 * image never runs static initializers, so the static fields of all other classes start out as zero.
+	 */
+	public void setBuildTimeInitializedClasses(Collection<String> classNames) {
+		buildTimeInitializedClasses.clear();
+		for (String className : classNames) {
+			buildTimeInitializedClasses.add(NameUtil.normalizeClassName(className));
+		}
+	}
+
+	/**
+	 * Sets the number of threads used to translate classes. With a parallelism of 1 (the default), all classes are
+	 * translated by the calling thread. The output does not depend on this setting.
+	 */
+	public void setParallelism(int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("invalid parallelism: " + parallelism);
+		}
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Enables caching of the generated code per class in the specified folder, or disables it if the argument is
+	 * null (the default). See {@link ClassCodeCache}.
+	 */
+	public void setCacheFolder(File cacheFolder) {
+		this.cacheFolder = cacheFolder;
+	}
+
 	public void compile() {
 		try (InputStream inputStream = getClass().getResourceAsStream("start.S")) {
 			IOUtils.copy(inputStream, out, StandardCharsets.UTF_8);
@@ -73,52 +137,211 @@ public class Compiler implements CodeTranslator.Context {
 		}
 
 		arrayHeaderSize = (resolveClass(Object.class).fieldAllocator.getWordCount() + 1) * 4;
-		resolveClass(String.class);
-		resolveAllClassesInPackage(VmClass.class);
 		//
-		buildPrimitiveArrayMetadata("[Z");
-		buildPrimitiveArrayMetadata("[B");
-		buildPrimitiveArrayMetadata("[S");
-		buildPrimitiveArrayMetadata("[C");
-		buildPrimitiveArrayMetadata("[I");
-		buildPrimitiveArrayMetadata("[F");
-		buildPrimitiveArrayMetadata("[J");
-		buildPrimitiveArrayMetadata("[D");
+		buildPrimitiveArrayMetadata("[Z", 0);
+		buildPrimitiveArrayMetadata("[B", 0);
+		buildPrimitiveArrayMetadata("[S", 1);
+		buildPrimitiveArrayMetadata("[C", 1);
+		buildPrimitiveArrayMetadata("[I", 2);
+		buildPrimitiveArrayMetadata("[F", 2);
+		buildPrimitiveArrayMetadata("[J", 3);
+		buildPrimitiveArrayMetadata("[D", 3);
 		//
-		resolveObjectMetadataContributor("[Ljava.lang.Object;");
-
-		compileClass(mainClassName);
+		resolveObjectMetadataContributor("[Ljava/lang/Object;");
+		// the displays of all object metadata (see VmObjectMetadata) are serialized as arrays of this type
+		resolveObjectMetadataContributor("[L" + NameUtil.normalizeClassName(VmObjectMetadata.class.getName()) + ";");
+
+		Set<String> imageObjectTypes = initializeClassesAtBuildTime();
+		analyzeReachability(imageObjectTypes);
+		if (cacheFolder != null) {
+			classCodeCache = new ClassCodeCache(cacheFolder, getCacheConfigurationKey());
+		}
+		// the stack map table entries of all classes end up between these labels, in the same order as the code
+		out.println(".data");
+		out.println("stackMapTable:");
+		out.println(".text");
 		compileAllResolvedClasses();
+		out.println(".data");
+		out.println("stackMapTableEnd:");
+		out.println();
 		resolutionClosed = true;
+		removeUnreachableMethodsFromVtables();
+		emitInterfaceMethodTableStubs();
+		emitVirtualCallTargets();
 		emitStaticFields();
 		emitRuntimeObjectsAliasLabels(true);
 		runtimeObjects.emit(out);
 		emitRuntimeObjectsAliasLabels(false);
 		out.println();
 		out.println(".data");
+		out.println(".align 2");
 		out.println("dynamicHeap:");
 		out.flush();
 	}
 
-	private VmPrimitiveArrayMetadata buildPrimitiveArrayMetadata(String name) {
+	/**
+	 * Runs the static initializers of the classes selected for build-time initialization, and resolves the types of
+	 * the objects they have created, since those objects get serialized into the image. Returns these types.
+	 */
+	private Set<String> initializeClassesAtBuildTime() {
+		if (buildTimeInitializedClasses.isEmpty()) {
+			return Collections.emptySet();
+		}
+		buildTimeInitializer = new BuildTimeInitializer(classFileLoader);
+		for (String className : buildTimeInitializedClasses) {
+			buildTimeInitializer.initialize(resolveClass(className));
+		}
+		Set<String> types = buildTimeInitializer.getObjectTypes();
+		for (String type : types) {
+			resolveObjectMetadataContributor(type);
+		}
+		return types;
+	}
+
+	/**
+	 * Finds the methods to compile (see {@link ReachabilityAnalysis}). The roots are the test method of the main
+	 * class, which start.S calls, and the classes of the objects that are serialized into the image, whose methods
+	 * can be called virtually. Besides strings and run-time metadata, those are the objects created at build time,
+	 * whose types are passed to this method. Methods that start.S calls in the run-time are found through the code
+	 * that uses the run-time (see {@link CodeTranslator#getRuntimeCalls}).
+	 */
+	private void analyzeReachability(Set<String> imageObjectTypes) {
+		reachabilityAnalysis = new ReachabilityAnalysis(this);
+		reachabilityAnalysis.addRootMethod(mainClassName, "test", "()V");
+		for (Class<?> imageClass : new Class<?>[] {Object.class, String.class, VmClass.class, VmInterface.class, VmPrimitiveArrayMetadata.class, VmObjectArrayMetadata.class}) {
+			reachabilityAnalysis.addInstantiatedClass(imageClass.getName());
+		}
+		for (String type : imageObjectTypes) {
+			if (!type.startsWith("[")) {
+				reachabilityAnalysis.addInstantiatedClass(type);
+			}
+		}
+		reachabilityAnalysis.run();
+	}
+
+	/**
+	 * Replaces the unreachable methods in all vtables and interface method tables by null, since no code has been
+	 * generated for them. Such an entry can only be selected for a receiver whose class is never instantiated.
+	 */
+	private void removeUnreachableMethodsFromVtables() {
+		for (VmObjectMetadataContributor contributor : metadataContributors.values()) {
+			if (contributor instanceof VmObjectMetadata) {
+				Object[] vtable = ((VmObjectMetadata) contributor).getVtable();
+				String name = contributor.getName();
+				ClassInfo classInfo = resolveClass(name.startsWith("[") ? "java/lang/Object" : name);
+				for (int i = LayoutConstants.VTABLE_FIXED_ENTRY_COUNT; i < vtable.length; i++) {
+					if (!reachabilityAnalysis.isReachable(classInfo.vtableAllocator.getMethod(i))) {
+						vtable[i] = null;
+					}
+				}
+			}
+		}
+		for (ClassInfo classInfo : classInfos.values()) {
+			if (classInfo.interfaceMethodTable != null) {
+				classInfo.interfaceMethodTable.retainMethods(reachabilityAnalysis::isReachable);
+				classInfo.interfaceMethodTable.fillVtable(((VmObjectMetadata) classInfo.runtimeMetadataContributor).getVtable());
+			}
+		}
+	}
+
+	private void emitInterfaceMethodTableStubs() {
+		List<String> classNames = new ArrayList<>(classInfos.keySet());
+		Collections.sort(classNames);
+		out.println(".text");
+		for (String className : classNames) {
+			InterfaceMethodTable interfaceMethodTable = classInfos.get(className).interfaceMethodTable;
+			if (interfaceMethodTable != null) {
+				interfaceMethodTable.emitStubs(out);
+			}
+		}
+		out.println();
+	}
+
+	/**
+	 * Defines the labels for all virtual calls (see {@link VirtualCall}). Since the whole program has been resolved
+	 * at this point, the classes that a receiver can have are known: the owner of the called method and its
+	 * subclasses. Only the reachable methods in the vtable slot of the called method can actually be called, since
+	 * the others belong to classes that are never instantiated. If there is only one of them, the label is an alias
+	 * for that method, so the call is direct. Otherwise the label is a stub that loads the method from the vtable.
+	 */
+	private void emitVirtualCallTargets() {
+		List<String> labels = new ArrayList<>(virtualCalls.keySet());
+		Collections.sort(labels);
+		Map<String, List<ClassInfo>> subclasses = new HashMap<>();
+		for (ClassInfo classInfo : classInfos.values()) {
+			if ((classInfo.access & Opcodes.ACC_INTERFACE) == 0 && classInfo.superName != null) {
+				subclasses.computeIfAbsent(classInfo.superName, name -> new ArrayList<>()).add(classInfo);
+			}
+		}
+		out.println(".text");
+		for (String label : labels) {
+			VirtualCall virtualCall = virtualCalls.get(label);
+			ClassInfo ownerInfo = resolveClass(virtualCall.owner);
+			int vtableIndex = ownerInfo.vtableAllocator.getMethod(virtualCall.name, virtualCall.descriptor).vtableIndex;
+			Set<String> targets = new TreeSet<>();
+			Deque<ClassInfo> pendingClasses = new ArrayDeque<>();
+			pendingClasses.add(ownerInfo);
+			while (!pendingClasses.isEmpty()) {
+				ClassInfo classInfo = pendingClasses.removeFirst();
+				MethodInfo method = classInfo.vtableAllocator.getMethod(vtableIndex);
+				if (reachabilityAnalysis.isReachable(method)) {
+					targets.add(NameUtil.mangleMethodName(method));
+				}
+				pendingClasses.addAll(subclasses.getOrDefault(classInfo.name, Collections.emptyList()));
+			}
+			if (targets.size() == 1) {
+				out.println(".set " + label + ", " + targets.iterator().next());
+			} else {
+				out.println(label + ":");
+				out.println("\tlw t0, 0(a0)");
+				out.println("\tlw t0, " + (getArrayHeaderSize() + 4 * vtableIndex) + "(t0)");
+				out.println("\tjr t0");
+			}
+		}
+		out.println();
+	}
+
+	private VmPrimitiveArrayMetadata buildPrimitiveArrayMetadata(String name, int elementShiftAmount) {
 		VmClass javaLangObject = (VmClass) resolveObjectMetadata("java/lang/Object");
-		VmPrimitiveArrayMetadata metadata = new VmPrimitiveArrayMetadata(name, javaLangObject, javaLangObject.getVtable());
+		Object[] vtable = buildArrayVtable(-1 - elementShiftAmount);
+		VmPrimitiveArrayMetadata metadata = new VmPrimitiveArrayMetadata(name, javaLangObject, vtable);
+		vtable[LayoutConstants.VTABLE_METADATA_INDEX] = metadata;
 		metadataContributors.put(name, metadata);
 		return metadata;
 	}
 
-	public void resolveAllClassesInPackage(Class<?> anchor) {
-		try {
-			ClassPath classPath = ClassPath.from(anchor.getClassLoader());
-			String prefix = anchor.getPackage().getName() + ".";
-			for (ClassPath.ClassInfo info : classPath.getAllClasses()) {
-				if (info.getName().startsWith(prefix)) {
-					resolveClass(info.getName());
+	/**
+	 * Arrays have the methods of java.lang.Object, but each array type needs its own vtable for its metadata and its
+	 * reference map. The metadata link must be patched by the caller.
+	 */
+	private Object[] buildArrayVtable(int referenceMap) {
+		Object[] vtable = resolveObjectMetadata("java/lang/Object").getVtable().clone();
+		vtable[LayoutConstants.VTABLE_REFERENCE_MAP_INDEX] = new int[] {referenceMap};
+		return vtable;
+	}
+
+	/**
+	 * Builds the reference map that tells the garbage collector the instance size of a class and where its reference
+	 * fields are (see {@link LayoutConstants#REFERENCE_ARRAY_MAP}). The vtable pointer at offset 0 is left out since
+	 * the collector treats the header specially.
+	 */
+	private int[] buildReferenceMap(ClassInfo classInfo) {
+		List<Integer> offsets = new ArrayList<>();
+		for (ClassInfo current = classInfo; current != null; current = (current.superName == null ? null : resolveClass(current.superName))) {
+			for (FieldNode field : current.fields) {
+				FieldInfo fieldInfo = (FieldInfo) field;
+				if ((field.access & Opcodes.ACC_STATIC) == 0 && fieldInfo.parsedDescriptor.isReferenceType() && fieldInfo.storageOffset != 0) {
+					offsets.add(fieldInfo.storageOffset);
 				}
 			}
-		} catch (Exception e) {
-			throw new RuntimeException(e);
 		}
+		Collections.sort(offsets);
+		int[] referenceMap = new int[offsets.size() + 1];
+		referenceMap[0] = classInfo.fieldAllocator.getWordCount() * 4;
+		for (int i = 0; i < offsets.size(); i++) {
+			referenceMap[i + 1] = offsets.get(i);
+		}
+		return referenceMap;
 	}
 
 	public ClassInfo resolveClass(Class<?> c) {
@@ -134,12 +357,21 @@ public class Compiler implements CodeTranslator.Context {
 		Fully resolved means that the field locations and vtable indices are allocated and that the objects for
 		run-time metadata have been created. However, these objects have not been filled with data yet, since that
 		data is generated during compilation. Referring to these objects is possible, though.
+		-
+		This method may be called by several translator threads at once. Already resolved classes are returned
+		without locking; resolving a new class is done while holding the lock on this compiler, and the class only
+		becomes visible to other threads when it is fully resolved.
 	 */
 	public ClassInfo resolveClass(String name) {
 		if (name.startsWith("[")) {
 			throw new IllegalArgumentException("cannot use resolveClass() for array classes");
 		}
 		name = NameUtil.normalizeClassName(name);
+		ClassInfo classInfo = classInfos.get(name);
+		return classInfo != null ? classInfo : resolveNewClass(name);
+	}
+
+	private synchronized ClassInfo resolveNewClass(String name) {
 		ClassInfo classInfo = classInfos.get(name);
 		if (classInfo == null) {
 			if (resolutionClosed) {
@@ -148,11 +380,9 @@ public class Compiler implements CodeTranslator.Context {
 
 			// build a ClassInfo object
 			classInfo = new ClassInfo();
-			try (InputStream inputStream = classFileLoader.open(name)) {
-				new ClassReader(inputStream).accept(classInfo, ClassReader.SKIP_DEBUG);
-			} catch (IOException e) {
-				throw new RuntimeException(e);
-			}
+			byte[] classFile = readClassFile(name);
+			new ClassReader(classFile).accept(classInfo, ClassReader.SKIP_DEBUG);
+			classInfo.classFileHash = hashClassFile(classFile);
 
 			// resolve superclasses first, then build a field allocator and a vtable allocator
 			ClassInfo superclassInfo;
@@ -165,11 +395,12 @@ public class Compiler implements CodeTranslator.Context {
 				classInfo.fieldAllocator = new FieldAllocator(superclassInfo.fieldAllocator);
 				classInfo.vtableAllocator = new VtableAllocator(superclassInfo.vtableAllocator);
 			}
+			classInfo.staticFieldAllocator = new FieldAllocator();
 
 			// allocate fields
 			for (FieldNode field : classInfo.fields) {
 				FieldInfo fieldInfo = (FieldInfo) field;
-				FieldAllocator thisFieldAllocator = (field.access & Opcodes.ACC_STATIC) == 0 ? classInfo.fieldAllocator : staticFieldAllocator;
+				FieldAllocator thisFieldAllocator = (field.access & Opcodes.ACC_STATIC) == 0 ? classInfo.fieldAllocator : classInfo.staticFieldAllocator;
 				switch (field.desc) {
 
 					case "B":
@@ -193,6 +424,7 @@ public class Compiler implements CodeTranslator.Context {
 				}
 			}
 			classInfo.fieldAllocator.seal();
+			classInfo.staticFieldAllocator.seal();
 
 			// allocate vtable entries
 			for (MethodNode method : classInfo.methods) {
@@ -211,14 +443,64 @@ public class Compiler implements CodeTranslator.Context {
 				Object[] vtable = classInfo.vtableAllocator.buildVtable(null); // metadata link will be patched below
 				classInfo.runtimeMetadataContributor = new VmClass(name, parentClass, vtable);
 				vtable[LayoutConstants.VTABLE_METADATA_INDEX] = classInfo.runtimeMetadataContributor;
+				vtable[LayoutConstants.VTABLE_REFERENCE_MAP_INDEX] = buildReferenceMap(classInfo);
+				classInfo.interfaceMethodTable = buildInterfaceMethodTable(classInfo);
+				classInfo.interfaceMethodTable.fillVtable(vtable);
 			}
 
 			classInfos.put(name, classInfo);
+			uncompiledClasses.add(name);
 			resolveObjectMetadataContributor(name); // to fill that map too while resolution is "open"
 		}
 		return classInfo;
 	}
 
+	/**
+	 * Builds the interface method table for a class (see {@link InterfaceMethodTable}). The implementation of an
+	 * interface method is the non-abstract method with the same key from the vtable, or else a default method. The
+	 * interfaces of a class are visited before those of its superclass, and each interface before its
+	 * superinterfaces, so the most specific default method wins in the usual cases. Methods of java.lang.Object are
+	 * called through the vtable and therefore not added.
+	 */
+	private InterfaceMethodTable buildInterfaceMethodTable(ClassInfo classInfo) {
+		InterfaceMethodTable table = new InterfaceMethodTable(NameUtil.mangleClassName(classInfo));
+		Map<String, ClassInfo> interfaces = new LinkedHashMap<>();
+		ClassInfo javaLangObject = classInfo;
+		collectInterfaces(classInfo, interfaces);
+		while (javaLangObject.superName != null) {
+			javaLangObject = resolveClass(javaLangObject.superName);
+			collectInterfaces(javaLangObject, interfaces);
+		}
+		for (ClassInfo interfaceInfo : interfaces.values()) {
+			for (MethodNode method : interfaceInfo.methods) {
+				if ((method.access & Opcodes.ACC_STATIC) != 0 || method.name.equals("<clinit>")) {
+					continue;
+				}
+				String key = VtableAllocator.getKey(method);
+				if (javaLangObject.vtableAllocator.findByKey(key) != null) {
+					continue;
+				}
+				MethodInfo implementation = classInfo.vtableAllocator.findByKey(key);
+				if (implementation == null || (implementation.access & Opcodes.ACC_ABSTRACT) != 0) {
+					implementation = (MethodInfo) method;
+				}
+				if ((implementation.access & Opcodes.ACC_ABSTRACT) == 0) {
+					table.add(key, implementation);
+				}
+			}
+		}
+		return table;
+	}
+
+	private void collectInterfaces(ClassInfo classInfo, Map<String, ClassInfo> interfaces) {
+		for (String interfaceName : classInfo.interfaces) {
+			ClassInfo interfaceInfo = resolveClass(interfaceName);
+			if (interfaces.put(interfaceInfo.name, interfaceInfo) == null) {
+				collectInterfaces(interfaceInfo, interfaces);
+			}
+		}
+	}
+
 	public VmObjectMetadata resolveObjectMetadata(String name) {
 		VmObjectMetadataContributor contributor = resolveObjectMetadataContributor(name);
 		if (contributor instanceof VmObjectMetadata) {
@@ -229,6 +511,11 @@ public class Compiler implements CodeTranslator.Context {
 	}
 
 	private VmObjectMetadataContributor resolveObjectMetadataContributor(String name) {
+		VmObjectMetadataContributor result = metadataContributors.get(name);
+		return result != null ? result : resolveNewObjectMetadataContributor(name);
+	}
+
+	private synchronized VmObjectMetadataContributor resolveNewObjectMetadataContributor(String name) {
 		VmObjectMetadataContributor result = metadataContributors.get(name);
 		if (result == null) {
 			if (resolutionClosed) {
@@ -246,7 +533,9 @@ public class Compiler implements CodeTranslator.Context {
 				} else {
 					throw new RuntimeException("invalid array class name: " + name);
 				}
-				result = new VmObjectArrayMetadata(name, javaLangObject, javaLangObject.getVtable(), elementType);
+				Object[] vtable = buildArrayVtable(LayoutConstants.REFERENCE_ARRAY_MAP);
+				result = new VmObjectArrayMetadata(name, javaLangObject, vtable, elementType);
+				vtable[LayoutConstants.VTABLE_METADATA_INDEX] = result;
 			} else {
 				result = resolveClass(name).runtimeMetadataContributor;
 			}
@@ -257,67 +546,370 @@ public class Compiler implements CodeTranslator.Context {
 
 	/**
 	 * Compiles all currently resolved classes as well as, recursively, classes that get resolved while compiling.
+	 * <p>
+	 * Classes are compiled in batches: each batch contains the classes that have been resolved since the previous
+	 * batch was taken. Each class is translated into its own buffer -- on a fork-join pool if parallelism is enabled -- and the
+	 * buffers are written in the order of the class names, so the output is the same regardless of parallelism.
 	 */
 	private void compileAllResolvedClasses() {
-		while (true) {
-			Set<String> batch = new HashSet<>(classInfos.keySet());
-			batch.removeAll(compiledClasses);
-			if (batch.isEmpty()) {
-				break;
+		ForkJoinPool pool = (parallelism > 1 ? new ForkJoinPool(parallelism) : null);
+		try {
+			while (true) {
+				List<String> batch = takeUncompiledClasses();
+				if (batch.isEmpty()) {
+					break;
+				}
+				Collections.sort(batch);
+				List<Callable<String>> tasks = new ArrayList<>();
+				for (String className : batch) {
+					tasks.add(() -> compileClass(className));
+				}
+				if (pool == null) {
+					for (Callable<String> task : tasks) {
+						out.print(task.call());
+					}
+				} else {
+					for (Future<String> future : pool.invokeAll(tasks)) {
+						out.print(future.get());
+					}
+				}
 			}
-			for (String className : batch) {
-				compileClass(className);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		} finally {
+			if (pool != null) {
+				pool.shutdown();
 			}
 		}
 	}
 
+	private synchronized List<String> takeUncompiledClasses() {
+		List<String> result = new ArrayList<>(uncompiledClasses);
+		uncompiledClasses.clear();
+		return result;
+	}
+
 	/**
-	 * Compiles a single class (does nothing if that class is already compiled).
+	 * Compiles the reachable methods of a single class and returns the generated code. Nothing is generated for a
+	 * class without reachable methods.
 	 */
-	private void compileClass(String name) {
+	private String compileClass(String name) {
 		try {
-			name = NameUtil.normalizeClassName(name);
-			if (compiledClasses.add(name)) {
-				ClassInfo classInfo = resolveClass(name);
-
-				// compile dependencies
-				if (classInfo.superName != null) {
-					compileClass(classInfo.superName);
+			ClassInfo classInfo = resolveClass(name);
+			List<MethodInfo> methods = new ArrayList<>();
+			List<String> methodKeys = new ArrayList<>();
+			for (MethodNode methodNode : classInfo.methods) {
+				MethodInfo methodInfo = (MethodInfo) methodNode;
+				if (reachabilityAnalysis.isReachable(methodInfo)) {
+					methods.add(methodInfo);
+					methodKeys.add(methodInfo.name + methodInfo.desc);
 				}
-
-				// compile the class itself
-				out.println("//");
-				out.println("// class " + NameUtil.denormalizeClassName(name));
-				out.println("//");
-				out.println("");
-				for (MethodNode methodNode : classInfo.methods) {
-					new CodeTranslator(this, out, (MethodInfo) methodNode).translate();
+			}
+			if (methods.isEmpty()) {
+				return "";
+			}
+			if (classCodeCache != null) {
+				String cachedCode = loadCachedCode(classInfo, methodKeys);
+				if (cachedCode != null) {
+					return cachedCode;
 				}
-
-				out.println();
 			}
+			RecordingContext recordingContext = (classCodeCache == null ? null : new RecordingContext(classInfo));
+			CodeTranslator.Context context = (recordingContext == null ? this : recordingContext);
+			StringWriter stringWriter = new StringWriter();
+			PrintWriter out = new PrintWriter(stringWriter);
+			out.println("//");
+			out.println("// class " + NameUtil.denormalizeClassName(name));
+			out.println("//");
+			out.println("");
+			for (MethodInfo methodInfo : methods) {
+				if (inliningEnabled) {
+					methodInfo = new Inliner(context).inline(methodInfo);
+				}
+				if (constantFoldingEnabled) {
+					methodInfo = new ConstantFolder(methodInfo).fold();
+				}
+				new CodeTranslator(context, out, methodInfo).translate();
+			}
+			out.println();
+			out.flush();
+			String code = stringWriter.toString();
+			if (recordingContext != null && recordingContext.cacheable) {
+				recordingContext.entry.methods.addAll(methodKeys);
+				recordingContext.entry.code = code;
+				classCodeCache.store(classInfo.name, recordingContext.entry);
+			}
+			return code;
 		} catch (Exception e) {
 			throw new RuntimeException("error compiling class " + name, e);
 		}
 	}
 
+//region code cache
+
+	private byte[] readClassFile(String name) {
+		try {
+			return classFileLoader.loadClassFile(name);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static String hashClassFile(byte[] classFile) {
+		return Hashing.sha256().hashBytes(classFile).toString();
+	}
+
+	/**
+	 * Returns the hash of the current class file for the specified class, without resolving it. Returns an empty
+	 * string if the class file does not exist.
+	 */
+	private String getClassFileHash(String name) {
+		ClassInfo classInfo = classInfos.get(name);
+		if (classInfo != null) {
+			return classInfo.classFileHash;
+		}
+		return unresolvedClassFileHashes.computeIfAbsent(name, name2 -> {
+			try {
+				byte[] classFile = classFileLoader.getClassFile(name2);
+				return (classFile == null ? "" : hashClassFile(classFile));
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+	}
+
+	/**
+	 * Identifies everything besides the class files that influences the generated code: the compiler options, the
+	 * array header size, which depends on the layout of java.lang.Object, and the compiler itself.
+	 */
+	private String getCacheConfigurationKey() {
+		Hasher hasher = Hashing.sha256().newHasher();
+		try {
+			String prefix = Compiler.class.getPackage().getName() + ".";
+			List<ClassPath.ClassInfo> compilerClasses = new ArrayList<>();
+			for (ClassPath.ClassInfo info : ClassPath.from(Compiler.class.getClassLoader()).getAllClasses()) {
+				if (info.getName().startsWith(prefix)) {
+					compilerClasses.add(info);
+				}
+			}
+			compilerClasses.sort(Comparator.comparing(ClassPath.ClassInfo::getName));
+			for (ClassPath.ClassInfo info : compilerClasses) {
+				hasher.putString(info.getName(), StandardCharsets.UTF_8);
+				hasher.putBytes(info.asByteSource().read());
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return codeGenerationMode + "," + floatingPointMode + "," + peepholeOptimizationEnabled + "," + inliningEnabled + "," + constantFoldingEnabled + "," + arrayHeaderSize + "," + hasher.hash();
+	}
+
+	/**
+	 * Returns the cached code for the specified class if it is still valid, after replaying the side effects of
+	 * translating the class. Returns null if there is no valid entry. The entry must also contain exactly the
+	 * specified methods, which are the ones that are reachable now.
+	 */
+	private String loadCachedCode(ClassInfo classInfo, List<String> methodKeys) {
+		ClassCodeCache.Entry entry = classCodeCache.load(classInfo.name);
+		if (entry == null || !entry.methods.equals(methodKeys)) {
+			return null;
+		}
+		for (Map.Entry<String, String> dependency : entry.dependencies.entrySet()) {
+			if (!getClassFileHash(dependency.getKey()).equals(dependency.getValue())) {
+				return null;
+			}
+		}
+		for (String dependency : entry.dependencies.keySet()) {
+			resolveClass(dependency);
+		}
+		for (String metadataName : entry.metadataNames) {
+			resolveObjectMetadata(metadataName);
+		}
+		for (VirtualCall virtualCall : entry.virtualCalls) {
+			getVirtualCallLabel(virtualCall.owner, virtualCall.name, virtualCall.descriptor);
+		}
+		for (ClassCodeCache.RuntimeObjectReference reference : entry.runtimeObjects) {
+			Object runtimeObject;
+			switch (reference.kind) {
+
+				case STRING:
+					runtimeObject = reference.value;
+					break;
+
+				case METADATA:
+					runtimeObject = resolveObjectMetadataContributor(reference.value);
+					break;
+
+				case VTABLE:
+					runtimeObject = resolveObjectMetadata(reference.value).getVtable();
+					break;
+
+				default:
+					throw new RuntimeException("unknown runtime object kind: " + reference.kind);
+
+			}
+			if (!getRuntimeObjectLabel(runtimeObject).equals(reference.label)) {
+				return null;
+			}
+		}
+		return entry.code;
+	}
+
+	/**
+	 * Used as the translator context while translating a class whose code gets cached. Records the information
+	 * needed to validate the cache entry and to replay the side effects of translation.
+	 */
+	private final class RecordingContext implements CodeTranslator.Context {
+
+		private final ClassCodeCache.Entry entry = new ClassCodeCache.Entry();
+		private boolean cacheable = true;
+
+		RecordingContext(ClassInfo classInfo) {
+			addDependency(classInfo);
+		}
+
+		private void addDependency(ClassInfo classInfo) {
+			while (entry.dependencies.put(classInfo.name, classInfo.classFileHash) == null && classInfo.superName != null) {
+				classInfo = Compiler.this.resolveClass(classInfo.superName);
+			}
+		}
+
+		@Override
+		public ClassInfo resolveClass(String name) {
+			ClassInfo classInfo = Compiler.this.resolveClass(name);
+			addDependency(classInfo);
+			return classInfo;
+		}
+
+		@Override
+		public VmObjectMetadata resolveObjectMetadata(String name) {
+			VmObjectMetadata metadata = Compiler.this.resolveObjectMetadata(name);
+			entry.metadataNames.add(name);
+			return metadata;
+		}
+
+		@Override
+		public int getArrayHeaderSize() {
+			return Compiler.this.getArrayHeaderSize();
+		}
+
+		@Override
+		public String getRuntimeObjectLabel(Object o) {
+			String label = Compiler.this.getRuntimeObjectLabel(o);
+			if (o instanceof String) {
+				entry.runtimeObjects.add(new ClassCodeCache.RuntimeObjectReference(ClassCodeCache.RuntimeObjectKind.STRING, (String) o, label));
+			} else if (o instanceof VmObjectMetadataContributor) {
+				String name = ((VmObjectMetadataContributor) o).getName();
+				entry.runtimeObjects.add(new ClassCodeCache.RuntimeObjectReference(ClassCodeCache.RuntimeObjectKind.METADATA, name, label));
+			} else if (o instanceof Object[] && isVtable((Object[]) o)) {
+				String name = ((VmObjectMetadata) ((Object[]) o)[LayoutConstants.VTABLE_METADATA_INDEX]).getName();
+				entry.runtimeObjects.add(new ClassCodeCache.RuntimeObjectReference(ClassCodeCache.RuntimeObjectKind.VTABLE, name, label));
+			} else {
+				cacheable = false;
+			}
+			return label;
+		}
+
+		private boolean isVtable(Object[] array) {
+			if (array.length > LayoutConstants.VTABLE_METADATA_INDEX && array[LayoutConstants.VTABLE_METADATA_INDEX] instanceof VmObjectMetadata) {
+				return ((VmObjectMetadata) array[LayoutConstants.VTABLE_METADATA_INDEX]).getVtable() == array;
+			}
+			return false;
+		}
+
+		@Override
+		public String getVirtualCallLabel(String owner, String name, String descriptor) {
+			entry.virtualCalls.add(new VirtualCall(owner, name, descriptor));
+			return Compiler.this.getVirtualCallLabel(owner, name, descriptor);
+		}
+
+		@Override
+		public CodeGenerationMode getCodeGenerationMode() {
+			return Compiler.this.getCodeGenerationMode();
+		}
+
+		@Override
+		public FloatingPointMode getFloatingPointMode() {
+			return Compiler.this.getFloatingPointMode();
+		}
+
+		@Override
+		public boolean isPeepholeOptimizationEnabled() {
+			return Compiler.this.isPeepholeOptimizationEnabled();
+		}
+
+	}
+
+//endregion
+
 	@Override
 	public int getArrayHeaderSize() {
 		return arrayHeaderSize;
 	}
 
+	@Override
+	public CodeGenerationMode getCodeGenerationMode() {
+		return codeGenerationMode;
+	}
+
+	@Override
+	public FloatingPointMode getFloatingPointMode() {
+		return floatingPointMode;
+	}
+
+	@Override
+	public boolean isPeepholeOptimizationEnabled() {
+		return peepholeOptimizationEnabled;
+	}
+
 	private void emitStaticFields() {
-		staticFieldAllocator.seal();
 		out.println("//");
 		out.println("// static fields");
 		out.println("//");
 		out.println("");
 		out.println(".data");
-		out.println("staticFields:");
-		out.println("\t.fill " + staticFieldAllocator.getWordCount() + ", 4, 0");
+		for (ClassInfo classInfo : getClassInfosInNameOrder()) {
+			int wordCount = classInfo.staticFieldAllocator.getWordCount();
+			if (wordCount > 0) {
+				out.println(NameUtil.mangleClassName(classInfo) + "_staticFields:");
+				Map<String, Object> values = (buildTimeInitializer == null ? null : buildTimeInitializer.getStaticFieldValues(classInfo.name));
+				if (values == null) {
+					out.println("\t.fill " + wordCount + ", 4, 0");
+				} else {
+					List<FieldInfo> fields = new ArrayList<>();
+					for (FieldNode field : classInfo.fields) {
+						if ((field.access & Opcodes.ACC_STATIC) != 0) {
+							fields.add((FieldInfo) field);
+						}
+					}
+					fields.sort(Comparator.comparing(field -> field.storageOffset));
+					runtimeObjects.emitFields(out, fields, values, wordCount * 4);
+				}
+			}
+		}
+		out.println();
+
+		// the garbage collector uses the static reference fields as roots
+		out.println("staticReferenceFieldTable:");
+		for (ClassInfo classInfo : getClassInfosInNameOrder()) {
+			for (FieldNode field : classInfo.fields) {
+				FieldInfo fieldInfo = (FieldInfo) field;
+				if ((field.access & Opcodes.ACC_STATIC) != 0 && fieldInfo.parsedDescriptor.isReferenceType()) {
+					out.println("\t.word " + NameUtil.mangleClassName(classInfo) + "_staticFields + " + fieldInfo.storageOffset);
+				}
+			}
+		}
+		out.println("staticReferenceFieldTableEnd:");
 		out.println();
 	}
 
+	private Collection<ClassInfo> getClassInfosInNameOrder() {
+		return new TreeMap<>(classInfos).values();
+	}
+
 	private void emitRuntimeObjectsAliasLabels(boolean dryRun) {
 		if (!dryRun) {
 			out.println("//");
@@ -326,7 +918,7 @@ public class Compiler implements CodeTranslator.Context {
 			out.println("");
 			out.println(".data");
 		}
-		for (ClassInfo classInfo : classInfos.values()) {
+		for (ClassInfo classInfo : getClassInfosInNameOrder()) {
 			VmObjectMetadataContributor contributor = classInfo.runtimeMetadataContributor;
 			if (contributor instanceof VmObjectMetadata) {
 				String generatedLabel = getRuntimeObjectLabel(((VmObjectMetadata) contributor).getVtable());
@@ -345,4 +937,12 @@ public class Compiler implements CodeTranslator.Context {
 		return runtimeObjects.getLabel(o);
 	}
 
+	@Override
+	public String getVirtualCallLabel(String owner, String name, String descriptor) {
+		VirtualCall virtualCall = new VirtualCall(owner, name, descriptor);
+		String label = virtualCall.getLabel();
+		virtualCalls.putIfAbsent(label, virtualCall);
+		return label;
+	}
+
 }
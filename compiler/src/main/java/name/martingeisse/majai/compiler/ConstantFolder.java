@@ -0,0 +1,362 @@
+package name.martingeisse.majai.compiler;
+
+import name.martingeisse.majai.compiler.ir.*;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.*;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+
+import java.util.*;
+
+/**
+ * Applies the results of {@link ConstantPropagation} to a method at the bytecode level, before it gets translated.
+ * This runs after the {@link Inliner}, so constant arguments of inlined calls are propagated into the inlined code.
+ * <p>
+ * Instructions that compute a constant, and loads of local variables that hold a constant, are replaced by pushing
+ * the constant. Their operands are popped instead, and a push that is directly followed by a pop is then removed
+ * together with it, so whole expressions collapse into a single constant. Conditional branches and switches with a
+ * constant operand become unconditional, and code that cannot be executed is removed. Finally, stores to local
+ * variables that are never read afterwards -- not counting the loads that have been replaced by constants -- are
+ * replaced by a pop of the stored value. That is decided by a liveness analysis that considers exception handlers
+ * to be reachable from any instruction they cover.
+ * <p>
+ * The operand stack never gets deeper than in the original code, except that an IINC whose result is constant
+ * becomes a push and a store. The method of the {@link ClassInfo} is not modified; a changed method is a copy.
+ */
+final class ConstantFolder {
+
+	private final MethodInfo method;
+	private final Map<AbstractInsnNode, IrInstruction> executableInstructions = new HashMap<>();
+	private final Set<IrInstruction> deadStores = new HashSet<>();
+	private ConstantPropagation propagation;
+	private Map<LabelNode, LabelNode> labels;
+	private MethodInfo result;
+	private boolean changed;
+
+	ConstantFolder(MethodInfo method) {
+		this.method = method;
+	}
+
+	/**
+	 * Returns the folded method, or the method itself if nothing could be folded.
+	 */
+	MethodInfo fold() {
+		if ((method.access & (Opcodes.ACC_NATIVE | Opcodes.ACC_ABSTRACT)) != 0) {
+			return method;
+		}
+		IrMethod irMethod;
+		try {
+			irMethod = new IrBuilder(method.containingClass.name, method).build();
+		} catch (AnalyzerException e) {
+			throw new RuntimeException("could not analyze method " + method.containingClass.name + "." + method.name + method.desc, e);
+		}
+		propagation = new ConstantPropagation(irMethod);
+		for (BasicBlock block : irMethod.getBlocks()) {
+			if (propagation.isExecutable(block)) {
+				for (IrInstruction instruction : block.getInstructions()) {
+					executableInstructions.put(instruction.getNode(), instruction);
+				}
+			}
+		}
+		findDeadStores(irMethod);
+
+		result = new MethodInfo(method.containingClass, method.access, method.name, method.desc, method.signature,
+			method.exceptions.toArray(new String[0]));
+		result.vtableIndex = method.vtableIndex;
+		result.maxLocals = method.maxLocals;
+		result.maxStack = method.maxStack;
+		labels = new HashMap<>();
+		for (AbstractInsnNode instruction = method.instructions.getFirst(); instruction != null; instruction = instruction.getNext()) {
+			if (instruction instanceof LabelNode) {
+				labels.put((LabelNode) instruction, new LabelNode());
+			}
+		}
+		for (AbstractInsnNode instruction = method.instructions.getFirst(); instruction != null; instruction = instruction.getNext()) {
+			IrInstruction irInstruction = executableInstructions.get(instruction);
+			if (irInstruction != null) {
+				changed |= rewrite(irInstruction);
+			} else if (instruction.getOpcode() < 0) {
+				result.instructions.add(instruction.clone(labels));
+			} else {
+				changed = true;
+			}
+		}
+		for (TryCatchBlockNode block : method.tryCatchBlocks) {
+			if (executableInstructions.containsKey(block.handler)) {
+				result.tryCatchBlocks.add(new TryCatchBlockNode(labels.get(block.start), labels.get(block.end), labels.get(block.handler), block.type));
+			} else {
+				changed = true;
+			}
+		}
+		removeDeadPushes();
+		return (changed ? result : method);
+	}
+
+//region rewriting
+
+	/**
+	 * Appends the replacement for the specified instruction to the result. Returns true if it is not just a copy.
+	 */
+	private boolean rewrite(IrInstruction instruction) {
+		AbstractInsnNode node = instruction.getNode();
+		int opcode = node.getOpcode();
+		InsnList instructions = result.instructions;
+
+		// branches
+		if (node instanceof JumpInsnNode && opcode != Opcodes.GOTO) {
+			Boolean condition = propagation.getCondition(instruction);
+			if (condition != null) {
+				popInputs(instruction);
+				if (condition) {
+					instructions.add(new JumpInsnNode(Opcodes.GOTO, labels.get(((JumpInsnNode) node).label)));
+				}
+				return true;
+			}
+		} else if (node instanceof TableSwitchInsnNode || node instanceof LookupSwitchInsnNode) {
+			LabelNode target = propagation.getSwitchTarget(instruction);
+			if (target != null) {
+				popInputs(instruction);
+				instructions.add(new JumpInsnNode(Opcodes.GOTO, labels.get(target)));
+				return true;
+			}
+		}
+
+		// dead stores
+		if (deadStores.contains(instruction)) {
+			if (opcode != Opcodes.IINC) {
+				instructions.add(new InsnNode(instruction.getOutput().getSize() == 2 ? Opcodes.POP2 : Opcodes.POP));
+			}
+			return true;
+		}
+
+		// constants
+		SsaValue output = instruction.getOutput();
+		Object constant = (output == null ? null : propagation.getConstant(output));
+		if (constant != null) {
+			if (isFoldedLoad(instruction)) {
+				instructions.add(createConstantInstruction(constant));
+				return true;
+			}
+			boolean computed = (output instanceof ResultValue && ((ResultValue) output).getDefinition() == instruction);
+			if (computed && opcode == Opcodes.IINC) {
+				instructions.add(createConstantInstruction(constant));
+				instructions.add(new VarInsnNode(Opcodes.ISTORE, ((IincInsnNode) node).var));
+				result.maxStack = Math.max(result.maxStack, instruction.getStackWordsBefore() + 1);
+				return true;
+			}
+			if (computed && !(opcode >= Opcodes.ICONST_M1 && opcode <= Opcodes.LDC)) {
+				popInputs(instruction);
+				instructions.add(createConstantInstruction(constant));
+				return true;
+			}
+		}
+
+		instructions.add(node.clone(labels));
+		return false;
+	}
+
+	/**
+	 * Pops the operands of the specified instruction, which must take all of its inputs from the operand stack.
+	 */
+	private void popInputs(IrInstruction instruction) {
+		List<SsaValue> inputs = instruction.getInputs();
+		for (int i = inputs.size() - 1; i >= 0; i--) {
+			result.instructions.add(new InsnNode(inputs.get(i).getSize() == 2 ? Opcodes.POP2 : Opcodes.POP));
+		}
+	}
+
+	private boolean isFoldedLoad(IrInstruction instruction) {
+		int opcode = instruction.getOpcode();
+		return opcode >= Opcodes.ILOAD && opcode <= Opcodes.DLOAD && propagation.getConstant(instruction.getOutput()) != null;
+	}
+
+	private boolean isFoldedIncrement(IrInstruction instruction) {
+		return instruction.getOpcode() == Opcodes.IINC && propagation.getConstant(instruction.getOutput()) != null;
+	}
+
+	private static AbstractInsnNode createConstantInstruction(Object constant) {
+		if (constant instanceof Integer) {
+			int value = (Integer) constant;
+			if (value >= -1 && value <= 5) {
+				return new InsnNode(Opcodes.ICONST_0 + value);
+			} else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+				return new IntInsnNode(Opcodes.BIPUSH, value);
+			} else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+				return new IntInsnNode(Opcodes.SIPUSH, value);
+			}
+		} else if (constant instanceof Long) {
+			long value = (Long) constant;
+			if (value == 0 || value == 1) {
+				return new InsnNode(Opcodes.LCONST_0 + (int) value);
+			}
+		} else if (constant instanceof Float) {
+			// compare the bits so -0.0 does not become 0.0
+			int bits = Float.floatToRawIntBits((Float) constant);
+			for (int i = 0; i <= 2; i++) {
+				if (bits == Float.floatToRawIntBits(i)) {
+					return new InsnNode(Opcodes.FCONST_0 + i);
+				}
+			}
+		} else if (constant instanceof Double) {
+			long bits = Double.doubleToRawLongBits((Double) constant);
+			for (int i = 0; i <= 1; i++) {
+				if (bits == Double.doubleToRawLongBits(i)) {
+					return new InsnNode(Opcodes.DCONST_0 + i);
+				}
+			}
+		}
+		return new LdcInsnNode(constant);
+	}
+
+	/**
+	 * Removes each push of a value that is directly popped again. The value must be computed without side effects.
+	 * Removing a pair may turn the instructions around it into such a pair, which is handled when the scan reaches
+	 * the next pop, so nested expressions are removed entirely.
+	 */
+	private void removeDeadPushes() {
+		InsnList instructions = result.instructions;
+		AbstractInsnNode instruction = instructions.getFirst();
+		while (instruction != null) {
+			AbstractInsnNode next = instruction.getNext();
+			int opcode = instruction.getOpcode();
+			if (opcode == Opcodes.POP || opcode == Opcodes.POP2) {
+				AbstractInsnNode previous = instruction.getPrevious();
+				if (previous != null && getPushedWords(previous) == (opcode == Opcodes.POP ? 1 : 2)) {
+					instructions.remove(previous);
+					instructions.remove(instruction);
+					changed = true;
+				}
+			}
+			instruction = next;
+		}
+	}
+
+	/**
+	 * Returns the number of words pushed by the specified instruction if it does nothing else, or 0 otherwise.
+	 */
+	private static int getPushedWords(AbstractInsnNode instruction) {
+		switch (instruction.getOpcode()) {
+
+			case Opcodes.ACONST_NULL:
+			case Opcodes.ICONST_M1:
+			case Opcodes.ICONST_0:
+			case Opcodes.ICONST_1:
+			case Opcodes.ICONST_2:
+			case Opcodes.ICONST_3:
+			case Opcodes.ICONST_4:
+			case Opcodes.ICONST_5:
+			case Opcodes.FCONST_0:
+			case Opcodes.FCONST_1:
+			case Opcodes.FCONST_2:
+			case Opcodes.BIPUSH:
+			case Opcodes.SIPUSH:
+			case Opcodes.ILOAD:
+			case Opcodes.FLOAD:
+			case Opcodes.ALOAD:
+			case Opcodes.DUP:
+				return 1;
+
+			case Opcodes.LCONST_0:
+			case Opcodes.LCONST_1:
+			case Opcodes.DCONST_0:
+			case Opcodes.DCONST_1:
+			case Opcodes.LLOAD:
+			case Opcodes.DLOAD:
+			case Opcodes.DUP2:
+				return 2;
+
+			case Opcodes.LDC: {
+				Object constant = ((LdcInsnNode) instruction).cst;
+				return (constant instanceof Long || constant instanceof Double ? 2 : 1);
+			}
+
+			default:
+				return 0;
+
+		}
+	}
+
+//endregion
+
+//region dead stores
+
+	/**
+	 * Finds the stores to local variables that are not read before the variable gets overwritten or the method
+	 * returns. Only the executable code is considered, and loads that get replaced by a constant do not count as
+	 * reads. An IINC whose result is not constant reads and writes the same variable, so it is dead if the variable
+	 * is not read afterwards, and does not make it live otherwise. Long and double variables are identified by
+	 * their first index, since the verifier does not allow a long or double value to be loaded after its second
+	 * half has been overwritten.
+	 */
+	private void findDeadStores(IrMethod irMethod) {
+		List<BasicBlock> blocks = new ArrayList<>();
+		for (BasicBlock block : irMethod.getBlocks()) {
+			if (propagation.isExecutable(block)) {
+				blocks.add(block);
+			}
+		}
+		Collections.reverse(blocks);
+		Map<BasicBlock, BitSet> liveIn = new HashMap<>();
+		for (BasicBlock block : blocks) {
+			liveIn.put(block, new BitSet());
+		}
+		boolean liveInChanged = true;
+		while (liveInChanged) {
+			liveInChanged = false;
+			for (BasicBlock block : blocks) {
+				BitSet live = scanBackward(block, liveIn, false);
+				if (!live.equals(liveIn.get(block))) {
+					liveIn.put(block, live);
+					liveInChanged = true;
+				}
+			}
+		}
+		for (BasicBlock block : blocks) {
+			scanBackward(block, liveIn, true);
+		}
+	}
+
+	/**
+	 * Computes the variables that are live on entry to the specified block from those that are live on entry to
+	 * its successors, optionally recording the dead stores in the block.
+	 */
+	private BitSet scanBackward(BasicBlock block, Map<BasicBlock, BitSet> liveIn, boolean recordDeadStores) {
+		BitSet handlerLive = new BitSet();
+		for (BasicBlock handler : block.getExceptionHandlers()) {
+			handlerLive.or(liveIn.get(handler));
+		}
+		BitSet live = (BitSet) handlerLive.clone();
+		for (BasicBlock successor : block.getSuccessors()) {
+			if (propagation.isEdgeExecutable(block, successor)) {
+				live.or(liveIn.get(successor));
+			}
+		}
+		List<IrInstruction> instructions = block.getInstructions();
+		for (int i = instructions.size() - 1; i >= 0; i--) {
+			IrInstruction instruction = instructions.get(i);
+			int opcode = instruction.getOpcode();
+			if ((opcode >= Opcodes.ISTORE && opcode <= Opcodes.ASTORE) || isFoldedIncrement(instruction)) {
+				int index = getLocalIndex(instruction);
+				if (recordDeadStores && !live.get(index)) {
+					deadStores.add(instruction);
+				}
+				live.clear(index);
+				live.or(handlerLive);
+			} else if (opcode == Opcodes.IINC) {
+				if (recordDeadStores && !live.get(getLocalIndex(instruction))) {
+					deadStores.add(instruction);
+				}
+			} else if (opcode >= Opcodes.ILOAD && opcode <= Opcodes.ALOAD && !isFoldedLoad(instruction)) {
+				live.set(getLocalIndex(instruction));
+			}
+		}
+		return live;
+	}
+
+	private static int getLocalIndex(IrInstruction instruction) {
+		AbstractInsnNode node = instruction.getNode();
+		return (node instanceof IincInsnNode ? ((IincInsnNode) node).var : ((VarInsnNode) node).var);
+	}
+
+//endregion
+
+}
@@ -0,0 +1,20 @@
+package name.martingeisse.majai.compiler;
+
+/**
+ * Selects how the {@link CodeTranslator} implements float and double operations.
+ */
+public enum FloatingPointMode {
+
+	/**
+	 * Uses the instructions of the RV32F and RV32D extensions. Those operations that have no such instruction
+	 * (remainders and conversions from and to long) still call {@link name.martingeisse.majai.vm.SoftFloat}.
+	 */
+	HARDWARE,
+
+	/**
+	 * Calls {@link name.martingeisse.majai.vm.SoftFloat} for all operations except negation, for targets without a
+	 * floating-point unit.
+	 */
+	SOFTWARE
+
+}
@@ -0,0 +1,206 @@
+package name.martingeisse.majai.compiler;
+
+import name.martingeisse.majai.compiler.assembly.AssemblyBuffer;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.IincInsnNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+import java.util.BitSet;
+
+/**
+ * Decides where the operand stack slots and local variables of a method live at run-time, and emits the code to
+ * access them. The {@link CodeTranslator} expresses all opcodes in terms of this class so it does not depend on the
+ * storage strategy.
+ * <p>
+ * Values are exchanged with the translator through registers. Methods that produce a value take a scratch register
+ * which the frame model may use, and return the register that actually holds the value. To store a value, the
+ * translator first asks for a target register, computes the value into that register, then stores it. The returned
+ * registers are only valid until the next call to this frame model.
+ * <p>
+ * All sizes and depths are measured in words, so long and double values take two slots each.
+ * <p>
+ * A leaf method does not call anything, neither other methods nor the run-time. It therefore does not need to save
+ * its return address, is never on the stack while the garbage collector runs, and the argument registers keep their
+ * values for the whole method. Frame models use that to emit a smaller frame or none at all.
+ * <p>
+ * When an exception is caught, the unwinder (see throwException in start.S) continues in the method with s0 and the
+ * callee-saved registers restored, and sp set to s0. Frame models must treat that as an empty operand stack.
+ */
+abstract class FrameModel {
+
+	final AssemblyBuffer out;
+	final MethodInfo methodInfo;
+	final boolean leaf;
+	private final BitSet writtenLocals;
+	private int depth;
+
+	FrameModel(AssemblyBuffer out, MethodInfo methodInfo, boolean leaf) {
+		this.out = out;
+		this.methodInfo = methodInfo;
+		this.leaf = leaf;
+		this.writtenLocals = new BitSet();
+		this.depth = 0;
+		for (AbstractInsnNode instruction = methodInfo.instructions.getFirst(); instruction != null; instruction = instruction.getNext()) {
+			switch (instruction.getOpcode()) {
+
+				case Opcodes.ISTORE:
+				case Opcodes.FSTORE:
+				case Opcodes.ASTORE:
+					writtenLocals.set(((VarInsnNode) instruction).var);
+					break;
+
+				case Opcodes.LSTORE:
+				case Opcodes.DSTORE:
+					writtenLocals.set(((VarInsnNode) instruction).var, ((VarInsnNode) instruction).var + 2);
+					break;
+
+				case Opcodes.IINC:
+					writtenLocals.set(((IincInsnNode) instruction).var);
+					break;
+
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of argument words including the implicit "this" argument.
+	 */
+	final int getArgumentWords() {
+		int words = (methodInfo.access & Opcodes.ACC_STATIC) == 0 ? 1 : 0;
+		return words + methodInfo.parsedDescriptor.getParameterWords();
+	}
+
+	/**
+	 * Returns true if the specified local variable is an argument that is never written and can therefore stay in
+	 * its argument register. This is only possible in leaf methods, since calls clobber the argument registers.
+	 */
+	final boolean isArgumentInRegister(int index) {
+		return leaf && index < getArgumentWords() && !writtenLocals.get(index);
+	}
+
+	abstract void emitPrologue();
+
+	final void emitEpilogue() {
+		emitFrameRemoval();
+		out.instruction("ret");
+	}
+
+	/**
+	 * Emits the part of the epilogue that restores the registers of the caller, except for the return. This is also
+	 * used by leaf methods to leave through a jump to a method that throws an exception on their behalf, so the
+	 * operand stack may still contain {@link #getDepth()} slots.
+	 */
+	abstract void emitFrameRemoval();
+
+//region operand stack
+
+	final int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * Re-synchronizes the stack depth with the statically known depth at the start of a basic block. This is needed
+	 * because the blocks are translated in bytecode order, not in control flow order, so the depth left by the
+	 * previous block (e.g. one that ends with an unconditional jump) may not be the right one.
+	 */
+	void setDepth(int depth) {
+		this.depth = depth;
+	}
+
+	final String pop(String scratch) {
+		depth--;
+		return popSlot(depth, scratch);
+	}
+
+	final void popInto(String register) {
+		String actual = pop(register);
+		if (!actual.equals(register)) {
+			out.instruction("mv", register, actual);
+		}
+	}
+
+	final String pushTarget(String scratch) {
+		return getSlotTarget(depth, scratch);
+	}
+
+	final void push(String register) {
+		pushSlot(depth, register);
+		depth++;
+	}
+
+	final void pushFrom(String register) {
+		String target = pushTarget(register);
+		if (!target.equals(register)) {
+			out.instruction("mv", target, register);
+		}
+		push(target);
+	}
+
+	/**
+	 * Returns the register holding the value "index" slots below the top of the stack (0 for the top slot).
+	 */
+	final String peek(int index, String scratch) {
+		return peekSlot(depth - 1 - index, index, scratch);
+	}
+
+	final void drop(int words) {
+		depth -= words;
+		dropSlots(words);
+	}
+
+	abstract String popSlot(int slot, String scratch);
+
+	abstract String getSlotTarget(int slot, String scratch);
+
+	abstract void pushSlot(int slot, String register);
+
+	abstract String peekSlot(int slot, int indexFromTop, String scratch);
+
+	abstract void dropSlots(int words);
+
+//endregion
+
+//region local variables
+
+	abstract String loadLocal(int index, String scratch);
+
+	abstract String getLocalTarget(int index, String scratch);
+
+	abstract void storeLocal(int index, String register);
+
+//endregion
+
+//region stack maps
+
+	/*
+		The garbage collector finds the references in a frame through the following methods. Each local variable and
+		stack slot lives either in a register, in which case the register methods return its name, or in the frame,
+		in which case they return null and the offset methods return its offset relative to s0.
+	 */
+
+	/**
+	 * Returns the offset of the saved return address relative to s0. The caller's s0 is saved right after it. Stack
+	 * maps are only needed for calls, so this method and the ones below are not used for leaf methods.
+	 */
+	abstract int getReturnAddressOffset();
+
+	/**
+	 * Returns the callee-saved registers (besides s0) that the prologue saves. They must be saved in ascending order
+	 * to consecutive words starting at {@link #getSavedRegisterOffset()}, since the stack maps only store a mask.
+	 */
+	abstract String[] getSavedRegisters();
+
+	abstract int getSavedRegisterOffset();
+
+	abstract String getSlotRegister(int slot);
+
+	abstract int getSlotOffset(int slot);
+
+	abstract String getLocalRegister(int index);
+
+	abstract int getLocalOffset(int index);
+
+//endregion
+
+}
@@ -0,0 +1,215 @@
+package name.martingeisse.majai.compiler;
+
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Inlines small methods into their callers at the bytecode level, before the caller gets translated. Calls that have
+ * a single possible target at translation time are inlined: static methods, INVOKESPECIAL (constructors, private
+ * methods and super calls) and INVOKEVIRTUAL of methods that cannot be overridden. Calls that only turn out to be
+ * monomorphic by class hierarchy analysis are not, since that is only known after all classes have been translated.
+ * <p>
+ * The arguments are stored into fresh local variables behind those of the caller, then the body of the callee
+ * follows with its local variables moved there, and returns become jumps to the end of the inlined code. The return
+ * value, if any, is left on the operand stack like a call would leave it.
+ * <p>
+ * Only the original code of a callee is inlined, never code that has itself been inlined into the callee. That
+ * serves as the recursion guard, and keeps the result independent of the order in which methods are processed.
+ * The methods of a {@link ClassInfo} are not modified; a caller with inlined calls is a copy.
+ */
+final class Inliner {
+
+	/**
+	 * The maximum number of bytecode instructions of an inlined method.
+	 */
+	private static final int MAXIMUM_CALLEE_SIZE = 20;
+
+	private final CodeTranslator.Context context;
+
+	Inliner(CodeTranslator.Context context) {
+		this.context = context;
+	}
+
+	/**
+	 * Returns the specified method with all suitable calls inlined, or the method itself if there are none.
+	 */
+	MethodInfo inline(MethodInfo caller) {
+		if ((caller.access & (Opcodes.ACC_NATIVE | Opcodes.ACC_ABSTRACT)) != 0) {
+			return caller;
+		}
+		Map<MethodInsnNode, MethodInfo> callees = new HashMap<>();
+		for (AbstractInsnNode instruction = caller.instructions.getFirst(); instruction != null; instruction = instruction.getNext()) {
+			if (instruction instanceof MethodInsnNode) {
+				MethodInfo callee = findInlinableCallee(caller, (MethodInsnNode) instruction);
+				if (callee != null) {
+					callees.put((MethodInsnNode) instruction, callee);
+				}
+			}
+		}
+		if (callees.isEmpty()) {
+			return caller;
+		}
+
+		MethodInfo result = new MethodInfo(caller.containingClass, caller.access, caller.name, caller.desc, caller.signature,
+			caller.exceptions.toArray(new String[0]));
+		result.vtableIndex = caller.vtableIndex;
+		result.maxLocals = caller.maxLocals;
+		result.maxStack = caller.maxStack;
+		Map<LabelNode, LabelNode> labels = cloneLabels(caller.instructions);
+		for (AbstractInsnNode instruction = caller.instructions.getFirst(); instruction != null; instruction = instruction.getNext()) {
+			MethodInfo callee = callees.get(instruction);
+			if (callee == null) {
+				result.instructions.add(instruction.clone(labels));
+			} else {
+				appendInlinedCode(result, caller, callee);
+			}
+		}
+		for (TryCatchBlockNode block : caller.tryCatchBlocks) {
+			result.tryCatchBlocks.add(new TryCatchBlockNode(labels.get(block.start), labels.get(block.end), labels.get(block.handler), block.type));
+		}
+		return result;
+	}
+
+	private MethodInfo findInlinableCallee(MethodInfo caller, MethodInsnNode call) {
+		if (call.owner.startsWith("[")) {
+			return null;
+		}
+		MethodInfo callee;
+		switch (call.getOpcode()) {
+
+			case Opcodes.INVOKESTATIC:
+			case Opcodes.INVOKESPECIAL:
+				callee = findDeclaredMethod(context.resolveClass(call.owner), call.name, call.desc);
+				break;
+
+			case Opcodes.INVOKEVIRTUAL:
+				callee = CodeTranslator.getDirectTarget(context.resolveClass(call.owner), call);
+				if (callee != null && !callee.desc.equals(call.desc)) {
+					return null;
+				}
+				break;
+
+			default:
+				return null;
+
+		}
+		if (callee == null || callee == caller || !isInlinable(callee)) {
+			return null;
+		}
+		return callee;
+	}
+
+	private static MethodInfo findDeclaredMethod(ClassInfo classInfo, String name, String desc) {
+		for (MethodNode method : classInfo.methods) {
+			if (method.name.equals(name) && method.desc.equals(desc)) {
+				return (MethodInfo) method;
+			}
+		}
+		return null;
+	}
+
+	private static boolean isInlinable(MethodInfo method) {
+		if ((method.access & (Opcodes.ACC_NATIVE | Opcodes.ACC_ABSTRACT | Opcodes.ACC_SYNCHRONIZED)) != 0) {
+			return false;
+		}
+		if (!method.tryCatchBlocks.isEmpty()) {
+			return false;
+		}
+		int size = 0;
+		for (AbstractInsnNode instruction = method.instructions.getFirst(); instruction != null; instruction = instruction.getNext()) {
+			switch (instruction.getOpcode()) {
+
+				case -1:
+					break;
+
+				case Opcodes.JSR:
+				case Opcodes.RET:
+				case Opcodes.MONITORENTER:
+				case Opcodes.MONITOREXIT:
+				case Opcodes.ATHROW:
+					return false;
+
+				default:
+					size++;
+					if (size > MAXIMUM_CALLEE_SIZE) {
+						return false;
+					}
+					break;
+
+			}
+		}
+		return true;
+	}
+
+	private static void appendInlinedCode(MethodInfo result, MethodInfo caller, MethodInfo callee) {
+		InsnList instructions = result.instructions;
+		int base = caller.maxLocals;
+
+		// pop the arguments into fresh local variables, last argument first
+		boolean staticMethod = (callee.access & Opcodes.ACC_STATIC) != 0;
+		Type[] argumentTypes = Type.getArgumentTypes(callee.desc);
+		int[] argumentLocals = new int[argumentTypes.length];
+		int local = base + (staticMethod ? 0 : 1);
+		for (int i = 0; i < argumentTypes.length; i++) {
+			argumentLocals[i] = local;
+			local += argumentTypes[i].getSize();
+		}
+		for (int i = argumentTypes.length - 1; i >= 0; i--) {
+			instructions.add(new VarInsnNode(argumentTypes[i].getOpcode(Opcodes.ISTORE), argumentLocals[i]));
+		}
+		if (!staticMethod) {
+			instructions.add(new VarInsnNode(Opcodes.ASTORE, base));
+		}
+
+		// copy the body, moving local variables and turning returns into jumps to the end
+		LabelNode end = new LabelNode();
+		Map<LabelNode, LabelNode> labels = cloneLabels(callee.instructions);
+		AbstractInsnNode lastInstruction = getLastInstruction(callee.instructions);
+		for (AbstractInsnNode instruction = callee.instructions.getFirst(); instruction != null; instruction = instruction.getNext()) {
+			if (instruction instanceof FrameNode || instruction instanceof LineNumberNode) {
+				continue;
+			}
+			int opcode = instruction.getOpcode();
+			if (opcode >= Opcodes.IRETURN && opcode <= Opcodes.RETURN) {
+				if (instruction != lastInstruction) {
+					instructions.add(new JumpInsnNode(Opcodes.GOTO, end));
+				}
+				continue;
+			}
+			AbstractInsnNode copy = instruction.clone(labels);
+			if (copy instanceof VarInsnNode) {
+				((VarInsnNode) copy).var += base;
+			} else if (copy instanceof IincInsnNode) {
+				((IincInsnNode) copy).var += base;
+			}
+			instructions.add(copy);
+		}
+		instructions.add(end);
+
+		result.maxLocals = Math.max(result.maxLocals, base + Math.max(callee.maxLocals, local - base));
+		result.maxStack = Math.max(result.maxStack, caller.maxStack + callee.maxStack);
+	}
+
+	private static Map<LabelNode, LabelNode> cloneLabels(InsnList instructions) {
+		Map<LabelNode, LabelNode> labels = new HashMap<>();
+		for (AbstractInsnNode instruction = instructions.getFirst(); instruction != null; instruction = instruction.getNext()) {
+			if (instruction instanceof LabelNode) {
+				labels.put((LabelNode) instruction, new LabelNode());
+			}
+		}
+		return labels;
+	}
+
+	private static AbstractInsnNode getLastInstruction(InsnList instructions) {
+		AbstractInsnNode instruction = instructions.getLast();
+		while (instruction != null && instruction.getOpcode() < 0) {
+			instruction = instruction.getPrevious();
+		}
+		return instruction;
+	}
+
+}
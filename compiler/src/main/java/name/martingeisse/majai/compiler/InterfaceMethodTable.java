@@ -0,0 +1,126 @@
+package name.martingeisse.majai.compiler;
+
+import name.martingeisse.majai.compiler.runtime.LabelReference;
+
+import java.io.PrintWriter;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+
+/**
+ * The interface method table (IMT) of a class. It is embedded in the vtable at
+ * {@link LayoutConstants#VTABLE_INTERFACE_METHOD_TABLE_INDEX} and has a fixed number of slots.
+ * <p>
+ * Each interface method is identified by a selector, which is the hash code of its key (name and parameter types).
+ * The selector alone determines the slot, so a call site does not need to know anything about the class of the
+ * receiver or the order in which interfaces have been resolved: INVOKEINTERFACE loads the slot from the vtable and
+ * calls it with the selector in {@link #SELECTOR_REGISTER}. If only a single method of the class falls into a slot,
+ * the slot points to that method directly. Otherwise it points to a stub that compares the selector and jumps to the
+ * right method.
+ */
+final class InterfaceMethodTable {
+
+	/**
+	 * The register that holds the selector when calling through the IMT. It is the last argument register, so
+	 * interface methods can take at most seven argument words including the receiver.
+	 */
+	static final String SELECTOR_REGISTER = "a7";
+
+	private final String stubLabelPrefix;
+	private final Map<Integer, String> keys = new TreeMap<>();
+	private final Map<Integer, Map<Integer, MethodInfo>> slots = new TreeMap<>();
+
+	InterfaceMethodTable(String stubLabelPrefix) {
+		this.stubLabelPrefix = stubLabelPrefix;
+	}
+
+	static int getSelector(String key) {
+		return key.hashCode();
+	}
+
+	static int getSlot(int selector) {
+		return (selector & 0x7fffffff) % LayoutConstants.INTERFACE_METHOD_TABLE_SIZE;
+	}
+
+	/**
+	 * Adds a method. Adding the same key twice keeps the first method, so implementations that have been added
+	 * first take precedence. Two different keys with the same selector cannot be told apart at run-time, so they
+	 * are rejected.
+	 */
+	void add(String key, MethodInfo method) {
+		int selector = getSelector(key);
+		String existingKey = keys.putIfAbsent(selector, key);
+		if (existingKey == null) {
+			slots.computeIfAbsent(getSlot(selector), i -> new TreeMap<>()).put(selector, method);
+		} else if (!existingKey.equals(key)) {
+			throw new RuntimeException("interface method selector collision: " + existingKey + " and " + key);
+		}
+	}
+
+	/**
+	 * Returns the method with the specified key, or null if there is none.
+	 */
+	MethodInfo findMethod(String key) {
+		int selector = getSelector(key);
+		Map<Integer, MethodInfo> slot = slots.get(getSlot(selector));
+		return (key.equals(keys.get(selector)) && slot != null ? slot.get(selector) : null);
+	}
+
+	/**
+	 * Removes all methods that do not match the specified filter. The vtable must be filled again afterwards.
+	 */
+	void retainMethods(Predicate<MethodInfo> filter) {
+		for (Iterator<Map<Integer, MethodInfo>> iterator = slots.values().iterator(); iterator.hasNext(); ) {
+			Map<Integer, MethodInfo> slot = iterator.next();
+			slot.values().removeIf(filter.negate());
+			if (slot.isEmpty()) {
+				iterator.remove();
+			}
+		}
+	}
+
+	void fillVtable(Object[] vtable) {
+		for (int i = 0; i < LayoutConstants.INTERFACE_METHOD_TABLE_SIZE; i++) {
+			vtable[LayoutConstants.VTABLE_INTERFACE_METHOD_TABLE_INDEX + i] = null;
+		}
+		for (Map.Entry<Integer, Map<Integer, MethodInfo>> entry : slots.entrySet()) {
+			Map<Integer, MethodInfo> slot = entry.getValue();
+			String label = (slot.size() == 1 ? NameUtil.mangleMethodName(slot.values().iterator().next()) : getStubLabel(entry.getKey()));
+			vtable[LayoutConstants.VTABLE_INTERFACE_METHOD_TABLE_INDEX + entry.getKey()] = new LabelReference(label);
+		}
+	}
+
+	/**
+	 * Emits the stubs for all slots that are shared by several methods. The last method of a slot is jumped to
+	 * without comparing the selector.
+	 */
+	void emitStubs(PrintWriter out) {
+		for (Map.Entry<Integer, Map<Integer, MethodInfo>> entry : slots.entrySet()) {
+			Map<Integer, MethodInfo> slot = entry.getValue();
+			if (slot.size() > 1) {
+				String stubLabel = getStubLabel(entry.getKey());
+				out.println(stubLabel + ":");
+				int remaining = slot.size();
+				for (Map.Entry<Integer, MethodInfo> method : slot.entrySet()) {
+					String methodLabel = NameUtil.mangleMethodName(method.getValue());
+					remaining--;
+					if (remaining > 0) {
+						String nextLabel = stubLabel + "_" + remaining;
+						out.println("\tli t0, " + method.getKey());
+						out.println("\tbne " + SELECTOR_REGISTER + ", t0, " + nextLabel);
+						out.println("\tj " + methodLabel);
+						out.println(nextLabel + ":");
+					} else {
+						out.println("\tj " + methodLabel);
+					}
+				}
+			}
+		}
+	}
+
+	private String getStubLabel(int slot) {
+		return stubLabelPrefix + "_imtStub" + slot;
+	}
+
+}
@@ -3,7 +3,21 @@ package name.martingeisse.majai.compiler;
 public final class LayoutConstants {
 
     public static final int VTABLE_METADATA_INDEX = 0;
-    public static final int VTABLE_FIXED_ENTRY_COUNT = 1;
+    public static final int VTABLE_REFERENCE_MAP_INDEX = 1;
+    public static final int VTABLE_INTERFACE_METHOD_TABLE_INDEX = 2;
+    public static final int VTABLE_FIXED_ENTRY_COUNT = 2 + LayoutConstants.INTERFACE_METHOD_TABLE_SIZE;
+
+    /**
+     * The number of entries in the interface method table that is embedded in each vtable. See
+     * {@link InterfaceMethodTable}.
+     */
+    public static final int INTERFACE_METHOD_TABLE_SIZE = 16;
+
+    /**
+     * The first word of the reference map of an array of references. Primitive arrays use (-1 - log2(element size))
+     * instead, and classes use the instance size in bytes, followed by the offsets of all reference fields.
+     */
+    public static final int REFERENCE_ARRAY_MAP = -5;
 
     private LayoutConstants() {
     }
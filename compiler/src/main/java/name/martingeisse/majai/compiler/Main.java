@@ -1,23 +1,104 @@
 package name.martingeisse.majai.compiler;
 
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.OutputStreamWriter;
+import name.martingeisse.majai.jas5.Assembler;
+import name.martingeisse.majai.jas5.AssemblySourceReader;
+import name.martingeisse.majai.jas5.ElfWriter;
+import name.martingeisse.majai.jas5.LinkedImage;
+
+import java.io.*;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 /**
  *
  */
 public class Main {
 
+	/**
+	 * The address of the first instruction of the image. This is where the standard RISC-V linker script puts the
+	 * text segment.
+	 */
+	private static final int DEFAULT_BASE_ADDRESS = 0x10000;
+
 	public static void main(String[] args) throws Exception {
+		CodeGenerationMode codeGenerationMode = CodeGenerationMode.NAIVE;
+		FloatingPointMode floatingPointMode = FloatingPointMode.HARDWARE;
+		boolean peepholeOptimizationEnabled = true;
+		boolean inliningEnabled = true;
+		boolean constantFoldingEnabled = true;
+		int parallelism = 1;
+		// the self test checks build-time initialization with this class
+		List<String> buildTimeInitializedClasses = new ArrayList<>(Collections.singletonList("name.martingeisse.majai.payload.BuildTimeTables"));
+		boolean cacheEnabled = false;
+		List<File> classpath = null;
+		boolean assemblyOutputEnabled = false;
+		int baseAddress = DEFAULT_BASE_ADDRESS;
+		for (String arg : args) {
+			if (arg.equals("--register-allocation")) {
+				codeGenerationMode = CodeGenerationMode.REGISTER_ALLOCATING;
+			} else if (arg.equals("--soft-float")) {
+				floatingPointMode = FloatingPointMode.SOFTWARE;
+			} else if (arg.equals("--no-peephole")) {
+				peepholeOptimizationEnabled = false;
+			} else if (arg.equals("--no-inlining")) {
+				inliningEnabled = false;
+			} else if (arg.equals("--no-constant-folding")) {
+				constantFoldingEnabled = false;
+			} else if (arg.equals("--parallel")) {
+				parallelism = Runtime.getRuntime().availableProcessors();
+			} else if (arg.equals("--cache")) {
+				cacheEnabled = true;
+			} else if (arg.startsWith("--parallel=")) {
+				parallelism = Integer.parseInt(arg.substring("--parallel=".length()));
+			} else if (arg.equals("--assembly")) {
+				assemblyOutputEnabled = true;
+			} else if (arg.startsWith("--base-address=")) {
+				baseAddress = Long.decode(arg.substring("--base-address=".length())).intValue();
+			} else if (arg.startsWith("--initialize-at-build-time=")) {
+				buildTimeInitializedClasses.addAll(Arrays.asList(arg.substring("--initialize-at-build-time=".length()).split(",")));
+			} else if (arg.startsWith("--classpath=")) {
+				classpath = ClassFileLoader.parseClasspath(arg.substring("--classpath=".length()));
+			} else {
+				throw new IllegalArgumentException("unknown argument: " + arg);
+			}
+		}
+
 		File outputFolder = new File("out/majai");
 		outputFolder.mkdirs();
-		File outputFile = new File(outputFolder, "selftest.S");
-		try (FileOutputStream fileOutputStream = new FileOutputStream(outputFile)) {
-			try (OutputStreamWriter outputStreamWriter = new OutputStreamWriter(fileOutputStream, StandardCharsets.UTF_8)) {
-				new Compiler(new ClassFileLoader(), "name/martingeisse/majai/payload/SelfTest", outputStreamWriter).compile();
+		StringWriter assemblyCode = new StringWriter();
+		try (ClassFileLoader classFileLoader = (classpath == null ? new ClassFileLoader() : new ClassFileLoader(classpath))) {
+			Compiler compiler = new Compiler(classFileLoader, "name/martingeisse/majai/payload/SelfTest", assemblyCode);
+			compiler.setCodeGenerationMode(codeGenerationMode);
+			compiler.setFloatingPointMode(floatingPointMode);
+			compiler.setPeepholeOptimizationEnabled(peepholeOptimizationEnabled);
+			compiler.setInliningEnabled(inliningEnabled);
+			compiler.setConstantFoldingEnabled(constantFoldingEnabled);
+			compiler.setParallelism(parallelism);
+			compiler.setBuildTimeInitializedClasses(buildTimeInitializedClasses);
+			if (cacheEnabled) {
+				compiler.setCacheFolder(new File(outputFolder, "cache"));
 			}
+			compiler.compile();
+		}
+
+		// the assembly code can be written for debugging, or to build the image with an external assembler and linker
+		if (assemblyOutputEnabled) {
+			try (FileOutputStream fileOutputStream = new FileOutputStream(new File(outputFolder, "selftest.S"))) {
+				try (OutputStreamWriter outputStreamWriter = new OutputStreamWriter(fileOutputStream, StandardCharsets.UTF_8)) {
+					outputStreamWriter.write(assemblyCode.toString());
+				}
+			}
+		}
+
+		// build the image
+		Assembler assembler = new Assembler();
+		new AssemblySourceReader(assembler).read(assemblyCode.toString());
+		LinkedImage image = assembler.link(baseAddress, ".text", ".rodata");
+		try (OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(new File(outputFolder, "selftest.elf")))) {
+			ElfWriter.write(image, outputStream);
 		}
 	}
 
@@ -0,0 +1,166 @@
+package name.martingeisse.majai.compiler;
+
+import name.martingeisse.majai.compiler.assembly.AssemblyBuffer;
+
+/**
+ * Implements {@link CodeGenerationMode#NAIVE}: the operand stack lives on the machine stack (growing from sp) and
+ * all local variables live in the stack frame (addressed through s0).
+ * <p>
+ * Frame layout, relative to s0: local variables, saved ra, saved s0.
+ * <p>
+ * Leaf methods do not save ra, and arguments that are only read stay in their argument registers. If that holds
+ * for all local variables, the method has no frame at all.
+ */
+final class NaiveFrameModel extends FrameModel {
+
+	private final boolean frameNeeded;
+
+	NaiveFrameModel(AssemblyBuffer out, MethodInfo methodInfo, boolean leaf) {
+		super(out, methodInfo, leaf);
+		boolean frameNeeded = !leaf;
+		for (int i = 0; i < methodInfo.maxLocals; i++) {
+			if (!isArgumentInRegister(i)) {
+				frameNeeded = true;
+			}
+		}
+		this.frameNeeded = frameNeeded;
+	}
+
+	private int getFramePointerOffset() {
+		return (leaf ? methodInfo.maxLocals : methodInfo.maxLocals + 1) * 4;
+	}
+
+	private int getFrameSize() {
+		return getFramePointerOffset() + 4;
+	}
+
+	@Override
+	void emitPrologue() {
+		if (!frameNeeded) {
+			return;
+		}
+		out.instruction("addi", "sp", "sp", "-" + getFrameSize());
+		if (!leaf) {
+			out.instruction("sw", "ra", ((methodInfo.maxLocals) * 4) + "(sp)");
+		}
+		out.instruction("sw", "s0", getFramePointerOffset() + "(sp)");
+		out.instruction("mv", "s0", "sp");
+		int words = getArgumentWords();
+		for (int i = 0; i < words; i++) {
+			if (!isArgumentInRegister(i)) {
+				out.instruction("sw", "a" + i, (i * 4) + "(s0)");
+			}
+		}
+	}
+
+	@Override
+	void emitFrameRemoval() {
+		if (getDepth() > 0) {
+			dropSlots(getDepth());
+		}
+		if (frameNeeded) {
+			out.instruction("lw", "s0", getFramePointerOffset() + "(sp)");
+			if (!leaf) {
+				out.instruction("lw", "ra", ((methodInfo.maxLocals) * 4) + "(sp)");
+			}
+			out.instruction("addi", "sp", "sp", getFrameSize());
+		}
+	}
+
+//region operand stack
+
+	@Override
+	String popSlot(int slot, String scratch) {
+		out.instruction("lw", scratch, "0(sp)");
+		out.instruction("addi", "sp", "sp", "4");
+		return scratch;
+	}
+
+	@Override
+	String getSlotTarget(int slot, String scratch) {
+		return scratch;
+	}
+
+	@Override
+	void pushSlot(int slot, String register) {
+		out.instruction("addi", "sp", "sp", "-4");
+		out.instruction("sw", register, "0(sp)");
+	}
+
+	@Override
+	String peekSlot(int slot, int indexFromTop, String scratch) {
+		out.instruction("lw", scratch, (indexFromTop * 4) + "(sp)");
+		return scratch;
+	}
+
+	@Override
+	void dropSlots(int words) {
+		out.instruction("addi", "sp", "sp", words * 4);
+	}
+
+//endregion
+
+//region local variables
+
+	@Override
+	String loadLocal(int index, String scratch) {
+		if (isArgumentInRegister(index)) {
+			return "a" + index;
+		}
+		out.instruction("lw", scratch, (index * 4) + "(s0)");
+		return scratch;
+	}
+
+	@Override
+	String getLocalTarget(int index, String scratch) {
+		return scratch;
+	}
+
+	@Override
+	void storeLocal(int index, String register) {
+		out.instruction("sw", register, (index * 4) + "(s0)");
+	}
+
+//endregion
+
+//region stack maps
+
+	@Override
+	int getReturnAddressOffset() {
+		return methodInfo.maxLocals * 4;
+	}
+
+	@Override
+	String[] getSavedRegisters() {
+		return new String[0];
+	}
+
+	@Override
+	int getSavedRegisterOffset() {
+		return getReturnAddressOffset() + 8;
+	}
+
+	@Override
+	String getSlotRegister(int slot) {
+		return null;
+	}
+
+	@Override
+	int getSlotOffset(int slot) {
+		// the operand stack starts right below the frame
+		return -(slot + 1) * 4;
+	}
+
+	@Override
+	String getLocalRegister(int index) {
+		return null;
+	}
+
+	@Override
+	int getLocalOffset(int index) {
+		return index * 4;
+	}
+
+//endregion
+
+}
@@ -23,6 +23,13 @@ public final class NameUtil {
         return normalizeClassName(className).replace('/', '_');
     }
 
+    /**
+     * Like {@link #mangleClassName(String)}, but also accepts array type names such as "[I" or "[Ljava/lang/Object;".
+     */
+    public static String mangleTypeName(String typeName) {
+        return mangleClassName(typeName).replace("[", "A_").replace(';', '_');
+    }
+
     public static String mangleClassName(ClassInfo classInfo) {
         return mangleClassName(classInfo.name);
     }
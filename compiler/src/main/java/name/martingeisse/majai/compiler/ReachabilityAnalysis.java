@@ -0,0 +1,198 @@
+package name.martingeisse.majai.compiler;
+
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TypeInsnNode;
+
+import java.util.*;
+
+/**
+ * Finds the methods that can be called at run-time, starting from a set of root methods, so that only those get
+ * compiled. This is a rapid type analysis: a virtual or interface call can only reach the implementations in
+ * classes that get instantiated by reachable code, so a class that is only used for its static members or as a
+ * declared type does not make any of its instance methods reachable.
+ * <p>
+ * Reachable methods are processed through a worklist. Each of them is scanned once for the methods it calls
+ * directly, the classes it instantiates, the classes whose fields it accesses, and its virtual calls. A virtual call
+ * is recorded by its owner and key (see {@link VtableAllocator#getKey(String, String)}) and matched against each
+ * instantiated subtype of the owner, no matter whether the class is found before or after the call. Both the calls
+ * and the instantiated classes are indexed by type, so the work is proportional to the number of pairs of a call and
+ * a class that can receive it, not to the number of all calls times all classes. Calls that the translation
+ * adds by itself, such as for run-time checks and soft-float operations, are taken from
+ * {@link CodeTranslator#getRuntimeCalls}.
+ * <p>
+ * Objects that are not allocated by code but serialized into the image, such as strings and run-time metadata, are
+ * not seen by the analysis. The caller must declare their classes as instantiated.
+ * <p>
+ * The analysis looks at the original code of each method, before inlining, and also at unreachable code, so it may
+ * find a few methods that are not actually needed. It is not thread-safe, but the result may be queried from
+ * several threads once {@link #run()} has returned.
+ */
+final class ReachabilityAnalysis {
+
+	private final CodeTranslator.Context context;
+	private final Set<MethodInfo> reachableMethods = new HashSet<>();
+	private final Set<ClassInfo> instantiatedClasses = new HashSet<>();
+	private final Map<String, List<ClassInfo>> instantiatedSubtypes = new HashMap<>();
+	private final Map<String, Set<String>> virtualCallKeys = new HashMap<>();
+	private final Deque<MethodInfo> worklist = new ArrayDeque<>();
+
+	ReachabilityAnalysis(CodeTranslator.Context context) {
+		this.context = context;
+	}
+
+	void addRootMethod(String className, String name, String descriptor) {
+		MethodInfo method = findDeclaredMethod(context.resolveClass(className), name, descriptor);
+		if (method == null) {
+			throw new RuntimeException("root method not found: " + className + "." + name + descriptor);
+		}
+		addMethod(method);
+	}
+
+	void addInstantiatedClass(String className) {
+		instantiate(context.resolveClass(className));
+	}
+
+	void run() {
+		while (!worklist.isEmpty()) {
+			scan(worklist.removeFirst());
+		}
+	}
+
+	boolean isReachable(MethodInfo method) {
+		return reachableMethods.contains(method);
+	}
+
+	private void addMethod(MethodInfo method) {
+		if (reachableMethods.add(method)) {
+			worklist.addLast(method);
+		}
+	}
+
+	private void instantiate(ClassInfo classInfo) {
+		if (instantiatedClasses.add(classInfo)) {
+			for (String supertype : getSupertypes(classInfo)) {
+				instantiatedSubtypes.computeIfAbsent(supertype, name -> new ArrayList<>()).add(classInfo);
+				for (String key : virtualCallKeys.getOrDefault(supertype, Collections.emptySet())) {
+					addImplementation(classInfo, key);
+				}
+			}
+		}
+	}
+
+	private void addVirtualCall(String owner, String key) {
+		if (virtualCallKeys.computeIfAbsent(owner, name -> new HashSet<>()).add(key)) {
+			for (ClassInfo classInfo : instantiatedSubtypes.getOrDefault(owner, Collections.emptyList())) {
+				addImplementation(classInfo, key);
+			}
+		}
+	}
+
+	/**
+	 * Adds the method that a virtual call with the specified key reaches for a receiver of the specified class, if
+	 * any. Like in the vtable and interface method table, a method of the class or one of its superclasses takes
+	 * precedence over a default method.
+	 */
+	private void addImplementation(ClassInfo classInfo, String key) {
+		MethodInfo implementation = classInfo.vtableAllocator.findByKey(key);
+		if ((implementation == null || (implementation.access & Opcodes.ACC_ABSTRACT) != 0) && classInfo.interfaceMethodTable != null) {
+			implementation = classInfo.interfaceMethodTable.findMethod(key);
+		}
+		if (implementation != null && (implementation.access & Opcodes.ACC_ABSTRACT) == 0) {
+			addMethod(implementation);
+		}
+	}
+
+	/**
+	 * Returns the names of the specified class, its superclasses and all interfaces they implement.
+	 */
+	private Set<String> getSupertypes(ClassInfo classInfo) {
+		Set<String> supertypes = new HashSet<>();
+		for (ClassInfo current = classInfo; current != null; current = (current.superName == null ? null : context.resolveClass(current.superName))) {
+			supertypes.add(current.name);
+			collectInterfaces(current, supertypes);
+		}
+		return supertypes;
+	}
+
+	private void collectInterfaces(ClassInfo classInfo, Set<String> supertypes) {
+		for (String name : classInfo.interfaces) {
+			if (supertypes.add(name)) {
+				collectInterfaces(context.resolveClass(name), supertypes);
+			}
+		}
+	}
+
+	private void scan(MethodInfo method) {
+		if ((method.access & (Opcodes.ACC_NATIVE | Opcodes.ACC_ABSTRACT)) != 0) {
+			return;
+		}
+		for (AbstractInsnNode instruction = method.instructions.getFirst(); instruction != null; instruction = instruction.getNext()) {
+			if (instruction instanceof MethodInsnNode) {
+				scanCall((MethodInsnNode) instruction);
+			} else if (instruction instanceof FieldInsnNode) {
+				context.resolveClass(((FieldInsnNode) instruction).owner);
+			} else if (instruction.getOpcode() == Opcodes.NEW) {
+				instantiate(context.resolveClass(((TypeInsnNode) instruction).desc));
+			}
+			for (MethodInsnNode call : CodeTranslator.getRuntimeCalls(instruction, context)) {
+				scanCall(call);
+			}
+		}
+	}
+
+	/**
+	 * Handles a call in the same way as the translator does: INVOKESTATIC and INVOKESPECIAL call the named method,
+	 * INVOKEVIRTUAL calls it directly if it cannot be overridden and goes through the vtable otherwise, and
+	 * INVOKEINTERFACE goes through the interface method table except for the methods of java.lang.Object.
+	 */
+	private void scanCall(MethodInsnNode call) {
+		// the methods of arrays are those of java.lang.Object
+		String owner = (call.owner.startsWith("[") ? "java/lang/Object" : call.owner);
+		String key = VtableAllocator.getKey(call.name, call.desc);
+		switch (call.getOpcode()) {
+
+			case Opcodes.INVOKESTATIC:
+			case Opcodes.INVOKESPECIAL: {
+				MethodInfo method = findDeclaredMethod(context.resolveClass(owner), call.name, call.desc);
+				if (method != null) {
+					addMethod(method);
+				}
+				break;
+			}
+
+			case Opcodes.INVOKEVIRTUAL: {
+				ClassInfo ownerInfo = context.resolveClass(owner);
+				MethodInfo directTarget = CodeTranslator.getDirectTarget(ownerInfo, call);
+				if (directTarget != null) {
+					addMethod(directTarget);
+				} else {
+					addVirtualCall(ownerInfo.name, key);
+				}
+				break;
+			}
+
+			case Opcodes.INVOKEINTERFACE:
+				if (context.resolveClass("java/lang/Object").vtableAllocator.findByKey(key) != null) {
+					addVirtualCall("java/lang/Object", key);
+				} else {
+					addVirtualCall(owner, key);
+				}
+				break;
+
+		}
+	}
+
+	private static MethodInfo findDeclaredMethod(ClassInfo classInfo, String name, String descriptor) {
+		for (MethodNode method : classInfo.methods) {
+			if (method.name.equals(name) && method.desc.equals(descriptor)) {
+				return (MethodInfo) method;
+			}
+		}
+		return null;
+	}
+
+}
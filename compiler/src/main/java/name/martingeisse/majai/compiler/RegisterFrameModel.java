@@ -0,0 +1,248 @@
+package name.martingeisse.majai.compiler;
+
+import name.martingeisse.majai.compiler.assembly.AssemblyBuffer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Implements {@link CodeGenerationMode#REGISTER_ALLOCATING}. Since the JVM verifier guarantees that the operand stack
+ * depth at each instruction is statically known and the same for all paths leading to it, each stack slot can be
+ * assigned a fixed location, so no code is needed to reconcile locations at branches and labels. The lowest stack
+ * slots and local variables are mapped to callee-saved registers, so their values survive calls without further
+ * effort. Higher slots and variables are spilled to the stack frame.
+ * <p>
+ * The sp register does not move within the method body. Frame layout, relative to s0 (which is equal to sp):
+ * spilled local variables, saved ra, saved s0, saved callee-saved registers, spilled stack slots.
+ * <p>
+ * Leaf methods do not save ra. Arguments that are only read stay in their argument registers, and the remaining
+ * argument registers are used before any callee-saved register, since nothing clobbers them. Only the callee-saved
+ * registers that are actually used get saved, and if there are none and nothing is spilled, the method has no frame
+ * at all. a0 and a1 are left out since return values are moved there.
+ */
+final class RegisterFrameModel extends FrameModel {
+
+	private static final String[] STACK_REGISTERS = {"s1", "s2", "s3", "s4", "s5"};
+	private static final String[] LOCAL_REGISTERS = {"s6", "s7", "s8", "s9", "s10", "s11"};
+	private static final String[] LEAF_REGISTERS = {"a2", "a3", "a4", "a5", "a6", "a7", "s1", "s2", "s3", "s4", "s5", "s6", "s7", "s8", "s9", "s10", "s11"};
+
+	private final String[] slotRegisters;
+	private final String[] localRegisters;
+	private final List<String> savedRegisters = new ArrayList<>();
+	private final int spilledLocalCount;
+	private final int spilledSlotCount;
+	private final int[] localOffsets;
+
+	RegisterFrameModel(AssemblyBuffer out, MethodInfo methodInfo, boolean leaf) {
+		super(out, methodInfo, leaf);
+		this.slotRegisters = new String[methodInfo.maxStack];
+		this.localRegisters = new String[methodInfo.maxLocals];
+		if (leaf) {
+			List<String> available = new ArrayList<>(Arrays.asList(LEAF_REGISTERS));
+			for (int i = 0; i < getArgumentWords(); i++) {
+				available.remove("a" + i);
+			}
+			int next = 0;
+			for (int i = 0; i < slotRegisters.length && next < available.size(); i++) {
+				slotRegisters[i] = available.get(next++);
+			}
+			for (int i = 0; i < localRegisters.length; i++) {
+				if (isArgumentInRegister(i)) {
+					localRegisters[i] = "a" + i;
+				} else if (next < available.size()) {
+					localRegisters[i] = available.get(next++);
+				}
+			}
+			for (String register : available.subList(0, next)) {
+				if (register.startsWith("s")) {
+					savedRegisters.add(register);
+				}
+			}
+		} else {
+			for (int i = 0; i < slotRegisters.length && i < STACK_REGISTERS.length; i++) {
+				slotRegisters[i] = STACK_REGISTERS[i];
+				savedRegisters.add(STACK_REGISTERS[i]);
+			}
+			for (int i = 0; i < localRegisters.length && i < LOCAL_REGISTERS.length; i++) {
+				localRegisters[i] = LOCAL_REGISTERS[i];
+				savedRegisters.add(LOCAL_REGISTERS[i]);
+			}
+		}
+		this.localOffsets = new int[localRegisters.length];
+		int spilledLocalCount = 0;
+		for (int i = 0; i < localRegisters.length; i++) {
+			if (localRegisters[i] == null) {
+				localOffsets[i] = spilledLocalCount * 4;
+				spilledLocalCount++;
+			}
+		}
+		this.spilledLocalCount = spilledLocalCount;
+		int spilledSlotCount = 0;
+		for (String register : slotRegisters) {
+			if (register == null) {
+				spilledSlotCount++;
+			}
+		}
+		this.spilledSlotCount = spilledSlotCount;
+	}
+
+	private boolean isFrameNeeded() {
+		return !leaf || !savedRegisters.isEmpty() || spilledLocalCount > 0 || spilledSlotCount > 0;
+	}
+
+	@Override
+	int getReturnAddressOffset() {
+		return spilledLocalCount * 4;
+	}
+
+	private int getFramePointerOffset() {
+		return leaf ? getReturnAddressOffset() : getReturnAddressOffset() + 4;
+	}
+
+	@Override
+	String[] getSavedRegisters() {
+		return savedRegisters.toArray(new String[0]);
+	}
+
+	@Override
+	int getSavedRegisterOffset() {
+		return getFramePointerOffset() + 4;
+	}
+
+	private int getSpilledSlotOffset() {
+		return getSavedRegisterOffset() + savedRegisters.size() * 4;
+	}
+
+	private int getFrameSize() {
+		return getSpilledSlotOffset() + spilledSlotCount * 4;
+	}
+
+	@Override
+	void emitPrologue() {
+		if (isFrameNeeded()) {
+			out.instruction("addi", "sp", "sp", "-" + getFrameSize());
+			if (!leaf) {
+				out.instruction("sw", "ra", getReturnAddressOffset() + "(sp)");
+			}
+			out.instruction("sw", "s0", getFramePointerOffset() + "(sp)");
+			out.instruction("mv", "s0", "sp");
+			int offset = getSavedRegisterOffset();
+			for (String register : savedRegisters) {
+				out.instruction("sw", register, offset + "(s0)");
+				offset += 4;
+			}
+		}
+		int words = getArgumentWords();
+		for (int i = 0; i < words; i++) {
+			storeLocal(i, "a" + i);
+		}
+	}
+
+	@Override
+	void emitFrameRemoval() {
+		if (isFrameNeeded()) {
+			int offset = getSavedRegisterOffset();
+			for (String register : savedRegisters) {
+				out.instruction("lw", register, offset + "(sp)");
+				offset += 4;
+			}
+			out.instruction("lw", "s0", getFramePointerOffset() + "(sp)");
+			if (!leaf) {
+				out.instruction("lw", "ra", getReturnAddressOffset() + "(sp)");
+			}
+			out.instruction("addi", "sp", "sp", getFrameSize());
+		}
+	}
+
+//region operand stack
+
+	@Override
+	String getSlotRegister(int slot) {
+		return slotRegisters[slot];
+	}
+
+	@Override
+	int getSlotOffset(int slot) {
+		// spilled slots are always the topmost ones
+		return getSpilledSlotOffset() + (slot - (slotRegisters.length - spilledSlotCount)) * 4;
+	}
+
+	@Override
+	String popSlot(int slot, String scratch) {
+		return peekSlot(slot, 0, scratch);
+	}
+
+	@Override
+	String getSlotTarget(int slot, String scratch) {
+		String register = getSlotRegister(slot);
+		return register == null ? scratch : register;
+	}
+
+	@Override
+	void pushSlot(int slot, String register) {
+		String slotRegister = getSlotRegister(slot);
+		if (slotRegister == null) {
+			out.instruction("sw", register, getSlotOffset(slot) + "(s0)");
+		} else if (!slotRegister.equals(register)) {
+			out.instruction("mv", slotRegister, register);
+		}
+	}
+
+	@Override
+	String peekSlot(int slot, int indexFromTop, String scratch) {
+		String register = getSlotRegister(slot);
+		if (register == null) {
+			out.instruction("lw", scratch, getSlotOffset(slot) + "(s0)");
+			return scratch;
+		}
+		return register;
+	}
+
+	@Override
+	void dropSlots(int words) {
+	}
+
+//endregion
+
+//region local variables
+
+	@Override
+	String getLocalRegister(int index) {
+		return localRegisters[index];
+	}
+
+	@Override
+	int getLocalOffset(int index) {
+		return localOffsets[index];
+	}
+
+	@Override
+	String loadLocal(int index, String scratch) {
+		String register = getLocalRegister(index);
+		if (register == null) {
+			out.instruction("lw", scratch, getLocalOffset(index) + "(s0)");
+			return scratch;
+		}
+		return register;
+	}
+
+	@Override
+	String getLocalTarget(int index, String scratch) {
+		String register = getLocalRegister(index);
+		return register == null ? scratch : register;
+	}
+
+	@Override
+	void storeLocal(int index, String register) {
+		String localRegister = getLocalRegister(index);
+		if (localRegister == null) {
+			out.instruction("sw", register, getLocalOffset(index) + "(s0)");
+		} else if (!localRegister.equals(register)) {
+			out.instruction("mv", localRegister, register);
+		}
+	}
+
+//endregion
+
+}
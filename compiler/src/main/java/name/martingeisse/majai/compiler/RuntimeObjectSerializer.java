@@ -1,7 +1,6 @@
 package name.martingeisse.majai.compiler;
 
 import name.martingeisse.majai.compiler.runtime.GenericRuntimeObject;
-import name.martingeisse.majai.compiler.util.NotYetImplementedException;
 import name.martingeisse.majai.vm.VmObjectMetadata;
 import org.objectweb.asm.tree.FieldNode;
 
@@ -11,6 +10,7 @@ import java.lang.reflect.Modifier;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
 import java.util.function.Function;
 
 public abstract class RuntimeObjectSerializer {
@@ -78,11 +78,9 @@ public abstract class RuntimeObjectSerializer {
 
 		} else if (o instanceof Object[]) {
 
-			if (o.getClass() != Object[].class) {
-				throw new NotYetImplementedException("serializing object arrays with different run-time type than Object[] not yet implemented");
-			}
+			// the array type must have been resolved before serialization starts
 			Object[] array = (Object[]) o;
-			out.println("\t.word " + getVtableLabel("[Ljava.lang.Object;"));
+			out.println("\t.word " + getVtableLabel(NameUtil.normalizeClassName(o.getClass().getName())));
 			serializeArray(array.length, ".word", i -> array[i] == null ? "0" : getLabel(array[i]));
 
 		} else if (o instanceof GenericRuntimeObject) {
@@ -95,10 +93,10 @@ public abstract class RuntimeObjectSerializer {
 			r.put("characters", ((String) o).toCharArray());
 			serializeGenericRuntimeObject(r);
 
-		} else if (o.getClass().getName().startsWith("name.martingeisse.majai")) {
+		} else if (o.getClass().getName().startsWith("name.martingeisse.majai") || BuildTimeInitializer.isImageClass(o.getClass())) {
 
-			// unlike classes from the boot classpath, our own classes are guaranteed to have the same fields
-			// for both the host and runtime versions
+			// unlike classes from the boot classpath, our own classes and those loaded from the class files of the
+			// image are guaranteed to have the same fields for both the host and runtime versions
 			try {
 				GenericRuntimeObject gro = new GenericRuntimeObject(o.getClass().getName());
 				Class<?> currentClass = o.getClass();
@@ -139,8 +137,15 @@ public abstract class RuntimeObjectSerializer {
 		ClassInfo classInfo = context.resolveClass(o.getClassName());
 		VmObjectMetadata objectMetadata = (VmObjectMetadata)classInfo.runtimeMetadataContributor;
 		o.put("vtable", objectMetadata.getVtable());
+		serializeFields(getSortedFields(classInfo), o.getFieldValues(), classInfo.fieldAllocator.getWordCount() * 4);
+
+	}
 
-		List<FieldInfo> fields = getSortedFields(classInfo);
+	/**
+	 * Serializes the values of the specified fields, which must be sorted by their storage offset, and fills up to
+	 * the specified size in bytes. Values of primitive fields are boxed, and fields without a value are not allowed.
+	 */
+	public void serializeFields(List<FieldInfo> fields, Map<String, Object> values, int size) {
 		int position = 0;
 		for (FieldInfo field : fields) {
 			int displacement = field.storageOffset - position;
@@ -150,16 +155,62 @@ public abstract class RuntimeObjectSerializer {
 				out.println("\t.fill " + displacement + ", 1, 0");
 				position = field.storageOffset;
 			}
+			Object value = values.get(field.name);
 			if (field.desc.startsWith("[") || field.desc.startsWith("L")) {
-				out.println("\t.word " + getLabel(o.getFieldValues().get(field.name)));
+				out.println("\t.word " + (value == null ? "0" : getLabel(value)));
 				position += 4;
 			} else switch (field.desc) {
 
+				case "Z":
+					out.println("\t.byte " + ((Boolean) value ? "1" : "0"));
+					position += 1;
+					break;
+
+				case "B":
+					out.println("\t.byte " + (((Byte) value) & 0xff));
+					position += 1;
+					break;
+
+				case "S":
+					out.println("\t.short " + (((Short) value) & 0xffff));
+					position += 2;
+					break;
+
+				case "C":
+					out.println("\t.short " + (int) (Character) value);
+					position += 2;
+					break;
+
+				case "I":
+					out.println("\t.word " + value);
+					position += 4;
+					break;
+
+				case "F":
+					out.println("\t.float " + value);
+					position += 4;
+					break;
+
+				case "J":
+					out.println("\t.quad " + value);
+					position += 8;
+					break;
+
+				case "D":
+					out.println("\t.double " + value);
+					position += 8;
+					break;
+
 				default:
 					throw new RuntimeException("cannot serialize field with descriptor " + field.desc);
 
 			}
 		}
+
+		// fill up to the full size, so the garbage collector can walk the serialized objects
+		if (position < size) {
+			out.println("\t.fill " + (size - position) + ", 1, 0");
+		}
 	}
 
 	private List<FieldInfo> getSortedFields(ClassInfo classInfo) {
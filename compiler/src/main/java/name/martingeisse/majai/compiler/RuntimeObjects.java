@@ -1,32 +1,85 @@
 package name.martingeisse.majai.compiler;
 
+import com.google.common.hash.Hashing;
 import name.martingeisse.majai.compiler.runtime.LabelReference;
 import name.martingeisse.majai.vm.VmObjectMetadata;
+import name.martingeisse.majai.vm.VmObjectMetadataContributor;
 
 import java.io.PrintWriter;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
+import java.util.*;
 
 /**
- *
+ * Keeps track of the objects that must be serialized into the image and assigns labels to them.
+ * <p>
+ * Objects that are referred to by generated code (strings, metadata and vtables) get labels derived from their
+ * contents, so the label of such an object does not depend on the order in which classes are compiled. All other
+ * objects are only discovered while serializing and are numbered in the order they are found. Since serialization
+ * happens in label order, the whole output is deterministic.
+ * <p>
+ * The objects are emitted back to back between the labels runtimeObjectsStart and runtimeObjectsEnd. Compiled code
+ * may store references to heap objects into them, so the garbage collector walks them as roots.
+ * <p>
+ * {@link #getLabel(Object)} may be called from several threads at once.
  */
 public final class RuntimeObjects {
 
 	private final Context context;
-	private final Map<Object, String> labels = new HashMap<>();
+	private final Map<Object, String> labels = new IdentityHashMap<>();
+	private final Map<Object, String> stringLabels = new HashMap<>();
+	private final Set<String> usedLabels = new HashSet<>();
+	private final List<Object> unemittedObjects = new ArrayList<>();
+	private int anonymousObjectCount = 0;
 
 	public RuntimeObjects(Context context) {
 		this.context = context;
 	}
 
-	public String getLabel(Object o) {
+	public synchronized String getLabel(Object o) {
 		if (o instanceof LabelReference) {
 			return ((LabelReference) o).getLabel();
-		} else {
-			return labels.computeIfAbsent(o, o2 -> "object" + labels.size());
 		}
+		String label = getLabelMap(o).get(o);
+		if (label == null) {
+			label = deriveLabel(o);
+			if (!usedLabels.add(label)) {
+				int suffix = 2;
+				while (!usedLabels.add(label + "_" + suffix)) {
+					suffix++;
+				}
+				label = label + "_" + suffix;
+			}
+			getLabelMap(o).put(o, label);
+			unemittedObjects.add(o);
+		}
+		return label;
+	}
+
+	/**
+	 * Returns the labels of strings by their contents, and those of other objects by identity. Mutable objects
+	 * must be kept apart even if they are equal, while equal strings can share a label.
+	 */
+	private Map<Object, String> getLabelMap(Object o) {
+		return (o instanceof String ? stringLabels : labels);
+	}
+
+	private String deriveLabel(Object o) {
+		if (o instanceof String) {
+			return "string_" + Hashing.murmur3_128().hashUnencodedChars((String) o);
+		}
+		if (o instanceof VmObjectMetadataContributor) {
+			return "metadata_" + NameUtil.mangleTypeName(((VmObjectMetadataContributor) o).getName());
+		}
+		if (o instanceof Object[]) {
+			Object[] array = (Object[]) o;
+			if (array.length > LayoutConstants.VTABLE_METADATA_INDEX && array[LayoutConstants.VTABLE_METADATA_INDEX] instanceof VmObjectMetadata) {
+				VmObjectMetadata metadata = (VmObjectMetadata) array[LayoutConstants.VTABLE_METADATA_INDEX];
+				if (metadata.getVtable() == array) {
+					return "vtable_" + NameUtil.mangleTypeName(metadata.getName());
+				}
+			}
+		}
+		anonymousObjectCount++;
+		return "object" + anonymousObjectCount;
 	}
 
 	public void emit(PrintWriter out) {
@@ -35,7 +88,37 @@ public final class RuntimeObjects {
 		out.println("//");
 		out.println("");
 		out.println(".data");
+		out.println(".align 2");
+		out.println("runtimeObjectsStart:");
 
+		RuntimeObjectSerializer serializer = createSerializer(out);
+		// each batch contains the objects that have been found while serializing the previous one
+		while (!unemittedObjects.isEmpty()) {
+			List<Object> batch = new ArrayList<>(unemittedObjects);
+			unemittedObjects.clear();
+			batch.sort(Comparator.comparing(o -> getLabelMap(o).get(o)));
+			for (Object o : batch) {
+				out.println(getLabelMap(o).get(o) + ":");
+				if (!(o instanceof LabelReference)) {
+					serializer.serialize(o);
+				}
+			}
+		}
+		out.println("runtimeObjectsEnd:");
+
+		out.println();
+	}
+
+	/**
+	 * Serializes the values of the specified fields, which must be sorted by their storage offset, to the specified
+	 * output, e.g. for static fields. The objects they refer to get emitted by {@link #emit(PrintWriter)}, so this
+	 * must be called before that. See {@link RuntimeObjectSerializer#serializeFields}.
+	 */
+	public void emitFields(PrintWriter out, List<FieldInfo> fields, Map<String, Object> values, int size) {
+		createSerializer(out).serializeFields(fields, values, size);
+	}
+
+	private RuntimeObjectSerializer createSerializer(PrintWriter out) {
 		RuntimeObjectSerializer.Context serializerContext = new RuntimeObjectSerializer.Context() {
 
 			@Override
@@ -49,27 +132,12 @@ public final class RuntimeObjects {
 			}
 
 		};
-		RuntimeObjectSerializer serializer = new RuntimeObjectSerializer(serializerContext, out) {
+		return new RuntimeObjectSerializer(serializerContext, out) {
 			@Override
 			protected String getLabel(Object o) {
 				return RuntimeObjects.this.getLabel(o);
 			}
 		};
-		Set<Object> emittedObjects = new HashSet<>();
-		while (emittedObjects.size() < labels.size()) {
-			Map<Object, String> batch = new HashMap<>(labels);
-			for (Map.Entry<Object, String> entry : batch.entrySet()) {
-				if (!emittedObjects.add(entry.getKey())) {
-					continue;
-				}
-				out.println(entry.getValue() + ":");
-				if (!(entry.getKey() instanceof LabelReference)) {
-					serializer.serialize(entry.getKey());
-				}
-			}
-		}
-
-		out.println();
 	}
 
 	public interface Context {
@@ -0,0 +1,117 @@
+package name.martingeisse.majai.compiler;
+
+import org.apache.commons.io.output.NullWriter;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.io.IOException;
+
+/**
+ * Measures how the compile time grows with the size of the program, to find code in the compiler that is
+ * superlinear in the number of instructions, methods or runtime objects. Each round compiles a generated class
+ * that is twice as large as that of the previous round, so the time per unit of size should stay about the same.
+ * The generated class has a method with a branch per unit of size, an instance method per unit of size that is
+ * called virtually and loads its own string constant, and a test method that calls all of them.
+ * <p>
+ * Arguments: the size of the first round (default 1000) and the number of rounds (default 4). The size must not
+ * exceed about 8000, since larger methods do not fit into a class file. Like {@link Main}, this must be run in the
+ * project folder so the jboot and vm classes can be found.
+ */
+public class ScalingBenchmark {
+
+	private static final String CLASS_NAME = "name/martingeisse/majai/compiler/ScalingBenchmark$Generated";
+
+	public static void main(String[] args) throws Exception {
+		int size = (args.length > 0 ? Integer.parseInt(args[0]) : 1000);
+		int rounds = (args.length > 1 ? Integer.parseInt(args[1]) : 4);
+
+		// warm up the JIT so the first round is not slower than it should be
+		compile(size);
+
+		for (int i = 0; i < rounds; i++) {
+			long time = compile(size);
+			System.out.println("size " + size + ": " + (time / 1_000_000) + " ms, " + (time / 1000 / size) + " us per unit");
+			size *= 2;
+		}
+	}
+
+	private static long compile(int size) throws IOException {
+		byte[] classFile = generateClass(size);
+		try (ClassFileLoader classFileLoader = new ClassFileLoader() {
+			@Override
+			public byte[] getClassFile(String className) throws IOException {
+				return (NameUtil.normalizeClassName(className).equals(CLASS_NAME) ? classFile : super.getClassFile(className));
+			}
+		}) {
+			long start = System.nanoTime();
+			new Compiler(classFileLoader, CLASS_NAME, new NullWriter()).compile();
+			return System.nanoTime() - start;
+		}
+	}
+
+	private static byte[] generateClass(int size) {
+		ClassWriter classWriter = new ClassWriter(ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES);
+		classWriter.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, CLASS_NAME, null, "java/lang/Object", null);
+
+		MethodVisitor constructor = classWriter.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+		constructor.visitCode();
+		constructor.visitVarInsn(Opcodes.ALOAD, 0);
+		constructor.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+		constructor.visitInsn(Opcodes.RETURN);
+		constructor.visitMaxs(0, 0);
+		constructor.visitEnd();
+
+		// many labels in a single method
+		MethodVisitor branches = classWriter.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "branches", "(I)I", null, null);
+		branches.visitCode();
+		for (int i = 0; i < size; i++) {
+			Label label = new Label();
+			branches.visitVarInsn(Opcodes.ILOAD, 0);
+			branches.visitJumpInsn(Opcodes.IFNE, label);
+			branches.visitIincInsn(0, 1);
+			branches.visitLabel(label);
+		}
+		branches.visitVarInsn(Opcodes.ILOAD, 0);
+		branches.visitInsn(Opcodes.IRETURN);
+		branches.visitMaxs(0, 0);
+		branches.visitEnd();
+
+		// many vtable entries and string constants
+		for (int i = 0; i < size; i++) {
+			MethodVisitor method = classWriter.visitMethod(Opcodes.ACC_PUBLIC, "method" + i, "(I)I", null, null);
+			method.visitCode();
+			method.visitLdcInsn("string" + i);
+			method.visitInsn(Opcodes.POP);
+			method.visitVarInsn(Opcodes.ILOAD, 1);
+			method.visitInsn(Opcodes.IRETURN);
+			method.visitMaxs(0, 0);
+			method.visitEnd();
+		}
+
+		// many call sites in a single method, which also make the other methods reachable
+		MethodVisitor test = classWriter.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "test", "()V", null, null);
+		test.visitCode();
+		test.visitTypeInsn(Opcodes.NEW, CLASS_NAME);
+		test.visitInsn(Opcodes.DUP);
+		test.visitMethodInsn(Opcodes.INVOKESPECIAL, CLASS_NAME, "<init>", "()V", false);
+		test.visitVarInsn(Opcodes.ASTORE, 0);
+		for (int i = 0; i < size; i++) {
+			test.visitVarInsn(Opcodes.ALOAD, 0);
+			test.visitIntInsn(Opcodes.SIPUSH, i);
+			test.visitMethodInsn(Opcodes.INVOKEVIRTUAL, CLASS_NAME, "method" + i, "(I)I", false);
+			test.visitInsn(Opcodes.POP);
+		}
+		test.visitInsn(Opcodes.ICONST_0);
+		test.visitMethodInsn(Opcodes.INVOKESTATIC, CLASS_NAME, "branches", "(I)I", false);
+		test.visitInsn(Opcodes.POP);
+		test.visitInsn(Opcodes.RETURN);
+		test.visitMaxs(0, 0);
+		test.visitEnd();
+
+		classWriter.visitEnd();
+		return classWriter.toByteArray();
+	}
+
+}
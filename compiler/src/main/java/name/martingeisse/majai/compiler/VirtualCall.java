@@ -0,0 +1,25 @@
+package name.martingeisse.majai.compiler;
+
+/**
+ * The target of an INVOKEVIRTUAL instruction, as named by the instruction. All call sites with the same target call
+ * a common label. That label is defined once the whole program is known: as an alias for the method if class
+ * hierarchy analysis finds only a single method that can be called, and as a stub that dispatches through the
+ * vtable otherwise.
+ */
+final class VirtualCall {
+
+	final String owner;
+	final String name;
+	final String descriptor;
+
+	VirtualCall(String owner, String name, String descriptor) {
+		this.owner = owner;
+		this.name = name;
+		this.descriptor = descriptor;
+	}
+
+	String getLabel() {
+		return NameUtil.mangleMethodName(owner, name, descriptor) + "_virtual";
+	}
+
+}
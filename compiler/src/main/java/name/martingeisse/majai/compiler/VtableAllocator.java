@@ -2,10 +2,13 @@ package name.martingeisse.majai.compiler;
 
 import name.martingeisse.majai.compiler.runtime.LabelReference;
 import name.martingeisse.majai.vm.VmObjectMetadata;
+import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.tree.MethodNode;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Allocates the position of methods in a vtable, either from scratch (for java.lang.Object) or based on a parent
@@ -15,16 +18,21 @@ import java.util.List;
  * An allocator can be "sealed" to protect against further changes. Only a sealed allocator may be used as the parent
  * of a child allocator since the intended use case of this class would break method overriding if an overridden
  * method is added to the parent after creating a child allocator.
+ * <p>
+ * The vtable index of each key is kept in a hash map, so allocating and finding methods take constant time even for
+ * classes with many methods.
  */
 public final class VtableAllocator {
 
 	private final List<String> entryKeys;
 	private final List<MethodInfo> entryMethods;
+	private final Map<String, Integer> keyIndices;
 	private boolean sealed;
 
 	public VtableAllocator() {
 		entryKeys = new ArrayList<>();
 		entryMethods = new ArrayList<>();
+		keyIndices = new HashMap<>();
 		sealed = false;
 		for (int i = 0; i < LayoutConstants.VTABLE_FIXED_ENTRY_COUNT; i++) {
 			entryKeys.add("");
@@ -38,6 +46,7 @@ public final class VtableAllocator {
 		}
 		entryKeys = new ArrayList<>(parent.entryKeys);
 		entryMethods = new ArrayList<>(parent.entryMethods);
+		keyIndices = new HashMap<>(parent.keyIndices);
 		this.sealed = false;
 	}
 
@@ -48,23 +57,31 @@ public final class VtableAllocator {
 	public int allocateMethod(MethodInfo method) {
 		checkNotSealed();
 		String key = getKey(method);
-		int index = entryKeys.indexOf(key);
-		if (index < 0) {
+		Integer index = keyIndices.get(key);
+		if (index == null) {
 			index = entryKeys.size();
 			entryKeys.add(key);
 			entryMethods.add(method);
+			keyIndices.put(key, index);
 		} else {
 			entryMethods.set(index, method);
 		}
 		return index;
 	}
 
-	private static String getKey(MethodNode method) {
-		int index = method.desc.indexOf(')');
+	/**
+	 * Returns the key that identifies a method for overriding: its name and parameter types, but not its return type.
+	 */
+	static String getKey(MethodNode method) {
+		return getKey(method.name, method.desc);
+	}
+
+	static String getKey(String name, String desc) {
+		int index = desc.indexOf(')');
 		if (index < 0) {
-			throw new RuntimeException("invalid method descriptor: " + method.desc);
+			throw new RuntimeException("invalid method descriptor: " + desc);
 		}
-		return method.name + method.desc.substring(0, index + 1);
+		return name + desc.substring(0, index + 1);
 	}
 
 	public void seal() {
@@ -84,22 +101,41 @@ public final class VtableAllocator {
 		}
 		Object[] vtable = new Object[entryMethods.size()];
 		vtable[LayoutConstants.VTABLE_METADATA_INDEX] = parentMetadata;
-		for (int i = 1; i < entryMethods.size(); i++) {
-			vtable[i] = new LabelReference(NameUtil.mangleMethodName(entryMethods.get(i)));
+		for (int i = LayoutConstants.VTABLE_FIXED_ENTRY_COUNT; i < entryMethods.size(); i++) {
+			MethodInfo method = entryMethods.get(i);
+			if ((method.access & Opcodes.ACC_ABSTRACT) == 0) {
+				vtable[i] = new LabelReference(NameUtil.mangleMethodName(method));
+			}
 		}
 		return vtable;
 	}
 
-	public MethodInfo findByName(String name) {
+	public MethodInfo getMethod(int index) {
+		return entryMethods.get(index);
+	}
+
+	/**
+	 * Returns the method with the specified key (see {@link #getKey(MethodNode)}), or null if there is none. Since
+	 * the key contains the parameter types, this finds the right method among overloads with the same name.
+	 */
+	public MethodInfo findByKey(String key) {
 		if (!sealed) {
-			throw new IllegalArgumentException("cannot use an unsealed vtable allocator to find a method by name");
+			throw new IllegalArgumentException("cannot use an unsealed vtable allocator to find a method by key");
 		}
-		for (MethodInfo methodInfo : entryMethods) {
-			if (methodInfo != null && methodInfo.name.equals(name)) {
-				return methodInfo;
-			}
+		Integer index = keyIndices.get(key);
+		return (index == null ? null : entryMethods.get(index));
+	}
+
+	/**
+	 * Like {@link #findByKey(String)}, but for the name and descriptor of a method, and throws an exception if there
+	 * is no such method.
+	 */
+	public MethodInfo getMethod(String name, String descriptor) {
+		MethodInfo method = findByKey(getKey(name, descriptor));
+		if (method == null) {
+			throw new RuntimeException("method not found: " + name + descriptor);
 		}
-		throw new RuntimeException("method not found: " + name);
+		return method;
 	}
 
 }
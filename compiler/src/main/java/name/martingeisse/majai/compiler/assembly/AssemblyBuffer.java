@@ -0,0 +1,32 @@
+package name.martingeisse.majai.compiler.assembly;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects generated assembly code in memory so it can be optimized before being printed.
+ */
+public final class AssemblyBuffer {
+
+	private final List<AssemblyLine> lines = new ArrayList<>();
+
+	public void instruction(String mnemonic, Object... operands) {
+		lines.add(new Instruction(mnemonic, operands));
+	}
+
+	public void label(String name) {
+		lines.add(new LabelDefinition(name));
+	}
+
+	public List<AssemblyLine> getLines() {
+		return lines;
+	}
+
+	public void print(PrintWriter out) {
+		for (AssemblyLine line : lines) {
+			line.print(out);
+		}
+	}
+
+}
@@ -0,0 +1,15 @@
+package name.martingeisse.majai.compiler.assembly;
+
+import java.io.PrintWriter;
+
+/**
+ * Base class for the lines of an {@link AssemblyBuffer}.
+ */
+public abstract class AssemblyLine {
+
+	AssemblyLine() {
+	}
+
+	public abstract void print(PrintWriter out);
+
+}
@@ -0,0 +1,112 @@
+package name.martingeisse.majai.compiler.assembly;
+
+import com.google.common.collect.ImmutableMap;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Replaces conditional branches whose target may be out of their range of +/-4 kB by an inverted branch that skips
+ * an unconditional jump to the target, which has a range of +/-1 MB. Only branches to labels in the same code are
+ * considered; the distance is estimated using the largest size each (pseudo-)instruction can expand to, which is
+ * repeated until no more branches need to be replaced since each replacement makes the code larger.
+ * <p>
+ * This must run after the {@link PeepholeOptimizer}, since the labels it adds would not respect the convention that
+ * temporary registers are dead at labels.
+ */
+public final class BranchRelaxer {
+
+	/**
+	 * The largest distance in bytes that is considered to be in range, a bit less than the actual range.
+	 */
+	private static final int MAXIMUM_BRANCH_DISTANCE = 4000;
+
+	private static final ImmutableMap<String, String> INVERTED_BRANCHES;
+
+	static {
+		ImmutableMap.Builder<String, String> builder = ImmutableMap.builder();
+		addInvertedPair(builder, "beq", "bne");
+		addInvertedPair(builder, "blt", "bge");
+		addInvertedPair(builder, "bltu", "bgeu");
+		addInvertedPair(builder, "bgt", "ble");
+		addInvertedPair(builder, "bgtu", "bleu");
+		INVERTED_BRANCHES = builder.build();
+	}
+
+	private static void addInvertedPair(ImmutableMap.Builder<String, String> builder, String branch1, String branch2) {
+		builder.put(branch1, branch2);
+		builder.put(branch2, branch1);
+	}
+
+	private final List<AssemblyLine> lines;
+	private final String labelPrefix;
+	private int labelCount = 0;
+
+	/**
+	 * The label prefix is used to build unique names for the labels that get added.
+	 */
+	public BranchRelaxer(List<AssemblyLine> lines, String labelPrefix) {
+		this.lines = lines;
+		this.labelPrefix = labelPrefix;
+	}
+
+	public void relax() {
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			int[] positions = new int[lines.size()];
+			Map<String, Integer> labelPositions = new HashMap<>();
+			int position = 0;
+			for (int i = 0; i < lines.size(); i++) {
+				positions[i] = position;
+				AssemblyLine line = lines.get(i);
+				if (line instanceof LabelDefinition) {
+					labelPositions.put(((LabelDefinition) line).getName(), position);
+				} else {
+					position += getMaximumSize((Instruction) line);
+				}
+			}
+			for (int i = lines.size() - 1; i >= 0; i--) {
+				AssemblyLine line = lines.get(i);
+				if (line instanceof Instruction && InstructionKind.of((Instruction) line) == InstructionKind.BRANCH) {
+					Instruction branch = (Instruction) line;
+					Integer target = labelPositions.get(branch.getOperand(2));
+					if (target != null && Math.abs(target - positions[i]) > MAXIMUM_BRANCH_DISTANCE) {
+						String skipLabel = labelPrefix + "__branchRelaxation" + labelCount;
+						labelCount++;
+						lines.set(i, branch.withMnemonic(INVERTED_BRANCHES.get(branch.getMnemonic())).withOperand(2, skipLabel));
+						lines.add(i + 1, new Instruction("j", branch.getOperand(2)));
+						lines.add(i + 2, new LabelDefinition(skipLabel));
+						changed = true;
+					}
+				}
+			}
+		}
+	}
+
+	private static int getMaximumSize(Instruction instruction) {
+		if (instruction.isDirective()) {
+			return 0;
+		}
+		switch (instruction.getMnemonic()) {
+
+			case "li":
+			case "la":
+			case "call":
+			case "tail":
+				return 8;
+
+			default: {
+				// loads and stores can use a symbol instead of a register-relative address
+				InstructionKind kind = InstructionKind.of(instruction);
+				if ((kind == InstructionKind.LOAD || kind == InstructionKind.STORE) && !instruction.getOperand(1).contains("(")) {
+					return 8;
+				}
+				return 4;
+			}
+
+		}
+	}
+
+}
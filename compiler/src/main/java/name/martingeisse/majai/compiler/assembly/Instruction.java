@@ -0,0 +1,79 @@
+package name.martingeisse.majai.compiler.assembly;
+
+import com.google.common.collect.ImmutableList;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A single machine instruction, pseudo-instruction or assembler directive. Directives are distinguished by their
+ * mnemonic, which starts with a dot. Operands are kept in the textual form that the assembler expects, e.g. "t0" for
+ * a register or "4(sp)" for an address.
+ * <p>
+ * Instances are immutable; the with*() methods return modified copies.
+ */
+public final class Instruction extends AssemblyLine {
+
+	private final String mnemonic;
+	private final ImmutableList<String> operands;
+
+	public Instruction(String mnemonic, Object... operands) {
+		this.mnemonic = mnemonic;
+		ImmutableList.Builder<String> builder = ImmutableList.builder();
+		for (Object operand : operands) {
+			builder.add(operand.toString());
+		}
+		this.operands = builder.build();
+	}
+
+	public Instruction(String mnemonic, List<String> operands) {
+		this.mnemonic = mnemonic;
+		this.operands = ImmutableList.copyOf(operands);
+	}
+
+	public String getMnemonic() {
+		return mnemonic;
+	}
+
+	public ImmutableList<String> getOperands() {
+		return operands;
+	}
+
+	public int getOperandCount() {
+		return operands.size();
+	}
+
+	public String getOperand(int index) {
+		return operands.get(index);
+	}
+
+	public boolean isDirective() {
+		return mnemonic.startsWith(".");
+	}
+
+	public Instruction withMnemonic(String mnemonic) {
+		return new Instruction(mnemonic, operands);
+	}
+
+	public Instruction withOperand(int index, String operand) {
+		List<String> operands = new ArrayList<>(this.operands);
+		operands.set(index, operand);
+		return new Instruction(mnemonic, operands);
+	}
+
+	@Override
+	public void print(PrintWriter out) {
+		out.println(toString());
+	}
+
+	@Override
+	public String toString() {
+		if (operands.isEmpty()) {
+			return '\t' + mnemonic;
+		} else {
+			return '\t' + mnemonic + ' ' + String.join(", ", operands);
+		}
+	}
+
+}
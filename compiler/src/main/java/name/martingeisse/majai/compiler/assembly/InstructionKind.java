@@ -0,0 +1,116 @@
+package name.martingeisse.majai.compiler.assembly;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Classifies the instructions generated by the compiler by their operand format. This is the information needed to
+ * find out which registers an instruction reads and writes.
+ */
+public enum InstructionKind {
+
+	/**
+	 * rd, rs1, rs2
+	 */
+	REGISTER_OPERATION,
+
+	/**
+	 * rd, rs1, immediate
+	 */
+	IMMEDIATE_OPERATION,
+
+	/**
+	 * rd, rs
+	 */
+	UNARY_OPERATION,
+
+	/**
+	 * rd, constant or symbol
+	 */
+	LOAD_CONSTANT,
+
+	/**
+	 * rd, offset(rs) -- or rd, symbol
+	 */
+	LOAD,
+
+	/**
+	 * rs2, offset(rs1) -- or rs2, symbol, rt
+	 */
+	STORE,
+
+	/**
+	 * rs1, rs2, label
+	 */
+	BRANCH,
+
+	/**
+	 * label
+	 */
+	JUMP,
+
+	/**
+	 * Any kind of subroutine call. Calls follow the standard calling convention.
+	 */
+	CALL,
+
+	/**
+	 * Return from subroutine.
+	 */
+	RETURN,
+
+	/**
+	 * Anything else, including directives. Nothing is known about these instructions.
+	 */
+	UNKNOWN;
+
+	private static final ImmutableMap<String, InstructionKind> KINDS;
+
+	static {
+		ImmutableMap.Builder<String, InstructionKind> builder = ImmutableMap.builder();
+		for (String mnemonic : new String[]{"add", "sub", "mul", "mulh", "mulhu", "mulhsu", "div", "divu", "rem", "remu",
+			"and", "or", "xor", "sll", "srl", "sra", "slt", "sltu"}) {
+			builder.put(mnemonic, REGISTER_OPERATION);
+		}
+		for (String mnemonic : new String[]{"addi", "andi", "ori", "xori", "slli", "srli", "srai", "slti", "sltiu"}) {
+			builder.put(mnemonic, IMMEDIATE_OPERATION);
+		}
+		for (String mnemonic : new String[]{"mv", "neg", "not", "seqz", "snez", "sltz", "sgtz"}) {
+			builder.put(mnemonic, UNARY_OPERATION);
+		}
+		for (String mnemonic : new String[]{"li", "la", "lui", "auipc"}) {
+			builder.put(mnemonic, LOAD_CONSTANT);
+		}
+		for (String mnemonic : new String[]{"lb", "lbu", "lh", "lhu", "lw"}) {
+			builder.put(mnemonic, LOAD);
+		}
+		for (String mnemonic : new String[]{"sb", "sh", "sw"}) {
+			builder.put(mnemonic, STORE);
+		}
+		for (String mnemonic : new String[]{"beq", "bne", "blt", "bge", "bltu", "bgeu", "bgt", "ble", "bgtu", "bleu"}) {
+			builder.put(mnemonic, BRANCH);
+		}
+		builder.put("j", JUMP);
+		builder.put("call", CALL);
+		builder.put("jal", CALL);
+		builder.put("jalr", CALL);
+		builder.put("ret", RETURN);
+		KINDS = builder.build();
+	}
+
+	public static InstructionKind of(Instruction instruction) {
+		return KINDS.getOrDefault(instruction.getMnemonic(), UNKNOWN);
+	}
+
+	/**
+	 * Returns true if this kind writes a single destination register, given as the first operand, and has no other
+	 * effect.
+	 */
+	public boolean isPureDefinition() {
+		return this == REGISTER_OPERATION || this == IMMEDIATE_OPERATION || this == UNARY_OPERATION || this == LOAD_CONSTANT;
+	}
+
+	public boolean isControlTransfer() {
+		return this == BRANCH || this == JUMP || this == CALL || this == RETURN;
+	}
+
+}
@@ -0,0 +1,172 @@
+package name.martingeisse.majai.compiler.assembly;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Helper methods to find out which registers an instruction reads and writes, based on its {@link InstructionKind}.
+ */
+public final class InstructionSemantics {
+
+	private static final Pattern REGISTER_PATTERN = Pattern.compile("x0|zero|ra|sp|gp|tp|t[0-6]|s[0-9]|s1[01]|a[0-7]");
+	private static final Pattern ADDRESS_PATTERN = Pattern.compile("(-?[0-9]+)\\((" + REGISTER_PATTERN + ")\\)");
+
+	// prevent instantiation
+	private InstructionSemantics() {
+	}
+
+	public static boolean isRegister(String operand) {
+		return REGISTER_PATTERN.matcher(operand).matches();
+	}
+
+	/**
+	 * Temporary registers are assumed to be dead at labels and control transfers. Code generators must not keep
+	 * values in these registers beyond such points.
+	 */
+	public static boolean isTemporary(String register) {
+		return register.length() == 2 && register.charAt(0) == 't' && register.charAt(1) >= '0' && register.charAt(1) <= '6';
+	}
+
+	/**
+	 * Returns the base register of an address operand like "4(sp)", or null if the operand is not of that form (e.g.
+	 * a symbol).
+	 */
+	public static String getAddressBase(String operand) {
+		Matcher matcher = ADDRESS_PATTERN.matcher(operand);
+		return matcher.matches() ? matcher.group(2) : null;
+	}
+
+	/**
+	 * Returns the offset of an address operand like "4(sp)". The operand must be of that form.
+	 */
+	public static int getAddressOffset(String operand) {
+		Matcher matcher = ADDRESS_PATTERN.matcher(operand);
+		if (!matcher.matches()) {
+			throw new IllegalArgumentException("not a register-relative address: " + operand);
+		}
+		return Integer.parseInt(matcher.group(1));
+	}
+
+	public static String buildAddress(int offset, String base) {
+		return offset + "(" + base + ")";
+	}
+
+	/**
+	 * Returns the register written by the specified instruction, or null if none. Calls are not considered to write a
+	 * register here even though they clobber many registers.
+	 */
+	public static String getDestination(Instruction instruction) {
+		switch (InstructionKind.of(instruction)) {
+
+			case REGISTER_OPERATION:
+			case IMMEDIATE_OPERATION:
+			case UNARY_OPERATION:
+			case LOAD_CONSTANT:
+			case LOAD:
+				return instruction.getOperand(0);
+
+			case STORE:
+				return instruction.getOperandCount() > 2 ? instruction.getOperand(2) : null;
+
+			default:
+				return null;
+
+		}
+	}
+
+	/**
+	 * Returns the indices of all operands that name a register read by the specified instruction. Register bases of
+	 * address operands are not included; see {@link #getAddressOperandIndex(Instruction)}.
+	 */
+	public static List<Integer> getSourceOperandIndices(Instruction instruction) {
+		List<Integer> result = new ArrayList<>();
+		switch (InstructionKind.of(instruction)) {
+
+			case REGISTER_OPERATION:
+				result.add(1);
+				result.add(2);
+				break;
+
+			case IMMEDIATE_OPERATION:
+			case UNARY_OPERATION:
+				result.add(1);
+				break;
+
+			case STORE:
+				result.add(0);
+				break;
+
+			case BRANCH:
+				result.add(0);
+				result.add(1);
+				break;
+
+			case CALL:
+				for (int i = 0; i < instruction.getOperandCount(); i++) {
+					if (isRegister(instruction.getOperand(i))) {
+						result.add(i);
+					}
+				}
+				break;
+
+			default:
+				break;
+
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the index of the register-relative address operand of a load or store, or -1 if there is none.
+	 */
+	public static int getAddressOperandIndex(Instruction instruction) {
+		InstructionKind kind = InstructionKind.of(instruction);
+		if ((kind == InstructionKind.LOAD || kind == InstructionKind.STORE) && getAddressBase(instruction.getOperand(1)) != null) {
+			return 1;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns true if the specified instruction reads the specified register, either as a normal operand or as the
+	 * base of an address.
+	 */
+	public static boolean reads(Instruction instruction, String register) {
+		for (int index : getSourceOperandIndices(instruction)) {
+			if (instruction.getOperand(index).equals(register)) {
+				return true;
+			}
+		}
+		int addressIndex = getAddressOperandIndex(instruction);
+		return addressIndex >= 0 && register.equals(getAddressBase(instruction.getOperand(addressIndex)));
+	}
+
+	/**
+	 * Returns true if the specified instruction reads or writes the specified register in any way.
+	 */
+	public static boolean references(Instruction instruction, String register) {
+		return reads(instruction, register) || register.equals(getDestination(instruction));
+	}
+
+	/**
+	 * Replaces all reads of a register by reads of another register, including address bases.
+	 */
+	public static Instruction replaceSource(Instruction instruction, String oldRegister, String newRegister) {
+		for (int index : getSourceOperandIndices(instruction)) {
+			if (instruction.getOperand(index).equals(oldRegister)) {
+				instruction = instruction.withOperand(index, newRegister);
+			}
+		}
+		int addressIndex = getAddressOperandIndex(instruction);
+		if (addressIndex >= 0) {
+			String address = instruction.getOperand(addressIndex);
+			if (oldRegister.equals(getAddressBase(address))) {
+				instruction = instruction.withOperand(addressIndex, buildAddress(getAddressOffset(address), newRegister));
+			}
+		}
+		return instruction;
+	}
+
+}
@@ -0,0 +1,25 @@
+package name.martingeisse.majai.compiler.assembly;
+
+import java.io.PrintWriter;
+
+/**
+ * Defines a label at the current position.
+ */
+public final class LabelDefinition extends AssemblyLine {
+
+	private final String name;
+
+	public LabelDefinition(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public void print(PrintWriter out) {
+		out.println(name + ':');
+	}
+
+}
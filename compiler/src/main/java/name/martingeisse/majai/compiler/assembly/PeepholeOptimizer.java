@@ -0,0 +1,507 @@
+package name.martingeisse.majai.compiler.assembly;
+
+import java.util.List;
+
+import static name.martingeisse.majai.compiler.assembly.InstructionSemantics.*;
+
+/**
+ * Simplifies the code of a single method by repeatedly applying local rewrite rules until none applies anymore.
+ * The rules mainly target the redundant stack traffic produced by translating the JVM operand stack one instruction
+ * at a time:
+ * <ul>
+ * <li>adjustments of sp are moved towards each other and merged, fixing the offsets of the sp-relative accesses
+ * they are moved across</li>
+ * <li>a load from the address just stored to becomes a register move</li>
+ * <li>stores to stack slots that are popped before being read are removed</li>
+ * <li>register moves are folded into the instruction that defines or uses the moved value</li>
+ * <li>a li followed by an arithmetic instruction is folded into the immediate form of that instruction</li>
+ * <li>jumps and branches to the immediately following label are removed</li>
+ * <li>instructions that define a register which is not used afterwards are removed</li>
+ * </ul>
+ * <p>
+ * Liveness is only tracked within basic blocks. Beyond that, the optimizer relies on the convention that temporary
+ * registers (t0-t6) are dead at every label and control transfer, and assumes every other register to be live.
+ * <p>
+ * Adjustments of sp are only moved such that the stack pointer is decremented earlier or incremented later than in
+ * the original code. That way, memory is never accessed below sp.
+ */
+public final class PeepholeOptimizer {
+
+	private final List<AssemblyLine> lines;
+
+	public PeepholeOptimizer(List<AssemblyLine> lines) {
+		this.lines = lines;
+	}
+
+	public void optimize() {
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int i = 0; i < lines.size(); i++) {
+				if (lines.get(i) instanceof Instruction && optimizeAt(i)) {
+					changed = true;
+				}
+			}
+		}
+	}
+
+	private boolean optimizeAt(int i) {
+		Instruction instruction = (Instruction) lines.get(i);
+		InstructionKind kind = InstructionKind.of(instruction);
+		if (isStackAdjustment(instruction)) {
+			return optimizeStackAdjustment(i, getStackAdjustment(instruction));
+		}
+		if (instruction.getMnemonic().equals("mv") && instruction.getOperand(0).equals(instruction.getOperand(1))) {
+			lines.remove(i);
+			return true;
+		}
+		if (kind.isPureDefinition() && !instruction.getOperand(0).equals("sp") && isDeadAfter(i, instruction.getOperand(0))) {
+			lines.remove(i);
+			return true;
+		}
+		if ((kind == InstructionKind.BRANCH || kind == InstructionKind.JUMP) && jumpsToNextLabel(i, instruction)) {
+			lines.remove(i);
+			return true;
+		}
+		if (instruction.getMnemonic().equals("sw") && getAddressOperandIndex(instruction) == 1) {
+			if (forwardStoreToLoad(i, instruction) || removeDeadStackStore(i, instruction)) {
+				return true;
+			}
+		}
+		if (instruction.getMnemonic().equals("mv")) {
+			if (propagateMoveForward(i, instruction)) {
+				return true;
+			}
+		}
+		if ((kind.isPureDefinition() || kind == InstructionKind.LOAD) && propagateMoveBackward(i, instruction)) {
+			return true;
+		}
+		if (instruction.getMnemonic().equals("li")) {
+			return foldConstant(i, instruction);
+		}
+		return false;
+	}
+
+	private Instruction getInstruction(int index) {
+		if (index < 0 || index >= lines.size()) {
+			return null;
+		}
+		AssemblyLine line = lines.get(index);
+		return (line instanceof Instruction) ? (Instruction) line : null;
+	}
+
+//region liveness
+
+	/**
+	 * Returns true if the value in the specified register is not needed anymore after the instruction at the
+	 * specified index.
+	 */
+	private boolean isDeadAfter(int index, String register) {
+		if (register.equals("x0") || register.equals("zero")) {
+			return true;
+		}
+		boolean temporary = isTemporary(register);
+		Instruction current = getInstruction(index);
+		if (current != null) {
+			// the instruction itself may transfer control to a place where the register is needed
+			InstructionKind kind = InstructionKind.of(current);
+			if (kind == InstructionKind.BRANCH) {
+				if (!temporary) {
+					return false;
+				}
+			} else if (kind.isControlTransfer()) {
+				return temporary;
+			}
+		}
+		for (int i = index + 1; i < lines.size(); i++) {
+			AssemblyLine line = lines.get(i);
+			if (!(line instanceof Instruction)) {
+				return temporary;
+			}
+			Instruction instruction = (Instruction) line;
+			InstructionKind kind = InstructionKind.of(instruction);
+			if (kind == InstructionKind.UNKNOWN) {
+				return false;
+			}
+			if (reads(instruction, register)) {
+				return false;
+			}
+			if (register.equals(getDestination(instruction))) {
+				return true;
+			}
+			if (kind == InstructionKind.BRANCH) {
+				if (!temporary) {
+					return false;
+				}
+			} else if (kind.isControlTransfer()) {
+				return temporary;
+			}
+		}
+		return temporary;
+	}
+
+//endregion
+
+//region stack pointer adjustments
+
+	private static boolean isStackAdjustment(Instruction instruction) {
+		return instruction.getMnemonic().equals("addi") && instruction.getOperand(0).equals("sp") && instruction.getOperand(1).equals("sp");
+	}
+
+	private static int getStackAdjustment(Instruction instruction) {
+		return Integer.parseInt(instruction.getOperand(2));
+	}
+
+	private boolean optimizeStackAdjustment(int i, int amount) {
+		if (amount == 0) {
+			lines.remove(i);
+			return true;
+		}
+		Instruction next = getInstruction(i + 1);
+		if (next != null && isStackAdjustment(next)) {
+			lines.set(i, new Instruction("addi", "sp", "sp", amount + getStackAdjustment(next)));
+			lines.remove(i + 1);
+			return true;
+		}
+		if (amount > 0) {
+			// sink stack increment
+			Instruction moved = moveAcrossStackAdjustment(next, amount);
+			if (moved != null) {
+				lines.set(i, moved);
+				lines.set(i + 1, new Instruction("addi", "sp", "sp", amount));
+				return true;
+			}
+		} else {
+			// hoist stack decrement
+			Instruction previous = getInstruction(i - 1);
+			if (previous != null && isStackAdjustment(previous)) {
+				return false; // will be merged when visiting the previous instruction
+			}
+			Instruction moved = moveAcrossStackAdjustment(previous, -amount);
+			if (moved != null) {
+				lines.set(i, moved);
+				lines.set(i - 1, new Instruction("addi", "sp", "sp", amount));
+				return true;
+			}
+
+			// A stack decrement cannot be sunk in general, but it can be merged with a later adjustment if nothing
+			// in between uses sp.
+			for (int j = i + 1; j < lines.size(); j++) {
+				Instruction instruction = getInstruction(j);
+				if (instruction == null) {
+					break;
+				}
+				if (isStackAdjustment(instruction)) {
+					lines.set(j, new Instruction("addi", "sp", "sp", amount + getStackAdjustment(instruction)));
+					lines.remove(i);
+					return true;
+				}
+				InstructionKind kind = InstructionKind.of(instruction);
+				if (kind == InstructionKind.UNKNOWN || kind.isControlTransfer() || references(instruction, "sp")) {
+					break;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the instruction that is equivalent to the specified one after being moved across a stack adjustment,
+	 * given the amount that must be added to sp-relative offsets, or null if the instruction cannot be moved.
+	 */
+	private static Instruction moveAcrossStackAdjustment(Instruction instruction, int offsetDelta) {
+		if (instruction == null) {
+			return null;
+		}
+		InstructionKind kind = InstructionKind.of(instruction);
+		if (kind == InstructionKind.UNKNOWN || kind.isControlTransfer() || "sp".equals(getDestination(instruction))) {
+			return null;
+		}
+		for (int index : getSourceOperandIndices(instruction)) {
+			if (instruction.getOperand(index).equals("sp")) {
+				return null;
+			}
+		}
+		int addressIndex = getAddressOperandIndex(instruction);
+		if (addressIndex >= 0) {
+			String address = instruction.getOperand(addressIndex);
+			if (getAddressBase(address).equals("sp")) {
+				return instruction.withOperand(addressIndex, buildAddress(getAddressOffset(address) + offsetDelta, "sp"));
+			}
+		}
+		return instruction;
+	}
+
+//endregion
+
+//region memory
+
+	/**
+	 * Replaces a load from the address that was just stored to by a register move. Instructions in between must not
+	 * modify the stored register, the address base, or the memory location.
+	 */
+	private boolean forwardStoreToLoad(int i, Instruction store) {
+		String value = store.getOperand(0);
+		String address = store.getOperand(1);
+		String base = getAddressBase(address);
+		for (int j = i + 1; j < lines.size(); j++) {
+			Instruction instruction = getInstruction(j);
+			if (instruction == null) {
+				return false;
+			}
+			InstructionKind kind = InstructionKind.of(instruction);
+			if (kind == InstructionKind.UNKNOWN || kind.isControlTransfer()) {
+				return false;
+			}
+			if (instruction.getMnemonic().equals("lw") && instruction.getOperand(1).equals(address)) {
+				lines.set(j, new Instruction("mv", instruction.getOperand(0), value));
+				return true;
+			}
+			String destination = getDestination(instruction);
+			if (value.equals(destination) || base.equals(destination)) {
+				return false;
+			}
+			if (kind == InstructionKind.STORE) {
+				// only different stack slots are known not to overlap
+				int otherIndex = getAddressOperandIndex(instruction);
+				if (!base.equals("sp") || otherIndex < 0 || !getAddressBase(instruction.getOperand(otherIndex)).equals("sp")) {
+					return false;
+				}
+				int offset = getAddressOffset(address);
+				int otherOffset = getAddressOffset(instruction.getOperand(otherIndex));
+				if (otherOffset > offset - 4 && otherOffset < offset + 4) {
+					return false;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Removes a store to a stack slot if that slot gets popped or overwritten before anything reads it.
+	 */
+	private boolean removeDeadStackStore(int i, Instruction store) {
+		String address = store.getOperand(1);
+		if (!getAddressBase(address).equals("sp")) {
+			return false;
+		}
+		int offset = getAddressOffset(address);
+		if (offset < 0) {
+			return false;
+		}
+		for (int j = i + 1; j < lines.size(); j++) {
+			Instruction instruction = getInstruction(j);
+			if (instruction == null) {
+				return false;
+			}
+			if (isStackAdjustment(instruction)) {
+				if (getStackAdjustment(instruction) > offset) {
+					lines.remove(i);
+					return true;
+				}
+				return false;
+			}
+			InstructionKind kind = InstructionKind.of(instruction);
+			if (kind == InstructionKind.UNKNOWN || kind.isControlTransfer() || "sp".equals(getDestination(instruction))) {
+				return false;
+			}
+			for (int index : getSourceOperandIndices(instruction)) {
+				if (instruction.getOperand(index).equals("sp")) {
+					return false;
+				}
+			}
+			if (kind == InstructionKind.LOAD && address.equals(instruction.getOperand(1))) {
+				return false;
+			}
+			if (instruction.getMnemonic().equals("sw") && address.equals(instruction.getOperand(1))) {
+				// overwritten
+				lines.remove(i);
+				return true;
+			}
+		}
+		return false;
+	}
+
+//endregion
+
+//region register moves
+
+	/**
+	 * Handles "mv rd, rs" followed by a single instruction reading rd: makes that instruction read rs instead, and
+	 * removes the move. Instructions in between must neither use rd nor modify rs.
+	 */
+	private boolean propagateMoveForward(int i, Instruction move) {
+		String destination = move.getOperand(0);
+		String source = move.getOperand(1);
+		int j = i + 1;
+		Instruction user;
+		while (true) {
+			user = getInstruction(j);
+			if (user == null) {
+				return false;
+			}
+			InstructionKind kind = InstructionKind.of(user);
+			if (kind == InstructionKind.UNKNOWN || references(user, destination)) {
+				break;
+			}
+			if (kind.isControlTransfer() || source.equals(getDestination(user))) {
+				return false;
+			}
+			j++;
+		}
+		if (InstructionKind.of(user) == InstructionKind.UNKNOWN || !reads(user, destination)) {
+			return false;
+		}
+		if (!destination.equals(getDestination(user)) && !isDeadAfter(j, destination)) {
+			return false;
+		}
+		if (InstructionKind.of(user) == InstructionKind.STORE && source.equals(getDestination(user))) {
+			// symbolic store that uses the source register as its address temporary
+			return false;
+		}
+		lines.set(j, replaceSource(user, destination, source));
+		lines.remove(i);
+		return true;
+	}
+
+	/**
+	 * Handles an instruction defining a register, followed by a move from that register: makes the instruction
+	 * define the target register of the move directly.
+	 */
+	private boolean propagateMoveBackward(int i, Instruction definition) {
+		Instruction next = getInstruction(i + 1);
+		if (next == null || !next.getMnemonic().equals("mv")) {
+			return false;
+		}
+		String register = definition.getOperand(0);
+		if (!next.getOperand(1).equals(register) || next.getOperand(0).equals(register) || !isDeadAfter(i + 1, register)) {
+			return false;
+		}
+		lines.set(i, definition.withOperand(0, next.getOperand(0)));
+		lines.remove(i + 1);
+		return true;
+	}
+
+//endregion
+
+//region constants
+
+	/**
+	 * Handles "li rd, value" followed by an instruction using rd: uses x0 for a zero value, or the immediate form of
+	 * an arithmetic instruction. The li is then removed once rd is dead.
+	 */
+	private boolean foldConstant(int i, Instruction load) {
+		String register = load.getOperand(0);
+		int value;
+		try {
+			value = Integer.decode(load.getOperand(1));
+		} catch (NumberFormatException e) {
+			return false;
+		}
+
+		// find the next instruction that uses the register
+		int j = i + 1;
+		Instruction user;
+		while (true) {
+			user = getInstruction(j);
+			if (user == null) {
+				return false;
+			}
+			InstructionKind kind = InstructionKind.of(user);
+			if (kind == InstructionKind.UNKNOWN || kind.isControlTransfer() && !reads(user, register)) {
+				return false;
+			}
+			if (references(user, register)) {
+				break;
+			}
+			j++;
+		}
+		if (!reads(user, register) || (!register.equals(getDestination(user)) && !isDeadAfter(j, register))) {
+			return false;
+		}
+
+		// zero can be taken from x0, except for address bases (which would have to be re-formatted)
+		if (value == 0) {
+			int addressIndex = getAddressOperandIndex(user);
+			if (addressIndex >= 0 && register.equals(getAddressBase(user.getOperand(addressIndex)))) {
+				return false;
+			}
+			lines.set(j, replaceSource(user, register, "x0"));
+			lines.remove(i);
+			return true;
+		}
+
+		// fold into the immediate form of an arithmetic instruction
+		if (InstructionKind.of(user) != InstructionKind.REGISTER_OPERATION || user.getOperand(1).equals(user.getOperand(2))) {
+			return false;
+		}
+		String mnemonic = user.getMnemonic();
+		String other;
+		if (user.getOperand(2).equals(register)) {
+			other = user.getOperand(1);
+		} else if (isCommutative(mnemonic)) {
+			other = user.getOperand(2);
+		} else {
+			return false;
+		}
+		String immediateMnemonic;
+		switch (mnemonic) {
+
+			case "sub":
+				immediateMnemonic = "addi";
+				value = -value;
+				break;
+
+			case "sll":
+			case "srl":
+			case "sra":
+				immediateMnemonic = mnemonic + "i";
+				value = value & 31;
+				break;
+
+			case "add":
+			case "and":
+			case "or":
+			case "xor":
+			case "slt":
+			case "sltu":
+				immediateMnemonic = mnemonic + "i";
+				break;
+
+			default:
+				return false;
+
+		}
+		if (value < -2048 || value > 2047) {
+			return false;
+		}
+		lines.set(j, new Instruction(immediateMnemonic, user.getOperand(0), other, value));
+		lines.remove(i);
+		return true;
+	}
+
+	private static boolean isCommutative(String mnemonic) {
+		return mnemonic.equals("add") || mnemonic.equals("and") || mnemonic.equals("or") || mnemonic.equals("xor");
+	}
+
+//endregion
+
+//region control flow
+
+	private boolean jumpsToNextLabel(int i, Instruction jump) {
+		String target = jump.getOperand(jump.getOperandCount() - 1);
+		for (int j = i + 1; j < lines.size(); j++) {
+			AssemblyLine line = lines.get(j);
+			if (!(line instanceof LabelDefinition)) {
+				return false;
+			}
+			if (((LabelDefinition) line).getName().equals(target)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+//endregion
+
+}
@@ -0,0 +1,602 @@
+package name.martingeisse.majai.compiler.ir;
+
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.IincInsnNode;
+import org.objectweb.asm.tree.IntInsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+
+import java.util.*;
+
+/**
+ * Finds the array element accesses of a method whose index is known to be within the bounds of the array, so their
+ * bounds check can be left out.
+ * <p>
+ * An access is known to be in bounds if the same array has already been accessed with the same index by an access
+ * that dominates it (in methods without exception handlers), or if the index can be proven to be non-negative and
+ * less than the length of the array. The proof uses the conditions of the branches through which the access is
+ * reached: when a block can only be entered through one edge of a conditional branch, then the condition of that
+ * edge holds in that block and in all blocks it dominates, because SSA values cannot change in between. Loop
+ * variables are handled by induction over the operands of their phi values, e.g. in
+ * <pre>
+ * for (int i = 0; i &lt; array.length; i++) {
+ *     sum += array[i];
+ * }
+ * </pre>
+ * the index is a phi value with the operands 0 and i + 1, both of which are non-negative (i + 1 cannot overflow
+ * since i &lt; array.length), and the loop condition guards the access.
+ * <p>
+ * Checks are never moved, only removed, so a failing check still throws at the same point.
+ */
+public final class ArrayBoundsAnalysis {
+
+	/**
+	 * Limits the number of nested steps of a single proof, which keeps the analysis fast for long chains of values.
+	 */
+	private static final int MAXIMUM_PROOF_DEPTH = 10;
+
+	private final IrMethod method;
+	private final Map<BasicBlock, BasicBlock> immediateDominators = new HashMap<>();
+	private final Map<BasicBlock, Integer> dominatorTreeDepths = new HashMap<>();
+	private final Map<BasicBlock, List<Condition>> conditions = new HashMap<>();
+	private final Set<PhiValue> assumedNonNegative = new HashSet<>();
+	private final Set<PhiValue> assumedBelowLength = new HashSet<>();
+	private final Set<IrInstruction> accessesInBounds = new HashSet<>();
+
+	public ArrayBoundsAnalysis(IrMethod method) {
+		this.method = method;
+		computeDominators();
+		for (BasicBlock block : method.getBlocks()) {
+			if (block.isReachable()) {
+				conditions.put(block, getEntryConditions(block));
+			}
+		}
+		findAccessesInBounds();
+	}
+
+	/**
+	 * Returns true if the specified array element access (xALOAD or xASTORE) needs a bounds check.
+	 */
+	public boolean isCheckNeeded(IrInstruction access) {
+		return !accessesInBounds.contains(access);
+	}
+
+	private static boolean isArrayAccess(int opcode) {
+		return (opcode >= Opcodes.IALOAD && opcode <= Opcodes.SALOAD) || (opcode >= Opcodes.IASTORE && opcode <= Opcodes.SASTORE);
+	}
+
+	private void findAccessesInBounds() {
+		Map<List<SsaValue>, List<IrInstruction>> accessesByOperands = new HashMap<>();
+		for (BasicBlock block : method.getBlocks()) {
+			if (!block.isReachable()) {
+				continue;
+			}
+			for (IrInstruction instruction : block.getInstructions()) {
+				if (!isArrayAccess(instruction.getOpcode())) {
+					continue;
+				}
+				SsaValue array = instruction.getInputs().get(0);
+				SsaValue index = instruction.getInputs().get(1);
+				List<IrInstruction> previousAccesses = accessesByOperands.computeIfAbsent(Arrays.asList(array, index), key -> new ArrayList<>());
+				if (isDominatedByAny(instruction, previousAccesses) || isInBounds(array, index, block)) {
+					accessesInBounds.add(instruction);
+				}
+				previousAccesses.add(instruction);
+			}
+		}
+	}
+
+	/**
+	 * Checks if one of the specified instructions, which come earlier in bytecode order, is executed before the
+	 * specified instruction on every path to it. Exception handlers may be reached from an instruction that failed
+	 * its check, so this is not used for methods that have any.
+	 */
+	private boolean isDominatedByAny(IrInstruction instruction, List<IrInstruction> previousInstructions) {
+		if (!method.getMethodNode().tryCatchBlocks.isEmpty()) {
+			return false;
+		}
+		for (IrInstruction previousInstruction : previousInstructions) {
+			if (previousInstruction.getBlock() == instruction.getBlock() || dominates(previousInstruction.getBlock(), instruction.getBlock())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean isInBounds(SsaValue array, SsaValue index, BasicBlock block) {
+		return isNonNegative(index, block, 0) && isBelowLength(index, array, block, 0);
+	}
+
+//region dominators
+
+	/**
+	 * Computes the dominator tree using the algorithm by Cooper, Harvey and Kennedy. Exception handlers count as
+	 * successors of the blocks they cover.
+	 */
+	private void computeDominators() {
+		List<BasicBlock> order = getReversePostorder();
+		Map<BasicBlock, Integer> orderIndices = new HashMap<>();
+		for (int i = 0; i < order.size(); i++) {
+			orderIndices.put(order.get(i), i);
+		}
+		Map<BasicBlock, List<BasicBlock>> predecessors = new HashMap<>();
+		for (BasicBlock block : order) {
+			for (BasicBlock successor : getAllSuccessors(block)) {
+				predecessors.computeIfAbsent(successor, key -> new ArrayList<>()).add(block);
+			}
+		}
+		BasicBlock entry = method.getEntryBlock();
+		immediateDominators.put(entry, entry);
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (BasicBlock block : order) {
+				if (block == entry) {
+					continue;
+				}
+				BasicBlock dominator = null;
+				for (BasicBlock predecessor : predecessors.getOrDefault(block, Collections.emptyList())) {
+					if (immediateDominators.containsKey(predecessor)) {
+						dominator = (dominator == null ? predecessor : intersect(dominator, predecessor, orderIndices));
+					}
+				}
+				if (dominator != null && immediateDominators.get(block) != dominator) {
+					immediateDominators.put(block, dominator);
+					changed = true;
+				}
+			}
+		}
+		for (BasicBlock block : order) {
+			BasicBlock dominator = immediateDominators.get(block);
+			dominatorTreeDepths.put(block, block == entry ? 0 : dominatorTreeDepths.get(dominator) + 1);
+		}
+		immediateDominators.remove(entry);
+	}
+
+	private BasicBlock intersect(BasicBlock block1, BasicBlock block2, Map<BasicBlock, Integer> orderIndices) {
+		while (block1 != block2) {
+			while (orderIndices.get(block1) > orderIndices.get(block2)) {
+				block1 = immediateDominators.get(block1);
+			}
+			while (orderIndices.get(block2) > orderIndices.get(block1)) {
+				block2 = immediateDominators.get(block2);
+			}
+		}
+		return block1;
+	}
+
+	private List<BasicBlock> getReversePostorder() {
+		List<BasicBlock> postorder = new ArrayList<>();
+		Set<BasicBlock> visited = new HashSet<>();
+		Deque<BasicBlock> stack = new ArrayDeque<>();
+		Deque<Iterator<BasicBlock>> iterators = new ArrayDeque<>();
+		stack.push(method.getEntryBlock());
+		iterators.push(getAllSuccessors(method.getEntryBlock()).iterator());
+		visited.add(method.getEntryBlock());
+		while (!stack.isEmpty()) {
+			Iterator<BasicBlock> iterator = iterators.peek();
+			if (iterator.hasNext()) {
+				BasicBlock successor = iterator.next();
+				if (visited.add(successor)) {
+					stack.push(successor);
+					iterators.push(getAllSuccessors(successor).iterator());
+				}
+			} else {
+				postorder.add(stack.pop());
+				iterators.pop();
+			}
+		}
+		Collections.reverse(postorder);
+		return postorder;
+	}
+
+	private static List<BasicBlock> getAllSuccessors(BasicBlock block) {
+		List<BasicBlock> result = new ArrayList<>(block.getSuccessors());
+		result.addAll(block.getExceptionHandlers());
+		return result;
+	}
+
+	/**
+	 * Returns true if the first block strictly dominates the second one.
+	 */
+	private boolean dominates(BasicBlock dominator, BasicBlock block) {
+		Integer dominatorDepth = dominatorTreeDepths.get(dominator);
+		Integer depth = dominatorTreeDepths.get(block);
+		if (dominatorDepth == null || depth == null || depth <= dominatorDepth) {
+			return false;
+		}
+		for (; depth > dominatorDepth; depth--) {
+			block = immediateDominators.get(block);
+		}
+		return block == dominator;
+	}
+
+	private static BasicBlock getDefiningBlock(SsaValue value, IrMethod method) {
+		if (value instanceof ResultValue) {
+			return ((ResultValue) value).getDefinition().getBlock();
+		} else if (value instanceof PhiValue) {
+			return ((PhiValue) value).getBlock();
+		} else if (value instanceof CaughtExceptionValue) {
+			return ((CaughtExceptionValue) value).getHandler();
+		} else {
+			return method.getEntryBlock();
+		}
+	}
+
+//endregion
+
+//region branch conditions
+
+	private enum Relation {
+		LESS, LESS_OR_EQUAL, EQUAL, NOT_EQUAL
+	}
+
+	/**
+	 * A condition "left relation right" that is known to hold. A null operand stands for the constant zero.
+	 */
+	private static final class Condition {
+
+		final SsaValue left;
+		final Relation relation;
+		final SsaValue right;
+
+		Condition(SsaValue left, Relation relation, SsaValue right) {
+			this.left = left;
+			this.relation = relation;
+			this.right = right;
+		}
+
+	}
+
+	/**
+	 * Returns the conditions that hold in a block because of the edges through which it and its dominators are
+	 * entered.
+	 */
+	private List<Condition> getConditions(BasicBlock block) {
+		List<Condition> result = new ArrayList<>();
+		for (; block != null; block = immediateDominators.get(block)) {
+			result.addAll(conditions.getOrDefault(block, Collections.emptyList()));
+		}
+		return result;
+	}
+
+	private List<Condition> getEntryConditions(BasicBlock block) {
+		if (block.isExceptionHandler() || block.getPredecessors().size() != 1) {
+			return Collections.emptyList();
+		}
+		BasicBlock predecessor = block.getPredecessors().get(0);
+		IrInstruction branch = predecessor.getLastRealInstruction();
+		if (branch == null || predecessor.getSuccessors().size() != 2 || !(branch.getNode() instanceof JumpInsnNode)) {
+			return Collections.emptyList();
+		}
+		boolean taken = false;
+		for (IrInstruction instruction : block.getInstructions()) {
+			if (instruction.getNode() == ((JumpInsnNode) branch.getNode()).label) {
+				taken = true;
+				break;
+			}
+		}
+		Condition condition = getBranchCondition(branch, taken);
+		return condition == null ? Collections.emptyList() : Collections.singletonList(condition);
+	}
+
+	private static Condition getBranchCondition(IrInstruction branch, boolean taken) {
+		int opcode = branch.getOpcode();
+		SsaValue left = branch.getInputs().get(0);
+		SsaValue right;
+		int comparison;
+		if (opcode >= Opcodes.IFEQ && opcode <= Opcodes.IFLE) {
+			right = null;
+			comparison = opcode - Opcodes.IFEQ;
+		} else if (opcode >= Opcodes.IF_ICMPEQ && opcode <= Opcodes.IF_ICMPLE) {
+			right = branch.getInputs().get(1);
+			comparison = opcode - Opcodes.IF_ICMPEQ;
+		} else {
+			return null;
+		}
+		if (!taken) {
+			// EQ and NE, LT and GE, GT and LE are pairs of opposite conditions
+			comparison ^= 1;
+		}
+		switch (comparison) {
+
+			case 0:
+				return new Condition(left, Relation.EQUAL, right);
+
+			case 1:
+				return new Condition(left, Relation.NOT_EQUAL, right);
+
+			case 2:
+				return new Condition(left, Relation.LESS, right);
+
+			case 3:
+				return new Condition(right, Relation.LESS_OR_EQUAL, left);
+
+			case 4:
+				return new Condition(right, Relation.LESS, left);
+
+			case 5:
+				return new Condition(left, Relation.LESS_OR_EQUAL, right);
+
+			default:
+				throw new RuntimeException();
+
+		}
+	}
+
+//endregion
+
+//region proofs
+
+	// A block of null is used for the implicit entry edge of the method, where no conditions are known.
+
+	private boolean isNonNegative(SsaValue value, BasicBlock block, int depth) {
+		if (depth > MAXIMUM_PROOF_DEPTH) {
+			return false;
+		}
+		Integer constant = getConstant(value);
+		if (constant != null) {
+			return constant >= 0;
+		}
+		if (value instanceof ResultValue) {
+			IrInstruction definition = ((ResultValue) value).getDefinition();
+			List<SsaValue> inputs = definition.getInputs();
+			switch (definition.getOpcode()) {
+
+				case Opcodes.ARRAYLENGTH:
+				case Opcodes.CALOAD:
+				case Opcodes.I2C:
+					return true;
+
+				case Opcodes.IAND:
+					if (isNonNegative(inputs.get(0), block, depth + 1) || isNonNegative(inputs.get(1), block, depth + 1)) {
+						return true;
+					}
+					break;
+
+				case Opcodes.IUSHR: {
+					Integer amount = getConstant(inputs.get(1));
+					if ((amount != null && (amount & 31) != 0) || isNonNegative(inputs.get(0), block, depth + 1)) {
+						return true;
+					}
+					break;
+				}
+
+				case Opcodes.ISHR:
+				case Opcodes.IREM:
+					if (isNonNegative(inputs.get(0), block, depth + 1)) {
+						return true;
+					}
+					break;
+
+				case Opcodes.IINC:
+					if (isNonNegativeSum(inputs.get(0), ((IincInsnNode) definition.getNode()).incr, definition.getBlock(), depth)) {
+						return true;
+					}
+					break;
+
+				case Opcodes.IADD: {
+					Integer right = getConstant(inputs.get(1));
+					Integer left = getConstant(inputs.get(0));
+					if (right != null && isNonNegativeSum(inputs.get(0), right, definition.getBlock(), depth)) {
+						return true;
+					}
+					if (left != null && isNonNegativeSum(inputs.get(1), left, definition.getBlock(), depth)) {
+						return true;
+					}
+					break;
+				}
+
+			}
+		} else if (value instanceof PhiValue) {
+			PhiValue phi = (PhiValue) value;
+			if (assumedNonNegative.contains(phi)) {
+				return true;
+			}
+			assumedNonNegative.add(phi);
+			boolean result = true;
+			for (int i = 0; i < phi.getOperands().size() && result; i++) {
+				result = isNonNegative(phi.getOperands().get(i), phi.getSources().get(i), depth + 1);
+			}
+			assumedNonNegative.remove(phi);
+			if (result) {
+				return true;
+			}
+		}
+		if (block != null) {
+			for (Condition condition : getConditions(block)) {
+				if (condition.right == value && condition.relation == Relation.LESS && isAtLeast(condition.left, -1, block, depth)) {
+					return true;
+				}
+				if (condition.right == value && condition.relation != Relation.NOT_EQUAL && isAtLeast(condition.left, 0, block, depth)) {
+					return true;
+				}
+				if (condition.left == value && condition.relation == Relation.EQUAL && isAtLeast(condition.right, 0, block, depth)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private boolean isAtLeast(SsaValue value, int minimum, BasicBlock block, int depth) {
+		Integer constant = getConstant(value);
+		if (constant != null) {
+			return constant >= minimum;
+		}
+		return minimum <= 0 && isNonNegative(value, block, depth + 1);
+	}
+
+	/**
+	 * Checks if value + increment is non-negative. An increment of 1 cannot overflow if the value is known to be less
+	 * than something else; larger increments are not considered.
+	 */
+	private boolean isNonNegativeSum(SsaValue value, int increment, BasicBlock block, int depth) {
+		if (increment < 0 || increment > 1 || !isNonNegative(value, block, depth + 1)) {
+			return false;
+		}
+		if (increment == 0) {
+			return true;
+		}
+		for (Condition condition : getConditions(block)) {
+			if (condition.left == value && condition.relation == Relation.LESS) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean isBelowLength(SsaValue index, SsaValue array, BasicBlock block, int depth) {
+		if (depth > MAXIMUM_PROOF_DEPTH) {
+			return false;
+		}
+		Integer constant = getConstant(index);
+		Integer length = getConstantLength(array);
+		if (constant != null && length != null && constant < length) {
+			return true;
+		}
+		if (index instanceof ResultValue) {
+			IrInstruction definition = ((ResultValue) index).getDefinition();
+			List<SsaValue> inputs = definition.getInputs();
+			switch (definition.getOpcode()) {
+
+				case Opcodes.ISUB: {
+					Integer subtrahend = getConstant(inputs.get(1));
+					if (subtrahend != null && isBelowLengthAfterDecrement(inputs.get(0), subtrahend, array, definition.getBlock(), depth)) {
+						return true;
+					}
+					break;
+				}
+
+				case Opcodes.IADD: {
+					Integer right = getConstant(inputs.get(1));
+					Integer left = getConstant(inputs.get(0));
+					if (right != null && right != Integer.MIN_VALUE && isBelowLengthAfterDecrement(inputs.get(0), -right, array, definition.getBlock(), depth)) {
+						return true;
+					}
+					if (left != null && left != Integer.MIN_VALUE && isBelowLengthAfterDecrement(inputs.get(1), -left, array, definition.getBlock(), depth)) {
+						return true;
+					}
+					break;
+				}
+
+				case Opcodes.IINC: {
+					int increment = ((IincInsnNode) definition.getNode()).incr;
+					if (isBelowLengthAfterDecrement(inputs.get(0), -increment, array, definition.getBlock(), depth)) {
+						return true;
+					}
+					break;
+				}
+
+			}
+		} else if (index instanceof PhiValue) {
+			PhiValue phi = (PhiValue) index;
+			if (assumedBelowLength.contains(phi)) {
+				return true;
+			}
+
+			// the induction only works if the array is the same in every iteration
+			if (dominates(getDefiningBlock(array, method), phi.getBlock())) {
+				assumedBelowLength.add(phi);
+				boolean result = true;
+				for (int i = 0; i < phi.getOperands().size() && result; i++) {
+					result = isBelowLength(phi.getOperands().get(i), array, phi.getSources().get(i), depth + 1);
+				}
+				assumedBelowLength.remove(phi);
+				if (result) {
+					return true;
+				}
+			}
+
+		}
+		if (block != null) {
+			for (Condition condition : getConditions(block)) {
+				if (condition.left == index && condition.relation == Relation.LESS) {
+					Integer bound = getConstant(condition.right);
+					if (isLengthOf(condition.right, array) || (bound != null && length != null && bound <= length)) {
+						return true;
+					}
+				}
+				if (condition.relation == Relation.EQUAL && (condition.left == index || condition.right == index)) {
+					SsaValue other = (condition.left == index ? condition.right : condition.left);
+					if (other != null && getConstant(other) == null && isBelowLength(other, array, block, depth + 1)) {
+						return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Checks if value - decrement is less than the length of the array. The decrement must not make the value wrap
+	 * around, which is the case for a non-negative value and a non-negative decrement.
+	 */
+	private boolean isBelowLengthAfterDecrement(SsaValue value, int decrement, SsaValue array, BasicBlock block, int depth) {
+		if (decrement < 0) {
+			return false;
+		}
+		if (decrement > 0 && isLengthOf(value, array)) {
+			return true;
+		}
+		return (decrement == 0 || isNonNegative(value, block, depth + 1)) && isBelowLength(value, array, block, depth + 1);
+	}
+
+	/**
+	 * Returns the value of the specified int constant, or null if the value is not constant. A null value stands for
+	 * the constant zero.
+	 */
+	private static Integer getConstant(SsaValue value) {
+		if (value == null) {
+			return 0;
+		}
+		if (!(value instanceof ResultValue)) {
+			return null;
+		}
+		AbstractInsnNode node = ((ResultValue) value).getDefinition().getNode();
+		int opcode = node.getOpcode();
+		if (opcode >= Opcodes.ICONST_M1 && opcode <= Opcodes.ICONST_5) {
+			return opcode - Opcodes.ICONST_0;
+		} else if (opcode == Opcodes.BIPUSH || opcode == Opcodes.SIPUSH) {
+			return ((IntInsnNode) node).operand;
+		} else if (opcode == Opcodes.LDC && ((LdcInsnNode) node).cst instanceof Integer) {
+			return (Integer) ((LdcInsnNode) node).cst;
+		} else {
+			return null;
+		}
+	}
+
+	/**
+	 * Returns true if the specified value is the length of the specified array, either because it has been
+	 * obtained by ARRAYLENGTH or because the array has been created with that length.
+	 */
+	private static boolean isLengthOf(SsaValue value, SsaValue array) {
+		if (value instanceof ResultValue) {
+			IrInstruction definition = ((ResultValue) value).getDefinition();
+			if (definition.getOpcode() == Opcodes.ARRAYLENGTH && definition.getInputs().get(0) == array) {
+				return true;
+			}
+		}
+		SsaValue length = getCreationLength(array);
+		return length != null && length == value;
+	}
+
+	private static Integer getConstantLength(SsaValue array) {
+		SsaValue length = getCreationLength(array);
+		return length == null ? null : getConstant(length);
+	}
+
+	private static SsaValue getCreationLength(SsaValue array) {
+		if (array instanceof ResultValue) {
+			IrInstruction definition = ((ResultValue) array).getDefinition();
+			if (definition.getOpcode() == Opcodes.NEWARRAY || definition.getOpcode() == Opcodes.ANEWARRAY) {
+				return definition.getInputs().get(0);
+			}
+		}
+		return null;
+	}
+
+//endregion
+
+}
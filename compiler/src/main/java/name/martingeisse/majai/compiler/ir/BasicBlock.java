@@ -0,0 +1,145 @@
+package name.martingeisse.majai.compiler.ir;
+
+import org.objectweb.asm.tree.analysis.Frame;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A maximal sequence of instructions that is only entered at the start and only left at the end -- not counting
+ * exceptions, which may leave the block at any instruction and enter one of its {@link #getExceptionHandlers()}.
+ */
+public final class BasicBlock {
+
+	private final int index;
+	private final List<IrInstruction> instructions = new ArrayList<>();
+	private final List<PhiValue> phis = new ArrayList<>();
+	private final List<BasicBlock> successors = new ArrayList<>();
+	private final List<BasicBlock> predecessors = new ArrayList<>();
+	private final List<BasicBlock> exceptionHandlers = new ArrayList<>();
+	private boolean exceptionHandler;
+	private boolean reachable;
+	private Frame<SsaValue> entryFrame;
+	private Frame<SsaValue> exitFrame;
+
+	BasicBlock(int index) {
+		this.index = index;
+	}
+
+	/**
+	 * Returns the position of this block in bytecode order.
+	 */
+	public int getIndex() {
+		return index;
+	}
+
+	public List<IrInstruction> getInstructions() {
+		return Collections.unmodifiableList(instructions);
+	}
+
+	/**
+	 * Returns the last instruction that is not a pseudo-instruction, or null if there is none.
+	 */
+	public IrInstruction getLastRealInstruction() {
+		for (int i = instructions.size() - 1; i >= 0; i--) {
+			if (instructions.get(i).getOpcode() >= 0) {
+				return instructions.get(i);
+			}
+		}
+		return null;
+	}
+
+	public List<PhiValue> getPhis() {
+		return Collections.unmodifiableList(phis);
+	}
+
+	/**
+	 * Returns the blocks that can follow this block through normal control flow, without duplicates.
+	 */
+	public List<BasicBlock> getSuccessors() {
+		return Collections.unmodifiableList(successors);
+	}
+
+	/**
+	 * Returns the blocks this block can follow through normal control flow, without duplicates.
+	 */
+	public List<BasicBlock> getPredecessors() {
+		return Collections.unmodifiableList(predecessors);
+	}
+
+	/**
+	 * Returns the handlers of the try-catch blocks that cover this block, in the order they are tried.
+	 */
+	public List<BasicBlock> getExceptionHandlers() {
+		return Collections.unmodifiableList(exceptionHandlers);
+	}
+
+	public boolean isExceptionHandler() {
+		return exceptionHandler;
+	}
+
+	public boolean isReachable() {
+		return reachable;
+	}
+
+	/**
+	 * Returns the SSA values in the local variables and on the operand stack on entry to this block, or null if the
+	 * block is not reachable.
+	 */
+	public Frame<SsaValue> getEntryFrame() {
+		return entryFrame;
+	}
+
+	/**
+	 * Returns the SSA values in the local variables and on the operand stack after the last instruction of this
+	 * block, or null if the block is not reachable.
+	 */
+	public Frame<SsaValue> getExitFrame() {
+		return exitFrame;
+	}
+
+	void addInstruction(IrInstruction instruction) {
+		instructions.add(instruction);
+	}
+
+	void addPhi(PhiValue phi) {
+		phis.add(phi);
+	}
+
+	void removePhi(PhiValue phi) {
+		phis.remove(phi);
+	}
+
+	void addSuccessor(BasicBlock successor) {
+		if (!successors.contains(successor)) {
+			successors.add(successor);
+			successor.predecessors.add(this);
+		}
+	}
+
+	void addExceptionHandler(BasicBlock handler) {
+		if (!exceptionHandlers.contains(handler)) {
+			exceptionHandlers.add(handler);
+		}
+		handler.exceptionHandler = true;
+	}
+
+	void setReachable(boolean reachable) {
+		this.reachable = reachable;
+	}
+
+	void setEntryFrame(Frame<SsaValue> entryFrame) {
+		this.entryFrame = entryFrame;
+	}
+
+	void setExitFrame(Frame<SsaValue> exitFrame) {
+		this.exitFrame = exitFrame;
+	}
+
+	@Override
+	public String toString() {
+		return "block" + index;
+	}
+
+}
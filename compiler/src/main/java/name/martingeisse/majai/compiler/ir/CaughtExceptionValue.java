@@ -0,0 +1,21 @@
+package name.martingeisse.majai.compiler.ir;
+
+import org.objectweb.asm.tree.analysis.BasicValue;
+
+/**
+ * The exception object that is on the operand stack on entry to an exception handler.
+ */
+public final class CaughtExceptionValue extends SsaValue {
+
+	private final BasicBlock handler;
+
+	CaughtExceptionValue(int id, BasicBlock handler) {
+		super(id, BasicValue.REFERENCE_VALUE);
+		this.handler = handler;
+	}
+
+	public BasicBlock getHandler() {
+		return handler;
+	}
+
+}
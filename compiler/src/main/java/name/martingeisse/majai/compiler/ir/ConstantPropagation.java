@@ -0,0 +1,527 @@
+package name.martingeisse.majai.compiler.ir;
+
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.*;
+
+import java.util.*;
+
+/**
+ * Finds the values of a method that are constant, and the blocks that can actually be executed, using conditional
+ * constant propagation as described by Wegman and Zadeck. Both are found together: a block is only executable if it
+ * can be reached through an executable edge, a conditional branch or switch with a constant operand only makes the
+ * edge executable that is actually taken, and a phi value only takes the operands from executable edges into
+ * account. That way, a constant that guards some code lets the analysis ignore the values assigned in that code.
+ * <p>
+ * Each value starts out as "not yet known", and is lowered to a constant or to "not constant" while the blocks are
+ * evaluated. Since values are only ever lowered, evaluating all executable blocks repeatedly until nothing changes
+ * gives the result. Only values of primitive types can be constant. They are computed with the semantics of the
+ * JVM, so folding an operation gives the same result as executing it. Divisions by zero are never folded, since
+ * they throw an exception.
+ * <p>
+ * Exception handlers are considered to be executable if any block they cover is.
+ */
+public final class ConstantPropagation {
+
+	/**
+	 * The lattice element for values that are not constant. Values that are not yet known are represented by null,
+	 * and constant values by the boxed constant.
+	 */
+	private static final Object NOT_CONSTANT = new Object();
+
+	private final IrMethod method;
+	private final Object[] values;
+	private final Map<LabelNode, BasicBlock> blocksByLabel = new HashMap<>();
+	private final Set<BasicBlock> executableBlocks = new HashSet<>();
+	private final Map<BasicBlock, Set<BasicBlock>> executableEdges = new HashMap<>();
+
+	public ConstantPropagation(IrMethod method) {
+		this.method = method;
+		this.values = new Object[method.getValueCount()];
+		for (BasicBlock block : method.getBlocks()) {
+			for (IrInstruction instruction : block.getInstructions()) {
+				if (instruction.getNode() instanceof LabelNode) {
+					blocksByLabel.put((LabelNode) instruction.getNode(), block);
+				}
+			}
+		}
+		executableBlocks.add(method.getEntryBlock());
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (BasicBlock block : method.getBlocks()) {
+				if (executableBlocks.contains(block)) {
+					changed |= evaluate(block);
+				}
+			}
+		}
+	}
+
+	public boolean isExecutable(BasicBlock block) {
+		return executableBlocks.contains(block);
+	}
+
+	/**
+	 * Returns true if control can flow from one block to the other through normal control flow.
+	 */
+	public boolean isEdgeExecutable(BasicBlock from, BasicBlock to) {
+		return executableEdges.getOrDefault(from, Collections.emptySet()).contains(to);
+	}
+
+	/**
+	 * Returns the value as a boxed Integer, Long, Float or Double if it is constant, or null if it is not. Values of
+	 * type boolean, byte, char and short are represented as Integer.
+	 */
+	public Object getConstant(SsaValue value) {
+		Object result = getValue(value);
+		return (result == NOT_CONSTANT ? null : result);
+	}
+
+	/**
+	 * Returns whether the specified conditional branch is always taken (true) or never taken (false), or null if that
+	 * is not known.
+	 */
+	public Boolean getCondition(IrInstruction branch) {
+		Object result = evaluateCondition(branch);
+		return (result == NOT_CONSTANT ? null : (Boolean) result);
+	}
+
+	/**
+	 * Returns the label that the specified switch always jumps to, or null if that is not known.
+	 */
+	public LabelNode getSwitchTarget(IrInstruction instruction) {
+		Object result = evaluateSwitch(instruction);
+		return (result == NOT_CONSTANT ? null : (LabelNode) result);
+	}
+
+//region evaluation
+
+	private Object getValue(SsaValue value) {
+		if (value instanceof ResultValue || value instanceof PhiValue) {
+			return values[value.getId()];
+		} else {
+			return NOT_CONSTANT;
+		}
+	}
+
+	/**
+	 * Lowers the lattice element for the specified value, if the new element is lower than the current one.
+	 */
+	private boolean lower(SsaValue value, Object newValue) {
+		Object oldValue = values[value.getId()];
+		if (newValue == null || oldValue == NOT_CONSTANT || newValue.equals(oldValue)) {
+			return false;
+		}
+		values[value.getId()] = (oldValue == null ? newValue : NOT_CONSTANT);
+		return true;
+	}
+
+	private boolean evaluate(BasicBlock block) {
+		boolean changed = false;
+		for (PhiValue phi : block.getPhis()) {
+			changed |= lower(phi, evaluate(phi));
+		}
+		for (IrInstruction instruction : block.getInstructions()) {
+			SsaValue output = instruction.getOutput();
+			if (output instanceof ResultValue && ((ResultValue) output).getDefinition() == instruction) {
+				changed |= lower(output, evaluate(instruction));
+			}
+		}
+		for (BasicBlock successor : getExecutableSuccessors(block)) {
+			if (executableEdges.computeIfAbsent(block, key -> new HashSet<>()).add(successor)) {
+				executableBlocks.add(successor);
+				changed = true;
+			}
+		}
+		for (BasicBlock handler : block.getExceptionHandlers()) {
+			changed |= executableBlocks.add(handler);
+		}
+		return changed;
+	}
+
+	private Object evaluate(PhiValue phi) {
+		Object result = null;
+		for (int i = 0; i < phi.getOperands().size(); i++) {
+			BasicBlock source = phi.getSources().get(i);
+			boolean executable = (source == null || isEdgeExecutable(source, phi.getBlock()) ||
+				(executableBlocks.contains(source) && source.getExceptionHandlers().contains(phi.getBlock())));
+			if (executable) {
+				Object operand = getValue(phi.getOperands().get(i));
+				if (operand == NOT_CONSTANT || (operand != null && result != null && !operand.equals(result))) {
+					return NOT_CONSTANT;
+				}
+				if (operand != null) {
+					result = operand;
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the constant inputs of the specified instruction, null if any of them is not yet known, or
+	 * NOT_CONSTANT if any of them is not constant.
+	 */
+	private Object getInputs(IrInstruction instruction) {
+		List<Object> inputs = new ArrayList<>();
+		boolean known = true;
+		for (SsaValue input : instruction.getInputs()) {
+			Object value = getValue(input);
+			if (value == NOT_CONSTANT) {
+				return NOT_CONSTANT;
+			}
+			known &= (value != null);
+			inputs.add(value);
+		}
+		return (known ? inputs : null);
+	}
+
+	private Object evaluate(IrInstruction instruction) {
+		AbstractInsnNode node = instruction.getNode();
+		int opcode = node.getOpcode();
+		if (!isFoldable(opcode)) {
+			return NOT_CONSTANT;
+		}
+		Object inputs = getInputs(instruction);
+		if (!(inputs instanceof List)) {
+			return inputs;
+		}
+		return fold(node, (List<?>) inputs);
+	}
+
+	private Object evaluateCondition(IrInstruction branch) {
+		int opcode = branch.getOpcode();
+		if (opcode < Opcodes.IFEQ || opcode > Opcodes.IF_ICMPLE) {
+			return NOT_CONSTANT;
+		}
+		Object inputs = getInputs(branch);
+		if (!(inputs instanceof List)) {
+			return inputs;
+		}
+		List<?> operands = (List<?>) inputs;
+		int x = (Integer) operands.get(0);
+		int y = (operands.size() > 1 ? (Integer) operands.get(1) : 0);
+		switch (opcode) {
+
+			case Opcodes.IFEQ:
+			case Opcodes.IF_ICMPEQ:
+				return x == y;
+
+			case Opcodes.IFNE:
+			case Opcodes.IF_ICMPNE:
+				return x != y;
+
+			case Opcodes.IFLT:
+			case Opcodes.IF_ICMPLT:
+				return x < y;
+
+			case Opcodes.IFGE:
+			case Opcodes.IF_ICMPGE:
+				return x >= y;
+
+			case Opcodes.IFGT:
+			case Opcodes.IF_ICMPGT:
+				return x > y;
+
+			case Opcodes.IFLE:
+			case Opcodes.IF_ICMPLE:
+				return x <= y;
+
+			default:
+				throw new RuntimeException("unexpected opcode: " + opcode);
+
+		}
+	}
+
+	private Object evaluateSwitch(IrInstruction instruction) {
+		AbstractInsnNode node = instruction.getNode();
+		if (!(node instanceof TableSwitchInsnNode) && !(node instanceof LookupSwitchInsnNode)) {
+			return NOT_CONSTANT;
+		}
+		Object key = getValue(instruction.getInputs().get(0));
+		if (key == null || key == NOT_CONSTANT) {
+			return key;
+		}
+		int value = (Integer) key;
+		if (node instanceof TableSwitchInsnNode) {
+			TableSwitchInsnNode tableSwitch = (TableSwitchInsnNode) node;
+			if (value >= tableSwitch.min && value <= tableSwitch.max) {
+				return tableSwitch.labels.get(value - tableSwitch.min);
+			}
+			return tableSwitch.dflt;
+		} else {
+			LookupSwitchInsnNode lookupSwitch = (LookupSwitchInsnNode) node;
+			int index = lookupSwitch.keys.indexOf(value);
+			return (index < 0 ? lookupSwitch.dflt : lookupSwitch.labels.get(index));
+		}
+	}
+
+	/**
+	 * Returns the blocks that can follow the specified block through normal control flow, given the current values.
+	 */
+	private List<BasicBlock> getExecutableSuccessors(BasicBlock block) {
+		IrInstruction last = block.getLastRealInstruction();
+		if (last == null) {
+			return block.getSuccessors();
+		}
+		if (last.getNode() instanceof JumpInsnNode && last.getOpcode() != Opcodes.GOTO) {
+			Object condition = evaluateCondition(last);
+			if (condition == null) {
+				return Collections.emptyList();
+			} else if (condition == Boolean.TRUE) {
+				return Collections.singletonList(blocksByLabel.get(((JumpInsnNode) last.getNode()).label));
+			} else if (condition == Boolean.FALSE) {
+				return Collections.singletonList(method.getBlocks().get(block.getIndex() + 1));
+			}
+		} else {
+			Object target = evaluateSwitch(last);
+			if (target == null) {
+				return Collections.emptyList();
+			} else if (target != NOT_CONSTANT) {
+				return Collections.singletonList(blocksByLabel.get(target));
+			}
+		}
+		return block.getSuccessors();
+	}
+
+//endregion
+
+//region folding
+
+	private static boolean isFoldable(int opcode) {
+		return (opcode >= Opcodes.ICONST_M1 && opcode <= Opcodes.LDC) || (opcode >= Opcodes.IADD && opcode <= Opcodes.DCMPG);
+	}
+
+	/**
+	 * Computes the result of the specified instruction from its constant inputs, or returns NOT_CONSTANT if it
+	 * cannot be computed at compile-time.
+	 */
+	private static Object fold(AbstractInsnNode node, List<?> inputs) {
+		int opcode = node.getOpcode();
+		Object a = (inputs.size() > 0 ? inputs.get(0) : null);
+		Object b = (inputs.size() > 1 ? inputs.get(1) : null);
+		switch (opcode) {
+
+			case Opcodes.ICONST_M1:
+			case Opcodes.ICONST_0:
+			case Opcodes.ICONST_1:
+			case Opcodes.ICONST_2:
+			case Opcodes.ICONST_3:
+			case Opcodes.ICONST_4:
+			case Opcodes.ICONST_5:
+				return opcode - Opcodes.ICONST_0;
+
+			case Opcodes.LCONST_0:
+			case Opcodes.LCONST_1:
+				return (long) (opcode - Opcodes.LCONST_0);
+
+			case Opcodes.FCONST_0:
+			case Opcodes.FCONST_1:
+			case Opcodes.FCONST_2:
+				return (float) (opcode - Opcodes.FCONST_0);
+
+			case Opcodes.DCONST_0:
+			case Opcodes.DCONST_1:
+				return (double) (opcode - Opcodes.DCONST_0);
+
+			case Opcodes.BIPUSH:
+			case Opcodes.SIPUSH:
+				return ((IntInsnNode) node).operand;
+
+			case Opcodes.LDC: {
+				Object constant = ((LdcInsnNode) node).cst;
+				boolean primitive = (constant instanceof Integer || constant instanceof Long || constant instanceof Float || constant instanceof Double);
+				return (primitive ? constant : NOT_CONSTANT);
+			}
+
+			case Opcodes.IADD:
+				return (Integer) a + (Integer) b;
+
+			case Opcodes.LADD:
+				return (Long) a + (Long) b;
+
+			case Opcodes.FADD:
+				return (Float) a + (Float) b;
+
+			case Opcodes.DADD:
+				return (Double) a + (Double) b;
+
+			case Opcodes.ISUB:
+				return (Integer) a - (Integer) b;
+
+			case Opcodes.LSUB:
+				return (Long) a - (Long) b;
+
+			case Opcodes.FSUB:
+				return (Float) a - (Float) b;
+
+			case Opcodes.DSUB:
+				return (Double) a - (Double) b;
+
+			case Opcodes.IMUL:
+				return (Integer) a * (Integer) b;
+
+			case Opcodes.LMUL:
+				return (Long) a * (Long) b;
+
+			case Opcodes.FMUL:
+				return (Float) a * (Float) b;
+
+			case Opcodes.DMUL:
+				return (Double) a * (Double) b;
+
+			case Opcodes.IDIV:
+				return ((Integer) b == 0 ? NOT_CONSTANT : (Integer) a / (Integer) b);
+
+			case Opcodes.LDIV:
+				return ((Long) b == 0 ? NOT_CONSTANT : (Long) a / (Long) b);
+
+			case Opcodes.FDIV:
+				return (Float) a / (Float) b;
+
+			case Opcodes.DDIV:
+				return (Double) a / (Double) b;
+
+			case Opcodes.IREM:
+				return ((Integer) b == 0 ? NOT_CONSTANT : (Integer) a % (Integer) b);
+
+			case Opcodes.LREM:
+				return ((Long) b == 0 ? NOT_CONSTANT : (Long) a % (Long) b);
+
+			case Opcodes.FREM:
+				return (Float) a % (Float) b;
+
+			case Opcodes.DREM:
+				return (Double) a % (Double) b;
+
+			case Opcodes.INEG:
+				return -(Integer) a;
+
+			case Opcodes.LNEG:
+				return -(Long) a;
+
+			case Opcodes.FNEG:
+				return -(Float) a;
+
+			case Opcodes.DNEG:
+				return -(Double) a;
+
+			case Opcodes.ISHL:
+				return (Integer) a << (Integer) b;
+
+			case Opcodes.LSHL:
+				return (Long) a << (Integer) b;
+
+			case Opcodes.ISHR:
+				return (Integer) a >> (Integer) b;
+
+			case Opcodes.LSHR:
+				return (Long) a >> (Integer) b;
+
+			case Opcodes.IUSHR:
+				return (Integer) a >>> (Integer) b;
+
+			case Opcodes.LUSHR:
+				return (Long) a >>> (Integer) b;
+
+			case Opcodes.IAND:
+				return (Integer) a & (Integer) b;
+
+			case Opcodes.LAND:
+				return (Long) a & (Long) b;
+
+			case Opcodes.IOR:
+				return (Integer) a | (Integer) b;
+
+			case Opcodes.LOR:
+				return (Long) a | (Long) b;
+
+			case Opcodes.IXOR:
+				return (Integer) a ^ (Integer) b;
+
+			case Opcodes.LXOR:
+				return (Long) a ^ (Long) b;
+
+			case Opcodes.IINC:
+				return (Integer) a + ((IincInsnNode) node).incr;
+
+			case Opcodes.I2L:
+				return (long) (Integer) a;
+
+			case Opcodes.I2F:
+				return (float) (Integer) a;
+
+			case Opcodes.I2D:
+				return (double) (Integer) a;
+
+			case Opcodes.L2I:
+				return (int) (long) (Long) a;
+
+			case Opcodes.L2F:
+				return (float) (Long) a;
+
+			case Opcodes.L2D:
+				return (double) (Long) a;
+
+			case Opcodes.F2I:
+				return (int) (float) (Float) a;
+
+			case Opcodes.F2L:
+				return (long) (float) (Float) a;
+
+			case Opcodes.F2D:
+				return (double) (Float) a;
+
+			case Opcodes.D2I:
+				return (int) (double) (Double) a;
+
+			case Opcodes.D2L:
+				return (long) (double) (Double) a;
+
+			case Opcodes.D2F:
+				return (float) (double) (Double) a;
+
+			case Opcodes.I2B:
+				return (int) (byte) (int) (Integer) a;
+
+			case Opcodes.I2C:
+				return (int) (char) (int) (Integer) a;
+
+			case Opcodes.I2S:
+				return (int) (short) (int) (Integer) a;
+
+			case Opcodes.LCMP:
+				return Long.compare((Long) a, (Long) b);
+
+			case Opcodes.FCMPL:
+			case Opcodes.FCMPG:
+				return compare((Float) a, (Float) b, opcode == Opcodes.FCMPG);
+
+			case Opcodes.DCMPL:
+			case Opcodes.DCMPG:
+				return compare((Double) a, (Double) b, opcode == Opcodes.DCMPG);
+
+			default:
+				throw new RuntimeException("unexpected opcode: " + opcode);
+
+		}
+	}
+
+	/**
+	 * Compares like FCMPx / DCMPx, which (unlike Double.compare) treat 0.0 and -0.0 as equal and give the specified
+	 * result for NaN.
+	 */
+	private static int compare(double a, double b, boolean greaterForNaN) {
+		if (a < b) {
+			return -1;
+		} else if (a > b) {
+			return 1;
+		} else if (a == b) {
+			return 0;
+		} else {
+			return (greaterForNaN ? 1 : -1);
+		}
+	}
+
+//endregion
+
+}
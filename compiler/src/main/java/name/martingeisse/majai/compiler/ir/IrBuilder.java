@@ -0,0 +1,478 @@
+package name.martingeisse.majai.compiler.ir;
+
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.*;
+import org.objectweb.asm.tree.analysis.Analyzer;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.tree.analysis.BasicInterpreter;
+import org.objectweb.asm.tree.analysis.BasicValue;
+import org.objectweb.asm.tree.analysis.Frame;
+
+import java.util.*;
+
+/**
+ * Builds the {@link IrMethod} for a method.
+ * <p>
+ * First, the bytecode gets analyzed by ASM's {@link Analyzer} to find out which code is reachable and what types
+ * are in the local variables and on the operand stack at the start of each block. The instructions are then split
+ * into basic blocks, and each block is simulated using {@link SsaInterpreter}. Blocks with a single predecessor
+ * continue with the values left by that predecessor, while all other blocks start with a fresh phi value for each
+ * slot. Finally, phi values that turn out to select the same value on all paths are replaced by that value, which
+ * leaves only the phis that are really needed.
+ */
+public final class IrBuilder {
+
+	private final String ownerName;
+	private final MethodNode method;
+	private final SsaInterpreter interpreter;
+	private final BasicInterpreter typeInterpreter = new BasicInterpreter();
+	private final Map<PhiValue, SsaValue> replacements = new HashMap<>();
+	private AbstractInsnNode[] nodes;
+	private Frame<BasicValue>[] types;
+	private BasicBlock[] blockByNode;
+	private List<BasicBlock> blocks;
+	private int[] blockStarts;
+	private List<ParameterValue> parameters;
+	private int valueCount;
+
+	public IrBuilder(String ownerName, MethodNode method) {
+		this.ownerName = ownerName;
+		this.method = method;
+		this.interpreter = new SsaInterpreter(this);
+	}
+
+	int newValueId() {
+		return valueCount++;
+	}
+
+	public IrMethod build() throws AnalyzerException {
+		nodes = method.instructions.toArray();
+		types = new Analyzer<>(typeInterpreter).analyze(ownerName, method);
+		createBlocks();
+		createEdges();
+		createParameters();
+		for (BasicBlock block : blocks) {
+			if (block.isReachable() && needsPhis(block)) {
+				block.setEntryFrame(createPhiFrame(block));
+			}
+		}
+		for (BasicBlock block : getReversePostorder()) {
+			simulate(block);
+		}
+		for (BasicBlock block : blocks) {
+			if (block.isReachable() && needsPhis(block)) {
+				addNormalPhiOperands(block);
+			}
+		}
+		removeTrivialPhis();
+		applyReplacements();
+		return new IrMethod(method, blocks, parameters, valueCount);
+	}
+
+//region blocks and edges
+
+	private void createBlocks() {
+
+		// find the instructions that must start a new block
+		boolean[] leader = new boolean[nodes.length + 1];
+		leader[0] = true;
+		for (int i = 0; i < nodes.length; i++) {
+			AbstractInsnNode node = nodes[i];
+			if (node instanceof JumpInsnNode) {
+				leader[indexOf(((JumpInsnNode) node).label)] = true;
+				leader[i + 1] = true;
+			} else if (node instanceof TableSwitchInsnNode) {
+				TableSwitchInsnNode tableSwitch = (TableSwitchInsnNode) node;
+				markLeaders(leader, tableSwitch.dflt, tableSwitch.labels);
+				leader[i + 1] = true;
+			} else if (node instanceof LookupSwitchInsnNode) {
+				LookupSwitchInsnNode lookupSwitch = (LookupSwitchInsnNode) node;
+				markLeaders(leader, lookupSwitch.dflt, lookupSwitch.labels);
+				leader[i + 1] = true;
+			} else if (isExit(node.getOpcode())) {
+				leader[i + 1] = true;
+			}
+		}
+		for (TryCatchBlockNode tryCatchBlock : method.tryCatchBlocks) {
+			leader[indexOf(tryCatchBlock.start)] = true;
+			leader[indexOf(tryCatchBlock.end)] = true;
+			leader[indexOf(tryCatchBlock.handler)] = true;
+		}
+
+		// Split the instructions into blocks. A block that only contains pseudo-instructions so far is continued
+		// even at a leader, to avoid empty blocks between labels.
+		blocks = new ArrayList<>();
+		blockByNode = new BasicBlock[nodes.length];
+		List<Integer> starts = new ArrayList<>();
+		boolean currentBlockHasRealInstructions = false;
+		for (int i = 0; i < nodes.length; i++) {
+			if (blocks.isEmpty() || (leader[i] && currentBlockHasRealInstructions)) {
+				blocks.add(new BasicBlock(blocks.size()));
+				starts.add(i);
+				currentBlockHasRealInstructions = false;
+			}
+			blockByNode[i] = blocks.get(blocks.size() - 1);
+			if (nodes[i].getOpcode() >= 0) {
+				currentBlockHasRealInstructions = true;
+			}
+		}
+		if (blocks.isEmpty()) {
+			throw new IllegalArgumentException("method has no instructions: " + method.name);
+		}
+		blockStarts = new int[blocks.size() + 1];
+		for (int i = 0; i < starts.size(); i++) {
+			blockStarts[i] = starts.get(i);
+		}
+		blockStarts[blocks.size()] = nodes.length;
+
+		// Code flows sequentially through a block, so if anything in the block is reachable, then its end is.
+		for (BasicBlock block : blocks) {
+			block.setReachable(types[getEnd(block) - 1] != null);
+		}
+
+	}
+
+	private void markLeaders(boolean[] leader, LabelNode defaultLabel, List<LabelNode> labels) {
+		leader[indexOf(defaultLabel)] = true;
+		for (LabelNode label : labels) {
+			leader[indexOf(label)] = true;
+		}
+	}
+
+	private static boolean isExit(int opcode) {
+		return (opcode >= Opcodes.IRETURN && opcode <= Opcodes.RETURN) || opcode == Opcodes.ATHROW;
+	}
+
+	private int indexOf(AbstractInsnNode node) {
+		return method.instructions.indexOf(node);
+	}
+
+	private int getStart(BasicBlock block) {
+		return blockStarts[block.getIndex()];
+	}
+
+	private int getEnd(BasicBlock block) {
+		return blockStarts[block.getIndex() + 1];
+	}
+
+	private BasicBlock getBlock(LabelNode label) {
+		return blockByNode[indexOf(label)];
+	}
+
+	private void createEdges() {
+		for (BasicBlock block : blocks) {
+			AbstractInsnNode last = null;
+			for (int i = getEnd(block) - 1; i >= getStart(block); i--) {
+				if (nodes[i].getOpcode() >= 0) {
+					last = nodes[i];
+					break;
+				}
+			}
+			boolean fallsThrough = true;
+			if (last instanceof JumpInsnNode) {
+				block.addSuccessor(getBlock(((JumpInsnNode) last).label));
+				fallsThrough = (last.getOpcode() != Opcodes.GOTO);
+			} else if (last instanceof TableSwitchInsnNode) {
+				TableSwitchInsnNode tableSwitch = (TableSwitchInsnNode) last;
+				addSwitchSuccessors(block, tableSwitch.dflt, tableSwitch.labels);
+				fallsThrough = false;
+			} else if (last instanceof LookupSwitchInsnNode) {
+				LookupSwitchInsnNode lookupSwitch = (LookupSwitchInsnNode) last;
+				addSwitchSuccessors(block, lookupSwitch.dflt, lookupSwitch.labels);
+				fallsThrough = false;
+			} else if (last != null && isExit(last.getOpcode())) {
+				fallsThrough = false;
+			}
+			if (fallsThrough && block.getIndex() + 1 < blocks.size()) {
+				block.addSuccessor(blocks.get(block.getIndex() + 1));
+			}
+		}
+		for (TryCatchBlockNode tryCatchBlock : method.tryCatchBlocks) {
+			BasicBlock handler = getBlock(tryCatchBlock.handler);
+			for (int i = indexOf(tryCatchBlock.start); i < indexOf(tryCatchBlock.end); i++) {
+				if (nodes[i].getOpcode() >= 0) {
+					blockByNode[i].addExceptionHandler(handler);
+				}
+			}
+		}
+	}
+
+	private void addSwitchSuccessors(BasicBlock block, LabelNode defaultLabel, List<LabelNode> labels) {
+		block.addSuccessor(getBlock(defaultLabel));
+		for (LabelNode label : labels) {
+			block.addSuccessor(getBlock(label));
+		}
+	}
+
+	/**
+	 * Returns the reachable blocks in reverse postorder, so each block comes after all of its predecessors except
+	 * those reaching it through a back edge.
+	 */
+	private List<BasicBlock> getReversePostorder() {
+		List<BasicBlock> postorder = new ArrayList<>();
+		boolean[] visited = new boolean[blocks.size()];
+		Deque<BasicBlock> stack = new ArrayDeque<>();
+		Deque<Iterator<BasicBlock>> iterators = new ArrayDeque<>();
+		stack.push(blocks.get(0));
+		iterators.push(getAllSuccessors(blocks.get(0)).iterator());
+		visited[0] = true;
+		while (!stack.isEmpty()) {
+			Iterator<BasicBlock> iterator = iterators.peek();
+			if (iterator.hasNext()) {
+				BasicBlock successor = iterator.next();
+				if (!visited[successor.getIndex()]) {
+					visited[successor.getIndex()] = true;
+					stack.push(successor);
+					iterators.push(getAllSuccessors(successor).iterator());
+				}
+			} else {
+				postorder.add(stack.pop());
+				iterators.pop();
+			}
+		}
+		Collections.reverse(postorder);
+		return postorder;
+	}
+
+	private static List<BasicBlock> getAllSuccessors(BasicBlock block) {
+		List<BasicBlock> result = new ArrayList<>(block.getSuccessors());
+		result.addAll(block.getExceptionHandlers());
+		return result;
+	}
+
+//endregion
+
+//region values
+
+	private void createParameters() {
+		parameters = new ArrayList<>();
+		int localIndex = 0;
+		if ((method.access & Opcodes.ACC_STATIC) == 0) {
+			parameters.add(new ParameterValue(newValueId(), BasicValue.REFERENCE_VALUE, 0));
+			localIndex++;
+		}
+		for (Type type : Type.getArgumentTypes(method.desc)) {
+			ParameterValue parameter = new ParameterValue(newValueId(), typeInterpreter.newValue(type), localIndex);
+			parameters.add(parameter);
+			localIndex += parameter.getSize();
+		}
+	}
+
+	private boolean needsPhis(BasicBlock block) {
+		return block.getIndex() == 0 ? !block.getPredecessors().isEmpty() : (block.isExceptionHandler() || block.getPredecessors().size() != 1);
+	}
+
+	private Frame<BasicValue> getEntryTypes(BasicBlock block) {
+		for (int i = getStart(block); i < getEnd(block); i++) {
+			if (types[i] != null) {
+				return types[i];
+			}
+		}
+		throw new IllegalStateException("block is not reachable: " + block);
+	}
+
+	/**
+	 * Creates the entry frame for a block that merges control flow. All slots that hold a usable value get a new phi
+	 * value. The phi operands for exceptional control flow are added while simulating the throwing blocks, and those
+	 * for normal control flow afterwards.
+	 */
+	private Frame<SsaValue> createPhiFrame(BasicBlock block) {
+		Frame<BasicValue> entryTypes = getEntryTypes(block);
+		Frame<SsaValue> frame = new Frame<>(method.maxLocals, method.maxStack);
+		for (int i = 0; i < entryTypes.getLocals(); i++) {
+			frame.setLocal(i, createPhi(block, entryTypes.getLocal(i)));
+		}
+		if (block.isExceptionHandler() && block.getPredecessors().isEmpty()) {
+			frame.push(new CaughtExceptionValue(newValueId(), block));
+		} else {
+			for (int i = 0; i < entryTypes.getStackSize(); i++) {
+				frame.push(createPhi(block, entryTypes.getStack(i)));
+			}
+			if (block.isExceptionHandler()) {
+				((PhiValue) frame.getStack(0)).addOperand(new CaughtExceptionValue(newValueId(), block), null);
+			}
+		}
+		if (block.getIndex() == 0) {
+			Frame<SsaValue> parameterFrame = createParameterFrame();
+			for (int i = 0; i < frame.getLocals(); i++) {
+				addOperand(block, frame.getLocal(i), parameterFrame.getLocal(i), null);
+			}
+		}
+		return frame;
+	}
+
+	private SsaValue createPhi(BasicBlock block, BasicValue type) {
+		if (type == null || type == BasicValue.UNINITIALIZED_VALUE) {
+			return SsaValue.EMPTY;
+		}
+		PhiValue phi = new PhiValue(newValueId(), type, block);
+		block.addPhi(phi);
+		return phi;
+	}
+
+	private Frame<SsaValue> createParameterFrame() {
+		Frame<SsaValue> frame = new Frame<>(method.maxLocals, method.maxStack);
+		for (int i = 0; i < method.maxLocals; i++) {
+			frame.setLocal(i, SsaValue.EMPTY);
+		}
+		for (ParameterValue parameter : parameters) {
+			frame.setLocal(parameter.getLocalIndex(), parameter);
+		}
+		return frame;
+	}
+
+	/**
+	 * Adds the values from the specified frame as operands to the phi values of the specified block. Slots that
+	 * hold no phi of that block (because they hold no usable value) are skipped. The operand stack is not passed
+	 * along by exceptional control flow, so it is only considered for normal control flow.
+	 */
+	private void addOperands(BasicBlock block, Frame<SsaValue> frame, BasicBlock source, boolean includeStack) {
+		Frame<SsaValue> entryFrame = block.getEntryFrame();
+		for (int i = 0; i < frame.getLocals(); i++) {
+			addOperand(block, entryFrame.getLocal(i), frame.getLocal(i), source);
+		}
+		if (includeStack) {
+			for (int i = 0; i < frame.getStackSize(); i++) {
+				addOperand(block, entryFrame.getStack(i), frame.getStack(i), source);
+			}
+		}
+	}
+
+	private void addOperand(BasicBlock block, SsaValue slot, SsaValue operand, BasicBlock source) {
+		if (slot instanceof PhiValue && ((PhiValue) slot).getBlock() == block) {
+			((PhiValue) slot).addOperand(operand, source);
+		}
+	}
+
+	private void simulate(BasicBlock block) {
+		Frame<SsaValue> frame;
+		if (needsPhis(block)) {
+			frame = new Frame<>(block.getEntryFrame());
+		} else if (block.getIndex() == 0) {
+			frame = createParameterFrame();
+			block.setEntryFrame(new Frame<>(frame));
+		} else {
+			frame = new Frame<>(block.getPredecessors().get(0).getExitFrame());
+			block.setEntryFrame(new Frame<>(frame));
+		}
+		for (int i = getStart(block); i < getEnd(block); i++) {
+			AbstractInsnNode node = nodes[i];
+			IrInstruction instruction = new IrInstruction(node, block, getStackWords(frame), types[i]);
+			block.addInstruction(instruction);
+			if (node.getOpcode() >= 0) {
+				for (BasicBlock handler : block.getExceptionHandlers()) {
+					addOperands(handler, frame, block, false);
+				}
+				interpreter.setCurrentInstruction(instruction);
+				try {
+					frame.execute(node, interpreter);
+				} catch (AnalyzerException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		}
+		block.setExitFrame(frame);
+	}
+
+	private static int getStackWords(Frame<SsaValue> frame) {
+		int words = 0;
+		for (int i = 0; i < frame.getStackSize(); i++) {
+			words += frame.getStack(i).getSize();
+		}
+		return words;
+	}
+
+	private void addNormalPhiOperands(BasicBlock block) {
+		for (BasicBlock predecessor : block.getPredecessors()) {
+			if (predecessor.isReachable()) {
+				addOperands(block, predecessor.getExitFrame(), predecessor, true);
+			}
+		}
+	}
+
+//endregion
+
+//region phi simplification
+
+	/**
+	 * Removes phi values whose operands are all the same value, not counting the phi itself. This is repeated
+	 * because removing one phi may turn another one trivial.
+	 */
+	private void removeTrivialPhis() {
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (BasicBlock block : blocks) {
+				for (PhiValue phi : new ArrayList<>(block.getPhis())) {
+					SsaValue same = getTrivialPhiValue(phi);
+					if (same != null) {
+						replacements.put(phi, same);
+						block.removePhi(phi);
+						changed = true;
+					}
+				}
+			}
+		}
+	}
+
+	private SsaValue getTrivialPhiValue(PhiValue phi) {
+		SsaValue same = null;
+		for (SsaValue operand : phi.getOperands()) {
+			operand = resolve(operand);
+			if (operand == phi || operand == same) {
+				continue;
+			}
+			if (same != null) {
+				return null;
+			}
+			same = operand;
+		}
+		return same == null ? SsaValue.EMPTY : same;
+	}
+
+	private SsaValue resolve(SsaValue value) {
+		while (value instanceof PhiValue && replacements.containsKey(value)) {
+			value = replacements.get(value);
+		}
+		return value;
+	}
+
+	private void applyReplacements() {
+		if (replacements.isEmpty()) {
+			return;
+		}
+		for (BasicBlock block : blocks) {
+			for (PhiValue phi : block.getPhis()) {
+				for (int i = 0; i < phi.getOperands().size(); i++) {
+					phi.setOperand(i, resolve(phi.getOperands().get(i)));
+				}
+			}
+			for (IrInstruction instruction : block.getInstructions()) {
+				for (int i = 0; i < instruction.getInputs().size(); i++) {
+					instruction.setInput(i, resolve(instruction.getInputs().get(i)));
+				}
+				if (instruction.getOutput() != null) {
+					instruction.setOutput(resolve(instruction.getOutput()));
+				}
+			}
+			applyReplacements(block.getEntryFrame());
+			applyReplacements(block.getExitFrame());
+		}
+	}
+
+	private void applyReplacements(Frame<SsaValue> frame) {
+		if (frame == null) {
+			return;
+		}
+		for (int i = 0; i < frame.getLocals(); i++) {
+			frame.setLocal(i, resolve(frame.getLocal(i)));
+		}
+		for (int i = 0; i < frame.getStackSize(); i++) {
+			frame.setStack(i, resolve(frame.getStack(i)));
+		}
+	}
+
+//endregion
+
+}
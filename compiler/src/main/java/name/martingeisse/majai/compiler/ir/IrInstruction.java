@@ -0,0 +1,88 @@
+package name.martingeisse.majai.compiler.ir;
+
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.analysis.BasicValue;
+import org.objectweb.asm.tree.analysis.Frame;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Wraps a bytecode instruction and adds the SSA values it consumes and produces. Pseudo-instructions (labels, line
+ * numbers and stack map frames) are kept as well, with no inputs and no output, so the lowering can still see them.
+ * <p>
+ * The inputs are listed in the order they were pushed, so for a binary operation the left operand comes first.
+ * Instructions that only move values (local variable access, DUP, SWAP, POP and so on) do not produce a new value:
+ * loads and stores list the moved value as both input and output, and the stack manipulation instructions have
+ * neither.
+ */
+public final class IrInstruction {
+
+	private final AbstractInsnNode node;
+	private final BasicBlock block;
+	private final int stackWordsBefore;
+	private final Frame<BasicValue> typesBefore;
+	private final List<SsaValue> inputs = new ArrayList<>();
+	private SsaValue output;
+
+	IrInstruction(AbstractInsnNode node, BasicBlock block, int stackWordsBefore, Frame<BasicValue> typesBefore) {
+		this.node = node;
+		this.block = block;
+		this.stackWordsBefore = stackWordsBefore;
+		this.typesBefore = typesBefore;
+	}
+
+	public AbstractInsnNode getNode() {
+		return node;
+	}
+
+	public int getOpcode() {
+		return node.getOpcode();
+	}
+
+	public BasicBlock getBlock() {
+		return block;
+	}
+
+	/**
+	 * Returns the operand stack depth in words before this instruction gets executed.
+	 */
+	public int getStackWordsBefore() {
+		return stackWordsBefore;
+	}
+
+	/**
+	 * Returns the types of the local variables and operand stack entries before this instruction gets executed, in
+	 * terms of {@link org.objectweb.asm.tree.analysis.BasicInterpreter}. The frame must not be modified.
+	 */
+	public Frame<BasicValue> getTypesBefore() {
+		return typesBefore;
+	}
+
+	public List<SsaValue> getInputs() {
+		return Collections.unmodifiableList(inputs);
+	}
+
+	public SsaValue getOutput() {
+		return output;
+	}
+
+	void addInput(SsaValue input) {
+		inputs.add(input);
+	}
+
+	void setInput(int index, SsaValue input) {
+		inputs.set(index, input);
+	}
+
+	void setOutput(SsaValue output) {
+		this.output = output;
+	}
+
+	@Override
+	public String toString() {
+		return (output == null ? "" : output + " = ") + node.getOpcode() + " " + inputs;
+	}
+
+}
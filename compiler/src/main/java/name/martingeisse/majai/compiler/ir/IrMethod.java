@@ -0,0 +1,55 @@
+package name.martingeisse.majai.compiler.ir;
+
+import org.objectweb.asm.tree.MethodNode;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The intermediate representation of a method: its control flow graph made of {@link BasicBlock}s, with the operand
+ * stack and local variables resolved into {@link SsaValue}s. Use {@link IrBuilder} to create it.
+ */
+public final class IrMethod {
+
+	private final MethodNode methodNode;
+	private final List<BasicBlock> blocks;
+	private final List<ParameterValue> parameters;
+	private final int valueCount;
+
+	IrMethod(MethodNode methodNode, List<BasicBlock> blocks, List<ParameterValue> parameters, int valueCount) {
+		this.methodNode = methodNode;
+		this.blocks = Collections.unmodifiableList(blocks);
+		this.parameters = Collections.unmodifiableList(parameters);
+		this.valueCount = valueCount;
+	}
+
+	public MethodNode getMethodNode() {
+		return methodNode;
+	}
+
+	/**
+	 * Returns all blocks, including unreachable ones, in bytecode order.
+	 */
+	public List<BasicBlock> getBlocks() {
+		return blocks;
+	}
+
+	public BasicBlock getEntryBlock() {
+		return blocks.get(0);
+	}
+
+	/**
+	 * Returns the parameter values, including "this" for instance methods, in local variable order.
+	 */
+	public List<ParameterValue> getParameters() {
+		return parameters;
+	}
+
+	/**
+	 * Returns an upper bound for the value IDs in this method, useful to store per-value information in arrays.
+	 */
+	public int getValueCount() {
+		return valueCount;
+	}
+
+}
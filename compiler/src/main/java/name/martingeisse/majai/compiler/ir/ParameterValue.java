@@ -0,0 +1,24 @@
+package name.martingeisse.majai.compiler.ir;
+
+import org.objectweb.asm.tree.analysis.BasicValue;
+
+/**
+ * The value of a method parameter (including "this") on entry to the method.
+ */
+public final class ParameterValue extends SsaValue {
+
+	private final int localIndex;
+
+	ParameterValue(int id, BasicValue type, int localIndex) {
+		super(id, type);
+		this.localIndex = localIndex;
+	}
+
+	/**
+	 * Returns the index of the local variable that holds this parameter on entry.
+	 */
+	public int getLocalIndex() {
+		return localIndex;
+	}
+
+}
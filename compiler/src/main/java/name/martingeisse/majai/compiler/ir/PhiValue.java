@@ -0,0 +1,51 @@
+package name.martingeisse.majai.compiler.ir;
+
+import org.objectweb.asm.tree.analysis.BasicValue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A phi function at the start of a basic block. It selects one of its operands depending on where control came
+ * from. Each operand is paired with the block it comes from. For normal control flow, that is a predecessor block;
+ * for exception handlers, it is the block containing the throwing instruction. The same block may appear more than
+ * once, e.g. if several instructions of the same block may throw.
+ */
+public final class PhiValue extends SsaValue {
+
+	private final BasicBlock block;
+	private final List<SsaValue> operands = new ArrayList<>();
+	private final List<BasicBlock> sources = new ArrayList<>();
+
+	PhiValue(int id, BasicValue type, BasicBlock block) {
+		super(id, type);
+		this.block = block;
+	}
+
+	public BasicBlock getBlock() {
+		return block;
+	}
+
+	public List<SsaValue> getOperands() {
+		return Collections.unmodifiableList(operands);
+	}
+
+	/**
+	 * Returns the blocks the operands come from, in the same order as {@link #getOperands()}. An entry is null for
+	 * the implicit entry edge of the method.
+	 */
+	public List<BasicBlock> getSources() {
+		return Collections.unmodifiableList(sources);
+	}
+
+	void addOperand(SsaValue operand, BasicBlock source) {
+		operands.add(operand);
+		sources.add(source);
+	}
+
+	void setOperand(int index, SsaValue operand) {
+		operands.set(index, operand);
+	}
+
+}
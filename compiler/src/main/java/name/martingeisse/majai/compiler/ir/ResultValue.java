@@ -0,0 +1,21 @@
+package name.martingeisse.majai.compiler.ir;
+
+import org.objectweb.asm.tree.analysis.BasicValue;
+
+/**
+ * A value computed by an instruction.
+ */
+public final class ResultValue extends SsaValue {
+
+	private final IrInstruction definition;
+
+	ResultValue(int id, BasicValue type, IrInstruction definition) {
+		super(id, type);
+		this.definition = definition;
+	}
+
+	public IrInstruction getDefinition() {
+		return definition;
+	}
+
+}
@@ -0,0 +1,108 @@
+package name.martingeisse.majai.compiler.ir;
+
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.tree.analysis.BasicInterpreter;
+import org.objectweb.asm.tree.analysis.BasicValue;
+import org.objectweb.asm.tree.analysis.Interpreter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Lets {@link org.objectweb.asm.tree.analysis.Frame#execute} do the actual work of simulating the operand stack and
+ * local variables, while recording the inputs and output of each instruction. Types are computed by delegating to
+ * a {@link BasicInterpreter}.
+ */
+final class SsaInterpreter extends Interpreter<SsaValue> {
+
+	private final BasicInterpreter typeInterpreter = new BasicInterpreter();
+	private final IrBuilder builder;
+	private IrInstruction currentInstruction;
+
+	SsaInterpreter(IrBuilder builder) {
+		super(Opcodes.ASM7);
+		this.builder = builder;
+	}
+
+	void setCurrentInstruction(IrInstruction currentInstruction) {
+		this.currentInstruction = currentInstruction;
+	}
+
+	@Override
+	public SsaValue newValue(Type type) {
+		if (type == null) {
+			return SsaValue.EMPTY;
+		}
+		if (type == Type.VOID_TYPE) {
+			return null;
+		}
+		throw new IllegalStateException("unexpected request for a new value of type " + type);
+	}
+
+	@Override
+	public SsaValue newOperation(AbstractInsnNode insn) throws AnalyzerException {
+		return result(typeInterpreter.newOperation(insn));
+	}
+
+	@Override
+	public SsaValue copyOperation(AbstractInsnNode insn, SsaValue value) {
+		currentInstruction.addInput(value);
+		currentInstruction.setOutput(value);
+		return value;
+	}
+
+	@Override
+	public SsaValue unaryOperation(AbstractInsnNode insn, SsaValue value) throws AnalyzerException {
+		currentInstruction.addInput(value);
+		return result(typeInterpreter.unaryOperation(insn, value.getType()));
+	}
+
+	@Override
+	public SsaValue binaryOperation(AbstractInsnNode insn, SsaValue value1, SsaValue value2) throws AnalyzerException {
+		currentInstruction.addInput(value1);
+		currentInstruction.addInput(value2);
+		return result(typeInterpreter.binaryOperation(insn, value1.getType(), value2.getType()));
+	}
+
+	@Override
+	public SsaValue ternaryOperation(AbstractInsnNode insn, SsaValue value1, SsaValue value2, SsaValue value3) throws AnalyzerException {
+		currentInstruction.addInput(value1);
+		currentInstruction.addInput(value2);
+		currentInstruction.addInput(value3);
+		return result(typeInterpreter.ternaryOperation(insn, value1.getType(), value2.getType(), value3.getType()));
+	}
+
+	@Override
+	public SsaValue naryOperation(AbstractInsnNode insn, List<? extends SsaValue> values) throws AnalyzerException {
+		List<BasicValue> types = new ArrayList<>();
+		for (SsaValue value : values) {
+			currentInstruction.addInput(value);
+			types.add(value.getType());
+		}
+		return result(typeInterpreter.naryOperation(insn, types));
+	}
+
+	@Override
+	public void returnOperation(AbstractInsnNode insn, SsaValue value, SsaValue expected) {
+		// the returned value has already been recorded by unaryOperation()
+	}
+
+	@Override
+	public SsaValue merge(SsaValue value1, SsaValue value2) {
+		// merging is done through phi values by the IrBuilder
+		throw new UnsupportedOperationException();
+	}
+
+	private SsaValue result(BasicValue type) {
+		if (type == null) {
+			return null;
+		}
+		ResultValue value = new ResultValue(builder.newValueId(), type, currentInstruction);
+		currentInstruction.setOutput(value);
+		return value;
+	}
+
+}
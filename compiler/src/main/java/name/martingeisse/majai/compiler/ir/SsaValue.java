@@ -0,0 +1,58 @@
+package name.martingeisse.majai.compiler.ir;
+
+import org.objectweb.asm.tree.analysis.BasicValue;
+import org.objectweb.asm.tree.analysis.Value;
+
+/**
+ * A value in SSA form: it is defined exactly once, and all uses refer to that single definition. Values are created
+ * by instructions, by phi functions at control flow merges, for the method parameters and for caught exceptions.
+ * Instructions that only move values around (local variable loads and stores, DUP, SWAP and so on) do not create
+ * new values but pass on the existing ones.
+ * <p>
+ * Long and double values are single values with a size of two words, like in the ASM analysis framework.
+ */
+public abstract class SsaValue implements Value {
+
+	/**
+	 * Used for local variables that do not hold a usable value, and for the second slot of long / double locals.
+	 */
+	public static final SsaValue EMPTY = new SsaValue(-1, BasicValue.UNINITIALIZED_VALUE) {
+		@Override
+		public String toString() {
+			return "empty";
+		}
+	};
+
+	private final int id;
+	private final BasicValue type;
+
+	SsaValue(int id, BasicValue type) {
+		this.id = id;
+		this.type = type;
+	}
+
+	/**
+	 * Returns a number that identifies this value within its method.
+	 */
+	public int getId() {
+		return id;
+	}
+
+	/**
+	 * Returns the type of this value in terms of {@link org.objectweb.asm.tree.analysis.BasicInterpreter}.
+	 */
+	public BasicValue getType() {
+		return type;
+	}
+
+	@Override
+	public int getSize() {
+		return type.getSize();
+	}
+
+	@Override
+	public String toString() {
+		return "v" + id;
+	}
+
+}
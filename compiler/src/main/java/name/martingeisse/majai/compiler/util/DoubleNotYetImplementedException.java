@@ -1,9 +0,0 @@
-package name.martingeisse.majai.compiler.util;
-
-public class DoubleNotYetImplementedException extends NotYetImplementedException {
-
-    public DoubleNotYetImplementedException() {
-        super("double type not yet implemented");
-    }
-    
-}
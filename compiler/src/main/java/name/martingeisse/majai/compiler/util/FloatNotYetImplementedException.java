@@ -1,9 +0,0 @@
-package name.martingeisse.majai.compiler.util;
-
-public class FloatNotYetImplementedException extends NotYetImplementedException {
-
-    public FloatNotYetImplementedException() {
-        super("float type not yet implemented");
-    }
-
-}
@@ -1,9 +0,0 @@
-package name.martingeisse.majai.compiler.util;
-
-public class LongNotYetImplementedException extends NotYetImplementedException {
-
-    public LongNotYetImplementedException() {
-        super("long type not yet implemented");
-    }
-    
-}
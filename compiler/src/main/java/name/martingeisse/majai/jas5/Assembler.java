@@ -0,0 +1,152 @@
+package name.martingeisse.majai.jas5;
+
+import java.util.*;
+
+import static name.martingeisse.majai.jas5.InstructionEncoding.*;
+
+/**
+ * Builds a RISC-V (RV32IMFD) program image from method calls instead of assembler source code. Code and data are
+ * appended to named {@link Segment}s, using {@link Label}s for addresses that are not yet known. Linking places the
+ * segments one after another and then fixes up all references to labels.
+ * <p>
+ * The assembler is not thread-safe.
+ */
+public final class Assembler {
+
+	private final Map<String, Segment> segments = new LinkedHashMap<>();
+	private final Map<String, Label> labels = new HashMap<>();
+
+	/**
+	 * Returns the segment with the specified name, creating it if it does not exist yet.
+	 */
+	public Segment getSegment(String name) {
+		return segments.computeIfAbsent(name, name2 -> new Segment(this, name2));
+	}
+
+	/**
+	 * Returns the global label with the specified name. The label is created on first use and must be placed before
+	 * linking.
+	 */
+	public Label getLabel(String name) {
+		return labels.computeIfAbsent(name, Label::new);
+	}
+
+	/**
+	 * Makes the global label with the specified name an alias for another label, like the ".set" directive.
+	 */
+	public void alias(String name, Label target) {
+		getLabel(name).setAliasTarget(target);
+	}
+
+	/**
+	 * Places all segments one after another, starting at the base address, and resolves all label references. The
+	 * segments listed in segmentOrder come first, in that order; the others follow in the order they were created.
+	 * The entry point of the image is the start of the first segment.
+	 * <p>
+	 * This method does not modify the assembler, so it can be called again after adding more code.
+	 */
+	public LinkedImage link(int baseAddress, String... segmentOrder) {
+
+		// determine the order of the segments
+		List<Segment> orderedSegments = new ArrayList<>();
+		for (String name : segmentOrder) {
+			Segment segment = segments.get(name);
+			if (segment != null) {
+				orderedSegments.add(segment);
+			}
+		}
+		for (Segment segment : segments.values()) {
+			if (!orderedSegments.contains(segment)) {
+				orderedSegments.add(segment);
+			}
+		}
+
+		// assign addresses
+		Map<Segment, Integer> segmentAddresses = new HashMap<>();
+		int address = baseAddress;
+		for (Segment segment : orderedSegments) {
+			address = (address + segment.getAlignment() - 1) & -segment.getAlignment();
+			segmentAddresses.put(segment, address);
+			address += segment.getSize();
+		}
+
+		// apply fixups
+		List<LinkedImage.LinkedSegment> linkedSegments = new ArrayList<>();
+		for (Segment segment : orderedSegments) {
+			int segmentAddress = segmentAddresses.get(segment);
+			byte[] data = segment.getData();
+			for (Fixup fixup : segment.getFixups()) {
+				Label label = fixup.label.resolve();
+				if (label == null) {
+					throw new AssemblerException("undefined symbol: " + fixup.label);
+				}
+				int target = segmentAddresses.get(label.getSegment()) + label.getOffset() + fixup.addend;
+				try {
+					applyFixup(data, fixup, target - segmentAddress - fixup.offset, target);
+				} catch (AssemblerException e) {
+					throw new AssemblerException("cannot reference " + fixup.label + " from " + segment.getName() + "+" + fixup.offset, e);
+				}
+			}
+			linkedSegments.add(new LinkedImage.LinkedSegment(segment.getName(), segmentAddress, segment.isExecutable(), data));
+		}
+
+		// collect symbols
+		Map<String, Integer> symbols = new TreeMap<>();
+		for (Label label : labels.values()) {
+			Label resolved = label.resolve();
+			if (resolved == null) {
+				throw new AssemblerException("undefined symbol: " + label);
+			}
+			symbols.put(label.getName(), segmentAddresses.get(resolved.getSegment()) + resolved.getOffset());
+		}
+
+		int entryAddress = orderedSegments.isEmpty() ? baseAddress : segmentAddresses.get(orderedSegments.get(0));
+		return new LinkedImage(linkedSegments, symbols, entryAddress);
+	}
+
+	private static void applyFixup(byte[] data, Fixup fixup, int relativeTarget, int absoluteTarget) {
+		switch (fixup.kind) {
+
+			case ABSOLUTE_WORD:
+				writeWord(data, fixup.offset, absoluteTarget);
+				break;
+
+			case BRANCH:
+				writeWord(data, fixup.offset, withBImmediate(readWord(data, fixup.offset), relativeTarget));
+				break;
+
+			case JUMP:
+				writeWord(data, fixup.offset, withJImmediate(readWord(data, fixup.offset), relativeTarget));
+				break;
+
+			case PC_RELATIVE_PAIR_I:
+			case PC_RELATIVE_PAIR_S: {
+				writeWord(data, fixup.offset, withUImmediate(readWord(data, fixup.offset), getHigh(relativeTarget)));
+				int lowInstruction = readWord(data, fixup.offset + 4);
+				if (fixup.kind == Fixup.Kind.PC_RELATIVE_PAIR_I) {
+					lowInstruction = withIImmediate(lowInstruction, getLow(relativeTarget));
+				} else {
+					lowInstruction = withSImmediate(lowInstruction, getLow(relativeTarget));
+				}
+				writeWord(data, fixup.offset + 4, lowInstruction);
+				break;
+			}
+
+			default:
+				throw new RuntimeException("unknown fixup kind: " + fixup.kind);
+
+		}
+	}
+
+	private static int readWord(byte[] data, int offset) {
+		return (data[offset] & 0xff) | ((data[offset + 1] & 0xff) << 8) | ((data[offset + 2] & 0xff) << 16) | (data[offset + 3] << 24);
+	}
+
+	private static void writeWord(byte[] data, int offset, int value) {
+		data[offset] = (byte) value;
+		data[offset + 1] = (byte) (value >> 8);
+		data[offset + 2] = (byte) (value >> 16);
+		data[offset + 3] = (byte) (value >> 24);
+	}
+
+}
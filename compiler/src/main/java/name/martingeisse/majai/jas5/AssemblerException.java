@@ -0,0 +1,16 @@
+package name.martingeisse.majai.jas5;
+
+/**
+ * Reports invalid input to the assembler, such as undefined symbols, out-of-range operands or syntax errors.
+ */
+public class AssemblerException extends RuntimeException {
+
+	public AssemblerException(String message) {
+		super(message);
+	}
+
+	public AssemblerException(String message, Throwable cause) {
+		super(message, cause);
+	}
+
+}
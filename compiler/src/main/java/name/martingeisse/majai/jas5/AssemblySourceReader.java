@@ -0,0 +1,794 @@
+package name.martingeisse.majai.jas5;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Feeds assembler source code into an {@link Assembler}. This supports the subset of the GNU assembler syntax that
+ * the compiler and its hand-written runtime code use: labels, line comments, the RV32IMFD instructions with the common
+ * pseudo-instructions, and the data, alignment, segment and symbol directives. Floating-point instructions take an
+ * optional rounding mode operand (e.g. "rtz") where the GNU assembler does.
+ * <p>
+ * Operands that refer to addresses may be a symbol, optionally followed by "+ constant" or "- constant".
+ */
+public final class AssemblySourceReader {
+
+	private static final Pattern LABEL_PATTERN = Pattern.compile("\\s*([A-Za-z_.$][A-Za-z0-9_.$]*)\\s*:");
+	private static final Pattern SYMBOL_PATTERN = Pattern.compile("([A-Za-z_.$][A-Za-z0-9_.$]*)\\s*(?:([+-])\\s*(\\S+))?");
+	private static final Pattern ADDRESS_PATTERN = Pattern.compile("(.*)\\(\\s*([a-z0-9]+)\\s*\\)");
+
+	private final Assembler assembler;
+	private Segment segment;
+
+	public AssemblySourceReader(Assembler assembler) {
+		this.assembler = assembler;
+		this.segment = assembler.getSegment(".text");
+	}
+
+	/**
+	 * Returns the segment that code and data currently go to. This is initially the .text segment.
+	 */
+	public Segment getSegment() {
+		return segment;
+	}
+
+	public void read(String source) {
+		int lineNumber = 0;
+		int lineStart = 0;
+		while (lineStart < source.length()) {
+			int lineEnd = source.indexOf('\n', lineStart);
+			if (lineEnd < 0) {
+				lineEnd = source.length();
+			}
+			lineNumber++;
+			String line = source.substring(lineStart, lineEnd);
+			try {
+				readLine(line);
+			} catch (RuntimeException e) {
+				throw new AssemblerException("error in line " + lineNumber + " (" + line.trim() + "): " + e.getMessage(), e);
+			}
+			lineStart = lineEnd + 1;
+		}
+	}
+
+	private void readLine(String line) {
+
+		// remove comments
+		int commentStart = line.indexOf("//");
+		if (commentStart >= 0) {
+			line = line.substring(0, commentStart);
+		}
+		commentStart = line.indexOf('#');
+		if (commentStart >= 0) {
+			line = line.substring(0, commentStart);
+		}
+
+		// labels
+		while (true) {
+			Matcher matcher = LABEL_PATTERN.matcher(line);
+			if (!matcher.lookingAt()) {
+				break;
+			}
+			segment.label(matcher.group(1));
+			line = line.substring(matcher.end());
+		}
+
+		// instruction or directive
+		line = line.trim();
+		if (line.isEmpty()) {
+			return;
+		}
+		int mnemonicEnd = 0;
+		while (mnemonicEnd < line.length() && !Character.isWhitespace(line.charAt(mnemonicEnd))) {
+			mnemonicEnd++;
+		}
+		String mnemonic = line.substring(0, mnemonicEnd);
+		List<String> operands = new ArrayList<>();
+		String operandText = line.substring(mnemonicEnd).trim();
+		if (!operandText.isEmpty()) {
+			for (String operand : operandText.split(",")) {
+				operands.add(operand.trim());
+			}
+		}
+		if (mnemonic.startsWith(".")) {
+			directive(mnemonic, operands);
+		} else {
+			instruction(mnemonic, operands);
+		}
+	}
+
+	//region directives
+
+	private void directive(String mnemonic, List<String> operands) {
+		switch (mnemonic) {
+
+			case ".text":
+			case ".data":
+			case ".bss":
+				segment = assembler.getSegment(mnemonic);
+				break;
+
+			case ".section":
+				segment = assembler.getSegment(operands.get(0));
+				break;
+
+			case ".globl":
+			case ".global":
+				// all labels are global
+				break;
+
+			case ".option":
+				if (!operands.get(0).equals("norvc")) {
+					throw new AssemblerException("unsupported option: " + operands.get(0));
+				}
+				break;
+
+			case ".set":
+			case ".equ": {
+				Matcher matcher = SYMBOL_PATTERN.matcher(operands.get(1));
+				if (!matcher.matches() || matcher.group(2) != null) {
+					throw new AssemblerException(mnemonic + " is only supported to define an alias for another symbol");
+				}
+				assembler.alias(operands.get(0), assembler.getLabel(matcher.group(1)));
+				break;
+			}
+
+			case ".align":
+			case ".p2align":
+				segment.align(parseInt(operands.get(0)));
+				break;
+
+			case ".balign":
+				segment.align(Integer.numberOfTrailingZeros(parseInt(operands.get(0))));
+				break;
+
+			case ".byte":
+				for (String operand : operands) {
+					segment.byte_(parseInt(operand));
+				}
+				break;
+
+			case ".short":
+			case ".half":
+			case ".2byte":
+				for (String operand : operands) {
+					segment.half(parseInt(operand));
+				}
+				break;
+
+			case ".word":
+			case ".4byte":
+				for (String operand : operands) {
+					Matcher matcher = SYMBOL_PATTERN.matcher(operand);
+					if (matcher.matches()) {
+						segment.word(assembler.getLabel(matcher.group(1)), parseAddend(matcher));
+					} else {
+						segment.word(parseInt(operand));
+					}
+				}
+				break;
+
+			case ".quad":
+			case ".dword":
+			case ".8byte":
+				for (String operand : operands) {
+					segment.dword(parseLong(operand));
+				}
+				break;
+
+			case ".float":
+				for (String operand : operands) {
+					segment.word(Float.floatToRawIntBits(Float.parseFloat(operand)));
+				}
+				break;
+
+			case ".double":
+				for (String operand : operands) {
+					segment.dword(Double.doubleToRawLongBits(Double.parseDouble(operand)));
+				}
+				break;
+
+			case ".fill":
+				segment.fill(parseInt(operands.get(0)), operands.size() > 1 ? parseInt(operands.get(1)) : 1,
+					operands.size() > 2 ? parseLong(operands.get(2)) : 0);
+				break;
+
+			case ".zero":
+			case ".space":
+				segment.fill(parseInt(operands.get(0)), 1, operands.size() > 1 ? parseLong(operands.get(1)) : 0);
+				break;
+
+			default:
+				throw new AssemblerException("unknown directive: " + mnemonic);
+
+		}
+	}
+
+	//endregion
+
+	//region instructions
+
+	private void instruction(String mnemonic, List<String> operands) {
+		switch (mnemonic) {
+
+			case "lui":
+				segment.lui(register(operands, 0), parseInt(operands.get(1)));
+				break;
+
+			case "auipc":
+				segment.auipc(register(operands, 0), parseInt(operands.get(1)));
+				break;
+
+			case "jal":
+				if (operands.size() == 1) {
+					segment.jal(Register.RA, label(operands.get(0)));
+				} else {
+					segment.jal(register(operands, 0), label(operands.get(1)));
+				}
+				break;
+
+			case "jalr":
+				if (operands.size() == 1) {
+					segment.jalr(Register.RA, 0, register(operands, 0));
+				} else if (operands.size() == 3) {
+					segment.jalr(register(operands, 0), parseInt(operands.get(2)), register(operands, 1));
+				} else if (Register.parse(operands.get(1)) != null) {
+					segment.jalr(register(operands, 0), 0, register(operands, 1));
+				} else {
+					Matcher matcher = address(operands.get(1));
+					segment.jalr(register(operands, 0), addressOffset(matcher), addressBase(matcher));
+				}
+				break;
+
+			case "beq":
+				segment.beq(register(operands, 0), register(operands, 1), label(operands.get(2)));
+				break;
+
+			case "bne":
+				segment.bne(register(operands, 0), register(operands, 1), label(operands.get(2)));
+				break;
+
+			case "blt":
+				segment.blt(register(operands, 0), register(operands, 1), label(operands.get(2)));
+				break;
+
+			case "bge":
+				segment.bge(register(operands, 0), register(operands, 1), label(operands.get(2)));
+				break;
+
+			case "bltu":
+				segment.bltu(register(operands, 0), register(operands, 1), label(operands.get(2)));
+				break;
+
+			case "bgeu":
+				segment.bgeu(register(operands, 0), register(operands, 1), label(operands.get(2)));
+				break;
+
+			case "bgt":
+				segment.bgt(register(operands, 0), register(operands, 1), label(operands.get(2)));
+				break;
+
+			case "ble":
+				segment.ble(register(operands, 0), register(operands, 1), label(operands.get(2)));
+				break;
+
+			case "bgtu":
+				segment.bgtu(register(operands, 0), register(operands, 1), label(operands.get(2)));
+				break;
+
+			case "bleu":
+				segment.bleu(register(operands, 0), register(operands, 1), label(operands.get(2)));
+				break;
+
+			case "beqz":
+				segment.beqz(register(operands, 0), label(operands.get(1)));
+				break;
+
+			case "bnez":
+				segment.bnez(register(operands, 0), label(operands.get(1)));
+				break;
+
+			case "blez":
+				segment.blez(register(operands, 0), label(operands.get(1)));
+				break;
+
+			case "bgez":
+				segment.bgez(register(operands, 0), label(operands.get(1)));
+				break;
+
+			case "bltz":
+				segment.bltz(register(operands, 0), label(operands.get(1)));
+				break;
+
+			case "bgtz":
+				segment.bgtz(register(operands, 0), label(operands.get(1)));
+				break;
+
+			case "lb":
+			case "lh":
+			case "lw":
+			case "lbu":
+			case "lhu":
+				load(mnemonic, operands);
+				break;
+
+			case "sb":
+			case "sh":
+			case "sw":
+				store(mnemonic, operands);
+				break;
+
+			case "addi":
+				segment.addi(register(operands, 0), register(operands, 1), parseInt(operands.get(2)));
+				break;
+
+			case "slti":
+				segment.slti(register(operands, 0), register(operands, 1), parseInt(operands.get(2)));
+				break;
+
+			case "sltiu":
+				segment.sltiu(register(operands, 0), register(operands, 1), parseInt(operands.get(2)));
+				break;
+
+			case "xori":
+				segment.xori(register(operands, 0), register(operands, 1), parseInt(operands.get(2)));
+				break;
+
+			case "ori":
+				segment.ori(register(operands, 0), register(operands, 1), parseInt(operands.get(2)));
+				break;
+
+			case "andi":
+				segment.andi(register(operands, 0), register(operands, 1), parseInt(operands.get(2)));
+				break;
+
+			case "slli":
+				segment.slli(register(operands, 0), register(operands, 1), parseInt(operands.get(2)));
+				break;
+
+			case "srli":
+				segment.srli(register(operands, 0), register(operands, 1), parseInt(operands.get(2)));
+				break;
+
+			case "srai":
+				segment.srai(register(operands, 0), register(operands, 1), parseInt(operands.get(2)));
+				break;
+
+			case "add":
+				segment.add(register(operands, 0), register(operands, 1), register(operands, 2));
+				break;
+
+			case "sub":
+				segment.sub(register(operands, 0), register(operands, 1), register(operands, 2));
+				break;
+
+			case "sll":
+				segment.sll(register(operands, 0), register(operands, 1), register(operands, 2));
+				break;
+
+			case "slt":
+				segment.slt(register(operands, 0), register(operands, 1), register(operands, 2));
+				break;
+
+			case "sltu":
+				segment.sltu(register(operands, 0), register(operands, 1), register(operands, 2));
+				break;
+
+			case "xor":
+				segment.xor(register(operands, 0), register(operands, 1), register(operands, 2));
+				break;
+
+			case "srl":
+				segment.srl(register(operands, 0), register(operands, 1), register(operands, 2));
+				break;
+
+			case "sra":
+				segment.sra(register(operands, 0), register(operands, 1), register(operands, 2));
+				break;
+
+			case "or":
+				segment.or(register(operands, 0), register(operands, 1), register(operands, 2));
+				break;
+
+			case "and":
+				segment.and(register(operands, 0), register(operands, 1), register(operands, 2));
+				break;
+
+			case "mul":
+				segment.mul(register(operands, 0), register(operands, 1), register(operands, 2));
+				break;
+
+			case "mulh":
+				segment.mulh(register(operands, 0), register(operands, 1), register(operands, 2));
+				break;
+
+			case "mulhsu":
+				segment.mulhsu(register(operands, 0), register(operands, 1), register(operands, 2));
+				break;
+
+			case "mulhu":
+				segment.mulhu(register(operands, 0), register(operands, 1), register(operands, 2));
+				break;
+
+			case "div":
+				segment.div(register(operands, 0), register(operands, 1), register(operands, 2));
+				break;
+
+			case "divu":
+				segment.divu(register(operands, 0), register(operands, 1), register(operands, 2));
+				break;
+
+			case "rem":
+				segment.rem(register(operands, 0), register(operands, 1), register(operands, 2));
+				break;
+
+			case "remu":
+				segment.remu(register(operands, 0), register(operands, 1), register(operands, 2));
+				break;
+
+			case "ecall":
+				segment.ecall();
+				break;
+
+			case "ebreak":
+				segment.ebreak();
+				break;
+
+			case "nop":
+				segment.nop();
+				break;
+
+			case "li":
+				segment.li(register(operands, 0), parseInt(operands.get(1)));
+				break;
+
+			case "la": {
+				Matcher matcher = symbol(operands.get(1));
+				segment.la(register(operands, 0), assembler.getLabel(matcher.group(1)), parseAddend(matcher));
+				break;
+			}
+
+			case "mv":
+				segment.mv(register(operands, 0), register(operands, 1));
+				break;
+
+			case "not":
+				segment.not(register(operands, 0), register(operands, 1));
+				break;
+
+			case "neg":
+				segment.neg(register(operands, 0), register(operands, 1));
+				break;
+
+			case "seqz":
+				segment.seqz(register(operands, 0), register(operands, 1));
+				break;
+
+			case "snez":
+				segment.snez(register(operands, 0), register(operands, 1));
+				break;
+
+			case "sltz":
+				segment.sltz(register(operands, 0), register(operands, 1));
+				break;
+
+			case "sgtz":
+				segment.sgtz(register(operands, 0), register(operands, 1));
+				break;
+
+			case "j":
+				segment.j(label(operands.get(0)));
+				break;
+
+			case "jr":
+				segment.jr(register(operands, 0));
+				break;
+
+			case "ret":
+				segment.ret();
+				break;
+
+			case "call":
+				segment.call(label(operands.get(0)));
+				break;
+
+			case "tail":
+				segment.tail(label(operands.get(0)));
+				break;
+
+			case "flw":
+			case "fld":
+			case "fsw":
+			case "fsd": {
+				FloatRegister register = floatRegister(operands, 0);
+				Matcher matcher = address(operands.get(1));
+				int offset = addressOffset(matcher);
+				Register base = addressBase(matcher);
+				switch (mnemonic) {
+					case "flw": segment.flw(register, offset, base); break;
+					case "fld": segment.fld(register, offset, base); break;
+					case "fsw": segment.fsw(register, offset, base); break;
+					case "fsd": segment.fsd(register, offset, base); break;
+					default: throw new RuntimeException();
+				}
+				break;
+			}
+
+			case "fmv.x.w":
+				segment.fmvToInt(register(operands, 0), floatRegister(operands, 1));
+				break;
+
+			case "fmv.w.x":
+				segment.fmvFromInt(floatRegister(operands, 0), register(operands, 1));
+				break;
+
+			case "fcvt.w.s":
+			case "fcvt.w.d":
+				segment.fcvtToInt(FloatFormat.parse(mnemonic.substring(7)), register(operands, 0), floatRegister(operands, 1), roundingMode(operands, 2));
+				break;
+
+			case "fcvt.s.w":
+			case "fcvt.d.w":
+				segment.fcvtFromInt(FloatFormat.parse(mnemonic.substring(5, 6)), floatRegister(operands, 0), register(operands, 1), roundingMode(operands, 2));
+				break;
+
+			case "fcvt.s.d":
+			case "fcvt.d.s":
+				segment.fcvtFormat(FloatFormat.parse(mnemonic.substring(5, 6)), floatRegister(operands, 0), floatRegister(operands, 1), roundingMode(operands, 2));
+				break;
+
+			default: {
+				int dot = mnemonic.lastIndexOf('.');
+				FloatFormat format = (dot < 0 ? null : FloatFormat.parse(mnemonic.substring(dot + 1)));
+				if (format == null || !floatInstruction(mnemonic.substring(0, dot), format, operands)) {
+					throw new AssemblerException("unknown instruction: " + mnemonic);
+				}
+				break;
+			}
+
+		}
+	}
+
+	/**
+	 * Handles the floating-point instructions whose mnemonic ends with the format. Returns false if the mnemonic
+	 * without the format is unknown.
+	 */
+	private boolean floatInstruction(String mnemonic, FloatFormat format, List<String> operands) {
+		switch (mnemonic) {
+
+			case "fadd":
+				segment.fadd(format, floatRegister(operands, 0), floatRegister(operands, 1), floatRegister(operands, 2), roundingMode(operands, 3));
+				break;
+
+			case "fsub":
+				segment.fsub(format, floatRegister(operands, 0), floatRegister(operands, 1), floatRegister(operands, 2), roundingMode(operands, 3));
+				break;
+
+			case "fmul":
+				segment.fmul(format, floatRegister(operands, 0), floatRegister(operands, 1), floatRegister(operands, 2), roundingMode(operands, 3));
+				break;
+
+			case "fdiv":
+				segment.fdiv(format, floatRegister(operands, 0), floatRegister(operands, 1), floatRegister(operands, 2), roundingMode(operands, 3));
+				break;
+
+			case "fsqrt":
+				segment.fsqrt(format, floatRegister(operands, 0), floatRegister(operands, 1), roundingMode(operands, 2));
+				break;
+
+			case "fsgnj":
+				segment.fsgnj(format, floatRegister(operands, 0), floatRegister(operands, 1), floatRegister(operands, 2));
+				break;
+
+			case "fsgnjn":
+				segment.fsgnjn(format, floatRegister(operands, 0), floatRegister(operands, 1), floatRegister(operands, 2));
+				break;
+
+			case "fsgnjx":
+				segment.fsgnjx(format, floatRegister(operands, 0), floatRegister(operands, 1), floatRegister(operands, 2));
+				break;
+
+			case "fmin":
+				segment.fmin(format, floatRegister(operands, 0), floatRegister(operands, 1), floatRegister(operands, 2));
+				break;
+
+			case "fmax":
+				segment.fmax(format, floatRegister(operands, 0), floatRegister(operands, 1), floatRegister(operands, 2));
+				break;
+
+			case "feq":
+				segment.feq(format, register(operands, 0), floatRegister(operands, 1), floatRegister(operands, 2));
+				break;
+
+			case "flt":
+				segment.flt(format, register(operands, 0), floatRegister(operands, 1), floatRegister(operands, 2));
+				break;
+
+			case "fle":
+				segment.fle(format, register(operands, 0), floatRegister(operands, 1), floatRegister(operands, 2));
+				break;
+
+			case "fmv":
+				segment.fmv(format, floatRegister(operands, 0), floatRegister(operands, 1));
+				break;
+
+			case "fneg":
+				segment.fneg(format, floatRegister(operands, 0), floatRegister(operands, 1));
+				break;
+
+			case "fabs":
+				segment.fabs(format, floatRegister(operands, 0), floatRegister(operands, 1));
+				break;
+
+			default:
+				return false;
+
+		}
+		return true;
+	}
+
+	private void load(String mnemonic, List<String> operands) {
+		Register rd = register(operands, 0);
+		Matcher addressMatcher = ADDRESS_PATTERN.matcher(operands.get(1));
+		if (addressMatcher.matches()) {
+			int offset = addressOffset(addressMatcher);
+			Register base = addressBase(addressMatcher);
+			switch (mnemonic) {
+				case "lb": segment.lb(rd, offset, base); break;
+				case "lh": segment.lh(rd, offset, base); break;
+				case "lw": segment.lw(rd, offset, base); break;
+				case "lbu": segment.lbu(rd, offset, base); break;
+				case "lhu": segment.lhu(rd, offset, base); break;
+				default: throw new RuntimeException();
+			}
+		} else {
+			Matcher matcher = symbol(operands.get(1));
+			Label label = assembler.getLabel(matcher.group(1));
+			int addend = parseAddend(matcher);
+			switch (mnemonic) {
+				case "lb": segment.lb(rd, label, addend); break;
+				case "lh": segment.lh(rd, label, addend); break;
+				case "lw": segment.lw(rd, label, addend); break;
+				case "lbu": segment.lbu(rd, label, addend); break;
+				case "lhu": segment.lhu(rd, label, addend); break;
+				default: throw new RuntimeException();
+			}
+		}
+	}
+
+	private void store(String mnemonic, List<String> operands) {
+		Register rs2 = register(operands, 0);
+		if (operands.size() == 2) {
+			Matcher addressMatcher = address(operands.get(1));
+			int offset = addressOffset(addressMatcher);
+			Register base = addressBase(addressMatcher);
+			switch (mnemonic) {
+				case "sb": segment.sb(rs2, offset, base); break;
+				case "sh": segment.sh(rs2, offset, base); break;
+				case "sw": segment.sw(rs2, offset, base); break;
+				default: throw new RuntimeException();
+			}
+		} else {
+			Matcher matcher = symbol(operands.get(1));
+			Label label = assembler.getLabel(matcher.group(1));
+			int addend = parseAddend(matcher);
+			Register temp = register(operands, 2);
+			switch (mnemonic) {
+				case "sb": segment.sb(rs2, label, addend, temp); break;
+				case "sh": segment.sh(rs2, label, addend, temp); break;
+				case "sw": segment.sw(rs2, label, addend, temp); break;
+				default: throw new RuntimeException();
+			}
+		}
+	}
+
+	//endregion
+
+	//region operands
+
+	private static Register register(List<String> operands, int index) {
+		if (index >= operands.size()) {
+			throw new AssemblerException("missing operand");
+		}
+		Register register = Register.parse(operands.get(index));
+		if (register == null) {
+			throw new AssemblerException("not a register: " + operands.get(index));
+		}
+		return register;
+	}
+
+	private static FloatRegister floatRegister(List<String> operands, int index) {
+		if (index >= operands.size()) {
+			throw new AssemblerException("missing operand");
+		}
+		FloatRegister register = FloatRegister.parse(operands.get(index));
+		if (register == null) {
+			throw new AssemblerException("not a floating-point register: " + operands.get(index));
+		}
+		return register;
+	}
+
+	/**
+	 * Parses an optional rounding mode operand. The default is the dynamic rounding mode.
+	 */
+	private static RoundingMode roundingMode(List<String> operands, int index) {
+		if (index >= operands.size()) {
+			return RoundingMode.DYNAMIC;
+		}
+		RoundingMode roundingMode = RoundingMode.parse(operands.get(index));
+		if (roundingMode == null) {
+			throw new AssemblerException("not a rounding mode: " + operands.get(index));
+		}
+		return roundingMode;
+	}
+
+	private Label label(String operand) {
+		Matcher matcher = symbol(operand);
+		if (matcher.group(2) != null) {
+			throw new AssemblerException("jump targets cannot have an addend: " + operand);
+		}
+		return assembler.getLabel(matcher.group(1));
+	}
+
+	private static Matcher symbol(String operand) {
+		Matcher matcher = SYMBOL_PATTERN.matcher(operand);
+		if (!matcher.matches()) {
+			throw new AssemblerException("not a symbol: " + operand);
+		}
+		return matcher;
+	}
+
+	private static int parseAddend(Matcher symbolMatcher) {
+		if (symbolMatcher.group(2) == null) {
+			return 0;
+		}
+		int value = parseInt(symbolMatcher.group(3));
+		return symbolMatcher.group(2).equals("-") ? -value : value;
+	}
+
+	private static Matcher address(String operand) {
+		Matcher matcher = ADDRESS_PATTERN.matcher(operand);
+		if (!matcher.matches()) {
+			throw new AssemblerException("not an address: " + operand);
+		}
+		return matcher;
+	}
+
+	private static int addressOffset(Matcher addressMatcher) {
+		String offset = addressMatcher.group(1).trim();
+		return offset.isEmpty() ? 0 : parseInt(offset);
+	}
+
+	private static Register addressBase(Matcher addressMatcher) {
+		Register register = Register.parse(addressMatcher.group(2));
+		if (register == null) {
+			throw new AssemblerException("not a register: " + addressMatcher.group(2));
+		}
+		return register;
+	}
+
+	/**
+	 * Accepts decimal and hexadecimal numbers. Values up to 2^32 - 1 are allowed and wrap around, like with the GNU
+	 * assembler.
+	 */
+	private static int parseInt(String operand) {
+		long value = parseLong(operand);
+		if (value < Integer.MIN_VALUE || value > 0xffffffffL) {
+			throw new AssemblerException("value out of range: " + operand);
+		}
+		return (int) value;
+	}
+
+	private static long parseLong(String operand) {
+		try {
+			return Long.decode(operand);
+		} catch (NumberFormatException e) {
+			throw new AssemblerException("not a number: " + operand);
+		}
+	}
+
+	//endregion
+
+}
@@ -0,0 +1,220 @@
+package name.martingeisse.majai.jas5;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes a {@link LinkedImage} as a 32-bit little-endian RISC-V ELF executable. Each non-empty segment becomes a
+ * loadable program segment. Each segment also becomes a section, and all global labels are written to the symbol
+ * table, so the usual ELF tools can disassemble the image and show symbol names.
+ */
+public final class ElfWriter {
+
+	private static final int ELF_HEADER_SIZE = 52;
+	private static final int PROGRAM_HEADER_SIZE = 32;
+	private static final int SECTION_HEADER_SIZE = 40;
+	private static final int SYMBOL_SIZE = 16;
+
+	private static final int EM_RISCV = 243;
+	private static final int ET_EXEC = 2;
+	private static final int PT_LOAD = 1;
+	private static final int SHT_PROGBITS = 1;
+	private static final int SHT_SYMTAB = 2;
+	private static final int SHT_STRTAB = 3;
+	private static final int SHF_WRITE = 1;
+	private static final int SHF_ALLOC = 2;
+	private static final int SHF_EXECINSTR = 4;
+	private static final int STB_GLOBAL = 1;
+
+	// prevent instantiation
+	private ElfWriter() {
+	}
+
+	public static void write(LinkedImage image, OutputStream out) throws IOException {
+		List<LinkedImage.LinkedSegment> segments = image.getSegments();
+
+		// section indices: 0 is the null section, then one per segment, then the symbol and string tables
+		int symbolTableIndex = segments.size() + 1;
+		int stringTableIndex = segments.size() + 2;
+		int sectionNameTableIndex = segments.size() + 3;
+		int sectionCount = segments.size() + 4;
+
+		// build the symbol table
+		StringTable symbolNames = new StringTable();
+		ByteBuffer symbolTable = newBuffer((image.getSymbols().size() + 1) * SYMBOL_SIZE);
+		symbolTable.position(SYMBOL_SIZE);
+		for (Map.Entry<String, Integer> entry : image.getSymbols().entrySet()) {
+			int address = entry.getValue();
+			int sectionIndex = 0;
+			for (int i = 0; i < segments.size(); i++) {
+				LinkedImage.LinkedSegment segment = segments.get(i);
+				if (segment.contains(address) || address == segment.getAddress() + segment.getData().length) {
+					sectionIndex = i + 1;
+					break;
+				}
+			}
+			symbolTable.putInt(symbolNames.add(entry.getKey()));
+			symbolTable.putInt(address);
+			symbolTable.putInt(0);
+			symbolTable.put((byte) (STB_GLOBAL << 4));
+			symbolTable.put((byte) 0);
+			symbolTable.putShort((short) sectionIndex);
+		}
+
+		// section names
+		StringTable sectionNames = new StringTable();
+		int[] segmentNameOffsets = new int[segments.size()];
+		for (int i = 0; i < segments.size(); i++) {
+			segmentNameOffsets[i] = sectionNames.add(segments.get(i).getName());
+		}
+		int symbolTableNameOffset = sectionNames.add(".symtab");
+		int stringTableNameOffset = sectionNames.add(".strtab");
+		int sectionNameTableNameOffset = sectionNames.add(".shstrtab");
+
+		// file layout: headers, segment contents, tables, section headers
+		int programHeaderCount = 0;
+		for (LinkedImage.LinkedSegment segment : segments) {
+			if (segment.getData().length > 0) {
+				programHeaderCount++;
+			}
+		}
+		int position = ELF_HEADER_SIZE + programHeaderCount * PROGRAM_HEADER_SIZE;
+		int[] segmentFileOffsets = new int[segments.size()];
+		for (int i = 0; i < segments.size(); i++) {
+			LinkedImage.LinkedSegment segment = segments.get(i);
+
+			// loadable segments must have the same file offset as address modulo their alignment
+			position += (segment.getAddress() - position) & 3;
+			segmentFileOffsets[i] = position;
+			position += segment.getData().length;
+		}
+		position = align(position);
+		int symbolTableOffset = position;
+		position += symbolTable.capacity();
+		int stringTableOffset = position;
+		position += symbolNames.size();
+		int sectionNameTableOffset = position;
+		position += sectionNames.size();
+		position = align(position);
+		int sectionHeaderOffset = position;
+		position += sectionCount * SECTION_HEADER_SIZE;
+		ByteBuffer file = newBuffer(position);
+
+		// ELF header
+		file.put(new byte[] {0x7f, 'E', 'L', 'F', 1, 1, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0});
+		file.putShort((short) ET_EXEC);
+		file.putShort((short) EM_RISCV);
+		file.putInt(1);
+		file.putInt(image.getEntryAddress());
+		file.putInt(ELF_HEADER_SIZE);
+		file.putInt(sectionHeaderOffset);
+		file.putInt(0); // flags: no compressed instructions, soft-float ABI
+		file.putShort((short) ELF_HEADER_SIZE);
+		file.putShort((short) PROGRAM_HEADER_SIZE);
+		file.putShort((short) programHeaderCount);
+		file.putShort((short) SECTION_HEADER_SIZE);
+		file.putShort((short) sectionCount);
+		file.putShort((short) sectionNameTableIndex);
+
+		// program headers
+		for (int i = 0; i < segments.size(); i++) {
+			LinkedImage.LinkedSegment segment = segments.get(i);
+			if (segment.getData().length > 0) {
+				file.putInt(PT_LOAD);
+				file.putInt(segmentFileOffsets[i]);
+				file.putInt(segment.getAddress());
+				file.putInt(segment.getAddress());
+				file.putInt(segment.getData().length);
+				file.putInt(segment.getData().length);
+				file.putInt(segment.isExecutable() ? 5 : 6); // R+X or R+W
+				file.putInt(4);
+			}
+		}
+
+		// contents
+		for (int i = 0; i < segments.size(); i++) {
+			file.position(segmentFileOffsets[i]);
+			file.put(segments.get(i).getData());
+		}
+		file.position(symbolTableOffset);
+		file.put(symbolTable.array());
+		file.position(stringTableOffset);
+		file.put(symbolNames.toByteArray());
+		file.position(sectionNameTableOffset);
+		file.put(sectionNames.toByteArray());
+
+		// section headers
+		file.position(sectionHeaderOffset + SECTION_HEADER_SIZE);
+		for (int i = 0; i < segments.size(); i++) {
+			LinkedImage.LinkedSegment segment = segments.get(i);
+			int flags = SHF_ALLOC | (segment.isExecutable() ? SHF_EXECINSTR : SHF_WRITE);
+			putSectionHeader(file, segmentNameOffsets[i], SHT_PROGBITS, flags, segment.getAddress(),
+				segmentFileOffsets[i], segment.getData().length, 0, 0, 4, 0);
+		}
+		putSectionHeader(file, symbolTableNameOffset, SHT_SYMTAB, 0, 0, symbolTableOffset, symbolTable.capacity(),
+			stringTableIndex, 1, 4, SYMBOL_SIZE);
+		putSectionHeader(file, stringTableNameOffset, SHT_STRTAB, 0, 0, stringTableOffset, symbolNames.size(), 0, 0, 1, 0);
+		putSectionHeader(file, sectionNameTableNameOffset, SHT_STRTAB, 0, 0, sectionNameTableOffset, sectionNames.size(), 0, 0, 1, 0);
+
+		out.write(file.array());
+	}
+
+	private static ByteBuffer newBuffer(int size) {
+		return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private static int align(int position) {
+		return (position + 3) & ~3;
+	}
+
+	private static void putSectionHeader(ByteBuffer file, int name, int type, int flags, int address, int offset, int size,
+										 int link, int info, int alignment, int entrySize) {
+		file.putInt(name);
+		file.putInt(type);
+		file.putInt(flags);
+		file.putInt(address);
+		file.putInt(offset);
+		file.putInt(size);
+		file.putInt(link);
+		file.putInt(info);
+		file.putInt(alignment);
+		file.putInt(entrySize);
+	}
+
+	/**
+	 * An ELF string table. It starts with an empty string, so offset 0 means "no name".
+	 */
+	private static final class StringTable {
+
+		private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+		StringTable() {
+			data.write(0);
+		}
+
+		int add(String s) {
+			int offset = data.size();
+			byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+			data.write(bytes, 0, bytes.length);
+			data.write(0);
+			return offset;
+		}
+
+		int size() {
+			return data.size();
+		}
+
+		byte[] toByteArray() {
+			return data.toByteArray();
+		}
+
+	}
+
+}
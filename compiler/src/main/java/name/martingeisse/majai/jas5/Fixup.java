@@ -0,0 +1,50 @@
+package name.martingeisse.majai.jas5;
+
+/**
+ * A reference from a segment to a label whose address is only known after linking.
+ */
+final class Fixup {
+
+	enum Kind {
+
+		/**
+		 * A 32-bit data word that holds the absolute address of the label.
+		 */
+		ABSOLUTE_WORD,
+
+		/**
+		 * The offset of a conditional branch (B-type instruction).
+		 */
+		BRANCH,
+
+		/**
+		 * The offset of a JAL instruction (J-type).
+		 */
+		JUMP,
+
+		/**
+		 * An AUIPC instruction followed by an I-type instruction that adds the low part of the PC-relative offset,
+		 * e.g. ADDI, JALR or a load.
+		 */
+		PC_RELATIVE_PAIR_I,
+
+		/**
+		 * An AUIPC instruction followed by a store that adds the low part of the PC-relative offset.
+		 */
+		PC_RELATIVE_PAIR_S
+
+	}
+
+	final Kind kind;
+	final int offset;
+	final Label label;
+	final int addend;
+
+	Fixup(Kind kind, int offset, Label label, int addend) {
+		this.kind = kind;
+		this.offset = offset;
+		this.label = label;
+		this.addend = addend;
+	}
+
+}
@@ -0,0 +1,40 @@
+package name.martingeisse.majai.jas5;
+
+/**
+ * The operand format of a floating-point instruction, which is the suffix of its mnemonic.
+ */
+public enum FloatFormat {
+
+	/**
+	 * Single precision (F extension).
+	 */
+	S,
+
+	/**
+	 * Double precision (D extension).
+	 */
+	D;
+
+	int getCode() {
+		return ordinal();
+	}
+
+	/**
+	 * Returns the format for a mnemonic suffix ("s" or "d"), or null for anything else.
+	 */
+	public static FloatFormat parse(String suffix) {
+		switch (suffix) {
+
+			case "s":
+				return S;
+
+			case "d":
+				return D;
+
+			default:
+				return null;
+
+		}
+	}
+
+}
@@ -0,0 +1,37 @@
+package name.martingeisse.majai.jas5;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * The floating-point registers of the F and D extensions, named by their ABI names.
+ */
+public enum FloatRegister {
+
+	FT0, FT1, FT2, FT3, FT4, FT5, FT6, FT7,
+	FS0, FS1, FA0, FA1, FA2, FA3, FA4, FA5,
+	FA6, FA7, FS2, FS3, FS4, FS5, FS6, FS7,
+	FS8, FS9, FS10, FS11, FT8, FT9, FT10, FT11;
+
+	private static final ImmutableMap<String, FloatRegister> BY_NAME;
+
+	static {
+		ImmutableMap.Builder<String, FloatRegister> builder = ImmutableMap.builder();
+		for (FloatRegister register : values()) {
+			builder.put(register.name().toLowerCase(), register);
+			builder.put("f" + register.ordinal(), register);
+		}
+		BY_NAME = builder.build();
+	}
+
+	public int getIndex() {
+		return ordinal();
+	}
+
+	/**
+	 * Accepts both the ABI name (e.g. "fa0") and the architectural name (e.g. "f10"). Returns null for anything else.
+	 */
+	public static FloatRegister parse(String name) {
+		return BY_NAME.get(name);
+	}
+
+}
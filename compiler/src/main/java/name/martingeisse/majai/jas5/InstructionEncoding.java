@@ -0,0 +1,125 @@
+package name.martingeisse.majai.jas5;
+
+/**
+ * Encodes the RV32I instruction formats. Each format is also available with register numbers instead of integer
+ * registers, for instructions that use floating-point registers. The immediate of each format can also be replaced in an already encoded
+ * instruction, which is used to apply fixups.
+ */
+final class InstructionEncoding {
+
+	static final int OPCODE_LUI = 0x37;
+	static final int OPCODE_AUIPC = 0x17;
+	static final int OPCODE_JAL = 0x6f;
+	static final int OPCODE_JALR = 0x67;
+	static final int OPCODE_BRANCH = 0x63;
+	static final int OPCODE_LOAD = 0x03;
+	static final int OPCODE_STORE = 0x23;
+	static final int OPCODE_OP_IMM = 0x13;
+	static final int OPCODE_OP = 0x33;
+	static final int OPCODE_SYSTEM = 0x73;
+	static final int OPCODE_LOAD_FP = 0x07;
+	static final int OPCODE_STORE_FP = 0x27;
+	static final int OPCODE_OP_FP = 0x53;
+
+	// prevent instantiation
+	private InstructionEncoding() {
+	}
+
+	static int rType(int opcode, int funct3, int funct7, Register rd, Register rs1, Register rs2) {
+		return rType(opcode, funct3, funct7, rd.getIndex(), rs1.getIndex(), rs2.getIndex());
+	}
+
+	static int rType(int opcode, int funct3, int funct7, int rd, int rs1, int rs2) {
+		return (funct7 << 25) | (rs2 << 20) | (rs1 << 15) | (funct3 << 12) | (rd << 7) | opcode;
+	}
+
+	static int iType(int opcode, int funct3, Register rd, Register rs1, int immediate) {
+		return iType(opcode, funct3, rd.getIndex(), rs1, immediate);
+	}
+
+	static int iType(int opcode, int funct3, int rd, Register rs1, int immediate) {
+		checkSigned(immediate, 12);
+		return withIImmediate((rs1.getIndex() << 15) | (funct3 << 12) | (rd << 7) | opcode, immediate);
+	}
+
+	static int sType(int opcode, int funct3, Register rs1, Register rs2, int immediate) {
+		return sType(opcode, funct3, rs1, rs2.getIndex(), immediate);
+	}
+
+	static int sType(int opcode, int funct3, Register rs1, int rs2, int immediate) {
+		checkSigned(immediate, 12);
+		return withSImmediate((rs2 << 20) | (rs1.getIndex() << 15) | (funct3 << 12) | opcode, immediate);
+	}
+
+	static int bType(int funct3, Register rs1, Register rs2) {
+		return (rs2.getIndex() << 20) | (rs1.getIndex() << 15) | (funct3 << 12) | OPCODE_BRANCH;
+	}
+
+	static int uType(int opcode, Register rd, int upperImmediate) {
+		if ((upperImmediate >>> 20) != 0) {
+			throw new AssemblerException("upper immediate out of range: " + upperImmediate);
+		}
+		return (upperImmediate << 12) | (rd.getIndex() << 7) | opcode;
+	}
+
+	static int jType(Register rd) {
+		return (rd.getIndex() << 7) | OPCODE_JAL;
+	}
+
+	static int withIImmediate(int instruction, int immediate) {
+		return (instruction & 0x000fffff) | (immediate << 20);
+	}
+
+	static int withSImmediate(int instruction, int immediate) {
+		return (instruction & 0x01fff07f) | ((immediate >> 5) << 25) | ((immediate & 31) << 7);
+	}
+
+	static int withBImmediate(int instruction, int offset) {
+		checkSigned(offset, 13);
+		checkEven(offset);
+		return (instruction & 0x01fff07f) | (((offset >> 12) & 1) << 31) | (((offset >> 5) & 63) << 25)
+			| (((offset >> 1) & 15) << 8) | (((offset >> 11) & 1) << 7);
+	}
+
+	static int withUImmediate(int instruction, int upperImmediate) {
+		return (instruction & 0xfff) | (upperImmediate << 12);
+	}
+
+	static int withJImmediate(int instruction, int offset) {
+		checkSigned(offset, 21);
+		checkEven(offset);
+		return (instruction & 0xfff) | (((offset >> 20) & 1) << 31) | (((offset >> 1) & 1023) << 21)
+			| (((offset >> 11) & 1) << 20) | (((offset >> 12) & 255) << 12);
+	}
+
+	/**
+	 * Returns the upper part of a value that gets split into an upper immediate and a signed 12-bit lower immediate.
+	 */
+	static int getHigh(int value) {
+		return ((value + 0x800) >>> 12);
+	}
+
+	/**
+	 * Returns the lower part of a value that gets split into an upper immediate and a signed 12-bit lower immediate.
+	 */
+	static int getLow(int value) {
+		return (value << 20) >> 20;
+	}
+
+	static boolean isSigned(int value, int bits) {
+		return value >= -(1 << (bits - 1)) && value < (1 << (bits - 1));
+	}
+
+	private static void checkSigned(int value, int bits) {
+		if (!isSigned(value, bits)) {
+			throw new AssemblerException("immediate value out of range: " + value);
+		}
+	}
+
+	private static void checkEven(int offset) {
+		if ((offset & 1) != 0) {
+			throw new AssemblerException("jump offset is not even: " + offset);
+		}
+	}
+
+}
@@ -0,0 +1,71 @@
+package name.martingeisse.majai.jas5;
+
+/**
+ * A position in a {@link Segment}. Labels can be used before they are placed; references to them are fixed up when
+ * the assembler links its segments. Named labels are global symbols of the {@link Assembler}; unnamed labels are
+ * only reachable through the Java object.
+ * <p>
+ * A named label can alternatively be declared an alias for another label, which is what the ".set" directive does.
+ */
+public final class Label {
+
+	private final String name;
+	private Segment segment;
+	private int offset;
+	private Label aliasTarget;
+
+	Label(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Returns the name of this label, or null for an unnamed label.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	void place(Segment segment, int offset) {
+		if (this.segment != null || aliasTarget != null) {
+			throw new AssemblerException("label placed twice: " + this);
+		}
+		this.segment = segment;
+		this.offset = offset;
+	}
+
+	void setAliasTarget(Label aliasTarget) {
+		if (segment != null || this.aliasTarget != null) {
+			throw new AssemblerException("label placed twice: " + this);
+		}
+		this.aliasTarget = aliasTarget;
+	}
+
+	/**
+	 * Follows aliases to the label that actually has a position. Returns null if this label (or the label it is an
+	 * alias for) has not been placed.
+	 */
+	Label resolve() {
+		Label label = this;
+		for (int i = 0; label.aliasTarget != null; i++) {
+			if (i > 1000) {
+				throw new AssemblerException("circular alias: " + this);
+			}
+			label = label.aliasTarget;
+		}
+		return (label.segment == null ? null : label);
+	}
+
+	Segment getSegment() {
+		return segment;
+	}
+
+	int getOffset() {
+		return offset;
+	}
+
+	@Override
+	public String toString() {
+		return name == null ? "(unnamed label)" : name;
+	}
+
+}
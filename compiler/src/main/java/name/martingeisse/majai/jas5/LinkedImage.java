@@ -0,0 +1,83 @@
+package name.martingeisse.majai.jas5;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The result of linking: the contents of all segments at their final addresses, and the addresses of all global
+ * labels.
+ */
+public final class LinkedImage {
+
+	private final List<LinkedSegment> segments;
+	private final Map<String, Integer> symbols;
+	private final int entryAddress;
+
+	LinkedImage(List<LinkedSegment> segments, Map<String, Integer> symbols, int entryAddress) {
+		this.segments = Collections.unmodifiableList(segments);
+		this.symbols = Collections.unmodifiableMap(symbols);
+		this.entryAddress = entryAddress;
+	}
+
+	/**
+	 * Returns the segments in ascending address order.
+	 */
+	public List<LinkedSegment> getSegments() {
+		return segments;
+	}
+
+	/**
+	 * Maps the names of all global labels to their addresses, sorted by name.
+	 */
+	public Map<String, Integer> getSymbols() {
+		return symbols;
+	}
+
+	public int getEntryAddress() {
+		return entryAddress;
+	}
+
+	public static final class LinkedSegment {
+
+		private final String name;
+		private final int address;
+		private final boolean executable;
+		private final byte[] data;
+
+		LinkedSegment(String name, int address, boolean executable, byte[] data) {
+			this.name = name;
+			this.address = address;
+			this.executable = executable;
+			this.data = data;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public int getAddress() {
+			return address;
+		}
+
+		public boolean isExecutable() {
+			return executable;
+		}
+
+		/**
+		 * Returns the contents of the segment. The returned array must not be modified.
+		 */
+		public byte[] getData() {
+			return data;
+		}
+
+		/**
+		 * Returns true if the specified address lies within this segment.
+		 */
+		public boolean contains(int address) {
+			return Integer.compareUnsigned(address - this.address, data.length) < 0;
+		}
+
+	}
+
+}
@@ -0,0 +1,38 @@
+package name.martingeisse.majai.jas5;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * The integer registers, named by their ABI names.
+ */
+public enum Register {
+
+	ZERO, RA, SP, GP, TP, T0, T1, T2,
+	S0, S1, A0, A1, A2, A3, A4, A5,
+	A6, A7, S2, S3, S4, S5, S6, S7,
+	S8, S9, S10, S11, T3, T4, T5, T6;
+
+	private static final ImmutableMap<String, Register> BY_NAME;
+
+	static {
+		ImmutableMap.Builder<String, Register> builder = ImmutableMap.builder();
+		for (Register register : values()) {
+			builder.put(register.name().toLowerCase(), register);
+			builder.put("x" + register.ordinal(), register);
+		}
+		builder.put("fp", S0);
+		BY_NAME = builder.build();
+	}
+
+	public int getIndex() {
+		return ordinal();
+	}
+
+	/**
+	 * Accepts both the ABI name (e.g. "a0") and the architectural name (e.g. "x10"). Returns null for anything else.
+	 */
+	public static Register parse(String name) {
+		return BY_NAME.get(name);
+	}
+
+}
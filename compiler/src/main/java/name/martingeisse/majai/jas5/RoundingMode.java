@@ -0,0 +1,40 @@
+package name.martingeisse.majai.jas5;
+
+/**
+ * The static rounding modes of floating-point instructions. DYNAMIC uses the rounding mode from the fcsr register,
+ * and is what the assembler uses if an instruction does not specify one.
+ */
+public enum RoundingMode {
+
+	TO_NEAREST_EVEN(0, "rne"),
+	TOWARDS_ZERO(1, "rtz"),
+	DOWN(2, "rdn"),
+	UP(3, "rup"),
+	TO_NEAREST_MAX_MAGNITUDE(4, "rmm"),
+	DYNAMIC(7, "dyn");
+
+	private final int code;
+	private final String name;
+
+	RoundingMode(int code, String name) {
+		this.code = code;
+		this.name = name;
+	}
+
+	int getCode() {
+		return code;
+	}
+
+	/**
+	 * Returns the rounding mode with the specified assembler name (e.g. "rtz"), or null if there is none.
+	 */
+	public static RoundingMode parse(String name) {
+		for (RoundingMode mode : values()) {
+			if (mode.name.equals(name)) {
+				return mode;
+			}
+		}
+		return null;
+	}
+
+}
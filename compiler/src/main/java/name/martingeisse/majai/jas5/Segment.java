@@ -0,0 +1,687 @@
+package name.martingeisse.majai.jas5;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static name.martingeisse.majai.jas5.InstructionEncoding.*;
+
+/**
+ * A contiguous block of code or data that gets placed as a whole when linking. Contents are appended through the
+ * data and instruction methods; the methods are named after the corresponding assembler directives and
+ * (pseudo-)instructions, and take operands in the same order.
+ * <p>
+ * Pseudo-instructions expand to the same instruction sequences as with the GNU assembler. In particular, references
+ * to labels use PC-relative AUIPC-based sequences and therefore work for any distance, except for branches and
+ * JAL, which have a limited range.
+ */
+public final class Segment {
+
+	private final Assembler assembler;
+	private final String name;
+	private byte[] data;
+	private int size;
+	private int alignment;
+	private final List<Fixup> fixups;
+
+	Segment(Assembler assembler, String name) {
+		this.assembler = assembler;
+		this.name = name;
+		this.data = new byte[256];
+		this.size = 0;
+		this.alignment = 4;
+		this.fixups = new ArrayList<>();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Segments named .text or .text.* contain code; all other segments contain data.
+	 */
+	public boolean isExecutable() {
+		return name.equals(".text") || name.startsWith(".text.");
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Returns the alignment of the segment as a whole, which is the largest alignment requested for its contents.
+	 */
+	public int getAlignment() {
+		return alignment;
+	}
+
+	byte[] getData() {
+		return Arrays.copyOf(data, size);
+	}
+
+	List<Fixup> getFixups() {
+		return fixups;
+	}
+
+	//region labels
+
+	/**
+	 * Creates an unnamed label at the current position.
+	 */
+	public Label label() {
+		Label label = new Label(null);
+		label.place(this, size);
+		return label;
+	}
+
+	/**
+	 * Places the global label with the specified name at the current position.
+	 */
+	public Label label(String name) {
+		Label label = assembler.getLabel(name);
+		label.place(this, size);
+		return label;
+	}
+
+	/**
+	 * Places a label at the current position that was created (and possibly used) before.
+	 */
+	public void place(Label label) {
+		label.place(this, size);
+	}
+
+	//endregion
+
+	//region data
+
+	private void ensureCapacity(int additionalBytes) {
+		if (size + additionalBytes > data.length) {
+			data = Arrays.copyOf(data, Math.max(data.length * 2, size + additionalBytes));
+		}
+	}
+
+	public void byte_(int value) {
+		ensureCapacity(1);
+		data[size] = (byte) value;
+		size++;
+	}
+
+	public void half(int value) {
+		byte_(value);
+		byte_(value >> 8);
+	}
+
+	public void word(int value) {
+		ensureCapacity(4);
+		data[size] = (byte) value;
+		data[size + 1] = (byte) (value >> 8);
+		data[size + 2] = (byte) (value >> 16);
+		data[size + 3] = (byte) (value >> 24);
+		size += 4;
+	}
+
+	/**
+	 * Emits the absolute address of a label plus an addend.
+	 */
+	public void word(Label label, int addend) {
+		fixups.add(new Fixup(Fixup.Kind.ABSOLUTE_WORD, size, label, addend));
+		word(0);
+	}
+
+	public void word(Label label) {
+		word(label, 0);
+	}
+
+	public void dword(long value) {
+		word((int) value);
+		word((int) (value >> 32));
+	}
+
+	/**
+	 * Like the ".fill" directive: emits repeat copies of a value that is size bytes wide (1, 2, 4 or 8).
+	 */
+	public void fill(int repeat, int size, long value) {
+		for (int i = 0; i < repeat; i++) {
+			for (int j = 0; j < size; j++) {
+				byte_(j < 8 ? (int) (value >> (j * 8)) : 0);
+			}
+		}
+	}
+
+	/**
+	 * Like the ".align" directive of the RISC-V assembler: aligns the current position to 2^powerOfTwo bytes. Code
+	 * segments are padded with NOPs, data segments with zeroes.
+	 */
+	public void align(int powerOfTwo) {
+		int alignment = 1 << powerOfTwo;
+		if (alignment > this.alignment) {
+			this.alignment = alignment;
+		}
+		while ((size & 3) != 0 && (size & (alignment - 1)) != 0) {
+			byte_(0);
+		}
+		while ((size & (alignment - 1)) != 0) {
+			if (isExecutable()) {
+				nop();
+			} else {
+				word(0);
+			}
+		}
+	}
+
+	//endregion
+
+	//region base instructions
+
+	private void instruction(int encoded) {
+		word(encoded);
+	}
+
+	public void lui(Register rd, int upperImmediate) {
+		instruction(uType(OPCODE_LUI, rd, upperImmediate));
+	}
+
+	public void auipc(Register rd, int upperImmediate) {
+		instruction(uType(OPCODE_AUIPC, rd, upperImmediate));
+	}
+
+	public void jal(Register rd, Label target) {
+		fixups.add(new Fixup(Fixup.Kind.JUMP, size, target, 0));
+		instruction(jType(rd));
+	}
+
+	public void jalr(Register rd, int offset, Register rs1) {
+		instruction(iType(OPCODE_JALR, 0, rd, rs1, offset));
+	}
+
+	private void branch(int funct3, Register rs1, Register rs2, Label target) {
+		fixups.add(new Fixup(Fixup.Kind.BRANCH, size, target, 0));
+		instruction(bType(funct3, rs1, rs2));
+	}
+
+	public void beq(Register rs1, Register rs2, Label target) {
+		branch(0, rs1, rs2, target);
+	}
+
+	public void bne(Register rs1, Register rs2, Label target) {
+		branch(1, rs1, rs2, target);
+	}
+
+	public void blt(Register rs1, Register rs2, Label target) {
+		branch(4, rs1, rs2, target);
+	}
+
+	public void bge(Register rs1, Register rs2, Label target) {
+		branch(5, rs1, rs2, target);
+	}
+
+	public void bltu(Register rs1, Register rs2, Label target) {
+		branch(6, rs1, rs2, target);
+	}
+
+	public void bgeu(Register rs1, Register rs2, Label target) {
+		branch(7, rs1, rs2, target);
+	}
+
+	public void lb(Register rd, int offset, Register rs1) {
+		instruction(iType(OPCODE_LOAD, 0, rd, rs1, offset));
+	}
+
+	public void lh(Register rd, int offset, Register rs1) {
+		instruction(iType(OPCODE_LOAD, 1, rd, rs1, offset));
+	}
+
+	public void lw(Register rd, int offset, Register rs1) {
+		instruction(iType(OPCODE_LOAD, 2, rd, rs1, offset));
+	}
+
+	public void lbu(Register rd, int offset, Register rs1) {
+		instruction(iType(OPCODE_LOAD, 4, rd, rs1, offset));
+	}
+
+	public void lhu(Register rd, int offset, Register rs1) {
+		instruction(iType(OPCODE_LOAD, 5, rd, rs1, offset));
+	}
+
+	public void sb(Register rs2, int offset, Register rs1) {
+		instruction(sType(OPCODE_STORE, 0, rs1, rs2, offset));
+	}
+
+	public void sh(Register rs2, int offset, Register rs1) {
+		instruction(sType(OPCODE_STORE, 1, rs1, rs2, offset));
+	}
+
+	public void sw(Register rs2, int offset, Register rs1) {
+		instruction(sType(OPCODE_STORE, 2, rs1, rs2, offset));
+	}
+
+	public void addi(Register rd, Register rs1, int immediate) {
+		instruction(iType(OPCODE_OP_IMM, 0, rd, rs1, immediate));
+	}
+
+	public void slti(Register rd, Register rs1, int immediate) {
+		instruction(iType(OPCODE_OP_IMM, 2, rd, rs1, immediate));
+	}
+
+	public void sltiu(Register rd, Register rs1, int immediate) {
+		instruction(iType(OPCODE_OP_IMM, 3, rd, rs1, immediate));
+	}
+
+	public void xori(Register rd, Register rs1, int immediate) {
+		instruction(iType(OPCODE_OP_IMM, 4, rd, rs1, immediate));
+	}
+
+	public void ori(Register rd, Register rs1, int immediate) {
+		instruction(iType(OPCODE_OP_IMM, 6, rd, rs1, immediate));
+	}
+
+	public void andi(Register rd, Register rs1, int immediate) {
+		instruction(iType(OPCODE_OP_IMM, 7, rd, rs1, immediate));
+	}
+
+	private void shiftImmediate(int funct3, int funct7, Register rd, Register rs1, int shiftAmount) {
+		if (shiftAmount < 0 || shiftAmount > 31) {
+			throw new AssemblerException("shift amount out of range: " + shiftAmount);
+		}
+		instruction(iType(OPCODE_OP_IMM, funct3, rd, rs1, (funct7 << 5) | shiftAmount));
+	}
+
+	public void slli(Register rd, Register rs1, int shiftAmount) {
+		shiftImmediate(1, 0, rd, rs1, shiftAmount);
+	}
+
+	public void srli(Register rd, Register rs1, int shiftAmount) {
+		shiftImmediate(5, 0, rd, rs1, shiftAmount);
+	}
+
+	public void srai(Register rd, Register rs1, int shiftAmount) {
+		shiftImmediate(5, 0x20, rd, rs1, shiftAmount);
+	}
+
+	public void add(Register rd, Register rs1, Register rs2) {
+		instruction(rType(OPCODE_OP, 0, 0, rd, rs1, rs2));
+	}
+
+	public void sub(Register rd, Register rs1, Register rs2) {
+		instruction(rType(OPCODE_OP, 0, 0x20, rd, rs1, rs2));
+	}
+
+	public void sll(Register rd, Register rs1, Register rs2) {
+		instruction(rType(OPCODE_OP, 1, 0, rd, rs1, rs2));
+	}
+
+	public void slt(Register rd, Register rs1, Register rs2) {
+		instruction(rType(OPCODE_OP, 2, 0, rd, rs1, rs2));
+	}
+
+	public void sltu(Register rd, Register rs1, Register rs2) {
+		instruction(rType(OPCODE_OP, 3, 0, rd, rs1, rs2));
+	}
+
+	public void xor(Register rd, Register rs1, Register rs2) {
+		instruction(rType(OPCODE_OP, 4, 0, rd, rs1, rs2));
+	}
+
+	public void srl(Register rd, Register rs1, Register rs2) {
+		instruction(rType(OPCODE_OP, 5, 0, rd, rs1, rs2));
+	}
+
+	public void sra(Register rd, Register rs1, Register rs2) {
+		instruction(rType(OPCODE_OP, 5, 0x20, rd, rs1, rs2));
+	}
+
+	public void or(Register rd, Register rs1, Register rs2) {
+		instruction(rType(OPCODE_OP, 6, 0, rd, rs1, rs2));
+	}
+
+	public void and(Register rd, Register rs1, Register rs2) {
+		instruction(rType(OPCODE_OP, 7, 0, rd, rs1, rs2));
+	}
+
+	public void ecall() {
+		instruction(OPCODE_SYSTEM);
+	}
+
+	public void ebreak() {
+		instruction((1 << 20) | OPCODE_SYSTEM);
+	}
+
+	//endregion
+
+	//region M extension
+
+	public void mul(Register rd, Register rs1, Register rs2) {
+		instruction(rType(OPCODE_OP, 0, 1, rd, rs1, rs2));
+	}
+
+	public void mulh(Register rd, Register rs1, Register rs2) {
+		instruction(rType(OPCODE_OP, 1, 1, rd, rs1, rs2));
+	}
+
+	public void mulhsu(Register rd, Register rs1, Register rs2) {
+		instruction(rType(OPCODE_OP, 2, 1, rd, rs1, rs2));
+	}
+
+	public void mulhu(Register rd, Register rs1, Register rs2) {
+		instruction(rType(OPCODE_OP, 3, 1, rd, rs1, rs2));
+	}
+
+	public void div(Register rd, Register rs1, Register rs2) {
+		instruction(rType(OPCODE_OP, 4, 1, rd, rs1, rs2));
+	}
+
+	public void divu(Register rd, Register rs1, Register rs2) {
+		instruction(rType(OPCODE_OP, 5, 1, rd, rs1, rs2));
+	}
+
+	public void rem(Register rd, Register rs1, Register rs2) {
+		instruction(rType(OPCODE_OP, 6, 1, rd, rs1, rs2));
+	}
+
+	public void remu(Register rd, Register rs1, Register rs2) {
+		instruction(rType(OPCODE_OP, 7, 1, rd, rs1, rs2));
+	}
+
+	//endregion
+
+	//region F and D extensions
+
+	public void flw(FloatRegister rd, int offset, Register rs1) {
+		instruction(iType(OPCODE_LOAD_FP, 2, rd.getIndex(), rs1, offset));
+	}
+
+	public void fld(FloatRegister rd, int offset, Register rs1) {
+		instruction(iType(OPCODE_LOAD_FP, 3, rd.getIndex(), rs1, offset));
+	}
+
+	public void fsw(FloatRegister rs2, int offset, Register rs1) {
+		instruction(sType(OPCODE_STORE_FP, 2, rs1, rs2.getIndex(), offset));
+	}
+
+	public void fsd(FloatRegister rs2, int offset, Register rs1) {
+		instruction(sType(OPCODE_STORE_FP, 3, rs1, rs2.getIndex(), offset));
+	}
+
+	/**
+	 * Encodes an OP-FP instruction. The function code is the upper five bits of funct7; the lower two bits select
+	 * the format. The funct3 field holds the rounding mode for arithmetic instructions.
+	 */
+	private void floatOperation(int function, FloatFormat format, int funct3, int rd, int rs1, int rs2) {
+		instruction(rType(OPCODE_OP_FP, funct3, (function << 2) | format.getCode(), rd, rs1, rs2));
+	}
+
+	public void fadd(FloatFormat format, FloatRegister rd, FloatRegister rs1, FloatRegister rs2, RoundingMode roundingMode) {
+		floatOperation(0x00, format, roundingMode.getCode(), rd.getIndex(), rs1.getIndex(), rs2.getIndex());
+	}
+
+	public void fsub(FloatFormat format, FloatRegister rd, FloatRegister rs1, FloatRegister rs2, RoundingMode roundingMode) {
+		floatOperation(0x01, format, roundingMode.getCode(), rd.getIndex(), rs1.getIndex(), rs2.getIndex());
+	}
+
+	public void fmul(FloatFormat format, FloatRegister rd, FloatRegister rs1, FloatRegister rs2, RoundingMode roundingMode) {
+		floatOperation(0x02, format, roundingMode.getCode(), rd.getIndex(), rs1.getIndex(), rs2.getIndex());
+	}
+
+	public void fdiv(FloatFormat format, FloatRegister rd, FloatRegister rs1, FloatRegister rs2, RoundingMode roundingMode) {
+		floatOperation(0x03, format, roundingMode.getCode(), rd.getIndex(), rs1.getIndex(), rs2.getIndex());
+	}
+
+	public void fsqrt(FloatFormat format, FloatRegister rd, FloatRegister rs1, RoundingMode roundingMode) {
+		floatOperation(0x0b, format, roundingMode.getCode(), rd.getIndex(), rs1.getIndex(), 0);
+	}
+
+	public void fsgnj(FloatFormat format, FloatRegister rd, FloatRegister rs1, FloatRegister rs2) {
+		floatOperation(0x04, format, 0, rd.getIndex(), rs1.getIndex(), rs2.getIndex());
+	}
+
+	public void fsgnjn(FloatFormat format, FloatRegister rd, FloatRegister rs1, FloatRegister rs2) {
+		floatOperation(0x04, format, 1, rd.getIndex(), rs1.getIndex(), rs2.getIndex());
+	}
+
+	public void fsgnjx(FloatFormat format, FloatRegister rd, FloatRegister rs1, FloatRegister rs2) {
+		floatOperation(0x04, format, 2, rd.getIndex(), rs1.getIndex(), rs2.getIndex());
+	}
+
+	public void fmin(FloatFormat format, FloatRegister rd, FloatRegister rs1, FloatRegister rs2) {
+		floatOperation(0x05, format, 0, rd.getIndex(), rs1.getIndex(), rs2.getIndex());
+	}
+
+	public void fmax(FloatFormat format, FloatRegister rd, FloatRegister rs1, FloatRegister rs2) {
+		floatOperation(0x05, format, 1, rd.getIndex(), rs1.getIndex(), rs2.getIndex());
+	}
+
+	public void feq(FloatFormat format, Register rd, FloatRegister rs1, FloatRegister rs2) {
+		floatOperation(0x14, format, 2, rd.getIndex(), rs1.getIndex(), rs2.getIndex());
+	}
+
+	public void flt(FloatFormat format, Register rd, FloatRegister rs1, FloatRegister rs2) {
+		floatOperation(0x14, format, 1, rd.getIndex(), rs1.getIndex(), rs2.getIndex());
+	}
+
+	public void fle(FloatFormat format, Register rd, FloatRegister rs1, FloatRegister rs2) {
+		floatOperation(0x14, format, 0, rd.getIndex(), rs1.getIndex(), rs2.getIndex());
+	}
+
+	/**
+	 * fcvt.w.s / fcvt.w.d
+	 */
+	public void fcvtToInt(FloatFormat format, Register rd, FloatRegister rs1, RoundingMode roundingMode) {
+		floatOperation(0x18, format, roundingMode.getCode(), rd.getIndex(), rs1.getIndex(), 0);
+	}
+
+	/**
+	 * fcvt.s.w / fcvt.d.w
+	 */
+	public void fcvtFromInt(FloatFormat format, FloatRegister rd, Register rs1, RoundingMode roundingMode) {
+		floatOperation(0x1a, format, roundingMode.getCode(), rd.getIndex(), rs1.getIndex(), 0);
+	}
+
+	/**
+	 * fcvt.s.d (format S) / fcvt.d.s (format D)
+	 */
+	public void fcvtFormat(FloatFormat format, FloatRegister rd, FloatRegister rs1, RoundingMode roundingMode) {
+		FloatFormat sourceFormat = (format == FloatFormat.S ? FloatFormat.D : FloatFormat.S);
+		floatOperation(0x08, format, roundingMode.getCode(), rd.getIndex(), rs1.getIndex(), sourceFormat.getCode());
+	}
+
+	/**
+	 * fmv.x.w
+	 */
+	public void fmvToInt(Register rd, FloatRegister rs1) {
+		floatOperation(0x1c, FloatFormat.S, 0, rd.getIndex(), rs1.getIndex(), 0);
+	}
+
+	/**
+	 * fmv.w.x
+	 */
+	public void fmvFromInt(FloatRegister rd, Register rs1) {
+		floatOperation(0x1e, FloatFormat.S, 0, rd.getIndex(), rs1.getIndex(), 0);
+	}
+
+	//endregion
+
+	//region pseudo-instructions
+
+	public void nop() {
+		addi(Register.ZERO, Register.ZERO, 0);
+	}
+
+	public void li(Register rd, int value) {
+		if (isSigned(value, 12)) {
+			addi(rd, Register.ZERO, value);
+		} else {
+			lui(rd, getHigh(value));
+			if (getLow(value) != 0) {
+				addi(rd, rd, getLow(value));
+			}
+		}
+	}
+
+	private void pcRelativePair(Fixup.Kind kind, Register auipcDestination, Label label, int addend) {
+		fixups.add(new Fixup(kind, size, label, addend));
+		auipc(auipcDestination, 0);
+	}
+
+	public void la(Register rd, Label label, int addend) {
+		pcRelativePair(Fixup.Kind.PC_RELATIVE_PAIR_I, rd, label, addend);
+		addi(rd, rd, 0);
+	}
+
+	public void la(Register rd, Label label) {
+		la(rd, label, 0);
+	}
+
+	public void lb(Register rd, Label label, int addend) {
+		pcRelativePair(Fixup.Kind.PC_RELATIVE_PAIR_I, rd, label, addend);
+		lb(rd, 0, rd);
+	}
+
+	public void lh(Register rd, Label label, int addend) {
+		pcRelativePair(Fixup.Kind.PC_RELATIVE_PAIR_I, rd, label, addend);
+		lh(rd, 0, rd);
+	}
+
+	public void lw(Register rd, Label label, int addend) {
+		pcRelativePair(Fixup.Kind.PC_RELATIVE_PAIR_I, rd, label, addend);
+		lw(rd, 0, rd);
+	}
+
+	public void lbu(Register rd, Label label, int addend) {
+		pcRelativePair(Fixup.Kind.PC_RELATIVE_PAIR_I, rd, label, addend);
+		lbu(rd, 0, rd);
+	}
+
+	public void lhu(Register rd, Label label, int addend) {
+		pcRelativePair(Fixup.Kind.PC_RELATIVE_PAIR_I, rd, label, addend);
+		lhu(rd, 0, rd);
+	}
+
+	/**
+	 * Stores to a label. The temp register is used for the address.
+	 */
+	public void sb(Register rs2, Label label, int addend, Register temp) {
+		pcRelativePair(Fixup.Kind.PC_RELATIVE_PAIR_S, temp, label, addend);
+		sb(rs2, 0, temp);
+	}
+
+	/**
+	 * Stores to a label. The temp register is used for the address.
+	 */
+	public void sh(Register rs2, Label label, int addend, Register temp) {
+		pcRelativePair(Fixup.Kind.PC_RELATIVE_PAIR_S, temp, label, addend);
+		sh(rs2, 0, temp);
+	}
+
+	/**
+	 * Stores to a label. The temp register is used for the address.
+	 */
+	public void sw(Register rs2, Label label, int addend, Register temp) {
+		pcRelativePair(Fixup.Kind.PC_RELATIVE_PAIR_S, temp, label, addend);
+		sw(rs2, 0, temp);
+	}
+
+	public void mv(Register rd, Register rs) {
+		addi(rd, rs, 0);
+	}
+
+	public void fmv(FloatFormat format, FloatRegister rd, FloatRegister rs) {
+		fsgnj(format, rd, rs, rs);
+	}
+
+	public void fneg(FloatFormat format, FloatRegister rd, FloatRegister rs) {
+		fsgnjn(format, rd, rs, rs);
+	}
+
+	public void fabs(FloatFormat format, FloatRegister rd, FloatRegister rs) {
+		fsgnjx(format, rd, rs, rs);
+	}
+
+	public void not(Register rd, Register rs) {
+		xori(rd, rs, -1);
+	}
+
+	public void neg(Register rd, Register rs) {
+		sub(rd, Register.ZERO, rs);
+	}
+
+	public void seqz(Register rd, Register rs) {
+		sltiu(rd, rs, 1);
+	}
+
+	public void snez(Register rd, Register rs) {
+		sltu(rd, Register.ZERO, rs);
+	}
+
+	public void sltz(Register rd, Register rs) {
+		slt(rd, rs, Register.ZERO);
+	}
+
+	public void sgtz(Register rd, Register rs) {
+		slt(rd, Register.ZERO, rs);
+	}
+
+	public void beqz(Register rs, Label target) {
+		beq(rs, Register.ZERO, target);
+	}
+
+	public void bnez(Register rs, Label target) {
+		bne(rs, Register.ZERO, target);
+	}
+
+	public void blez(Register rs, Label target) {
+		bge(Register.ZERO, rs, target);
+	}
+
+	public void bgez(Register rs, Label target) {
+		bge(rs, Register.ZERO, target);
+	}
+
+	public void bltz(Register rs, Label target) {
+		blt(rs, Register.ZERO, target);
+	}
+
+	public void bgtz(Register rs, Label target) {
+		blt(Register.ZERO, rs, target);
+	}
+
+	public void bgt(Register rs1, Register rs2, Label target) {
+		blt(rs2, rs1, target);
+	}
+
+	public void ble(Register rs1, Register rs2, Label target) {
+		bge(rs2, rs1, target);
+	}
+
+	public void bgtu(Register rs1, Register rs2, Label target) {
+		bltu(rs2, rs1, target);
+	}
+
+	public void bleu(Register rs1, Register rs2, Label target) {
+		bgeu(rs2, rs1, target);
+	}
+
+	public void j(Label target) {
+		jal(Register.ZERO, target);
+	}
+
+	public void jr(Register rs) {
+		jalr(Register.ZERO, 0, rs);
+	}
+
+	public void ret() {
+		jr(Register.RA);
+	}
+
+	public void call(Label target) {
+		pcRelativePair(Fixup.Kind.PC_RELATIVE_PAIR_I, Register.RA, target, 0);
+		jalr(Register.RA, 0, Register.RA);
+	}
+
+	public void tail(Label target) {
+		pcRelativePair(Fixup.Kind.PC_RELATIVE_PAIR_I, Register.T1, target, 0);
+		jalr(Register.ZERO, 0, Register.T1);
+	}
+
+	//endregion
+
+}
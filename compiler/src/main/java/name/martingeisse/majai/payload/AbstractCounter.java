@@ -0,0 +1,20 @@
+package name.martingeisse.majai.payload;
+
+/**
+ *
+ */
+public abstract class AbstractCounter implements Counter {
+
+	protected int value;
+
+	@Override
+	public int get() {
+		return value;
+	}
+
+	@Override
+	public void reset() {
+		value = 0;
+	}
+
+}
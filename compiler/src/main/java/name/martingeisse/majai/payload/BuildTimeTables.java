@@ -0,0 +1,38 @@
+package name.martingeisse.majai.payload;
+
+/**
+ * Tables whose static initializer is run at build time, so they are part of the image. The counter is the only
+ * instance of its class, so the compiler must take objects created at build time into account to find its methods.
+ */
+public class BuildTimeTables {
+
+	public static final int[] CRC_TABLE = new int[256];
+	public static final String[] NAMES = {"zero", "one", "two", "three"};
+	public static final int[][] TRIANGLE = new int[6][];
+	public static final Counter COUNTER = new ModularCounter(7);
+	public static final int SEED;
+	public static char separator = '-';
+	public static boolean ready;
+
+	static {
+		for (int i = 0; i < CRC_TABLE.length; i++) {
+			int c = i;
+			for (int k = 0; k < 8; k++) {
+				c = ((c & 1) != 0 ? 0xedb88320 ^ (c >>> 1) : c >>> 1);
+			}
+			CRC_TABLE[i] = c;
+		}
+		for (int i = 0; i < TRIANGLE.length; i++) {
+			int[] row = new int[i + 1];
+			row[0] = row[i] = 1;
+			for (int j = 1; j < i; j++) {
+				row[j] = TRIANGLE[i - 1][j - 1] + TRIANGLE[i - 1][j];
+			}
+			TRIANGLE[i] = row;
+		}
+		SEED = CRC_TABLE[255] ^ CRC_TABLE[1];
+		COUNTER.add(12);
+		ready = true;
+	}
+
+}
@@ -0,0 +1,20 @@
+package name.martingeisse.majai.payload;
+
+/**
+ *
+ */
+public interface Counter {
+
+	int get();
+
+	void add(int amount);
+
+	void reset();
+
+	default int addTwice(int amount) {
+		add(amount);
+		add(amount);
+		return get();
+	}
+
+}
@@ -0,0 +1,18 @@
+package name.martingeisse.majai.payload;
+
+/**
+ *
+ */
+public class ListNode {
+
+	public int value;
+	public int[] data;
+	public ListNode next;
+
+	public ListNode(int value, int[] data, ListNode next) {
+		this.value = value;
+		this.data = data;
+		this.next = next;
+	}
+
+}
@@ -0,0 +1,19 @@
+package name.martingeisse.majai.payload;
+
+/**
+ *
+ */
+public class ModularCounter extends AbstractCounter {
+
+	private final int modulus;
+
+	public ModularCounter(int modulus) {
+		this.modulus = modulus;
+	}
+
+	@Override
+	public void add(int amount) {
+		value = (value + amount) % modulus;
+	}
+
+}
@@ -0,0 +1,18 @@
+package name.martingeisse.majai.payload;
+
+/**
+ *
+ */
+public class PrefixPrinter extends Printer {
+
+	@Override
+	public int write(long value) {
+		return (int) value + 20;
+	}
+
+	@Override
+	public int write(String value) {
+		return super.write(value) + 30;
+	}
+
+}
@@ -0,0 +1,24 @@
+package name.martingeisse.majai.payload;
+
+/**
+ *
+ */
+public class Printer {
+
+	public int write(int value) {
+		return value + 1;
+	}
+
+	public int write(long value) {
+		return (int) (value >> 32) + 2;
+	}
+
+	public int write(String value) {
+		return value.length() + 3;
+	}
+
+	public int write(int value, int repetitions) {
+		return value * repetitions + 4;
+	}
+
+}
@@ -0,0 +1,36 @@
+package name.martingeisse.majai.payload;
+
+/**
+ *
+ */
+public class ScaledCounter implements Counter {
+
+	private final int factor;
+	private int value;
+
+	public ScaledCounter(int factor) {
+		this.factor = factor;
+	}
+
+	@Override
+	public int get() {
+		return value;
+	}
+
+	@Override
+	public void add(int amount) {
+		value += factor * amount;
+	}
+
+	@Override
+	public void reset() {
+		value = 0;
+	}
+
+	@Override
+	public int addTwice(int amount) {
+		add(2 * amount);
+		return get();
+	}
+
+}
@@ -83,18 +83,417 @@ public class SelfTest {
 			}
 		}
 
-		// test checkcast
+		// test garbage collection: allocate much more memory than the heap has, while keeping some objects alive
+		// through a local variable and an array
+		{
+			ListNode list = null;
+			ListNode[] table = new ListNode[20];
+			for (int i = 0; i < 5000; i++) {
+				int[] data = new int[i % 200 + 1];
+				data[0] = i;
+				data[data.length - 1] = i;
+				if (i % 250 == 0) {
+					list = new ListNode(i, data, list);
+				} else {
+					table[i % 20] = new ListNode(i, data, null);
+				}
+			}
+			int sum = 0;
+			for (ListNode node = list; node != null; node = node.next) {
+				sum += node.value + node.data.length + node.data[0] + node.data[node.data.length - 1];
+			}
+			out(sum);
+			sum = 0;
+			for (int i = 0; i < table.length; i++) {
+				ListNode node = table[i];
+				sum += node.value + node.data.length + node.data[0] + node.data[node.data.length - 1];
+			}
+			out(sum);
+		}
+
+		// test checkcast and instanceof
 		{
 			Object o = "foo";
 			out(((String)o).length());
+			Object sub = new ConstructorSub(7, 8);
+			out(((ConstructorSuper)sub).x);
+			out(sub instanceof ConstructorSuper ? 1 : 0);
+			out(sub instanceof ConstructorSub ? 1 : 0);
+			out(o instanceof ConstructorSuper ? 1 : 0);
+			Object array = new String[2];
+			out(array instanceof Object[] ? 1 : 0);
+			out(array instanceof String[] ? 1 : 0);
+			out(array instanceof int[] ? 1 : 0);
+			out(o instanceof Object[] ? 1 : 0);
+			Object nothing = null;
+			out(nothing instanceof String ? 1 : 0);
 		}
 
+		// test interface calls, including default methods and methods that share a slot in the interface method table
+		{
+			Counter counter = new SimpleCounter();
+			counter.add(5);
+			out(counter.get());
+			out(counter.addTwice(3));
+			counter.reset();
+			out(counter.get());
+			counter = new ScaledCounter(10);
+			counter.add(2);
+			out(counter.get());
+			out(counter.addTwice(1));
+		}
 
+		// test overloaded virtual methods, only some of which are overridden
+		{
+			Printer[] printers = {new Printer(), new PrefixPrinter()};
+			for (int i = 0; i < printers.length; i++) {
+				Printer printer = printers[i];
+				out(printer.write(5));
+				out(printer.write(0x700000000L));
+				out(printer.write("abcd"));
+				out(printer.write(3, 4));
+			}
+		}
+
+		// test switches: few cases, dense cases (jump table) and sparse cases (search tree)
+		{
+			out(smallSwitch(5));
+			out(smallSwitch(6));
+			int sum = 0;
+			for (int i = -2; i < 12; i++) {
+				sum = sum * 3 + denseSwitch(i);
+			}
+			out(sum);
+			int[] keys = {-5, 0, 1, 99, 100, 1000, 3000, 10000, 77777, 77778};
+			sum = 0;
+			for (int i = 0; i < keys.length; i++) {
+				sum = sum * 3 + sparseSwitch(keys[i]);
+			}
+			out(sum);
+		}
+
+		// test long arithmetic, including long arguments and return values, and the carries between the words
+		{
+			long[] values = {0, 1, -1, 7, -7, 4294967295L, 4294967296L, 0x123456789abcdefL, -98765432123L, Long.MIN_VALUE, Long.MAX_VALUE};
+			long arithmetic = 0;
+			long division = 0;
+			long comparison = 0;
+			for (int i = 0; i < values.length; i++) {
+				for (int j = 0; j < values.length; j++) {
+					long a = values[i];
+					long b = values[j];
+					arithmetic = mixLong(arithmetic, 31, (a + b) ^ (a - b) ^ (a * b) ^ -a ^ (a & b | a ^ b));
+					if (b != 0) {
+						division = mixLong(division, 17, a / b + a % b);
+					}
+					comparison = comparison * 3 + (a < b ? 0 : a == b ? 1 : 2);
+				}
+			}
+			out((int) arithmetic);
+			out((int) (arithmetic >> 32));
+			out((int) division);
+			out((int) (division >> 32));
+			out((int) comparison);
+			long shifts = 0;
+			for (int i = 0; i < values.length; i++) {
+				long a = values[i];
+				for (int amount = 0; amount < 70; amount += 5) {
+					shifts = mixLong(shifts, 7, (a << amount) ^ (a >> amount) ^ (a >>> amount));
+				}
+				shifts = mixLong(shifts, 7, (a << 3) ^ (a >> 40) ^ (a >>> 32) ^ (a << 45) ^ (a >>> 1) ^ (a >> 63));
+			}
+			out((int) shifts);
+			out((int) (shifts >>> 32));
+			int small = -123456;
+			long widened = small;
+			out((int) (widened >> 32));
+			out((int) (widened * 1000000 / 7));
+		}
+
+		// test array accesses in loops that count up and down, whose bounds checks can be removed
+		{
+			int[] squares = new int[10];
+			for (int i = 0; i < squares.length; i++) {
+				squares[i] = i * i;
+			}
+			int sum = squares[9];
+			for (int i = squares.length - 1; i >= 0; i--) {
+				sum = sum * 3 + squares[i];
+			}
+			out(sum);
+		}
+
+		// test constant propagation through local variables, inlined calls, and branches and switches whose operand
+		// is constant, as well as a loop variable that is not constant although it starts with a constant
+		{
+			int flags = 5;
+			long big = 1L << 40;
+			double ratio = 2.5;
+			int folded = (flags * 7 + (int) (big >>> 35)) ^ (int) (ratio * 4);
+			if (flags > 3) {
+				folded += clamp(300, 0, 255);
+			} else {
+				folded -= 1000;
+			}
+			switch (flags & 3) {
+
+				case 1:
+					folded *= 3;
+					break;
+
+				default:
+					folded = 0;
+					break;
+
+			}
+			int counter = 0;
+			for (int i = 0; i < 4; i++) {
+				counter += flags;
+			}
+			out(folded);
+			out(counter);
+		}
+
+		// test static fields whose initializer has been run at build time
+		{
+			out(BuildTimeTables.ready ? 1 : 0);
+			out(BuildTimeTables.CRC_TABLE[1]);
+			out(BuildTimeTables.SEED);
+			out(BuildTimeTables.NAMES[3].length());
+			out(BuildTimeTables.TRIANGLE[5][2]);
+			out(BuildTimeTables.COUNTER.addTwice(4));
+			out(BuildTimeTables.separator);
+		}
+
+		testFloatingPoint();
+		testExceptions();
 
 		// TODO: test returning a String
 		// out(returnWorld());
 	}
 
+	/**
+	 * Tests float and double arithmetic, including NaN, infinities, subnormal numbers and conversions that saturate.
+	 * The operations are spread over several methods to keep branches within range.
+	 */
+	public static void testFloatingPoint() {
+		double[] values = {0.0, -0.0, 1.0, -2.5, 0.1, 3.0e10, -7.0e-310, 1.0e300, 1.0 / 0.0, -1.0 / 0.0, 0.0 / 0.0};
+		long arithmetic = 0;
+		int comparison = 0;
+		for (int i = 0; i < values.length; i++) {
+			for (int j = 0; j < values.length; j++) {
+				arithmetic = mixLong(arithmetic, 31, doubleArithmetic(values[i], values[j]));
+				arithmetic = mixLong(arithmetic, 31, floatArithmetic((float) values[i], (float) values[j]));
+				comparison = comparison * 7 + floatingPointComparison(values[i], values[j]);
+			}
+		}
+		out((int) arithmetic);
+		out((int) (arithmetic >> 32));
+		out(comparison);
+		int[] ints = {0, 1, -1, 16777217, Integer.MIN_VALUE, Integer.MAX_VALUE};
+		int conversions = 0;
+		for (int i = 0; i < ints.length; i++) {
+			float f = ints[i];
+			double d = ints[i];
+			conversions = conversions * 31 + (int) f + (int) (d / 3) + (int) (long) (f * 3) + (int) ((float) d * 2.0);
+		}
+		out(conversions);
+		long big = 0x123456789abcdefL;
+		out((int) ((long) (float) big >> 8));
+		out((int) ((long) (double) -big >> 8));
+		double sum = 0;
+		for (int i = 0; i < 10; i++) {
+			sum = mixDouble(sum, 0.1f * i);
+		}
+		out((int) (sum * 1000));
+	}
+
+	/**
+	 * Tests throwing and catching exceptions, both explicitly thrown ones and those thrown by run-time checks, in the
+	 * same method and through several frames.
+	 */
+	public static void testExceptions() {
+		int[] array = {5, 6, 7};
+		int result = 0;
+		for (int i = -1; i < 5; i++) {
+			try {
+				result = result * 10 + divide(12, i) + array[i];
+			} catch (ArithmeticException e) {
+				result = result * 10 + e.getMessage().length();
+			} catch (ArrayIndexOutOfBoundsException e) {
+				result = result * 10 + 1;
+			}
+		}
+		out(result);
+		result = 0;
+		for (int i = 0; i < 5; i++) {
+			try {
+				result = result * 10 + sumUpTo(array, i);
+			} catch (IndexOutOfBoundsException e) {
+				result = result * 10 + 2;
+			}
+		}
+		out(result);
+		result = 0;
+		int finallyCount = 0;
+		for (int depth = 0; depth < 4; depth++) {
+			try {
+				try {
+					result = result * 10 + throwAt(depth, 3);
+				} finally {
+					finallyCount++;
+				}
+			} catch (TestException e) {
+				result = result * 10 + e.code;
+			}
+		}
+		out(result);
+		out(finallyCount);
+		result = 0;
+		Object object = "text";
+		long divisor = 0;
+		for (int i = 0; i < 4; i++) {
+			try {
+				switch (i) {
+					case 0:
+						result += ((Throwable) object).getMessage().length();
+						break;
+					case 1:
+						result += new int[i - 2].length;
+						break;
+					case 2:
+						result += (int) (1000L / divisor);
+						break;
+					default:
+						result += ((String) object).length();
+						break;
+				}
+			} catch (ClassCastException e) {
+				result = result * 10 + 1;
+			} catch (NegativeArraySizeException e) {
+				result = result * 10 + 2;
+			} catch (RuntimeException e) {
+				result = result * 10 + 3;
+			}
+		}
+		out(result);
+	}
+
+	public static int divide(int x, int y) {
+		return x / y;
+	}
+
+	/**
+	 * A leaf method whose bounds checks cannot be removed.
+	 */
+	public static int sumUpTo(int[] array, int last) {
+		int sum = 0;
+		for (int i = 0; i <= last; i++) {
+			sum += array[i];
+		}
+		return sum;
+	}
+
+	public static int throwAt(int depth, int code) {
+		if (depth == 0) {
+			throw new TestException(code);
+		}
+		return throwAt(depth - 1, code + 1) + 1;
+	}
+
+	static class TestException extends RuntimeException {
+
+		final int code;
+
+		TestException(int code) {
+			this.code = code;
+		}
+
+	}
+
+	public static int smallSwitch(int x) {
+		switch (x) {
+			case 1:
+				return 10;
+			case 5:
+				return 50;
+			default:
+				return 0;
+		}
+	}
+
+	public static int denseSwitch(int x) {
+		switch (x) {
+			case 0:
+				return 1;
+			case 1:
+				return 2;
+			case 2:
+			case 3:
+				return 3;
+			case 4:
+				return 4;
+			case 5:
+				return 5;
+			case 7:
+				return 6;
+			case 9:
+				return 7;
+			default:
+				return 8;
+		}
+	}
+
+	public static int sparseSwitch(int x) {
+		switch (x) {
+			case -5:
+				return 1;
+			case 1:
+				return 2;
+			case 100:
+				return 3;
+			case 1000:
+				return 4;
+			case 3000:
+				return 5;
+			case 10000:
+				return 6;
+			case 77777:
+				return 7;
+			default:
+				return 0;
+		}
+	}
+
+	public static long mixLong(long hash, int factor, long value) {
+		return hash * factor + value;
+	}
+
+	public static double mixDouble(double hash, float value) {
+		return hash * 1.5 + value;
+	}
+
+	public static long doubleArithmetic(double a, double b) {
+		return (long) (a + b) ^ (long) ((a - b) * 1.0e-5) ^ (long) (a * b * 1.0e20) ^ (long) (a / b * 1.0e9)
+			^ (long) (a % b * 1.0e9) ^ (long) -a;
+	}
+
+	public static long floatArithmetic(float x, float y) {
+		return (int) (x + y) ^ (int) (x - y) ^ (int) (x * y * 1.0e6f) ^ (int) (x / y) ^ (int) (x % y * 1000)
+			^ (long) (-x * 1.0e30f);
+	}
+
+	public static int floatingPointComparison(double a, double b) {
+		float x = (float) a;
+		float y = (float) b;
+		return (a < b ? 1 : 0) + (a > b ? 2 : 0) + (a == b ? 4 : 0)
+			+ (x <= y ? 8 : 0) + (x >= y ? 16 : 0) + (x != y ? 32 : 0);
+	}
+
+	public static int clamp(int value, int min, int max) {
+		return (value < min ? min : value > max ? max : value);
+	}
+
 	public static int return99() {
 		return 99;
 	}
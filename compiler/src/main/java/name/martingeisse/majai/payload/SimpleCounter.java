@@ -0,0 +1,13 @@
+package name.martingeisse.majai.payload;
+
+/**
+ *
+ */
+public class SimpleCounter extends AbstractCounter {
+
+	@Override
+	public void add(int amount) {
+		value += amount;
+	}
+
+}
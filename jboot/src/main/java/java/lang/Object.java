@@ -1,6 +1,7 @@
 package java.lang;
 
 import name.martingeisse.majai.vm.VmClass;
+import name.martingeisse.majai.vm.VmObjectMetadata;
 
 public class Object {
 
@@ -12,7 +13,7 @@ public class Object {
     native final VmClass getVmClass();
 
     final boolean isInstanceOf(VmClass c) {
-        return getVmClass().isEqualOrSubclassOf(c);
+        return VmObjectMetadata.isEqualOrSubclassOf(getVmClass(), c);
     }
 
 }
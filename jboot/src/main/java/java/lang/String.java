@@ -23,10 +23,11 @@ public final class String {
 	}
 
 	public String(char[] characters, int start, int length) {
-		this.characters = new char[length];
+		char[] copy = new char[length];
 		for (int i = 0; i < length; i++) {
-			this.characters[i] = characters[start + i];
+			copy[i] = characters[start + i];
 		}
+		this.characters = copy;
 	}
 
 	public String(String s, int start, int length) {
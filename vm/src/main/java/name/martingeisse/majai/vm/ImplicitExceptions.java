@@ -0,0 +1,30 @@
+package name.martingeisse.majai.vm;
+
+/**
+ * Throws the exceptions that the JVM throws by itself when a run-time check fails. Compiled code calls these methods
+ * from the failure paths of its checks, so they appear to be thrown by the instruction that failed the check. This
+ * class is compiled for the target.
+ */
+public final class ImplicitExceptions {
+
+    // prevent instantiation
+    private ImplicitExceptions() {
+    }
+
+    public static void throwArithmeticException() {
+        throw new ArithmeticException("/ by zero");
+    }
+
+    public static void throwArrayIndexOutOfBoundsException() {
+        throw new ArrayIndexOutOfBoundsException();
+    }
+
+    public static void throwClassCastException() {
+        throw new ClassCastException();
+    }
+
+    public static void throwNegativeArraySizeException() {
+        throw new NegativeArraySizeException();
+    }
+
+}
@@ -0,0 +1,463 @@
+package name.martingeisse.majai.vm;
+
+/**
+ * Implements the float and double operations of the JVM with integer arithmetic, for targets without a floating-point
+ * unit. The compiler calls these methods instead of emitting RV32F/D instructions when soft-float is selected, and
+ * for those operations that RV32F/D cannot do directly (conversions from and to long, and remainders) even when not.
+ *
+ * All values are passed and returned as their IEEE 754 bit patterns. Rounding is round-to-nearest-even, subnormal
+ * numbers are supported, and every NaN result is the canonical NaN, like on RISC-V. Float operations are computed
+ * as double operations on the exactly converted operands; for addition, subtraction, multiplication and division,
+ * rounding that result to float gives the correctly rounded float result, since double has more than twice the
+ * precision of float.
+ *
+ * Internally, a finite non-zero value is unpacked into a sign, an unbiased exponent e, and a significand s with its
+ * highest bit at bit 62, meaning s * 2^(e - 62). The bits below the precision of the result are used for rounding,
+ * with bit 0 being "sticky", i.e. set if any bit shifted out to the right has been set.
+ *
+ * This class must not use floating-point operations itself, nor any other class, since it is compiled for the
+ * target.
+ */
+public final class SoftFloat {
+
+    private static final long DOUBLE_SIGN = 0x8000000000000000L;
+    private static final long DOUBLE_INFINITY = 0x7ff0000000000000L;
+    private static final long DOUBLE_NAN = 0x7ff8000000000000L;
+    private static final long DOUBLE_FRACTION_MASK = 0x000fffffffffffffL;
+    private static final int DOUBLE_BIAS = 1023;
+
+    private static final int FLOAT_SIGN = 0x80000000;
+    private static final int FLOAT_INFINITY = 0x7f800000;
+    private static final int FLOAT_NAN = 0x7fc00000;
+    private static final int FLOAT_BIAS = 127;
+
+    // prevent instantiation
+    private SoftFloat() {
+    }
+
+    //region double arithmetic
+
+    public static long addDouble(long a, long b) {
+        if (isNaN(a) || isNaN(b)) {
+            return DOUBLE_NAN;
+        }
+        if (isInfinite(a)) {
+            return (isInfinite(b) && a != b) ? DOUBLE_NAN : a;
+        }
+        if (isInfinite(b)) {
+            return b;
+        }
+        if (isZero(b)) {
+            return isZero(a) ? (a & b) : a;
+        }
+        if (isZero(a)) {
+            return b;
+        }
+
+        // let a be the operand with the larger magnitude
+        if ((a & ~DOUBLE_SIGN) < (b & ~DOUBLE_SIGN)) {
+            long temp = a;
+            a = b;
+            b = temp;
+        }
+        int exponent = getExponent(a);
+        int distance = exponent - getExponent(b);
+
+        // align the significands, leaving one bit of headroom for the carry
+        long significandA = getSignificand(a) >>> 1;
+        long significandB = shiftRightJam(getSignificand(b), distance + 1);
+        long significand;
+        if ((a ^ b) < 0) {
+            significand = significandA - significandB;
+            if (significand == 0) {
+                return 0;
+            }
+        } else {
+            significand = significandA + significandB;
+        }
+        int shift = countLeadingZeros(significand) - 1;
+        return roundAndPackDouble(a < 0, exponent + 1 - shift, significand << shift);
+    }
+
+    public static long subtractDouble(long a, long b) {
+        return addDouble(a, isNaN(b) ? b : b ^ DOUBLE_SIGN);
+    }
+
+    public static long multiplyDouble(long a, long b) {
+        long sign = (a ^ b) & DOUBLE_SIGN;
+        if (isNaN(a) || isNaN(b)) {
+            return DOUBLE_NAN;
+        }
+        if (isInfinite(a) || isInfinite(b)) {
+            return (isZero(a) || isZero(b)) ? DOUBLE_NAN : (DOUBLE_INFINITY | sign);
+        }
+        if (isZero(a) || isZero(b)) {
+            return sign;
+        }
+
+        // multiply the 53-bit significands to a 106-bit product, split into 32-bit parts
+        long x = getSignificand(a) >>> 10;
+        long y = getSignificand(b) >>> 10;
+        long xLow = x & 0xffffffffL;
+        long xHigh = x >>> 32;
+        long yLow = y & 0xffffffffL;
+        long yHigh = y >>> 32;
+        long lowProduct = xLow * yLow;
+        long middleProduct = xLow * yHigh + xHigh * yLow;
+        long productLow = lowProduct + (middleProduct << 32);
+        long productHigh = xHigh * yHigh + (middleProduct >>> 32) + (isUnsignedLessThan(productLow, lowProduct) ? 1 : 0);
+
+        // the product has its highest bit at bit 104 or 105; take the bits from 43 upwards plus a sticky bit
+        long significand = (productHigh << 21) | (productLow >>> 43) | ((productLow & 0x7ffffffffffL) != 0 ? 1 : 0);
+        int shift = countLeadingZeros(significand) - 1;
+        return roundAndPackDouble(sign != 0, getExponent(a) + getExponent(b) + 1 - shift, significand << shift);
+    }
+
+    public static long divideDouble(long a, long b) {
+        long sign = (a ^ b) & DOUBLE_SIGN;
+        if (isNaN(a) || isNaN(b)) {
+            return DOUBLE_NAN;
+        }
+        if (isInfinite(a)) {
+            return isInfinite(b) ? DOUBLE_NAN : (DOUBLE_INFINITY | sign);
+        }
+        if (isInfinite(b)) {
+            return sign;
+        }
+        if (isZero(b)) {
+            return isZero(a) ? DOUBLE_NAN : (DOUBLE_INFINITY | sign);
+        }
+        if (isZero(a)) {
+            return sign;
+        }
+
+        // long division of the 53-bit significands, giving a 63-bit quotient plus a sticky bit
+        long divisor = getSignificand(b) >>> 10;
+        long remainder = getSignificand(a) >>> 10;
+        long quotient = 0;
+        for (int i = 0; i < 63; i++) {
+            quotient = quotient << 1;
+            if (remainder >= divisor) {
+                remainder -= divisor;
+                quotient |= 1;
+            }
+            remainder = remainder << 1;
+        }
+        if (remainder != 0) {
+            quotient |= 1;
+        }
+        int shift = countLeadingZeros(quotient) - 1;
+        return roundAndPackDouble(sign != 0, getExponent(a) - getExponent(b) - shift, quotient << shift);
+    }
+
+    /**
+     * Implements the remainder of the % operator, which truncates the quotient (unlike IEEE 754 remainder). The
+     * result is exact.
+     */
+    public static long remainderDouble(long a, long b) {
+        if (isNaN(a) || isNaN(b) || isInfinite(a) || isZero(b)) {
+            return DOUBLE_NAN;
+        }
+        if (isInfinite(b) || isZero(a) || (a & ~DOUBLE_SIGN) < (b & ~DOUBLE_SIGN)) {
+            return a;
+        }
+        long divisor = getSignificand(b) >>> 10;
+        long remainder = getSignificand(a) >>> 10;
+        int exponentB = getExponent(b);
+        for (int exponent = getExponent(a); ; exponent--) {
+            if (remainder >= divisor) {
+                remainder -= divisor;
+            }
+            if (exponent == exponentB) {
+                break;
+            }
+            remainder = remainder << 1;
+        }
+        if (remainder == 0) {
+            return a & DOUBLE_SIGN;
+        }
+        int shift = countLeadingZeros(remainder) - 1;
+        return roundAndPackDouble(a < 0, exponentB + 10 - shift, remainder << shift);
+    }
+
+    /**
+     * Implements DCMPL (nanResult = -1) and DCMPG (nanResult = 1).
+     */
+    public static int compareDouble(long a, long b, int nanResult) {
+        if (isNaN(a) || isNaN(b)) {
+            return nanResult;
+        }
+        if (isZero(a) && isZero(b)) {
+            return 0;
+        }
+        long x = (a < 0 ? a ^ ~DOUBLE_SIGN : a);
+        long y = (b < 0 ? b ^ ~DOUBLE_SIGN : b);
+        return (x < y ? -1 : x == y ? 0 : 1);
+    }
+
+    //endregion
+
+    //region float arithmetic
+
+    public static int addFloat(int a, int b) {
+        return doubleToFloat(addDouble(floatToDouble(a), floatToDouble(b)));
+    }
+
+    public static int subtractFloat(int a, int b) {
+        return doubleToFloat(subtractDouble(floatToDouble(a), floatToDouble(b)));
+    }
+
+    public static int multiplyFloat(int a, int b) {
+        return doubleToFloat(multiplyDouble(floatToDouble(a), floatToDouble(b)));
+    }
+
+    public static int divideFloat(int a, int b) {
+        return doubleToFloat(divideDouble(floatToDouble(a), floatToDouble(b)));
+    }
+
+    public static int remainderFloat(int a, int b) {
+        return doubleToFloat(remainderDouble(floatToDouble(a), floatToDouble(b)));
+    }
+
+    /**
+     * Implements FCMPL (nanResult = -1) and FCMPG (nanResult = 1).
+     */
+    public static int compareFloat(int a, int b, int nanResult) {
+        return compareDouble(floatToDouble(a), floatToDouble(b), nanResult);
+    }
+
+    //endregion
+
+    //region conversions
+
+    public static int doubleToInt(long a) {
+        if (isNaN(a)) {
+            return 0;
+        }
+        int exponent = getExponent(a);
+        if (isZero(a) || exponent < 0) {
+            return 0;
+        }
+        if (exponent >= 31) {
+            return (a < 0 ? 0x80000000 : 0x7fffffff);
+        }
+        int magnitude = (int) (getSignificand(a) >>> (62 - exponent));
+        return (a < 0 ? -magnitude : magnitude);
+    }
+
+    public static long doubleToLong(long a) {
+        if (isNaN(a)) {
+            return 0;
+        }
+        int exponent = getExponent(a);
+        if (isZero(a) || exponent < 0) {
+            return 0;
+        }
+        if (exponent >= 63) {
+            return (a < 0 ? 0x8000000000000000L : 0x7fffffffffffffffL);
+        }
+        long magnitude = getSignificand(a) >>> (62 - exponent);
+        return (a < 0 ? -magnitude : magnitude);
+    }
+
+    public static long intToDouble(int a) {
+        return longToDouble(a);
+    }
+
+    public static long longToDouble(long a) {
+        if (a == 0) {
+            return 0;
+        }
+        if (a == 0x8000000000000000L) {
+            return 0xc3e0000000000000L;
+        }
+        long magnitude = (a < 0 ? -a : a);
+        int shift = countLeadingZeros(magnitude) - 1;
+        return roundAndPackDouble(a < 0, 62 - shift, magnitude << shift);
+    }
+
+    public static int doubleToFloat(long a) {
+        if (isNaN(a)) {
+            return FLOAT_NAN;
+        }
+        int sign = (a < 0 ? FLOAT_SIGN : 0);
+        if (isInfinite(a)) {
+            return FLOAT_INFINITY | sign;
+        }
+        if (isZero(a)) {
+            return sign;
+        }
+        return roundAndPackFloat(a < 0, getExponent(a), getSignificand(a));
+    }
+
+    public static long floatToDouble(int a) {
+        int exponentField = (a >>> 23) & 0xff;
+        int fraction = a & 0x7fffff;
+        long sign = (a < 0 ? DOUBLE_SIGN : 0);
+        if (exponentField == 0xff) {
+            return (fraction != 0 ? DOUBLE_NAN : (DOUBLE_INFINITY | sign));
+        }
+        if (exponentField == 0) {
+            if (fraction == 0) {
+                return sign;
+            }
+            exponentField = 1;
+        } else {
+            fraction |= 0x800000;
+        }
+        long significand = ((long) fraction) << 39;
+        int shift = countLeadingZeros(significand) - 1;
+        return roundAndPackDouble(a < 0, exponentField - FLOAT_BIAS - shift, significand << shift);
+    }
+
+    public static int floatToInt(int a) {
+        return doubleToInt(floatToDouble(a));
+    }
+
+    public static long floatToLong(int a) {
+        return doubleToLong(floatToDouble(a));
+    }
+
+    public static int intToFloat(int a) {
+        return longToFloat(a);
+    }
+
+    /**
+     * Converts directly instead of via double, since rounding twice could give a different result.
+     */
+    public static int longToFloat(long a) {
+        if (a == 0) {
+            return 0;
+        }
+        if (a == 0x8000000000000000L) {
+            return 0xdf000000;
+        }
+        long magnitude = (a < 0 ? -a : a);
+        int shift = countLeadingZeros(magnitude) - 1;
+        return roundAndPackFloat(a < 0, 62 - shift, magnitude << shift);
+    }
+
+    //endregion
+
+    //region helpers
+
+    private static boolean isNaN(long a) {
+        return (a & ~DOUBLE_SIGN) > DOUBLE_INFINITY;
+    }
+
+    private static boolean isInfinite(long a) {
+        return (a & ~DOUBLE_SIGN) == DOUBLE_INFINITY;
+    }
+
+    private static boolean isZero(long a) {
+        return (a & ~DOUBLE_SIGN) == 0;
+    }
+
+    /**
+     * Returns the unbiased exponent of a finite non-zero value, normalizing subnormal values.
+     */
+    private static int getExponent(long a) {
+        int exponentField = (int) (a >>> 52) & 0x7ff;
+        if (exponentField == 0) {
+            return 1 - DOUBLE_BIAS - (countLeadingZeros(a & DOUBLE_FRACTION_MASK) - 11);
+        }
+        return exponentField - DOUBLE_BIAS;
+    }
+
+    /**
+     * Returns the significand of a finite non-zero value with its highest bit at bit 62, normalizing subnormal values.
+     */
+    private static long getSignificand(long a) {
+        long fraction = a & DOUBLE_FRACTION_MASK;
+        if (((a >>> 52) & 0x7ff) == 0) {
+            return fraction << (countLeadingZeros(fraction) - 1);
+        }
+        return (fraction | (1L << 52)) << 10;
+    }
+
+    private static long roundAndPackDouble(boolean negative, int exponent, long significand) {
+        long sign = (negative ? DOUBLE_SIGN : 0);
+        int biasedExponent = exponent + DOUBLE_BIAS;
+        if (biasedExponent >= 0x7ff) {
+            return DOUBLE_INFINITY | sign;
+        }
+        if (biasedExponent <= 0) {
+            return roundToNearestEven(shiftRightJam(significand, 1 - biasedExponent), 10) | sign;
+        }
+        return (((long) (biasedExponent - 1) << 52) + roundToNearestEven(significand, 10)) | sign;
+    }
+
+    private static int roundAndPackFloat(boolean negative, int exponent, long significand) {
+        int sign = (negative ? FLOAT_SIGN : 0);
+        int biasedExponent = exponent + FLOAT_BIAS;
+        if (biasedExponent >= 0xff) {
+            return FLOAT_INFINITY | sign;
+        }
+        if (biasedExponent <= 0) {
+            return (int) roundToNearestEven(shiftRightJam(significand, 1 - biasedExponent), 39) | sign;
+        }
+        return (((biasedExponent - 1) << 23) + (int) roundToNearestEven(significand, 39)) | sign;
+    }
+
+    /**
+     * Removes the lowest "bits" bits from the specified significand, rounding to nearest, ties to even. The result
+     * may carry into the next higher bit, which then increments the exponent when added to the exponent field.
+     */
+    private static long roundToNearestEven(long significand, int bits) {
+        long half = 1L << (bits - 1);
+        long roundingBits = significand & ((half << 1) - 1);
+        long result = (significand + half) >>> bits;
+        if (roundingBits == half) {
+            result &= ~1L;
+        }
+        return result;
+    }
+
+    /**
+     * Shifts right, setting bit 0 of the result if any bit that has been shifted out was set.
+     */
+    private static long shiftRightJam(long value, int amount) {
+        if (amount == 0) {
+            return value;
+        }
+        if (amount >= 63) {
+            return (value != 0 ? 1 : 0);
+        }
+        return (value >>> amount) | ((value & ((1L << amount) - 1)) != 0 ? 1 : 0);
+    }
+
+    private static int countLeadingZeros(long value) {
+        int count = 0;
+        if ((value >>> 32) == 0) {
+            count += 32;
+            value = value << 32;
+        }
+        if ((value >>> 48) == 0) {
+            count += 16;
+            value = value << 16;
+        }
+        if ((value >>> 56) == 0) {
+            count += 8;
+            value = value << 8;
+        }
+        if ((value >>> 60) == 0) {
+            count += 4;
+            value = value << 4;
+        }
+        if ((value >>> 62) == 0) {
+            count += 2;
+            value = value << 2;
+        }
+        if ((value >>> 63) == 0) {
+            count++;
+        }
+        return count;
+    }
+
+    private static boolean isUnsignedLessThan(long a, long b) {
+        return (a ^ DOUBLE_SIGN) < (b ^ DOUBLE_SIGN);
+    }
+
+    //endregion
+
+}
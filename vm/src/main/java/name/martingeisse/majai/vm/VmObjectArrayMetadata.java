@@ -12,6 +12,7 @@ public final class VmObjectArrayMetadata extends VmObjectMetadata {
         this.elementType = elementType;
     }
 
+    @Override
     public VmObjectMetadataContributor getElementType() {
         return elementType;
     }
@@ -16,11 +16,24 @@ public abstract class VmObjectMetadata extends VmObjectMetadataContributor {
 
     private final VmClass parentClass;
     private final Object[] vtable;
+    private final int depth;
+    private final VmObjectMetadata[] display;
 
     public VmObjectMetadata(String name, VmClass parentClass, Object[] vtable) {
         super(name);
         this.parentClass = parentClass;
         this.vtable = vtable;
+        if (parentClass == null) {
+            this.depth = 0;
+            this.display = new VmObjectMetadata[] {this};
+        } else {
+            this.depth = parentClass.getDepth() + 1;
+            this.display = new VmObjectMetadata[depth + 1];
+            for (int i = 0; i < depth; i++) {
+                display[i] = parentClass.getDisplay()[i];
+            }
+            display[depth] = this;
+        }
     }
 
     public VmClass getParentClass() {
@@ -31,26 +44,49 @@ public abstract class VmObjectMetadata extends VmObjectMetadataContributor {
         return vtable;
     }
 
-    public static boolean objectIsInstanceOf(Object object, VmObjectMetadata metadata) {
-        return false;
+    /**
+     * Returns the number of superclasses. This is 0 for java.lang.Object and 1 for arrays.
+     */
+    public int getDepth() {
+        return depth;
     }
 
-    public static Object castReference(Object object, VmObjectMetadata metadata) {
-        return null;
+    /**
+     * Returns the superclasses, indexed by their depth, followed by this metadata itself. An object metadata x is a
+     * subclass of a class y exactly if the display of x has y at y's depth, so subclass checks take constant time
+     * and the compiler can inline them (see CodeTranslator). The returned array must not be modified.
+     */
+    public VmObjectMetadata[] getDisplay() {
+        return display;
     }
 
+    /**
+     * Returns the element type for object arrays, and null for all other object metadata.
+     */
+    public VmObjectMetadataContributor getElementType() {
+        return null;
+    }
 
+    public static boolean objectIsInstanceOf(Object object, VmObjectMetadata metadata) {
+        return object != null && isEqualOrSubclassOf(getMetadata(object), metadata);
+    }
 
+    private static native VmObjectMetadata getMetadata(Object object);
 
     public static boolean isEqualOrSubclassOf(VmObjectMetadata x, VmObjectMetadata y) {
-        if (x == y) {
+        VmObjectMetadata[] display = x.display;
+        int depth = y.depth;
+        if (depth < display.length && display[depth] == y) {
             return true;
         }
-        VmClass parent = x.getParentClass();
-        if (parent == null) {
-            return false;
+
+        // object arrays are covariant in their element type
+        VmObjectMetadataContributor xElementType = x.getElementType();
+        VmObjectMetadataContributor yElementType = y.getElementType();
+        if (xElementType instanceof VmObjectMetadata && yElementType instanceof VmObjectMetadata) {
+            return isEqualOrSubclassOf((VmObjectMetadata) xElementType, (VmObjectMetadata) yElementType);
         }
-        return isEqualOrSubclassOf(parent, y);
+        return false;
     }
 
 }